@@ -0,0 +1,63 @@
+package com.example.cppoptimizer.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
+import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.Lexer.CppLexer;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+
+/**
+ * End-to-end cost of {@link CodeOptimizerService#optimize} with the result cache turned
+ * off, so every invocation runs the full pipeline, plus the lexer on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-jmh.xml")
+public class PipelineBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "HUGE", "MANY_FUNCTIONS", "DEEP_NESTING", "LONG_LINES"})
+    public SyntheticCorpus.Shape shape;
+
+    private CodeOptimizerService service;
+    private String code;
+
+    @Setup
+    public void setUp() {
+        OptimizerProperties properties = new OptimizerProperties();
+        properties.getCache().setEnabled(false);
+        service = new CodeOptimizerService(properties);
+        code = SyntheticCorpus.generate(shape);
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    @Benchmark
+    public CodeOptimizerService.OptimizationResult optimize() {
+        return service.optimize(code);
+    }
+
+    @Benchmark
+    public TokenStream lex() {
+        return CppLexer.lex(code);
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.cppoptimizer.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Deterministic generator of C/C++ sources for benchmarks. Every shape mixes the
+ * constructs the passes look for (constant sums, accumulation loops, unused locals,
+ * allocations, small helpers, short loops, repeated expressions, loop-invariant
+ * assignments) so each transformer has real work to do. Run {@link #main} to write
+ * the corpus to a directory for use outside JMH.
+ */
+public final class SyntheticCorpus {
+    public enum Shape {
+        /** A single small translation unit, like a typical upload (~2 KB). */
+        SMALL,
+        /** A few hundred functions (~150 KB). */
+        MEDIUM,
+        /** A generated source of several megabytes (~6 MB). */
+        HUGE,
+        /** Thousands of tiny functions, stressing per-function bookkeeping. */
+        MANY_FUNCTIONS,
+        /** Loops nested dozens of levels deep, stressing bracket matching and hoisting. */
+        DEEP_NESTING,
+        /** Expressions with thousands of terms on single lines. */
+        LONG_LINES
+    }
+
+    private static final long SEED = 42;
+
+    private SyntheticCorpus() {
+    }
+
+    public static String generate(Shape shape) {
+        Random random = new Random(SEED);
+        StringBuilder out = new StringBuilder();
+        out.append("#include <stdio.h>\n#include <stdlib.h>\n\n");
+        switch (shape) {
+            case SMALL -> appendUnits(out, random, 3);
+            case MEDIUM -> appendUnits(out, random, 250);
+            case HUGE -> appendUnits(out, random, 10_000);
+            case MANY_FUNCTIONS -> {
+                for (int i = 0; i < 20_000; i++) {
+                    out.append("int f").append(i).append("(int x) {\n    return x + ").append(random.nextInt(100)).append(";\n}\n\n");
+                }
+            }
+            case DEEP_NESTING -> {
+                for (int i = 0; i < 20; i++) {
+                    appendNested(out, random, i, 40);
+                }
+            }
+            case LONG_LINES -> {
+                for (int i = 0; i < 20; i++) {
+                    appendLongLines(out, random, i, 5_000);
+                }
+            }
+        }
+        appendMain(out);
+        return out.toString();
+    }
+
+    private static void appendUnits(StringBuilder out, Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            int a = random.nextInt(50);
+            int b = random.nextInt(50);
+            out.append("int square").append(i).append("(int x) {\n    return x * x;\n}\n\n");
+            out.append("int compute").append(i).append("(int n, int *data) {\n");
+            out.append("    int a = ").append(a).append(" + ").append(b).append(";\n");
+            out.append("    int unused").append(i).append(" = ").append(random.nextInt(100)).append(";\n");
+            out.append("    int sum = 0;\n");
+            out.append("    for (int i = 0; i < ").append(10 + random.nextInt(90)).append("; i++) {\n        sum += i;\n    }\n");
+            out.append("    int *arr = (int*)malloc(").append(1 + random.nextInt(16)).append(" * sizeof(int));\n");
+            out.append("    int b = square").append(i).append("(a);\n");
+            out.append("    for (int j = 0; j < ").append(2 + random.nextInt(3)).append("; j++) {\n        data[j] = j + b;\n    }\n");
+            out.append("    int p = a * b;\n    int q = a * b;\n");
+            out.append("    for (int k = 0; k < n; k++) {\n        int t = ").append(random.nextInt(10)).append(";\n        data[k] = t + k;\n    }\n");
+            out.append("    free(arr);\n");
+            out.append("    return sum + p + q;\n}\n\n");
+        }
+    }
+
+    private static void appendNested(StringBuilder out, Random random, int index, int depth) {
+        out.append("int nested").append(index).append("(int n, int *data) {\n    int acc = 0;\n");
+        for (int d = 0; d < depth; d++) {
+            indent(out, d + 1).append("for (int i").append(d).append(" = 0; i").append(d).append(" < n; i").append(d).append("++) {\n");
+            indent(out, d + 2).append("int c").append(d).append(" = ").append(random.nextInt(10)).append(" + ").append(random.nextInt(10)).append(";\n");
+        }
+        indent(out, depth + 1).append("acc += data[i").append(depth - 1).append("] * c0;\n");
+        for (int d = depth - 1; d >= 0; d--) {
+            indent(out, d + 1).append("}\n");
+        }
+        out.append("    return acc;\n}\n\n");
+    }
+
+    private static void appendLongLines(StringBuilder out, Random random, int index, int terms) {
+        out.append("int wide").append(index).append("(int x, int y) {\n    int total = ");
+        for (int t = 0; t < terms; t++) {
+            if (t > 0) {
+                out.append(" + ");
+            }
+            switch (random.nextInt(3)) {
+                case 0 -> out.append(random.nextInt(100));
+                case 1 -> out.append("(x * y)");
+                default -> out.append("x");
+            }
+        }
+        out.append(";\n    return total;\n}\n\n");
+    }
+
+    private static void appendMain(StringBuilder out) {
+        out.append("int main() {\n    int data[64] = {0};\n    printf(\"%d\\n\", data[0]);\n    return 0;\n}\n");
+    }
+
+    private static StringBuilder indent(StringBuilder out, int level) {
+        return out.append("    ".repeat(level));
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "target/corpus");
+        Files.createDirectories(dir);
+        for (Shape shape : Shape.values()) {
+            Path file = dir.resolve(shape.name().toLowerCase() + ".cpp");
+            Files.writeString(file, generate(shape));
+            System.out.println(file + " " + Files.size(file) + " bytes");
+        }
+    }
+}
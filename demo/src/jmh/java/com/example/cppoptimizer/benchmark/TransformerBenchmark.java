@@ -0,0 +1,58 @@
+package com.example.cppoptimizer.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.CodeTransformer.CodeTransformer;
+import com.example.cppoptimizer.service.Lexer.CppLexer;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+
+/**
+ * Runs each pass on its own over a pre-lexed corpus, so a change to one transformer
+ * shows up in its own row. Pass names are the ones reported in the timing table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-jmh.xml")
+public class TransformerBenchmark {
+
+    @Param({"foldConstants", "reduceStrength", "optimizeArithmeticLoops", "eliminateDeadCode",
+            "optimizeMemoryAllocation", "inlineFunctions", "optimizeLoopNests", "vectorizeLoops", "unrollLoops",
+            "eliminateCommonSubexpressions", "hoistCode"})
+    public String pass;
+
+    @Param({"SMALL", "MEDIUM", "HUGE", "MANY_FUNCTIONS", "DEEP_NESTING", "LONG_LINES"})
+    public SyntheticCorpus.Shape shape;
+
+    private CodeTransformer transformer;
+    private TokenStream tokens;
+
+    @Setup
+    public void setUp() {
+        transformer = new CodeOptimizerService().getTransformers().stream()
+                .filter(t -> t.getName().equals(pass))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown pass: " + pass));
+        tokens = CppLexer.lex(SyntheticCorpus.generate(shape));
+    }
+
+    @Benchmark
+    public String transform() {
+        return transformer.transform(tokens, CodeOptimizerService.Language.CPP);
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.cppoptimizer.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import com.example.cppoptimizer.service.DataModel;
+
+@Component
+@ConfigurationProperties(prefix = "cppoptimizer")
+public class OptimizerProperties {
+    private final Cache cache = new Cache();
+    private final Incremental incremental = new Incremental();
+    private final Parallel parallel = new Parallel();
+    private final Batch batch = new Batch();
+    private final Passes passes = new Passes();
+    private final Analysis analysis = new Analysis();
+    private final Jobs jobs = new Jobs();
+    private final Results results = new Results();
+    private final Verification verification = new Verification();
+
+    public Cache getCache() { return cache; }
+    public Incremental getIncremental() { return incremental; }
+    public Parallel getParallel() { return parallel; }
+    public Batch getBatch() { return batch; }
+    public Passes getPasses() { return passes; }
+    public Analysis getAnalysis() { return analysis; }
+    public Jobs getJobs() { return jobs; }
+    public Results getResults() { return results; }
+    public Verification getVerification() { return verification; }
+
+    public static class Cache {
+        private boolean enabled = true;
+        // Upper bound for cached results and intermediate pass outputs held in memory
+        private long maxBytes = 64L * 1024 * 1024;
+        // Optional directory for the persistent tier; empty disables it
+        private String diskDir = "";
+        private long maxDiskBytes = 512L * 1024 * 1024;
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+        public long getMaxBytes() { return maxBytes; }
+        public void setMaxBytes(long maxBytes) { this.maxBytes = maxBytes; }
+        public String getDiskDir() { return diskDir; }
+        public void setDiskDir(String diskDir) { this.diskDir = diskDir; }
+        public long getMaxDiskBytes() { return maxDiskBytes; }
+        public void setMaxDiskBytes(long maxDiskBytes) { this.maxDiskBytes = maxDiskBytes; }
+    }
+
+    public static class Incremental {
+        // Editor sessions whose per-region outputs are remembered for /optimizeEdited
+        private int maxSessions = 256;
+
+        public int getMaxSessions() { return maxSessions; }
+        public void setMaxSessions(int maxSessions) { this.maxSessions = maxSessions; }
+    }
+
+    public static class Passes {
+        // Sweeps over the pipeline; after the first, only passes with new work run again
+        private int maxIterations = 4;
+        // Wall time one pass may spend on one input before it is stopped; 0 disables the limit
+        private long timeBudgetMs = 5000;
+        // Copies of the body per iteration of a partially unrolled loop: 2, 4 or 8
+        private int unrollFactor = 4;
+        // Tokens inlining may add in one run, as a percentage of the file's tokens
+        private int inlineGrowthPercent = 20;
+        // Bytes of heap arrays one function may take into its stack frame
+        private int stackPromotionBytes = 1024;
+        // Edge of the square blocks loop nests are tiled into; 0 disables tiling
+        private int tileSize = 32;
+
+        public int getMaxIterations() { return maxIterations; }
+        public void setMaxIterations(int maxIterations) { this.maxIterations = maxIterations; }
+        public long getTimeBudgetMs() { return timeBudgetMs; }
+        public void setTimeBudgetMs(long timeBudgetMs) { this.timeBudgetMs = timeBudgetMs; }
+        public int getUnrollFactor() { return unrollFactor; }
+        public void setUnrollFactor(int unrollFactor) { this.unrollFactor = unrollFactor; }
+        public int getInlineGrowthPercent() { return inlineGrowthPercent; }
+        public void setInlineGrowthPercent(int inlineGrowthPercent) { this.inlineGrowthPercent = inlineGrowthPercent; }
+        public int getStackPromotionBytes() { return stackPromotionBytes; }
+        public void setStackPromotionBytes(int stackPromotionBytes) { this.stackPromotionBytes = stackPromotionBytes; }
+        public int getTileSize() { return tileSize; }
+        public void setTileSize(int tileSize) { this.tileSize = tileSize; }
+    }
+
+    public static class Analysis {
+        // ABI whose type sizes the memory estimates use
+        private DataModel dataModel = DataModel.LP64;
+
+        public DataModel getDataModel() { return dataModel; }
+        public void setDataModel(DataModel dataModel) { this.dataModel = dataModel; }
+    }
+
+    public static class Parallel {
+        private boolean enabled = true;
+        // Worker threads for per-function passes; 0 uses one per available core
+        private int parallelism = 0;
+        // Smaller inputs run sequentially, where splitting would cost more than it saves
+        private int minChars = 64 * 1024;
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+        public int getParallelism() { return parallelism; }
+        public void setParallelism(int parallelism) { this.parallelism = parallelism; }
+        public int getMinChars() { return minChars; }
+        public void setMinChars(int minChars) { this.minChars = minChars; }
+    }
+
+    public static class Jobs {
+        // Worker threads for queued jobs; 0 uses half the cores, leaving the rest to interactive requests
+        private int workers = 0;
+        // Jobs waiting for a worker; submissions beyond this are rejected with 429
+        private int queueCapacity = 100;
+        private long maxFileBytes = 16L * 1024 * 1024;
+        // How long finished jobs and their results stay available
+        private long retentionSeconds = 600;
+        // Upper bound for the long-poll wait parameter
+        private long maxWaitSeconds = 60;
+
+        public int getWorkers() { return workers; }
+        public void setWorkers(int workers) { this.workers = workers; }
+        public int getQueueCapacity() { return queueCapacity; }
+        public void setQueueCapacity(int queueCapacity) { this.queueCapacity = queueCapacity; }
+        public long getMaxFileBytes() { return maxFileBytes; }
+        public void setMaxFileBytes(long maxFileBytes) { this.maxFileBytes = maxFileBytes; }
+        public long getRetentionSeconds() { return retentionSeconds; }
+        public void setRetentionSeconds(long retentionSeconds) { this.retentionSeconds = retentionSeconds; }
+        public long getMaxWaitSeconds() { return maxWaitSeconds; }
+        public void setMaxWaitSeconds(long maxWaitSeconds) { this.maxWaitSeconds = maxWaitSeconds; }
+    }
+
+    public static class Results {
+        // How long optimized outputs stay downloadable by id
+        private long ttlSeconds = 1800;
+        // Outputs held in memory across all results; beyond this they are written to the spill directory
+        private long maxMemoryBytes = 64L * 1024 * 1024;
+        // Outputs at least this large always go to disk, where downloads can skip the JVM
+        private long spillBytes = 1024L * 1024;
+        // Empty uses a fresh temporary directory
+        private String spillDir = "";
+
+        public long getTtlSeconds() { return ttlSeconds; }
+        public void setTtlSeconds(long ttlSeconds) { this.ttlSeconds = ttlSeconds; }
+        public long getMaxMemoryBytes() { return maxMemoryBytes; }
+        public void setMaxMemoryBytes(long maxMemoryBytes) { this.maxMemoryBytes = maxMemoryBytes; }
+        public long getSpillBytes() { return spillBytes; }
+        public void setSpillBytes(long spillBytes) { this.spillBytes = spillBytes; }
+        public String getSpillDir() { return spillDir; }
+        public void setSpillDir(String spillDir) { this.spillDir = spillDir; }
+    }
+
+    public static class Verification {
+        // Off by default: verifying compiles and runs the uploaded code on this machine, as the
+        // server's user; the runner's limits and namespaces are not a sandbox
+        private boolean enabled = false;
+        // gcc, clang, cc or a path to one of them; C++ uses the matching g++, clang++ or c++.
+        // Empty uses the first of gcc, clang and cc that is installed
+        private String compiler = "";
+        private String flags = "-O2";
+        // Runs of each program; the median wall time is compared
+        private int runs = 5;
+        private long compileTimeoutMs = 60_000;
+        // Wall time of one run; its CPU time is limited to the next second above this
+        private long runTimeoutMs = 10_000;
+        // Address space one run may use; 0 for no limit
+        private long maxMemoryBytes = 1024L * 1024 * 1024;
+        private long maxOutputBytes = 16L * 1024 * 1024;
+        // Processes one run may have at once, the program itself included. Counted per run where
+        // the runner gets its own user namespace, otherwise across the server's user; never for root
+        private int maxProcesses = 16;
+        // How much slower than the original the optimized program may run before it is reported
+        private int slowdownTolerancePercent = 10;
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+        public String getCompiler() { return compiler; }
+        public void setCompiler(String compiler) { this.compiler = compiler; }
+        public String getFlags() { return flags; }
+        public void setFlags(String flags) { this.flags = flags; }
+        public int getRuns() { return runs; }
+        public void setRuns(int runs) { this.runs = runs; }
+        public long getCompileTimeoutMs() { return compileTimeoutMs; }
+        public void setCompileTimeoutMs(long compileTimeoutMs) { this.compileTimeoutMs = compileTimeoutMs; }
+        public long getRunTimeoutMs() { return runTimeoutMs; }
+        public void setRunTimeoutMs(long runTimeoutMs) { this.runTimeoutMs = runTimeoutMs; }
+        public long getMaxMemoryBytes() { return maxMemoryBytes; }
+        public void setMaxMemoryBytes(long maxMemoryBytes) { this.maxMemoryBytes = maxMemoryBytes; }
+        public long getMaxOutputBytes() { return maxOutputBytes; }
+        public void setMaxOutputBytes(long maxOutputBytes) { this.maxOutputBytes = maxOutputBytes; }
+        public int getMaxProcesses() { return maxProcesses; }
+        public void setMaxProcesses(int maxProcesses) { this.maxProcesses = maxProcesses; }
+        public int getSlowdownTolerancePercent() { return slowdownTolerancePercent; }
+        public void setSlowdownTolerancePercent(int slowdownTolerancePercent) { this.slowdownTolerancePercent = slowdownTolerancePercent; }
+    }
+
+    public static class Batch {
+        // Files optimized at the same time across all batch requests; 0 uses one per core
+        private int maxConcurrency = 0;
+        private int maxFiles = 2000;
+        private long maxFileBytes = 16L * 1024 * 1024;
+        private long maxTotalBytes = 256L * 1024 * 1024;
+
+        public int getMaxConcurrency() { return maxConcurrency; }
+        public void setMaxConcurrency(int maxConcurrency) { this.maxConcurrency = maxConcurrency; }
+        public int getMaxFiles() { return maxFiles; }
+        public void setMaxFiles(int maxFiles) { this.maxFiles = maxFiles; }
+        public long getMaxFileBytes() { return maxFileBytes; }
+        public void setMaxFileBytes(long maxFileBytes) { this.maxFileBytes = maxFileBytes; }
+        public long getMaxTotalBytes() { return maxTotalBytes; }
+        public void setMaxTotalBytes(long maxTotalBytes) { this.maxTotalBytes = maxTotalBytes; }
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.cppoptimizer.controller;
+
+import com.example.cppoptimizer.service.BatchOptimizerService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+@Controller
+public class BatchOptimizerController {
+
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    @Autowired
+    private BatchOptimizerService batchOptimizerService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * Optimizes a zip archive and/or several uploaded files. Each file's result is written
+     * as one JSON line as soon as it finishes, so clients see progress while the rest of
+     * the batch is still running.
+     */
+    @PostMapping(value = "/optimizeBatch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    @ResponseBody
+    public ResponseEntity<StreamingResponseBody> optimizeBatch(@RequestParam(value = "files", required = false) List<MultipartFile> files,
+                                           @RequestParam(value = "archive", required = false) MultipartFile archive) {
+        List<BatchOptimizerService.SourceFile> sources = new ArrayList<>();
+        try {
+            // Read the uploads before returning: the multipart parts are not guaranteed to outlive the handler
+            if (archive != null && !archive.isEmpty()) {
+                try (InputStream in = archive.getInputStream()) {
+                    sources.addAll(batchOptimizerService.readArchive(in));
+                }
+            }
+            long totalBytes = sources.stream().mapToLong(BatchOptimizerService.SourceFile::getBytes).sum();
+            if (files != null) {
+                for (MultipartFile file : files) {
+                    if (file.isEmpty()) {
+                        continue;
+                    }
+                    // Counted in UTF-8 bytes of the code read, like archive entries
+                    try (InputStream in = file.getInputStream()) {
+                        BatchOptimizerService.SourceFile source = batchOptimizerService.readFile(file.getOriginalFilename(),
+                                in, file.getSize());
+                        totalBytes += source.getBytes();
+                        batchOptimizerService.checkLimits(sources.size() + 1, totalBytes);
+                        sources.add(source);
+                    }
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            return badRequest("Error reading the batch: " + e.getMessage());
+        }
+        if (sources.isEmpty()) {
+            return badRequest("Please upload C/C++ files or a zip archive.");
+        }
+
+        StreamingResponseBody body = out -> {
+            try {
+                batchOptimizerService.optimizeAll(sources, fileResult -> {
+                    try {
+                        out.write(objectMapper.writeValueAsBytes(fileResult));
+                        out.write('\n');
+                        out.flush();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+        return ResponseEntity.ok().contentType(NDJSON).body(body);
+    }
+
+    // Errors are returned through the same body type so the streaming handler stays in charge
+    private ResponseEntity<StreamingResponseBody> badRequest(String message) {
+        return ResponseEntity.badRequest()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(out -> objectMapper.writeValue(out, Map.of("error", message)));
+    }
+}
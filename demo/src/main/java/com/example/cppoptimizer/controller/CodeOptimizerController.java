@@ -1,9 +1,12 @@
 package com.example.cppoptimizer.controller;
 
 import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.ResultStore;
+import com.example.cppoptimizer.service.SourceReader;
+import jakarta.servlet.http.HttpSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -12,36 +15,60 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
 
 @Controller
 public class CodeOptimizerController {
+    private static final Logger logger = LoggerFactory.getLogger(CodeOptimizerController.class);
 
     @Autowired
     private CodeOptimizerService codeOptimizerService;
 
+    @Autowired
+    private ResultStore resultStore;
+
     @PostMapping("/optimize")
-    public String optimizeCode(@RequestParam("file") MultipartFile file, Model model) {
+    public String optimizeCode(@RequestParam("file") MultipartFile file,
+                               @RequestParam(value = "passes", required = false) List<String> passes,
+                               @RequestParam(value = "verify", defaultValue = "false") boolean verify, Model model) {
         if (file.isEmpty()) {
             model.addAttribute("error", "Please upload a file.");
             return "index";
         }
 
         try {
-            // Read the file and normalize line endings to \n
-            String originalCode = new String(file.getBytes(), StandardCharsets.UTF_8)
-                    .replaceAll("\r\n", "\n") // Convert Windows line endings
-                    .replaceAll("\r", "\n");  // Convert old Mac line endings
-            CodeOptimizerService.OptimizationResult result = codeOptimizerService.optimize(originalCode);
+            long allocatedBefore = allocatedBytes();
+            // Stream the upload and normalize line endings to \n while decoding
+            String originalCode;
+            try (InputStream in = file.getInputStream()) {
+                originalCode = SourceReader.read(in, file.getSize(), Long.MAX_VALUE);
+            }
+            CodeOptimizerService.OptimizationResult result = codeOptimizerService.optimize(originalCode, passes);
+            if (verify) {
+                result = codeOptimizerService.verify(originalCode, result);
+            }
+            if (allocatedBefore >= 0) {
+                long allocated = allocatedBytes() - allocatedBefore;
+                logger.info("Optimized {} ({} bytes): allocated {} bytes on the request thread ({}x input)",
+                        file.getOriginalFilename(), file.getSize(), allocated,
+                        String.format("%.1f", allocated / (double) Math.max(file.getSize(), 1)));
+            }
 
             model.addAttribute("originalCode", originalCode);
             model.addAttribute("optimizedCode", result.getOptimizedCode());
+            // Downloads fetch the output by id instead of posting it back
+            model.addAttribute("resultId", resultStore.put(file.getOriginalFilename(), result.getOptimizedCode()));
             model.addAttribute("beforeMemory", result.getBeforeMemory());
             model.addAttribute("afterMemory", result.getAfterMemory());
             model.addAttribute("timingEntries", result.getTimingEntries());
+            model.addAttribute("verification", result.getVerification());
             model.addAttribute("optimizationInsights", result.getOptimizationInsights());
         } catch (IOException e) {
             model.addAttribute("error", "Error reading the file: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            model.addAttribute("error", e.getMessage());
         }
 
         return "index";
@@ -49,34 +76,35 @@ public class CodeOptimizerController {
 
     @PostMapping(value = "/optimizeEdited", consumes = MediaType.TEXT_PLAIN_VALUE)
     @ResponseBody
-    public ResponseEntity<?> optimizeEditedCode(@RequestBody String code) {
+    public ResponseEntity<?> optimizeEditedCode(@RequestBody String code,
+                                                @RequestParam(value = "passes", required = false) List<String> passes,
+                                                HttpSession session) {
         try {
-            CodeOptimizerService.OptimizationResult result = codeOptimizerService.optimize(code);
-            return ResponseEntity.ok().body(new OptimizationResponse(result.getOptimizedCode(), null));
+            CodeOptimizerService.OptimizationResult result = codeOptimizerService.optimizeIncremental(session.getId(), code, passes);
+            String resultId = resultStore.put(null, result.getOptimizedCode());
+            return ResponseEntity.ok().body(new OptimizationResponse(result.getOptimizedCode(), resultId, null));
         } catch (Exception e) {
-            return ResponseEntity.badRequest().body(new OptimizationResponse(null, "Error optimizing code: " + e.getMessage()));
+            return ResponseEntity.badRequest().body(new OptimizationResponse(null, null, "Error optimizing code: " + e.getMessage()));
         }
     }
 
-    @SuppressWarnings("null")
-    @GetMapping("/download")
-    public ResponseEntity<ByteArrayResource> downloadCode(@RequestParam("code") String code, @RequestParam("filename") String filename) {
-        byte[] codeBytes = code.getBytes(StandardCharsets.UTF_8);
-        ByteArrayResource resource = new ByteArrayResource(codeBytes);
-
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + filename)
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .contentLength(codeBytes.length)
-                .body(resource);
+    // Bytes allocated by this thread so far, or -1 when the JVM cannot tell
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+            return threads.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
     }
 
     private static class OptimizationResponse {
         private String optimizedCode;
+        private String resultId;
         private String error;
 
-        public OptimizationResponse(String optimizedCode, String error) {
+        public OptimizationResponse(String optimizedCode, String resultId, String error) {
             this.optimizedCode = optimizedCode;
+            this.resultId = resultId;
             this.error = error;
         }
 
@@ -84,6 +112,10 @@ public class CodeOptimizerController {
             return optimizedCode;
         }
 
+        public String getResultId() {
+            return resultId;
+        }
+
         public String getError() {
             return error;
         }
@@ -0,0 +1,103 @@
+package com.example.cppoptimizer.controller;
+
+import com.example.cppoptimizer.service.OptimizationJobService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+@Controller
+public class OptimizationJobController {
+    // Seconds a client should back off after a 429
+    private static final String RETRY_AFTER_SECONDS = "5";
+
+    @Autowired
+    private OptimizationJobService jobService;
+
+    /**
+     * Queues an uploaded file (or the {@code code} form field) for optimization and
+     * answers right away with {@code 202} and the job's status; poll {@code Location} for
+     * progress and the result.
+     */
+    @PostMapping("/jobs")
+    @ResponseBody
+    public ResponseEntity<?> submit(@RequestParam(value = "file", required = false) MultipartFile file,
+                                    @RequestParam(value = "code", required = false) String code,
+                                    @RequestParam(value = "passes", required = false) List<String> passes) {
+        OptimizationJobService.JobStatus status;
+        try {
+            if (file != null && !file.isEmpty()) {
+                try (InputStream in = file.getInputStream()) {
+                    code = jobService.readSource(in, file.getSize());
+                }
+            }
+            if (code == null || code.isEmpty()) {
+                return error(HttpStatus.BAD_REQUEST, "Please upload a file or send the code in the 'code' field.");
+            }
+            status = jobService.submit(code, passes);
+        } catch (IOException e) {
+            return error(HttpStatus.BAD_REQUEST, "Error reading the file: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                    .body(Map.of("error", "The job queue is full; retry later."));
+        }
+        return ResponseEntity.accepted().location(URI.create("/jobs/" + status.getId())).body(status);
+    }
+
+    /**
+     * Status of a job, including its result once it has finished. With {@code wait}, the
+     * response is held (without holding a servlet thread) until the job finishes or that
+     * many seconds have passed, whichever comes first.
+     */
+    @GetMapping("/jobs/{id}")
+    @ResponseBody
+    public DeferredResult<ResponseEntity<?>> status(@PathVariable String id,
+                                                    @RequestParam(value = "wait", defaultValue = "0") long waitSeconds) {
+        long wait = Math.min(Math.max(waitSeconds, 0), jobService.getMaxWaitSeconds());
+        DeferredResult<ResponseEntity<?>> response = new DeferredResult<>(Math.max(wait, 1) * 1000);
+        OptimizationJobService.JobStatus status = jobService.status(id);
+        CompletableFuture<OptimizationJobService.JobStatus> completion = jobService.completion(id);
+        if (status == null || completion == null) {
+            response.setResult(notFound(id));
+        } else if (wait == 0 || status.getState().isFinished()) {
+            response.setResult(ResponseEntity.ok(status));
+        } else {
+            response.onTimeout(() -> {
+                OptimizationJobService.JobStatus current = jobService.status(id);
+                response.setResult(current != null ? ResponseEntity.ok(current) : notFound(id));
+            });
+            completion.thenAccept(done -> response.setResult(ResponseEntity.ok(done)));
+        }
+        return response;
+    }
+
+    @DeleteMapping("/jobs/{id}")
+    @ResponseBody
+    public ResponseEntity<?> cancel(@PathVariable String id) {
+        OptimizationJobService.JobStatus status = jobService.cancel(id);
+        return status != null ? ResponseEntity.ok(status) : notFound(id);
+    }
+
+    private static ResponseEntity<?> notFound(String id) {
+        return error(HttpStatus.NOT_FOUND, "No such job: " + id);
+    }
+
+    private static ResponseEntity<?> error(HttpStatus status, String message) {
+        return ResponseEntity.status(status).body(Map.of("error", message));
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.cppoptimizer.controller;
+
+import com.example.cppoptimizer.service.ResultStore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+@Controller
+public class ResultDownloadController {
+    // Request attributes of Tomcat's sendfile support: the connector writes the file itself
+    // once the handler returns, straight from the page cache to the socket
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    // Below this, the gzip header and the extra round of work outweigh the savings
+    private static final long MIN_GZIP_BYTES = 1024;
+    private static final MediaType ZIP = MediaType.parseMediaType("application/zip");
+
+    @Autowired
+    private ResultStore resultStore;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * Downloads a stored result: its file, or for a result with several files, a redirect
+     * to their zip archive. {@code filename} overrides the name the browser saves a single file as.
+     */
+    @GetMapping("/results/{id}")
+    @ResponseBody
+    public ResponseEntity<?> download(@PathVariable String id,
+                                      @RequestParam(value = "filename", required = false) String filename,
+                                      @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                      HttpServletRequest request) {
+        ResultStore.StoredResult result = resultStore.get(id);
+        if (result == null) {
+            return notFound("No such result: " + id);
+        }
+        if (result.size() > 1) {
+            return ResponseEntity.status(HttpStatus.FOUND).location(URI.create("/results/" + id + "/archive")).build();
+        }
+        return file(result.getFile(0), filename, acceptEncoding, request);
+    }
+
+    @GetMapping("/results/{id}/files/{index}")
+    @ResponseBody
+    public ResponseEntity<?> downloadFile(@PathVariable String id, @PathVariable int index,
+                                          @RequestParam(value = "filename", required = false) String filename,
+                                          @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                          HttpServletRequest request) {
+        ResultStore.StoredResult result = resultStore.get(id);
+        if (result == null) {
+            return notFound("No such result: " + id);
+        }
+        return file(result.getFile(index), filename, acceptEncoding, request);
+    }
+
+    /** All files of a result as one zip archive, streamed as it is compressed. */
+    @GetMapping("/results/{id}/archive")
+    @ResponseBody
+    public ResponseEntity<StreamingResponseBody> downloadArchive(@PathVariable String id) {
+        ResultStore.StoredResult result = resultStore.get(id);
+        if (result == null) {
+            // Written through the streaming body type so the streaming handler stays in charge
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(out -> objectMapper.writeValue(out, Map.of("error", "No such result: " + id)));
+        }
+        return archive(id, result);
+    }
+
+    private ResponseEntity<?> file(ResultStore.StoredFile file, String filename, String acceptEncoding,
+                                   HttpServletRequest request) {
+        if (file == null) {
+            return notFound("No such file in this result.");
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.setContentDisposition(attachment(baseName(filename != null && !filename.isBlank() ? filename : file.getName())));
+        headers.setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+
+        ResultStore.Body body = file.getContent();
+        if (body.getLength() >= MIN_GZIP_BYTES && acceptsGzip(acceptEncoding)) {
+            ResultStore.Body gzipped = resultStore.gzipped(file);
+            if (gzipped != null) {
+                headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+                body = gzipped;
+            }
+        }
+        headers.setContentLength(body.getLength());
+
+        if (!body.isFile()) {
+            return ResponseEntity.ok().headers(headers).body(new ByteArrayResource(body.getBytes()));
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            request.setAttribute(SENDFILE_FILENAME, body.getPath().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, 0L);
+            request.setAttribute(SENDFILE_END, body.getLength());
+            return ResponseEntity.ok().headers(headers).build();
+        }
+        return ResponseEntity.ok().headers(headers).body(new FileSystemResource(body.getPath()));
+    }
+
+    private ResponseEntity<StreamingResponseBody> archive(String id, ResultStore.StoredResult result) {
+        List<ResultStore.StoredFile> files = result.getFiles();
+        StreamingResponseBody body = out -> {
+            ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+            zip.setLevel(Deflater.BEST_SPEED);
+            Set<String> names = new HashSet<>();
+            for (ResultStore.StoredFile file : files) {
+                zip.putNextEntry(new ZipEntry(entryName(file.getName(), names)));
+                try (InputStream in = file.getContent().open()) {
+                    in.transferTo(zip);
+                }
+                zip.closeEntry();
+            }
+            zip.finish();
+        };
+        return ResponseEntity.ok()
+                .contentType(ZIP)
+                .header(HttpHeaders.CONTENT_DISPOSITION, attachment("optimized-" + id + ".zip").toString())
+                .body(body);
+    }
+
+    // Honors q=0 so a client can refuse gzip explicitly
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.trim().split(";");
+            String coding = params[0].trim();
+            if (!coding.equalsIgnoreCase("gzip") && !coding.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") && param.substring(2).trim().matches("0(\\.0*)?")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Keeps the relative path of batch entries but never lets one climb out of the
+    // extraction directory; duplicates get a number after the file name, dir/a-2.c
+    private static String entryName(String name, Set<String> used) {
+        StringBuilder path = new StringBuilder();
+        for (String segment : name.replace('\\', '/').split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                continue;
+            }
+            path.append(path.length() > 0 ? "/" : "").append(segment);
+        }
+        String entry = path.length() > 0 ? path.toString() : "optimized.cpp";
+        int dot = entry.lastIndexOf('.');
+        int extension = dot > entry.lastIndexOf('/') + 1 ? dot : entry.length();
+        String unique = entry;
+        for (int n = 2; !used.add(unique); n++) {
+            unique = entry.substring(0, extension) + "-" + n + entry.substring(extension);
+        }
+        return unique;
+    }
+
+    // Only names outside ASCII need the encoded filename* form
+    private static ContentDisposition attachment(String filename) {
+        ContentDisposition.Builder builder = ContentDisposition.attachment();
+        boolean ascii = filename.chars().allMatch(c -> c >= 0x20 && c < 0x7f);
+        return (ascii ? builder.filename(filename) : builder.filename(filename, StandardCharsets.UTF_8)).build();
+    }
+
+    private static String baseName(String name) {
+        String normalized = name.replace('\\', '/');
+        String base = normalized.substring(normalized.lastIndexOf('/') + 1);
+        return base.isEmpty() ? "optimized.cpp" : base;
+    }
+
+    private static ResponseEntity<?> notFound(String message) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("error", message));
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.cppoptimizer.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
+
+/**
+ * Optimizes many files at once. Every file gets its own virtual thread, while a shared
+ * semaphore caps how many pipelines actually run at the same time across all batches,
+ * so throughput is bounded by CPU rather than by request round-trips.
+ */
+@Service
+public class BatchOptimizerService {
+    private static final Logger logger = LoggerFactory.getLogger(BatchOptimizerService.class);
+    private static final List<String> SOURCE_EXTENSIONS = List.of(".c", ".cc", ".cpp", ".cxx", ".h", ".hh", ".hpp", ".hxx");
+
+    private final CodeOptimizerService codeOptimizerService;
+    private final ResultStore resultStore;
+    private final OptimizerProperties.Batch config;
+    private final Semaphore permits;
+
+    @Autowired
+    public BatchOptimizerService(CodeOptimizerService codeOptimizerService, ResultStore resultStore,
+                                 OptimizerProperties properties) {
+        this.codeOptimizerService = codeOptimizerService;
+        this.resultStore = resultStore;
+        this.config = properties.getBatch();
+        int concurrency = config.getMaxConcurrency() > 0
+                ? config.getMaxConcurrency() : Runtime.getRuntime().availableProcessors();
+        this.permits = new Semaphore(concurrency, true);
+    }
+
+    /**
+     * Runs every file through the pipeline and hands each result to {@code sink} as soon
+     * as that file finishes, in completion order. The sink is only ever called from the
+     * calling thread, so it may write to a response stream without extra locking.
+     * The outputs are kept in the {@link ResultStore} under one id, slot {@code i} holding
+     * file {@code i}, so they can be downloaded one by one or as an archive.
+     */
+    public void optimizeAll(List<SourceFile> files, Consumer<FileResult> sink) throws InterruptedException {
+        String resultId = resultStore.reserve(files.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            CompletionService<FileResult> completion = new ExecutorCompletionService<>(executor);
+            for (int i = 0; i < files.size(); i++) {
+                int index = i;
+                completion.submit(() -> optimizeOne(resultId, index, files.get(index)));
+            }
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    try {
+                        sink.accept(completion.take().get());
+                    } catch (ExecutionException e) {
+                        // optimizeOne already turns failures into results; this is a bug guard
+                        logger.error("Batch task failed unexpectedly", e.getCause());
+                    }
+                }
+            } catch (RuntimeException | InterruptedException e) {
+                // The client went away or we were interrupted: stop files still waiting for a permit
+                executor.shutdownNow();
+                throw e;
+            }
+        }
+    }
+
+    private FileResult optimizeOne(String resultId, int index, SourceFile file) throws InterruptedException {
+        permits.acquire();
+        long start = System.nanoTime();
+        try {
+            CodeOptimizerService.OptimizationResult result = codeOptimizerService.optimize(file.getCode());
+            resultStore.set(resultId, index, file.getName(), result.getOptimizedCode());
+            return new FileResult(index, file.getName(), resultId, result, null, (System.nanoTime() - start) / 1_000_000.0);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to optimize {}: {}", file.getName(), e.getMessage());
+            return new FileResult(index, file.getName(), resultId, null, "Error optimizing code: " + e.getMessage(),
+                    (System.nanoTime() - start) / 1_000_000.0);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /** Extracts C/C++ sources from a zip archive, enforcing the configured size limits. */
+    public List<SourceFile> readArchive(InputStream archive) throws IOException {
+        List<SourceFile> files = new ArrayList<>();
+        long totalBytes = 0;
+        try (ZipInputStream zip = new ZipInputStream(archive, StandardCharsets.UTF_8)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.isDirectory() || !isSource(entry.getName())) {
+                    continue;
+                }
+                // Entry sizes in the zip header can lie, so the reader counts the inflated bytes itself
+                SourceFile file = new SourceFile(entry.getName(), readBounded(zip, entry.getName(), Math.max(entry.getSize(), 0)));
+                totalBytes += file.getBytes();
+                checkLimits(files.size() + 1, totalBytes);
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    public SourceFile readFile(String name, InputStream in, long size) throws IOException {
+        return new SourceFile(name, readBounded(in, name, size));
+    }
+
+    public void checkLimits(int fileCount, long totalBytes) {
+        if (fileCount > config.getMaxFiles()) {
+            throw new IllegalArgumentException("Batch exceeds the limit of " + config.getMaxFiles() + " files");
+        }
+        if (totalBytes > config.getMaxTotalBytes()) {
+            throw new IllegalArgumentException("Batch exceeds the limit of " + config.getMaxTotalBytes() + " bytes");
+        }
+    }
+
+    private String readBounded(InputStream in, String name, long sizeHint) throws IOException {
+        if (sizeHint > config.getMaxFileBytes()) {
+            throw new IllegalArgumentException(name + " exceeds the per-file limit of " + config.getMaxFileBytes() + " bytes");
+        }
+        try {
+            return SourceReader.read(in, sizeHint, config.getMaxFileBytes());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(name + " exceeds the per-file limit of " + config.getMaxFileBytes() + " bytes");
+        }
+    }
+
+    public static boolean isSource(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return SOURCE_EXTENSIONS.stream().anyMatch(lower::endsWith);
+    }
+
+    public static class SourceFile {
+        private final String name;
+        private final String code;
+        private final long bytes;
+
+        public SourceFile(String name, String code) {
+            this.name = name;
+            this.code = code;
+            this.bytes = SourceReader.utf8Length(code);
+        }
+
+        public String getName() { return name; }
+        public String getCode() { return code; }
+        /** The size of the code in UTF-8, which the batch limits count in. */
+        public long getBytes() { return bytes; }
+    }
+
+    public static class FileResult {
+        private final int index;
+        private final String file;
+        private final String resultId;
+        private final CodeOptimizerService.OptimizationResult result;
+        private final String error;
+        private final double timeMs;
+
+        public FileResult(int index, String file, String resultId, CodeOptimizerService.OptimizationResult result,
+                          String error, double timeMs) {
+            this.index = index;
+            this.file = file;
+            this.resultId = resultId;
+            this.result = result;
+            this.error = error;
+            this.timeMs = timeMs;
+        }
+
+        public int getIndex() { return index; }
+        public String getFile() { return file; }
+        public String getResultId() { return resultId; }
+        public CodeOptimizerService.OptimizationResult getResult() { return result; }
+        public String getError() { return error; }
+        public double getTimeMs() { return timeMs; }
+    }
+}
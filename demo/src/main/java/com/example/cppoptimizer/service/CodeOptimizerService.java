@@ -2,10 +2,23 @@ package com.example.cppoptimizer.service;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import jakarta.annotation.PreDestroy;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
 
 import com.example.cppoptimizer.service.CodeTransformer.CodeTransformer;
 import com.example.cppoptimizer.service.CodeTransformer.ConstantFolder;
@@ -14,109 +27,796 @@ import com.example.cppoptimizer.service.CodeTransformer.DeadCodeEliminator;
 import com.example.cppoptimizer.service.CodeTransformer.MemoryAllocationOptimizer;
 import com.example.cppoptimizer.service.CodeTransformer.FunctionInliner;
 import com.example.cppoptimizer.service.CodeTransformer.LoopUnroller;
+import com.example.cppoptimizer.service.CodeTransformer.LoopNestOptimizer;
+import com.example.cppoptimizer.service.CodeTransformer.LoopVectorizer;
 import com.example.cppoptimizer.service.CodeTransformer.CommonSubexpressionEliminator;
 import com.example.cppoptimizer.service.CodeTransformer.CodeHoister;
+import com.example.cppoptimizer.service.CodeTransformer.StrengthReducer;
+import com.example.cppoptimizer.service.CodeTransformer.FileScope;
+import com.example.cppoptimizer.service.CodeTransformer.PassBudget;
+import com.example.cppoptimizer.service.CodeTransformer.PassNotes;
+import com.example.cppoptimizer.service.CodeTransformer.PassTimeoutException;
+import com.example.cppoptimizer.service.Lexer.CppLexer;
+import com.example.cppoptimizer.service.Lexer.SourceRegion;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TranslationUnitSplitter;
 
 @Service
 public class CodeOptimizerService {
     private static final Logger logger = LoggerFactory.getLogger(CodeOptimizerService.class);
+    private static final String ANALYZE_STAGE = "analyzeMemory";
+    // Rewrites a pass reports beyond this are summed up in one line
+    private static final int MAX_NOTES_PER_PASS = 20;
 
     private final LanguageDetector languageDetector;
     private final MemoryAnalyzer memoryAnalyzer;
     private final List<CodeTransformer> transformers;
+    private final PassManager passManager;
+    private final OptimizationCache cache;
+    private final OptimizerMetrics metrics;
+    private final List<PassSegment> segments;
+    private final IncrementalSessionStore sessions;
+    private final ForkJoinPool parallelPool;
+    private final int parallelMinChars;
+    private final long passBudgetMs;
+    // Null when verification is disabled
+    private final ExecutionVerifier verifier;
 
     public CodeOptimizerService() {
+        this(new OptimizerProperties());
+    }
+
+    public CodeOptimizerService(OptimizerProperties properties) {
+        // A composite without registries hands out no-op meters
+        this(properties, new CompositeMeterRegistry());
+    }
+
+    @Autowired
+    public CodeOptimizerService(OptimizerProperties properties, MeterRegistry meterRegistry) {
         this.languageDetector = new LanguageDetector();
-        this.memoryAnalyzer = new MemoryAnalyzer();
-        this.transformers = initializeTransformers();
+        this.memoryAnalyzer = new MemoryAnalyzer(properties.getAnalysis().getDataModel());
+        this.transformers = initializeTransformers(properties.getPasses(), properties.getAnalysis().getDataModel());
+        this.passManager = new PassManager(transformers, properties.getPasses().getMaxIterations());
+        OptimizerProperties.Cache cacheConfig = properties.getCache();
+        this.cache = cacheConfig.isEnabled()
+                ? new OptimizationCache(cacheConfig.getMaxBytes(), cacheConfig.getDiskDir(), cacheConfig.getMaxDiskBytes())
+                : null;
+        this.metrics = new OptimizerMetrics(meterRegistry, transformers);
+        if (cache != null) {
+            metrics.bindCache(meterRegistry, cache);
+        }
+        this.segments = initializeSegments();
+        this.sessions = new IncrementalSessionStore(properties.getIncremental().getMaxSessions());
+        OptimizerProperties.Parallel parallelConfig = properties.getParallel();
+        int parallelism = parallelConfig.getParallelism() > 0
+                ? parallelConfig.getParallelism() : Runtime.getRuntime().availableProcessors();
+        this.parallelPool = parallelConfig.isEnabled() && parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        this.parallelMinChars = parallelConfig.getMinChars();
+        this.passBudgetMs = properties.getPasses().getTimeBudgetMs();
+        this.verifier = properties.getVerification().isEnabled()
+                ? new ExecutionVerifier(properties.getVerification()) : null;
     }
 
     public OptimizationResult optimize(String code) {
+        return optimize(code, null);
+    }
+
+    /**
+     * Optimizes {@code code} with the named passes only (null or empty runs the whole
+     * pipeline). Unknown pass names fail with an {@link IllegalArgumentException}.
+     */
+    public OptimizationResult optimize(String code, Collection<String> passes) {
+        return optimize(code, passes, OptimizationProgress.NONE);
+    }
+
+    /** Like {@link #optimize(String, Collection)}, reporting each stage to {@code progress} as it starts. */
+    public OptimizationResult optimize(String code, Collection<String> passes, OptimizationProgress progress) {
         long startTotalTime = System.nanoTime();
-        List<TimingEntry> timingEntries = new ArrayList<>();
-        List<String> optimizationInsights = new ArrayList<>();
+        code = normalizeLineEndings(code);
+        metrics.recordInput(code.length());
+        PassManager.Run run = passManager.start(passManager.select(passes));
+        boolean segmented = parallelPool != null && code.length() >= parallelMinChars;
 
-        Language lang = languageDetector.detectLanguage(code);
+        String stageInputKey = null;
+        String resultKey = null;
+        if (cache != null) {
+            stageInputKey = OptimizationCache.inputKey(code);
+            resultKey = OptimizationCache.resultKey(stageInputKey, pipelineKey(run, segmented));
+            OptimizationResult cached = cache.getResult(resultKey);
+            if (cached != null) {
+                logger.debug("Result cache hit for {}", resultKey);
+                return fromCache(cached, startTotalTime);
+            }
+        }
+
+        // Lex once; the token stream is shared by the analyzer and every pass and
+        // only rebuilt after a pass actually changed the code
+        TokenStream tokens = CppLexer.lex(code);
+        Language lang = languageDetector.detectLanguage(tokens);
         logger.info("Detected language: {}", lang);
 
-        MemoryUsage beforeMemory = memoryAnalyzer.estimateMemoryUsage(code, lang);
-        String optimizedCode = code;
+        progress.stageStarted(ANALYZE_STAGE);
+        MemoryUsage beforeMemory = memoryAnalyzer.estimateMemoryUsage(tokens, lang);
+        long[] passNanos = new long[transformers.size()];
+        boolean[] passChanged = new boolean[transformers.size()];
+        boolean[] passTimedOut = new boolean[transformers.size()];
+        List<List<String>> passNotes = newPassNotes();
+
+        if (segmented) {
+            tokens = runSegmented(tokens, lang, null, run, passNanos, passChanged, passTimedOut, passNotes, progress);
+        } else {
+            do {
+                for (int p = 0; p < transformers.size(); p++) {
+                    if (!run.isPending(p)) {
+                        continue;
+                    }
+                    CodeTransformer transformer = transformers.get(p);
+                    progress.stageStarted(transformer.getName());
+                    long startTime = System.nanoTime();
+                    boolean applicable = transformer.isApplicable(tokens);
+                    boolean changed = false;
+                    boolean timedOut = false;
+                    if (applicable) {
+                        String input = tokens.getSource();
+                        String stageKey = cache != null ? OptimizationCache.stageKey(stageInputKey, transformer.describe()) : null;
+                        // A stage served from the cache keeps the pass's general insight only
+                        String newCode = stageKey != null ? cache.getStage(stageKey, input) : null;
+                        if (newCode == null) {
+                            newCode = runWithinBudget(transformer, tokens, lang, passNotes.get(p));
+                            if (newCode == null) {
+                                timedOut = true;
+                                passTimedOut[p] = true;
+                                newCode = input;
+                            } else if (stageKey != null) {
+                                cache.putStage(stageKey, input, newCode);
+                            }
+                        }
+                        changed = newCode != input;
+                        if (changed) {
+                            passChanged[p] = true;
+                            // Release the old stream first so two full token arrays are never live at once
+                            tokens = null;
+                            tokens = CppLexer.lex(newCode);
+                            stageInputKey = stageKey;
+                        }
+                    }
+                    run.completed(p, changed);
+                    long nanos = System.nanoTime() - startTime;
+                    passNanos[p] += nanos;
+                    metrics.recordPass(p, nanos, outcome(applicable, changed, timedOut));
+                }
+            } while (run.nextSweep());
+        }
+
+        progress.stageStarted(ANALYZE_STAGE);
+        return buildResult(tokens, lang, beforeMemory, run, passNanos, passChanged, passTimedOut, passNotes,
+                startTotalTime, resultKey);
+    }
+
+    public OptimizationResult optimizeIncremental(String sessionId, String code) {
+        return optimizeIncremental(sessionId, code, null);
+    }
+
+    /**
+     * Re-optimizes an edited buffer, re-running passes only on the top-level regions whose
+     * text changed since the previous request of the same session. Passes that need the
+     * whole file still see all of it; between them, unchanged regions are spliced back
+     * from the session's previous outputs.
+     */
+    public OptimizationResult optimizeIncremental(String sessionId, String code, Collection<String> passes) {
+        long startTotalTime = System.nanoTime();
+        code = normalizeLineEndings(code);
+        metrics.recordInput(code.length());
+        PassManager.Run run = passManager.start(passManager.select(passes));
+
+        String resultKey = null;
+        if (cache != null) {
+            resultKey = OptimizationCache.resultKey(OptimizationCache.inputKey(code), pipelineKey(run, true));
+            OptimizationResult cached = cache.getResult(resultKey);
+            if (cached != null) {
+                return fromCache(cached, startTotalTime);
+            }
+        }
+
+        TokenStream tokens = CppLexer.lex(code);
+        Language lang = languageDetector.detectLanguage(tokens);
+        MemoryUsage beforeMemory = memoryAnalyzer.estimateMemoryUsage(tokens, lang);
+        long[] passNanos = new long[transformers.size()];
+        boolean[] passChanged = new boolean[transformers.size()];
+        boolean[] passTimedOut = new boolean[transformers.size()];
+        List<List<String>> passNotes = newPassNotes();
+
+        IncrementalSessionStore.Session session = sessions.session(sessionId);
+        synchronized (session) {
+            tokens = runSegmented(tokens, lang, session, run, passNanos, passChanged, passTimedOut, passNotes,
+                    OptimizationProgress.NONE);
+            session.commit();
+        }
+
+        return buildResult(tokens, lang, beforeMemory, run, passNanos, passChanged, passTimedOut, passNotes,
+                startTotalTime, resultKey);
+    }
+
+    /**
+     * Runs the pipeline segment by segment. Whole-file segments see the full token stream;
+     * region-local segments run on each top-level region separately, with the globals declared
+     * before it in sight, reusing the session's outputs for unchanged regions and fanning the
+     * rest out over the fork/join pool.
+     * Regions are stitched back in source order, so the output does not depend on scheduling.
+     * Per-pass times are summed over regions, i.e. they report CPU time, not wall time.
+     */
+    private TokenStream runSegmented(TokenStream tokens, Language lang, IncrementalSessionStore.Session session,
+                                     PassManager.Run run, long[] passNanos, boolean[] passChanged,
+                                     boolean[] passTimedOut, List<List<String>> passNotes,
+                                     OptimizationProgress progress) {
+        int reusedRegions = 0;
+        int totalRegions = 0;
+        do {
+            for (int s = 0; s < segments.size(); s++) {
+                PassSegment segment = segments.get(s);
+                if (segment.wholeFile) {
+                    for (int p = segment.first; p < segment.end(); p++) {
+                        if (!run.isPending(p)) {
+                            continue;
+                        }
+                        progress.stageStarted(transformers.get(p).getName());
+                        long startTime = System.nanoTime();
+                        boolean applicable = transformers.get(p).isApplicable(tokens);
+                        boolean changed = false;
+                        boolean timedOut = false;
+                        if (applicable) {
+                            String newCode = runWithinBudget(transformers.get(p), tokens, lang, passNotes.get(p));
+                            timedOut = newCode == null;
+                            passTimedOut[p] |= timedOut;
+                            changed = !timedOut && newCode != tokens.getSource();
+                            if (changed) {
+                                passChanged[p] = true;
+                                tokens = null;
+                                tokens = CppLexer.lex(newCode);
+                            }
+                        }
+                        run.completed(p, changed);
+                        long nanos = System.nanoTime() - startTime;
+                        passNanos[p] += nanos;
+                        metrics.recordPass(p, nanos, outcome(applicable, changed, timedOut));
+                    }
+                    continue;
+                }
+
+                // Which passes of the segment run is fixed for the whole segment, and is part
+                // of the session key since the same region text gives different outputs
+                long mask = segment.mask & run.getPending();
+                if (mask == 0) {
+                    continue;
+                }
+                progress.stageStarted(stageName(segment, mask));
+                String stage = s + ":" + Long.toHexString(mask);
+                List<SourceRegion> regions = TranslationUnitSplitter.split(tokens);
+                // A region's output also depends on the globals declared before it
+                FileScope scope = FileScope.of(tokens);
+                String[] keys = new String[regions.size()];
+                IncrementalSessionStore.RegionOutcome[] outcomes = new IncrementalSessionStore.RegionOutcome[regions.size()];
+                List<Integer> pending = new ArrayList<>();
+                for (int r = 0; r < regions.size(); r++) {
+                    keys[r] = scope.signature(regions.get(r).getStart()) + "\n" + regions.get(r).getText();
+                    outcomes[r] = session != null ? session.lookup(stage, keys[r]) : null;
+                    if (outcomes[r] == null) {
+                        pending.add(r);
+                    } else {
+                        reusedRegions++;
+                    }
+                }
+                totalRegions += regions.size();
 
-        for (CodeTransformer transformer : transformers) {
+                if (parallelPool != null && pending.size() > 1) {
+                    List<ForkJoinTask<IncrementalSessionStore.RegionOutcome>> tasks = new ArrayList<>(pending.size());
+                    for (int r : pending) {
+                        SourceRegion region = regions.get(r);
+                        tasks.add(parallelPool.submit(() -> runSegment(segment, mask, scope, region, lang)));
+                    }
+                    for (int k = 0; k < tasks.size(); k++) {
+                        outcomes[pending.get(k)] = tasks.get(k).join();
+                    }
+                } else {
+                    for (int r : pending) {
+                        outcomes[r] = runSegment(segment, mask, scope, regions.get(r), lang);
+                    }
+                }
+                for (int r : pending) {
+                    long[] nanos = outcomes[r].getPassNanos();
+                    boolean[] timedOut = outcomes[r].getTimedOut();
+                    for (int p = 0; p < nanos.length; p++) {
+                        passNanos[segment.first + p] += nanos[p];
+                        passTimedOut[segment.first + p] |= timedOut[p];
+                    }
+                }
+
+                boolean[] segmentChanged = new boolean[segment.passes.size()];
+                StringBuilder stitched = new StringBuilder(tokens.getSource().length());
+                for (int r = 0; r < regions.size(); r++) {
+                    // A region whose pass was cut short may well finish next time, so it is not remembered
+                    if (session != null && !outcomes[r].anyTimedOut()) {
+                        session.record(stage, keys[r], outcomes[r]);
+                    }
+                    stitched.append(outcomes[r].getOutput());
+                    boolean[] changed = outcomes[r].getChanged();
+                    for (int p = 0; p < changed.length; p++) {
+                        segmentChanged[p] |= changed[p];
+                        passNotes.get(segment.first + p).addAll(outcomes[r].getNotes().get(p));
+                    }
+                }
+                boolean anyChanged = false;
+                for (int p = 0; p < segmentChanged.length; p++) {
+                    if ((mask & (1L << (segment.first + p))) != 0) {
+                        run.completed(segment.first + p, segmentChanged[p]);
+                    }
+                    passChanged[segment.first + p] |= segmentChanged[p];
+                    anyChanged |= segmentChanged[p];
+                }
+                if (anyChanged) {
+                    String newCode = stitched.toString();
+                    tokens = null;
+                    tokens = CppLexer.lex(newCode);
+                }
+            }
+        } while (run.nextSweep());
+        logger.debug("Segmented run reused {} of {} region passes", reusedRegions, totalRegions);
+        return tokens;
+    }
+
+    // Passes of a region-local segment run together on each region, so they are reported as one stage
+    private String stageName(PassSegment segment, long mask) {
+        StringBuilder name = new StringBuilder();
+        for (int p = segment.first; p < segment.end(); p++) {
+            if ((mask & (1L << p)) != 0) {
+                name.append(name.length() > 0 ? "+" : "").append(transformers.get(p).getName());
+            }
+        }
+        return name.toString();
+    }
+
+    // Runs the masked passes of a region-local segment on one region, with the globals declared before it in sight
+    private IncrementalSessionStore.RegionOutcome runSegment(PassSegment segment, long mask, FileScope scope,
+                                                             SourceRegion region, Language lang) {
+        TokenStream tokens = CppLexer.lex(region.getText());
+        boolean[] changed = new boolean[segment.passes.size()];
+        boolean[] timedOut = new boolean[segment.passes.size()];
+        long[] nanos = new long[segment.passes.size()];
+        List<List<String>> notes = new ArrayList<>();
+        for (int p = 0; p < segment.passes.size(); p++) {
+            notes.add(new ArrayList<>());
+            CodeTransformer pass = segment.passes.get(p);
+            if ((mask & (1L << (segment.first + p))) == 0) {
+                continue;
+            }
             long startTime = System.nanoTime();
-            String newCode = transformer.transform(optimizedCode, lang);
-            if (!newCode.equals(optimizedCode)) {
-                optimizationInsights.add(transformer.getInsight());
+            boolean applicable = pass.isApplicable(tokens);
+            if (applicable) {
+                TokenStream input = tokens;
+                List<String> passNotes = notes.get(p);
+                String newCode = scope.within(region.getStart(), () -> runWithinBudget(pass, input, lang, passNotes));
+                timedOut[p] = newCode == null;
+                if (!timedOut[p] && newCode != tokens.getSource()) {
+                    changed[p] = true;
+                    tokens = CppLexer.lex(newCode);
+                }
             }
-            optimizedCode = newCode;
-            double timeMs = (System.nanoTime() - startTime) / 1_000_000.0;
-            timingEntries.add(new TimingEntry(transformer.getName(), timeMs));
+            nanos[p] = System.nanoTime() - startTime;
+            metrics.recordPass(segment.first + p, nanos[p], outcome(applicable, changed[p], timedOut[p]));
+        }
+        return new IncrementalSessionStore.RegionOutcome(tokens.getSource(), changed, timedOut, nanos, notes);
+    }
+
+    // The pass's output, or null if it ran out of its time budget; its input is then kept as is.
+    // The notes of a pass that finished are added to notes
+    private String runWithinBudget(CodeTransformer pass, TokenStream tokens, Language lang, List<String> notes) {
+        List<String> passNotes = new ArrayList<>();
+        try {
+            String output = PassBudget.run(TimeUnit.MILLISECONDS.toNanos(passBudgetMs),
+                    () -> PassNotes.collect(passNotes, () -> pass.transform(tokens, lang)));
+            if (output != tokens.getSource()) {
+                notes.addAll(passNotes);
+            }
+            return output;
+        } catch (PassTimeoutException e) {
+            logger.warn("Pass {} exceeded its {} ms budget on {} chars; keeping its input",
+                    pass.getName(), passBudgetMs, tokens.getSource().length());
+            return null;
+        }
+    }
+
+    private OptimizationResult buildResult(TokenStream tokens, Language lang, MemoryUsage beforeMemory, PassManager.Run run,
+                                           long[] passNanos, boolean[] passChanged, boolean[] passTimedOut,
+                                           List<List<String>> passNotes,
+                                           long startTotalTime, String resultKey) {
+        List<TimingEntry> timingEntries = new ArrayList<>();
+        List<String> optimizationInsights = new ArrayList<>();
+        boolean anyTimedOut = false;
+        for (int p = 0; p < transformers.size(); p++) {
+            if ((run.getSelected() & (1L << p)) == 0) {
+                continue;
+            }
+            timingEntries.add(new TimingEntry(transformers.get(p).getName(), passNanos[p] / 1_000_000.0, passTimedOut[p]));
+            if (passChanged[p]) {
+                optimizationInsights.add(transformers.get(p).getInsight());
+                List<String> notes = passNotes.get(p);
+                optimizationInsights.addAll(notes.subList(0, Math.min(notes.size(), MAX_NOTES_PER_PASS)));
+                if (notes.size() > MAX_NOTES_PER_PASS) {
+                    optimizationInsights.add("... and " + (notes.size() - MAX_NOTES_PER_PASS) + " more by "
+                            + transformers.get(p).getName() + ".");
+                }
+            }
+            if (passTimedOut[p]) {
+                anyTimedOut = true;
+                optimizationInsights.add(transformers.get(p).getName() + " ran past its time budget of " + passBudgetMs
+                        + " ms and was stopped; the code it was working on was left unchanged.");
+            }
+        }
+        if (run.getSweeps() > 1) {
+            optimizationInsights.add("Re-ran passes that earlier changes gave new work (" + run.getSweeps() + " iterations"
+                    + (run.getPending() != 0 ? ", stopped at the iteration cap" : "") + ").");
+        }
+        String optimizedCode = tokens.getSource();
+
+        MemoryUsage afterMemory = memoryAnalyzer.estimateMemoryUsage(tokens, lang);
+        double totalTime = (System.nanoTime() - startTotalTime) / 1_000_000.0;
+        timingEntries.add(new TimingEntry("Total", totalTime));
+
+        OptimizationResult result = new OptimizationResult(optimizedCode, beforeMemory, afterMemory, timingEntries, optimizationInsights);
+        // A timeout depends on load as much as on the input, so such a result is not reused
+        if (cache != null && !anyTimedOut) {
+            cache.putResult(resultKey, result);
+        }
+        metrics.recordOptimize(System.nanoTime() - startTotalTime, false);
+        return result;
+    }
+
+    /**
+     * Compiles and runs {@code originalCode} and the optimized code of {@code result} with
+     * a local gcc or clang, and returns the result with how the two compared. When
+     * verification is disabled the report says so instead.
+     */
+    public OptimizationResult verify(String originalCode, OptimizationResult result) {
+        Verification verification;
+        if (verifier == null) {
+            verification = new Verification(VerificationStatus.UNAVAILABLE,
+                    "Verification is disabled on this server (cppoptimizer.verification.enabled).", null, null, null);
+        } else {
+            originalCode = normalizeLineEndings(originalCode);
+            verification = verifier.verify(originalCode, result.getOptimizedCode(),
+                    languageDetector.detectLanguage(originalCode));
+            logger.info("Verification: {}", verification.getStatus());
+        }
+        return new OptimizationResult(result.getOptimizedCode(), result.getBeforeMemory(), result.getAfterMemory(),
+                result.getTimingEntries(), result.getOptimizationInsights(), verification);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (parallelPool != null) {
+            parallelPool.shutdown();
         }
+        if (verifier != null) {
+            verifier.shutdown();
+        }
+    }
 
-        MemoryUsage afterMemory = memoryAnalyzer.estimateMemoryUsage(optimizedCode, lang);
+    /** Fails with an {@link IllegalArgumentException} if {@code passes} names an unknown pass. */
+    public void checkPasses(Collection<String> passes) {
+        passManager.select(passes);
+    }
+
+    /** The passes in pipeline order, as accepted by the {@code passes} arguments; the list is read-only. */
+    public List<CodeTransformer> getTransformers() {
+        return Collections.unmodifiableList(transformers);
+    }
+
+    public OptimizationCache.Stats getCacheStats() {
+        return cache != null ? cache.getStats() : null;
+    }
+
+    // Cached results are shared, so hand out a copy whose timings describe this request
+    private OptimizationResult fromCache(OptimizationResult cached, long startTotalTime) {
+        metrics.recordOptimize(System.nanoTime() - startTotalTime, true);
         double totalTime = (System.nanoTime() - startTotalTime) / 1_000_000.0;
+        List<TimingEntry> timingEntries = new ArrayList<>();
+        timingEntries.add(new TimingEntry("resultCache", totalTime));
         timingEntries.add(new TimingEntry("Total", totalTime));
+        return new OptimizationResult(cached.getOptimizedCode(), cached.getBeforeMemory(), cached.getAfterMemory(),
+                timingEntries, new ArrayList<>(cached.getOptimizationInsights()));
+    }
+
+    // The estimates depend on the data model, so it is part of what a cached result was computed with
+    // Runs by region may name new temporaries differently from whole-file runs, so the mode is part of the key
+    private List<String> pipelineKey(PassManager.Run run, boolean segmented) {
+        List<String> key = passManager.describe(run.getSelected());
+        key.add("dataModel=" + memoryAnalyzer.getDataModel());
+        key.add(segmented ? "byRegion" : "wholeFile");
+        return key;
+    }
+
+    private static OptimizerMetrics.PassOutcome outcome(boolean applicable, boolean changed, boolean timedOut) {
+        if (timedOut) {
+            return OptimizerMetrics.PassOutcome.TIMEOUT;
+        }
+        if (!applicable) {
+            return OptimizerMetrics.PassOutcome.SKIPPED;
+        }
+        return changed ? OptimizerMetrics.PassOutcome.CHANGED : OptimizerMetrics.PassOutcome.UNCHANGED;
+    }
+
+    private static String normalizeLineEndings(String code) {
+        if (code.indexOf('\r') < 0) {
+            return code;
+        }
+        return code.replace("\r\n", "\n").replace('\r', '\n');
+    }
 
-        return new OptimizationResult(optimizedCode, beforeMemory, afterMemory, timingEntries, optimizationInsights);
+    private List<List<String>> newPassNotes() {
+        List<List<String>> notes = new ArrayList<>(transformers.size());
+        for (int p = 0; p < transformers.size(); p++) {
+            notes.add(new ArrayList<>());
+        }
+        return notes;
     }
 
-    private List<CodeTransformer> initializeTransformers() {
+    private List<CodeTransformer> initializeTransformers(OptimizerProperties.Passes passes, DataModel dataModel) {
         List<CodeTransformer> transformers = new ArrayList<>();
         transformers.add(new ConstantFolder());
+        transformers.add(new StrengthReducer());
         transformers.add(new ArithmeticLoopOptimizer());
         transformers.add(new DeadCodeEliminator());
-        transformers.add(new MemoryAllocationOptimizer());
-        transformers.add(new FunctionInliner());
-        transformers.add(new LoopUnroller());
+        transformers.add(new MemoryAllocationOptimizer(passes.getStackPromotionBytes(), dataModel));
+        transformers.add(new FunctionInliner(passes.getInlineGrowthPercent()));
+        transformers.add(new LoopNestOptimizer(passes.getTileSize()));
+        transformers.add(new LoopVectorizer());
+        transformers.add(new LoopUnroller(passes.getUnrollFactor()));
         transformers.add(new CommonSubexpressionEliminator());
         transformers.add(new CodeHoister());
         return transformers;
     }
 
+    // Consecutive passes that are either all region-local or all whole-file
+    private List<PassSegment> initializeSegments() {
+        List<PassSegment> result = new ArrayList<>();
+        for (int p = 0; p < transformers.size(); p++) {
+            boolean wholeFile = transformers.get(p).requiresWholeFile();
+            PassSegment last = result.isEmpty() ? null : result.get(result.size() - 1);
+            if (last == null || last.wholeFile != wholeFile) {
+                last = new PassSegment(p, wholeFile);
+                result.add(last);
+            }
+            last.passes.add(transformers.get(p));
+            last.mask |= 1L << p;
+        }
+        return result;
+    }
+
+    private static class PassSegment {
+        private final int first;
+        private final boolean wholeFile;
+        private final List<CodeTransformer> passes = new ArrayList<>();
+        private long mask;
+
+        private PassSegment(int first, boolean wholeFile) {
+            this.first = first;
+            this.wholeFile = wholeFile;
+        }
+
+        private int end() { return first + passes.size(); }
+    }
+
     public enum Language {
         C, CPP
     }
 
-    public static class MemoryUsage {
+    /**
+     * Estimated memory of a program. {@code stackSize} is the deepest call chain's stack
+     * (from {@code main} when the file has one) and {@code heapSize} the sum of the
+     * allocation sites whose size could be worked out.
+     */
+    public static class MemoryUsage implements Serializable {
+        private static final long serialVersionUID = 2L;
+
         private long heapSize;
         private long stackSize;
+        private String dataModel;
+        private List<StackFrame> frames;
+        private List<HeapAllocation> allocations;
 
         public MemoryUsage(long heapSize, long stackSize) {
+            this(heapSize, stackSize, null, new ArrayList<>(), new ArrayList<>());
+        }
+
+        public MemoryUsage(long heapSize, long stackSize, String dataModel,
+                           List<StackFrame> frames, List<HeapAllocation> allocations) {
             this.heapSize = heapSize;
             this.stackSize = stackSize;
+            this.dataModel = dataModel;
+            this.frames = frames;
+            this.allocations = allocations;
         }
 
         public long getHeapSize() { return heapSize; }
         public long getStackSize() { return stackSize; }
+        public String getDataModel() { return dataModel; }
+        public List<StackFrame> getFrames() { return frames; }
+        public List<HeapAllocation> getAllocations() { return allocations; }
     }
 
-    public static class TimingEntry {
+    /** Stack use of one function: its own frame, and the peak along its deepest call chain. */
+    public static class StackFrame implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String function;
+        private int line;
+        private long frameSize;
+        private long peakSize;
+        private List<String> callChain;
+        private boolean recursive;
+
+        public StackFrame(String function, int line, long frameSize, long peakSize, List<String> callChain, boolean recursive) {
+            this.function = function;
+            this.line = line;
+            this.frameSize = frameSize;
+            this.peakSize = peakSize;
+            this.callChain = callChain;
+            this.recursive = recursive;
+        }
+
+        public String getFunction() { return function; }
+        public int getLine() { return line; }
+        public long getFrameSize() { return frameSize; }
+        public long getPeakSize() { return peakSize; }
+        public List<String> getCallChain() { return callChain; }
+        public boolean isRecursive() { return recursive; }
+    }
+
+    /** One malloc/calloc/realloc/new site; {@code bytes} is -1 when the size is not a constant. */
+    public static class HeapAllocation implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String function;
+        private int line;
+        private String expression;
+        private long bytes;
+
+        public HeapAllocation(String function, int line, String expression, long bytes) {
+            this.function = function;
+            this.line = line;
+            this.expression = expression;
+            this.bytes = bytes;
+        }
+
+        public String getFunction() { return function; }
+        public int getLine() { return line; }
+        public String getExpression() { return expression; }
+        public long getBytes() { return bytes; }
+    }
+
+    public static class TimingEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         private String step;
         private double timeMs;
+        private boolean timedOut;
 
         public TimingEntry(String step, double timeMs) {
+            this(step, timeMs, false);
+        }
+
+        public TimingEntry(String step, double timeMs, boolean timedOut) {
             this.step = step;
             this.timeMs = timeMs;
+            this.timedOut = timedOut;
         }
 
         public String getStep() { return step; }
         public double getTimeMs() { return timeMs; }
+        public boolean isTimedOut() { return timedOut; }
     }
 
-    public static class OptimizationResult {
+    /** How a verification came out; only VERIFIED means the optimized program is known to behave the same and not run slower. */
+    public enum VerificationStatus {
+        VERIFIED,
+        // Same output, but slower than the original beyond the configured tolerance
+        SLOWER,
+        OUTPUT_DIFFERS,
+        // The optimized code does not build or fails where the original runs
+        REGRESSION,
+        // The original does not build, lacks a main, fails or times out, so there is nothing to compare with
+        NOT_RUNNABLE,
+        NONDETERMINISTIC,
+        // Disabled, or no compiler is installed
+        UNAVAILABLE
+    }
+
+    /** Measurements of one program over the verification runs. */
+    public static class ProgramRun implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private double compileMs;
+        private double medianMs;
+        private double minMs;
+        private long peakRssKib;
+        private int exitCode;
+
+        public ProgramRun(double compileMs, double medianMs, double minMs, long peakRssKib, int exitCode) {
+            this.compileMs = compileMs;
+            this.medianMs = medianMs;
+            this.minMs = minMs;
+            this.peakRssKib = peakRssKib;
+            this.exitCode = exitCode;
+        }
+
+        public double getCompileMs() { return compileMs; }
+        /** Median wall time of the runs. */
+        public double getMedianMs() { return medianMs; }
+        public double getMinMs() { return minMs; }
+        /** Largest resident set of any run, in KiB. */
+        public long getPeakRssKib() { return peakRssKib; }
+        public int getExitCode() { return exitCode; }
+    }
+
+    /**
+     * The original and optimized programs compiled and run side by side. The measurements
+     * are null when the programs could not be built or run.
+     */
+    public static class Verification implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private VerificationStatus status;
+        private String message;
+        private String compiler;
+        private ProgramRun original;
+        private ProgramRun optimized;
+
+        public Verification(VerificationStatus status, String message, String compiler, ProgramRun original,
+                            ProgramRun optimized) {
+            this.status = status;
+            this.message = message;
+            this.compiler = compiler;
+            this.original = original;
+            this.optimized = optimized;
+        }
+
+        public VerificationStatus getStatus() { return status; }
+        public String getMessage() { return message; }
+        public String getCompiler() { return compiler; }
+        public ProgramRun getOriginal() { return original; }
+        public ProgramRun getOptimized() { return optimized; }
+
+        /** Original over optimized median wall time, or 0 when either is unknown. */
+        public double getSpeedup() {
+            return original != null && optimized != null && optimized.getMedianMs() > 0
+                    ? original.getMedianMs() / optimized.getMedianMs() : 0;
+        }
+    }
+
+    public static class OptimizationResult implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         private String optimizedCode;
         private MemoryUsage beforeMemory;
         private MemoryUsage afterMemory;
         private List<TimingEntry> timingEntries;
         private List<String> optimizationInsights;
+        private Verification verification;
 
         public OptimizationResult(String optimizedCode, MemoryUsage beforeMemory, MemoryUsage afterMemory,
                                   List<TimingEntry> timingEntries, List<String> optimizationInsights) {
+            this(optimizedCode, beforeMemory, afterMemory, timingEntries, optimizationInsights, null);
+        }
+
+        public OptimizationResult(String optimizedCode, MemoryUsage beforeMemory, MemoryUsage afterMemory,
+                                  List<TimingEntry> timingEntries, List<String> optimizationInsights,
+                                  Verification verification) {
             this.optimizedCode = optimizedCode;
             this.beforeMemory = beforeMemory;
             this.afterMemory = afterMemory;
             this.timingEntries = timingEntries;
             this.optimizationInsights = optimizationInsights;
+            this.verification = verification;
         }
 
         public String getOptimizedCode() { return optimizedCode; }
@@ -124,5 +824,7 @@ public class CodeOptimizerService {
         public MemoryUsage getAfterMemory() { return afterMemory; }
         public List<TimingEntry> getTimingEntries() { return timingEntries; }
         public List<String> getOptimizationInsights() { return optimizationInsights; }
+        /** Null unless {@link CodeOptimizerService#verify} was asked for. */
+        public Verification getVerification() { return verification; }
     }
 }
\ No newline at end of file
@@ -1,30 +1,45 @@
 package com.example.cppoptimizer.service.CodeTransformer;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.Lexer.SourceRewriter;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
 
 public class ArithmeticLoopOptimizer extends CodeTransformer {
+    // int sum = 0; for (int i = 0; i < N; i++) { sum += i; }
+    private static final String[] SUM_LOOP = {
+        "int", "sum", "=", "0", ";",
+        "for", "(", "int", "i", "=", "0", ";", "i", "<", "#", ";", "i", "++", ")", "{",
+        "sum", "+=", "i", ";", "}"
+    };
+    private static final int BOUND_OFFSET = 14;
+
     @Override
-    public String transform(String code, CodeOptimizerService.Language lang) {
-        // Pattern to match the loop, allowing for multi-line structure
-        Pattern pattern = Pattern.compile(
-            "int\\s+sum\\s*=\\s*0\\s*;\\s*" +
-            "for\\s*\\(\\s*int\\s+i\\s*=\\s*0\\s*;\\s*i\\s*<\\s*(\\d+)\\s*;\\s*i\\s*\\+\\+\\s*\\)\\s*\\{\\s*" +
-            "sum\\s*\\+=\\s*i\\s*;\\s*\\}",
-            Pattern.DOTALL // Allow . to match newlines
-        );
-        Matcher matcher = pattern.matcher(code);
-        StringBuffer result = new StringBuffer();
+    public String transform(TokenStream tokens, CodeOptimizerService.Language lang) {
+        SourceRewriter rewriter = new SourceRewriter(tokens);
 
-        while (matcher.find()) {
-            int n = Integer.parseInt(matcher.group(1));
-            int sum = (n * (n - 1)) / 2;
-            matcher.appendReplacement(result, "int sum = " + sum + ";");
+        for (int i = 0; i < tokens.size(); i++) {
+            checkpoint();
+            if (!tokens.is(i, "int")) {
+                continue;
+            }
+            int end = tokens.matchSequence(i, SUM_LOOP);
+            if (end < 0 || tokens.length(i + BOUND_OFFSET) > 10) {
+                continue;
+            }
+            long n = Long.parseLong(tokens.text(i + BOUND_OFFSET));
+            long sum = (n * (n - 1)) / 2;
+            if (sum > Integer.MAX_VALUE) {
+                continue;
+            }
+            rewriter.replace(i, end - 1, "int sum = " + sum + ";");
+            i = end - 1;
         }
-        matcher.appendTail(result);
-        return result.toString();
+        return rewriter.toString();
+    }
+
+    @Override
+    public boolean isApplicable(TokenStream tokens) {
+        return tokens.contains("for");
     }
 
     @Override
@@ -36,4 +51,4 @@ public class ArithmeticLoopOptimizer extends CodeTransformer {
     public String getName() {
         return "optimizeArithmeticLoops";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,70 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The C types a pass may spell out when it stores an arithmetic expression in a
+ * temporary of its own. Only expressions whose operands all share one type of at least
+ * the rank of {@code int} get a type, so the usual arithmetic conversions never have to
+ * be worked out; everything else is left to {@code auto} in C++ or not stored in C.
+ */
+final class ArithmeticTypes {
+    /** Stands for an unsuffixed decimal literal that fits an {@code int}, which converts to any of the types. */
+    static final String INT_LITERAL = "int literal";
+
+    // Declared types, spelled the way temporaries declare them
+    private static final Map<String, String> CANONICAL = Map.ofEntries(
+            Map.entry("int", "int"), Map.entry("signed", "int"), Map.entry("signed int", "int"),
+            Map.entry("unsigned", "unsigned"), Map.entry("unsigned int", "unsigned"),
+            Map.entry("long", "long"), Map.entry("long int", "long"), Map.entry("signed long", "long"),
+            Map.entry("unsigned long", "unsigned long"), Map.entry("unsigned long int", "unsigned long"),
+            Map.entry("long long", "long long"), Map.entry("long long int", "long long"),
+            Map.entry("unsigned long long", "unsigned long long"), Map.entry("size_t", "size_t"),
+            Map.entry("int32_t", "int32_t"), Map.entry("int64_t", "int64_t"), Map.entry("uint32_t", "uint32_t"),
+            Map.entry("uint64_t", "uint64_t"), Map.entry("float", "float"), Map.entry("double", "double"));
+    // What the C math functions return; C++ overloads them for other argument types
+    private static final Map<String, String> RETURN_TYPES = Map.ofEntries(
+            Map.entry("abs", "int"), Map.entry("labs", "long"), Map.entry("fabs", "double"), Map.entry("fabsf", "float"),
+            Map.entry("floor", "double"), Map.entry("floorf", "float"), Map.entry("ceil", "double"),
+            Map.entry("ceilf", "float"), Map.entry("trunc", "double"), Map.entry("truncf", "float"),
+            Map.entry("round", "double"), Map.entry("roundf", "float"), Map.entry("fmin", "double"),
+            Map.entry("fminf", "float"), Map.entry("fmax", "double"), Map.entry("fmaxf", "float"),
+            Map.entry("sqrt", "double"), Map.entry("sqrtf", "float"), Map.entry("exp", "double"),
+            Map.entry("expf", "float"), Map.entry("log", "double"), Map.entry("logf", "float"),
+            Map.entry("pow", "double"), Map.entry("powf", "float"), Map.entry("sin", "double"),
+            Map.entry("sinf", "float"), Map.entry("cos", "double"), Map.entry("cosf", "float"));
+
+    private ArithmeticTypes() {
+    }
+
+    /** The type to declare a copy of a variable of {@code declaredType} with, or null if it is not arithmetic. */
+    static String canonical(String declaredType) {
+        return declaredType != null ? CANONICAL.get(declaredType) : null;
+    }
+
+    /** {@link #INT_LITERAL}, "double" or "float" for a literal, or null for literals of other types. */
+    static String ofLiteral(String text) {
+        if (text.chars().allMatch(Character::isDigit)) {
+            return text.length() <= 9 ? INT_LITERAL : null;
+        }
+        if (text.matches("[0-9]*\\.[0-9]*([eE][-+]?[0-9]+)?")) {
+            return "double";
+        }
+        return text.matches("[0-9]*\\.[0-9]*([eE][-+]?[0-9]+)?[fF]") ? "float" : null;
+    }
+
+    /** The C return type of a math function, or null if it is not one. */
+    static String returnType(String function) {
+        return RETURN_TYPES.get(function);
+    }
+
+    /** The one type all operands share, int literals aside, or null when they differ or one is unknown. */
+    static String common(Collection<String> types) {
+        Set<String> distinct = new HashSet<>(types);
+        distinct.remove(INT_LITERAL);
+        return distinct.size() == 1 && !distinct.contains(null) ? distinct.iterator().next() : null;
+    }
+}
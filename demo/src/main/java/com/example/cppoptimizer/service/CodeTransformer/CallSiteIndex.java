@@ -0,0 +1,112 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+
+/**
+ * Finds every reference to a set of function names in one walk over a token stream.
+ * Identifier tokens are hashed in place and looked up in an open-addressing table,
+ * so matching costs the same whether there are two candidate names or two thousand
+ * and no substring is allocated per token.
+ */
+public final class CallSiteIndex {
+    private final String[] names;
+    private final int[] slots;
+    private final int[][] calls;
+    private final int[] callCounts;
+    private final int[] referenceCounts;
+    private int[] orderedCalls = new int[16];
+    private int orderedCount;
+
+    private CallSiteIndex(Collection<String> candidates) {
+        this.names = candidates.toArray(new String[0]);
+        this.slots = new int[Integer.highestOneBit(Math.max(names.length, 1) * 4) * 2];
+        Arrays.fill(slots, -1);
+        for (int id = 0; id < names.length; id++) {
+            int slot = names[id].hashCode() & (slots.length - 1);
+            while (slots[slot] >= 0) {
+                slot = (slot + 1) & (slots.length - 1);
+            }
+            slots[slot] = id;
+        }
+        this.calls = new int[names.length][];
+        this.callCounts = new int[names.length];
+        this.referenceCounts = new int[names.length];
+    }
+
+    public static CallSiteIndex build(TokenStream tokens, Collection<String> candidates) {
+        CallSiteIndex index = new CallSiteIndex(candidates);
+        index.scan(tokens);
+        return index;
+    }
+
+    private void scan(TokenStream tokens) {
+        if (names.length == 0) {
+            return;
+        }
+        String source = tokens.getSource();
+        for (int i = 0; i < tokens.size(); i++) {
+            PassBudget.checkpoint();
+            if (!tokens.isIdentifier(i)) {
+                continue;
+            }
+            int id = lookup(tokens, source, i);
+            if (id < 0) {
+                continue;
+            }
+            referenceCounts[id]++;
+            if (tokens.is(i + 1, "(")) {
+                if (calls[id] == null) {
+                    calls[id] = new int[4];
+                } else if (callCounts[id] == calls[id].length) {
+                    calls[id] = Arrays.copyOf(calls[id], callCounts[id] * 2);
+                }
+                calls[id][callCounts[id]++] = i;
+                if (orderedCount == orderedCalls.length) {
+                    orderedCalls = Arrays.copyOf(orderedCalls, orderedCount * 2);
+                }
+                orderedCalls[orderedCount++] = i;
+            }
+        }
+    }
+
+    private int lookup(TokenStream tokens, String source, int i) {
+        int hash = 0;
+        for (int p = tokens.start(i); p < tokens.end(i); p++) {
+            hash = 31 * hash + source.charAt(p);
+        }
+        int slot = hash & (slots.length - 1);
+        while (slots[slot] >= 0) {
+            if (tokens.is(i, names[slots[slot]])) {
+                return slots[slot];
+            }
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        return -1;
+    }
+
+    /** Id of the candidate named by token {@code i}, or -1. */
+    public int idOf(TokenStream tokens, int i) {
+        return tokens.isIdentifier(i) && names.length > 0 ? lookup(tokens, tokens.getSource(), i) : -1;
+    }
+
+    public int size() { return names.length; }
+    public String name(int id) { return names[id]; }
+
+    /** Token indices of {@code name(} occurrences for candidate {@code id}, in source order. */
+    public int[] callSites(int id) {
+        return calls[id] == null ? new int[0] : Arrays.copyOf(calls[id], callCounts[id]);
+    }
+
+    /** Token indices of all candidate call sites, in source order. */
+    public int[] callSites() {
+        return Arrays.copyOf(orderedCalls, orderedCount);
+    }
+
+    /** Every occurrence of the name, including its own definition and non-call uses. */
+    public int referenceCount(int id) {
+        return referenceCounts[id];
+    }
+}
@@ -1,55 +1,474 @@
 package com.example.cppoptimizer.service.CodeTransformer;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
 
 import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.CodeTransformer.Declarations.Declaration;
+import com.example.cppoptimizer.service.Lexer.SourceRewriter;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
 
+/**
+ * Loop-invariant code motion. Arithmetic subexpressions inside braced {@code for} and
+ * {@code while} loops whose operands no iteration can change are computed once, into a
+ * {@code const} temporary declared right before the outermost loop they are invariant
+ * in, and every copy of the expression in that loop reads the temporary.
+ *
+ * <p>An operand is invariant in a loop when it is a literal, or a variable of arithmetic
+ * type declared before the loop that the loop neither assigns, increments nor declares
+ * again, and that nothing else can reach: its address is never taken and no reference
+ * is bound to it (see {@link Declarations#isAliased}). Only operators and math functions
+ * without side effects are moved, and divisions only by a nonzero literal or a floating
+ * point value, so evaluating the expression before a loop that runs zero times is safe.
+ */
 public class CodeHoister extends CodeTransformer {
+    private static final Map<String, Integer> PRECEDENCE = Map.ofEntries(
+            Map.entry("*", 13), Map.entry("/", 13), Map.entry("%", 13),
+            Map.entry("+", 12), Map.entry("-", 12),
+            Map.entry("<<", 11), Map.entry(">>", 11),
+            Map.entry("<", 10), Map.entry(">", 10), Map.entry("<=", 10), Map.entry(">=", 10),
+            Map.entry("==", 9), Map.entry("!=", 9),
+            Map.entry("&", 8), Map.entry("^", 7), Map.entry("|", 6), Map.entry("&&", 5), Map.entry("||", 4));
+    // A single operand binds tighter than any binary operator
+    private static final int PRIMARY = 100;
+    private static final Set<String> OPERATORS = Set.of("*", "/", "%", "+", "-", "<<", ">>", "&", "^", "|", "~");
+    private static final Set<String> UNARY = Set.of("+", "-", "~");
+    private static final Set<String> LEFT_DELIMITERS = Set.of(
+            "(", "[", ",", ";", "{", "}", "?", ":", "return", "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=",
+            "<<=", ">>=");
+    private static final Set<String> RIGHT_DELIMITERS = Set.of(")", "]", ",", ";", "?", ":");
+    // Math functions that never set errno
+    private static final Set<String> PURE_FUNCTIONS = Set.of(
+            "abs", "labs", "fabs", "fabsf", "floor", "floorf", "ceil", "ceilf", "trunc", "truncf", "round", "roundf",
+            "fmin", "fminf", "fmax", "fmaxf");
+    private static final int MIN_COST = 2;
+
     @Override
-    public String transform(String code, CodeOptimizerService.Language lang) {
-        Pattern loopPattern = Pattern.compile("for\\s*\\(\\s*int\\s+(\\w+)\\s*=\\s*(\\d+)\\s*;\\s*\\1\\s*<\\s*(\\d+)\\s*;\\s*\\1\\s*\\+\\+\\s*\\)\\s*\\{([^}]*)\\}");
-        Matcher matcher = loopPattern.matcher(code);
-        StringBuffer result = new StringBuffer();
-
-        while (matcher.find()) {
-            String loopVar = matcher.group(1);
-            String body = matcher.group(4).trim();
-            String[] bodyLines = body.split("\n");
-            List<String> newBodyLines = new ArrayList<>();
-            List<String> hoistedLines = new ArrayList<>();
-
-            for (String line : bodyLines) {
-                line = line.trim();
-                if (!line.isEmpty() && !line.contains(loopVar) && line.matches(".*=.*;")) {
-                    hoistedLines.add(line);
-                } else {
-                    newBodyLines.add("    " + line);
-                }
+    public String transform(TokenStream tokens, CodeOptimizerService.Language lang) {
+        // A jump past the temporary's initialization does not compile as C++
+        if (tokens.contains("goto")) {
+            return tokens.getSource();
+        }
+        List<Loop> loops = loops(tokens);
+        if (loops.isEmpty()) {
+            return tokens.getSource();
+        }
+        Hoisting hoisting = new Hoisting(tokens, lang, loops);
+        int scanned = -1;
+        for (Loop loop : loops) {
+            if (loop.start > scanned) {
+                hoisting.scan(loop.headerOpen + 1, loop.close - 1);
+                scanned = loop.close;
             }
+        }
+        return hoisting.finish();
+    }
 
-            String newLoop = "";
-            if (!hoistedLines.isEmpty()) {
-                newLoop += String.join("\n", hoistedLines) + "\n";
+    // Braced for and while loops in source order, so outer loops come before the loops they contain
+    private List<Loop> loops(TokenStream tokens) {
+        List<Loop> loops = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            checkpoint();
+            if (!tokens.isAny(i, "for", "while") || !tokens.is(i + 1, "(")) {
+                continue;
             }
-            newLoop += "for (int " + loopVar + " = " + matcher.group(2) + "; " + loopVar + " < " + matcher.group(3) + "; " + loopVar + "++) {\n";
-            newLoop += String.join("\n", newBodyLines) + "\n}";
-            matcher.appendReplacement(result, newLoop);
+            int headerClose = tokens.match(i + 1);
+            int close = tokens.match(headerClose + 1);
+            if (headerClose < 0 || !tokens.is(headerClose + 1, "{") || close < 0) {
+                continue;
+            }
+            Loop loop = new Loop(i, close);
+            Loop parent = loops.isEmpty() ? null : loops.get(loops.size() - 1);
+            while (parent != null && parent.close < i) {
+                parent = parent.parent;
+            }
+            loop.parent = parent;
+            // The init of a for loop runs once, before the loop
+            int semicolon = tokens.is(i, "for") ? tokens.indexOf(";", i + 2, headerClose) : -1;
+            loop.from = semicolon >= 0 ? semicolon + 1 : i + 2;
+            for (int p = i + 2; p < close; p++) {
+                if (tokens.isIdentifier(p) && !tokens.isAny(p - 1, ".", "->")
+                        && (CountedLoop.isWritten(tokens, p) || tokens.isAny(p + 1, "=", ",", ";", "[", ")")
+                        && tokens.isIdentifier(p - 1))) {
+                    loop.written.add(tokens.text(p));
+                }
+            }
+            if (tokens.is(i, "for")) {
+                int assign = semicolon >= 0 ? tokens.indexOf("=", i + 2, semicolon) : -1;
+                loop.label = tokens.isIdentifier(assign - 1) ? "the loop over " + tokens.text(assign - 1) : "a for loop";
+            }
+            loops.add(loop);
         }
-        matcher.appendTail(result);
+        return loops;
+    }
 
-        return result.toString();
+    @Override
+    public boolean isApplicable(TokenStream tokens) {
+        return tokens.contains("for") || tokens.contains("while");
+    }
+
+    // A temporary declared inside an outer loop may itself hold work invariant in that loop
+    @Override
+    public Set<String> enables() {
+        return Set.of("hoistCode");
     }
 
     @Override
     public String getInsight() {
-        return "Hoisted invariant code outside of loops.";
+        return "Hoisted loop-invariant expressions into temporaries computed once before their loops.";
     }
 
     @Override
     public String getName() {
         return "hoistCode";
     }
-}
\ No newline at end of file
+
+    private static final class Loop {
+        private final int start;
+        private final int headerOpen;
+        private final int close;
+        // First token evaluated on every iteration
+        private int from;
+        // Names the loop assigns or declares
+        private final Set<String> written = new HashSet<>();
+        private String label = "a while loop";
+        private Loop parent;
+
+        private Loop(int start, int close) {
+            this.start = start;
+            this.headerOpen = start + 1;
+            this.close = close;
+        }
+    }
+
+    private static final class Expression {
+        private int cost;
+        private final List<Integer> variables = new ArrayList<>();
+        private final Set<String> types = new HashSet<>();
+    }
+
+    // Temporaries of one loop, by the text they compute
+    private static final class Preheader {
+        private final Map<String, String> names = new LinkedHashMap<>();
+        private final Map<String, String> declarations = new LinkedHashMap<>();
+        private final Map<String, Integer> uses = new LinkedHashMap<>();
+    }
+
+    private static final class Hoisting {
+        private final TokenStream tokens;
+        private final CodeOptimizerService.Language lang;
+        private final List<Loop> loops;
+        private final Declarations declarations;
+        private final SourceRewriter rewriter;
+        private final Map<Loop, Preheader> preheaders = new LinkedHashMap<>();
+        private int nextTemp = 1;
+
+        private Hoisting(TokenStream tokens, CodeOptimizerService.Language lang, List<Loop> loops) {
+            this.tokens = tokens;
+            this.lang = lang;
+            this.loops = loops;
+            this.declarations = Declarations.scan(tokens);
+            this.rewriter = new SourceRewriter(tokens);
+        }
+
+        // Splits from..to into maximal runs of side-effect-free arithmetic and hoists what it can of each
+        private void scan(int from, int to) {
+            int run = -1;
+            for (int p = from; p <= to; p++) {
+                checkpoint();
+                int end = element(p);
+                if (end >= 0) {
+                    run = run < 0 ? p : run;
+                    p = end;
+                    continue;
+                }
+                if (run >= 0) {
+                    hoist(run, p - 1);
+                    run = -1;
+                }
+                if (tokens.isAny(p, "(", "[") && tokens.match(p) > p) {
+                    scan(p + 1, tokens.match(p) - 1);
+                    p = tokens.match(p);
+                }
+            }
+            if (run >= 0) {
+                hoist(run, to);
+            }
+        }
+
+        // Last token of the side-effect-free operand or operator at p, or -1
+        private int element(int p) {
+            if (tokens.isType(p, TokenType.NUMBER)) {
+                return p;
+            }
+            if (tokens.isIdentifier(p)) {
+                if (tokens.isAny(p - 1, ".", "->", "::")) {
+                    return -1;
+                }
+                if (tokens.is(p + 1, "(")) {
+                    int close = tokens.match(p + 1);
+                    return PURE_FUNCTIONS.contains(tokens.text(p)) && close > p + 1 && isPureList(p + 2, close - 1)
+                            ? close : -1;
+                }
+                return !tokens.isAny(p + 1, "[", ".", "->", "::") && arithmeticType(p) != null ? p : -1;
+            }
+            if (tokens.is(p, "(")) {
+                int close = tokens.match(p);
+                return close > p + 1 && isPure(p + 1, close - 1) ? close : -1;
+            }
+            if (!OPERATORS.contains(tokens.text(p))) {
+                return -1;
+            }
+            boolean binary = endsOperand(p - 1);
+            if (tokens.isAny(p, "/", "%")) {
+                return isSafeDivisor(p + 1) ? p : -1;
+            }
+            return binary || UNARY.contains(tokens.text(p)) ? p : -1;
+        }
+
+        private boolean isPure(int from, int to) {
+            for (int p = from; p <= to; p++) {
+                int end = element(p);
+                if (end < 0) {
+                    return false;
+                }
+                p = end;
+            }
+            return true;
+        }
+
+        // Call arguments: pure expressions separated by commas
+        private boolean isPureList(int from, int to) {
+            int start = from;
+            for (int p = from; p <= to + 1; p++) {
+                if (p == to + 1 || tokens.is(p, ",")) {
+                    if (p == start || !isPure(start, p - 1)) {
+                        return false;
+                    }
+                    start = p + 1;
+                } else if (tokens.isAny(p, "(", "[") && tokens.match(p) > p) {
+                    p = tokens.match(p);
+                }
+            }
+            return true;
+        }
+
+        // A nonzero literal, or a floating point variable: neither can trap
+        private boolean isSafeDivisor(int p) {
+            if (tokens.isType(p, TokenType.NUMBER)) {
+                String text = tokens.text(p);
+                boolean nonzero = text.split("[eE]")[0].chars().anyMatch(c -> c >= '1' && c <= '9');
+                return nonzero && (tokens.isDecimalInteger(p) || ArithmeticTypes.ofLiteral(text) != null);
+            }
+            String type = tokens.isIdentifier(p) && !tokens.isAny(p + 1, "(", "[", ".", "->") ? arithmeticType(p) : null;
+            return "double".equals(type) || "float".equals(type);
+        }
+
+        // Whether token p ends an operand, making the operator after it binary
+        private boolean endsOperand(int p) {
+            return CountedLoop.endsOperand(tokens, p) && !tokens.isAny(p, "return", "case", "sizeof");
+        }
+
+        private String arithmeticType(int p) {
+            Declaration declaration = declarations.resolve(tokens.text(p), p);
+            return declaration != null ? ArithmeticTypes.canonical(declaration.getType()) : null;
+        }
+
+        private void hoist(int from, int to) {
+            // Operators at the edges of a run belong to the operands next to it
+            while (from <= to && OPERATORS.contains(tokens.text(from))
+                    && (endsOperand(from - 1) || !UNARY.contains(tokens.text(from)))) {
+                from++;
+            }
+            while (to >= from && OPERATORS.contains(tokens.text(to))) {
+                to--;
+            }
+            if (from > to) {
+                return;
+            }
+            int split = lowestOperator(from, to);
+            int precedence = split >= 0 ? PRECEDENCE.get(tokens.text(split)) : PRIMARY;
+            if (isOperand(from, to, precedence) && tryHoist(from, to)) {
+                return;
+            }
+            if (split >= 0) {
+                hoist(from, split - 1);
+                hoist(split + 1, to);
+                return;
+            }
+            // A single operand: try the insides of its parentheses and call arguments
+            for (int p = from; p <= to; p++) {
+                if (tokens.is(p, "(")) {
+                    int close = tokens.match(p);
+                    int start = p + 1;
+                    for (int q = p + 1; q <= close; q++) {
+                        if (q == close || tokens.is(q, ",")) {
+                            hoist(start, q - 1);
+                            start = q + 1;
+                        } else if (tokens.is(q, "(")) {
+                            q = tokens.match(q);
+                        }
+                    }
+                    p = close;
+                }
+            }
+        }
+
+        // The last of the binary operators that bind loosest outside parentheses, or -1
+        private int lowestOperator(int from, int to) {
+            int lowest = -1;
+            for (int p = from; p <= to; p++) {
+                if (tokens.is(p, "(")) {
+                    p = tokens.match(p);
+                } else if (PRECEDENCE.containsKey(tokens.text(p)) && endsOperand(p - 1) && (lowest < 0
+                        || PRECEDENCE.get(tokens.text(p)) <= PRECEDENCE.get(tokens.text(lowest)))) {
+                    lowest = p;
+                }
+            }
+            return lowest;
+        }
+
+        // Whether from..to is an operand of its own in the enclosing expression, i.e. it
+        // can be replaced by a name without regrouping the operators around it
+        private boolean isOperand(int from, int to, int precedence) {
+            String left = from > 0 ? tokens.text(from - 1) : ";";
+            boolean leftFits = LEFT_DELIMITERS.contains(left)
+                    || PRECEDENCE.containsKey(left) && PRECEDENCE.get(left) < precedence && endsOperand(from - 2);
+            String right = to + 1 < tokens.size() ? tokens.text(to + 1) : ";";
+            return leftFits && (RIGHT_DELIMITERS.contains(right)
+                    || PRECEDENCE.containsKey(right) && PRECEDENCE.get(right) <= precedence);
+        }
+
+        private boolean tryHoist(int from, int to) {
+            Expression expression = new Expression();
+            measure(from, to, expression);
+            if (expression.variables.isEmpty() || expression.cost < MIN_COST) {
+                return false;
+            }
+            String type = ArithmeticTypes.common(expression.types);
+            if (type == null) {
+                if (lang != CodeOptimizerService.Language.CPP) {
+                    return false;
+                }
+                type = "auto";
+            }
+            Loop target = null;
+            // An expression in a for init runs once per iteration of the loops around it only
+            for (Loop loop = innermostLoop(from); loop != null; loop = loop.parent) {
+                if (from < loop.from) {
+                    continue;
+                }
+                if (!isInvariant(expression, loop)) {
+                    break;
+                }
+                if (Declarations.canDeclareBefore(tokens, loop.start)) {
+                    target = loop;
+                }
+            }
+            if (target == null) {
+                return false;
+            }
+            // Hoist (a + b) as a + b
+            int inner = from;
+            int innerTo = to;
+            if (tokens.is(from, "(") && tokens.match(from) == to) {
+                inner++;
+                innerTo--;
+            }
+            String text = tokens.text(inner, innerTo).replaceAll("\\s*\\n\\s*", " ");
+            Preheader preheader = preheaders.computeIfAbsent(target, l -> new Preheader());
+            String name = preheader.names.get(text);
+            if (name == null) {
+                name = tempName();
+                preheader.names.put(text, name);
+                preheader.declarations.put(name, "const " + type + " " + name + " = " + text + ";");
+            }
+            preheader.uses.merge(name, 1, Integer::sum);
+            rewriter.replace(from, to, name);
+            return true;
+        }
+
+        // The innermost loop whose braces or header contain token p
+        private Loop innermostLoop(int p) {
+            int low = 0;
+            int high = loops.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (loops.get(mid).start < p) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            Loop loop = low > 0 ? loops.get(low - 1) : null;
+            while (loop != null && loop.close < p) {
+                loop = loop.parent;
+            }
+            return loop;
+        }
+
+        // Cost, variables and operand types of from..to
+        private void measure(int from, int to, Expression expression) {
+            for (int p = from; p <= to; p++) {
+                String text = tokens.text(p);
+                if (tokens.isIdentifier(p) && tokens.is(p + 1, "(")) {
+                    expression.cost += 20;
+                    // The arguments count as well: C++ overloads these for float and integer types
+                    expression.types.add(ArithmeticTypes.returnType(text));
+                    measure(p + 2, tokens.match(p + 1) - 1, expression);
+                    p = tokens.match(p + 1);
+                } else if (tokens.isIdentifier(p)) {
+                    expression.variables.add(p);
+                    expression.types.add(arithmeticType(p));
+                } else if (tokens.isType(p, TokenType.NUMBER)) {
+                    expression.types.add(ArithmeticTypes.ofLiteral(text));
+                } else if (!text.equals("(") && !text.equals(")") && !text.equals(",")) {
+                    expression.cost += text.equals("*") ? 3 : text.equals("/") || text.equals("%") ? 20 : 1;
+                }
+            }
+        }
+
+        // Every variable refers to the same declaration before the loop as at its use, the
+        // loop never writes it, and no pointer or reference can
+        private boolean isInvariant(Expression expression, Loop loop) {
+            for (int p : expression.variables) {
+                String name = tokens.text(p);
+                Declaration declaration = declarations.resolve(name, p);
+                if (loop.written.contains(name) || declaration != declarations.resolve(name, loop.start)
+                        || !declaration.isConstant() && declarations.isAliased(declaration)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String tempName() {
+            String name = "hoisted_" + nextTemp++;
+            while (declarations.isMentioned(name)) {
+                name = "hoisted_" + nextTemp++;
+            }
+            return name;
+        }
+
+        private String finish() {
+            for (Map.Entry<Loop, Preheader> entry : preheaders.entrySet()) {
+                Loop loop = entry.getKey();
+                Preheader preheader = entry.getValue();
+                String indent = tokens.indentationOf(loop.start);
+                rewriter.insertBefore(loop.start,
+                        String.join("\n" + indent, preheader.declarations.values()) + "\n" + indent);
+                for (Map.Entry<String, String> hoisted : preheader.names.entrySet()) {
+                    int uses = preheader.uses.get(hoisted.getValue());
+                    note("Hoisted " + hoisted.getKey() + (uses > 1 ? " (" + uses + " uses)" : "") + " out of "
+                            + loop.label + " into " + hoisted.getValue() + ".");
+                }
+            }
+            return rewriter.toString();
+        }
+    }
+}
@@ -1,8 +1,57 @@
 package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.util.Set;
+
 import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.Lexer.CppLexer;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
 
 public abstract class CodeTransformer {
-    public abstract String transform(String code, CodeOptimizerService.Language lang);
+    private static final String[] SCALAR_TYPES = {"int", "float", "double", "char"};
+
+    // Passes work on the shared token stream; return tokens.getSource() itself when nothing
+    // changed, the pass manager detects changes by identity rather than comparing the text
+    public abstract String transform(TokenStream tokens, CodeOptimizerService.Language lang);
     public abstract String getInsight();
     public abstract String getName();
-}
\ No newline at end of file
+
+    public String transform(String code, CodeOptimizerService.Language lang) {
+        return transform(CppLexer.lex(code), lang);
+    }
+
+    // Cheap trigger check; when it fails the pass is skipped because it could not match anything
+    public boolean isApplicable(TokenStream tokens) {
+        return true;
+    }
+
+    // Names of passes that may find new work once this pass has changed the code
+    public Set<String> enables() {
+        return Set.of();
+    }
+
+    // The name plus every setting the output depends on, e.g. unrollLoops(factor=4); cached
+    // results are keyed by it, so a changed setting does not serve output built with the old one
+    public String describe() {
+        return getName();
+    }
+
+    // Passes that look across function boundaries cannot run on one region in isolation
+    public boolean requiresWholeFile() {
+        return false;
+    }
+
+    // Call from every loop whose trip count depends on the input; aborts the pass once its
+    // PassBudget is used up
+    protected static void checkpoint() {
+        PassBudget.checkpoint();
+    }
+
+    // Reports one rewrite as an insight of its own; only call it for edits that are kept
+    protected static void note(String text) {
+        PassNotes.add(text);
+    }
+
+    protected static boolean isScalarType(TokenStream tokens, int i) {
+        return tokens.isAny(i, SCALAR_TYPES);
+    }
+}
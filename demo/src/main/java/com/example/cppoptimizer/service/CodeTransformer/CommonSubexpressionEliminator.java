@@ -1,70 +1,1106 @@
 package com.example.cppoptimizer.service.CodeTransformer;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.CodeTransformer.Declarations.Declaration;
+import com.example.cppoptimizer.service.Lexer.SourceRewriter;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
 
+/**
+ * Redundancy elimination by value numbering. Each function body is walked statement by
+ * statement with a table from value numbers to the names that hold them; the table is
+ * scoped to the block structure, so an entry is only ever reused inside the region its
+ * computation dominates. Branches and loop bodies drop what they added when they end,
+ * {@code case} labels drop what their switch added, and loops invalidate everything
+ * they write before their header is numbered.
+ *
+ * <p>A value number names an arithmetic expression over its operands' current values:
+ * variables carry a version that every assignment, increment or declaration of the name
+ * bumps, and loads from arrays and pointers, as well as variables that are aliased (see
+ * {@link Declarations#isAliased}), carry a memory version that stores and calls bump.
+ * Operands of commutative operators are ordered, so {@code a * b} and {@code b * a}
+ * share a number. Unary and binary arithmetic, one-dimensional array reads and the math
+ * functions are numbered; everything else is only searched for such parts.
+ *
+ * <p>A recomputation reuses the variable a plain assignment stored the value in when the
+ * variable still holds it and has the value's type, and otherwise a {@code const}
+ * temporary declared right before the statement that computed it first. Temporaries
+ * are only introduced for statements without side effects before their last step, whose
+ * operands all share one arithmetic type; in C++ mixed types are declared {@code auto}.
+ */
 public class CommonSubexpressionEliminator extends CodeTransformer {
+    private static final Map<String, Integer> PRECEDENCE = Map.ofEntries(
+            Map.entry("*", 13), Map.entry("/", 13), Map.entry("%", 13),
+            Map.entry("+", 12), Map.entry("-", 12),
+            Map.entry("<<", 11), Map.entry(">>", 11),
+            Map.entry("<", 10), Map.entry(">", 10), Map.entry("<=", 10), Map.entry(">=", 10),
+            Map.entry("==", 9), Map.entry("!=", 9),
+            Map.entry("&", 8), Map.entry("^", 7), Map.entry("|", 6), Map.entry("&&", 5), Map.entry("||", 4));
+    private static final Set<String> ARITHMETIC = Set.of("*", "/", "%", "+", "-", "<<", ">>", "&", "^", "|");
+    private static final Set<String> COMMUTATIVE = Set.of("*", "+", "&", "^", "|");
+    private static final Set<String> ASSIGNMENTS = Set.of(
+            "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=");
+    // Where an expression that does not parse whole is split to number its parts
+    private static final Set<String> SEPARATORS = Set.of(
+            ",", "?", ":", "++", "--", "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=");
+    // Keywords followed by parentheses, and calls that write nothing the function can read
+    private static final Set<String> NOT_CALLS = Set.of(
+            "if", "while", "for", "switch", "return", "sizeof", "catch", "printf", "fprintf", "puts", "putchar",
+            "assert");
+    // Jumps the block structure does not show
+    private static final Set<String> UNSUPPORTED = Set.of("goto", "setjmp", "longjmp", "asm", "__asm__");
+    private static final int MIN_COST = 2;
+
     @Override
-    public String transform(String code, CodeOptimizerService.Language lang) {
-        String[] lines = code.split("\n");
-        List<String> newLines = new ArrayList<>();
-        Set<String> declaredVars = new HashSet<>();
-
-        Pattern exprPattern = Pattern.compile("(\\w+)\\s*=\\s*(\\w+\\s*\\*\\s*\\w+);");
-        List<String> expressions = new ArrayList<>();
-        List<String> tempVars = new ArrayList<>();
-
-        for (String line : lines) {
-            Matcher matcher = exprPattern.matcher(line);
-            if (matcher.find()) {
-                String var = matcher.group(1);
-                String expr = matcher.group(2);
-                int index = expressions.indexOf(expr);
-                if (index != -1) {
-                    if (!declaredVars.contains(var)) {
-                        newLines.add("int " + var + " = " + tempVars.get(index) + ";");
-                        declaredVars.add(var);
-                    } else {
-                        newLines.add(var + " = " + tempVars.get(index) + ";");
-                    }
-                } else {
-                    String tempVar = "temp_" + expressions.size();
-                    expressions.add(expr);
-                    tempVars.add(tempVar);
-                    newLines.add("int " + tempVar + " = " + expr + ";");
-                    if (!declaredVars.contains(var)) {
-                        newLines.add("int " + var + " = " + tempVar + ";");
-                        declaredVars.add(var);
-                    } else {
-                        newLines.add(var + " = " + tempVar + ";");
-                    }
-                }
-            } else {
-                newLines.add(line);
-                Pattern varDecl = Pattern.compile("(int|float|double|char)\\s+(\\w+)\\s*(=.*)?;");
-                Matcher declMatcher = varDecl.matcher(line);
-                if (declMatcher.find()) {
-                    declaredVars.add(declMatcher.group(2));
-                }
+    public String transform(TokenStream tokens, CodeOptimizerService.Language lang) {
+        Numbering numbering = new Numbering(tokens, lang);
+        for (int i = 0; i < tokens.size(); i++) {
+            checkpoint();
+            if (!tokens.is(i, "{") || tokens.match(i) < 0) {
+                continue;
+            }
+            int paren = i - 1;
+            while (tokens.isAny(paren, "const", "noexcept", "override", "final")) {
+                paren--;
+            }
+            int open = tokens.is(paren, ")") ? tokens.match(paren) : -1;
+            if (open < 1 || !tokens.isIdentifier(open - 1) || tokens.isAny(open - 1, "if", "while", "for", "switch", "catch")) {
+                continue;
             }
+            if (isSupported(tokens, i, tokens.match(i))) {
+                numbering.function(i, tokens.match(i));
+            }
+            i = tokens.match(i);
         }
+        return numbering.finish();
+    }
 
-        return String.join("\n", newLines);
+    // No jumps between blocks, no conditional compilation and balanced brackets
+    private boolean isSupported(TokenStream tokens, int open, int close) {
+        for (int p = open; p <= close; p++) {
+            if (tokens.isIdentifier(p) && UNSUPPORTED.contains(tokens.text(p))
+                    || tokens.isAny(p, "(", "[", "{") && tokens.match(p) < 0
+                    || tokens.isType(p, TokenType.PREPROCESSOR)
+                    && tokens.text(p).matches("#\\s*(if|ifdef|ifndef|elif|else|endif)\\b[\\s\\S]*")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isApplicable(TokenStream tokens) {
+        return tokens.contains("{");
     }
 
     @Override
     public String getInsight() {
-        return "Eliminated common subexpressions to avoid redundant computations.";
+        return "Eliminated common subexpressions by value numbering, computing each redundant value once.";
     }
 
     @Override
     public String getName() {
         return "eliminateCommonSubexpressions";
     }
-}
\ No newline at end of file
+
+    // An expression over tokens from..to; key names its value number, null when it has none
+    private static final class Node {
+        private final int from;
+        private final int to;
+        private final String key;
+        private final String type;
+        private final int cost;
+        private final List<Node> children;
+        // Reads a variable or memory, and one this statement already changed
+        private boolean reads;
+        private boolean fresh;
+        private boolean group;
+        private boolean visited;
+
+        private Node(int from, int to, String key, String type, int cost, List<Node> children) {
+            this.from = from;
+            this.to = to;
+            this.key = key;
+            this.type = type;
+            this.cost = cost;
+            this.children = children;
+            for (Node child : children) {
+                reads |= child.reads;
+                fresh |= child.fresh;
+            }
+        }
+
+        private Node unwrap() {
+            Node node = this;
+            while (node.group) {
+                node = node.children.get(0);
+            }
+            return node;
+        }
+    }
+
+    // A name for a value: a variable an assignment stored it in, or a temporary declared on first reuse
+    private static final class Entry {
+        private final Node node;
+        private final Site site;
+        private final String type;
+        private final int sequence;
+        private final Declaration variable;
+        private final String guard;
+        private String name;
+        private int uses;
+
+        private Entry(Node node, Site site, String type, int sequence) {
+            this.node = node;
+            this.site = site;
+            this.type = type;
+            this.sequence = sequence;
+            this.variable = null;
+            this.guard = null;
+        }
+
+        private Entry(Node node, String name, Declaration variable, String guard, int sequence) {
+            this.node = node;
+            this.site = null;
+            this.type = null;
+            this.sequence = sequence;
+            this.name = name;
+            this.variable = variable;
+            this.guard = guard;
+        }
+    }
+
+    // A statement temporaries may be declared in front of
+    private static final class Site {
+        private final int start;
+        private final List<Entry> temporaries = new ArrayList<>();
+        private final boolean declarable;
+
+        private Site(int start, boolean declarable) {
+            this.start = start;
+            this.declarable = declarable;
+        }
+    }
+
+    private static final class Mark {
+        private final int from;
+        private final int to;
+        private final String name;
+
+        private Mark(int from, int to, String name) {
+            this.from = from;
+            this.to = to;
+            this.name = name;
+        }
+    }
+
+    // Value numbers in scope, with an undo log so a block can drop what it added
+    private static final class Table {
+        private final Map<String, Entry> entries = new HashMap<>();
+        private final List<String> keys = new ArrayList<>();
+        private final List<Entry> replaced = new ArrayList<>();
+
+        private Entry get(String key) {
+            return entries.get(key);
+        }
+
+        private void put(String key, Entry entry) {
+            keys.add(key);
+            replaced.add(entries.put(key, entry));
+        }
+
+        private int mark() {
+            return keys.size();
+        }
+
+        private void undoTo(int mark) {
+            for (int i = keys.size() - 1; i >= mark; i--) {
+                Entry previous = replaced.remove(i);
+                String key = keys.remove(i);
+                if (previous != null) {
+                    entries.put(key, previous);
+                } else {
+                    entries.remove(key);
+                }
+            }
+        }
+    }
+
+    private static final class Numbering {
+        private final TokenStream tokens;
+        private final CodeOptimizerService.Language lang;
+        private final Declarations declarations;
+        private final Map<String, Integer> versions = new HashMap<>();
+        private final Map<String, Integer> numbers = new HashMap<>();
+        private final List<Mark> marks = new ArrayList<>();
+        private final List<Site> sites = new ArrayList<>();
+        private final List<Entry> copies = new ArrayList<>();
+        private Table table = new Table();
+        private int counter;
+        private int memory;
+        // Versions at the start of the statement being numbered
+        private int statementCounter;
+        private int statementMemory;
+        // Where new temporaries go, null while numbering only looks entries up
+        private Site site;
+        // Table size at the start of the innermost switch body, -1 outside of one
+        private int labelMark = -1;
+        // Whether the innermost enclosing block is a switch body, whose case labels can jump past declarations
+        private boolean switchBlock;
+        private int sequence;
+        private int nextTemp = 1;
+        // Parser position and last token of the range being parsed
+        private int pos;
+        private int limit;
+
+        private Numbering(TokenStream tokens, CodeOptimizerService.Language lang) {
+            this.tokens = tokens;
+            this.lang = lang;
+            this.declarations = Declarations.scan(tokens);
+        }
+
+        private void function(int open, int close) {
+            versions.clear();
+            numbers.clear();
+            table = new Table();
+            labelMark = -1;
+            // Numbered per function, so a function gets the same names whether or not it is transformed on its own
+            nextTemp = 1;
+            statements(open + 1, close - 1);
+        }
+
+        private void statements(int from, int to) {
+            int mark = table.mark();
+            boolean outerBlock = switchBlock;
+            switchBlock = tokens.is(from - 2, ")") && tokens.is(tokens.match(from - 2) - 1, "switch");
+            for (int p = from; p <= to; p++) {
+                checkpoint();
+                p = statement(p, to);
+            }
+            switchBlock = outerBlock;
+            table.undoTo(mark);
+        }
+
+        // A statement whose entries do not outlive it
+        private int branch(int p, int limit) {
+            int mark = table.mark();
+            int end = statement(p, limit);
+            table.undoTo(mark);
+            return end;
+        }
+
+        // Numbers the statement at p and returns its last token
+        private int statement(int p, int limit) {
+            if (tokens.is(p, ";") || tokens.isType(p, TokenType.PREPROCESSOR)) {
+                return p;
+            }
+            boolean header = tokens.is(p + 1, "(") && tokens.match(p + 1) < limit;
+            int close = header ? tokens.match(p + 1) : -1;
+            switch (tokens.text(p)) {
+                case "{": {
+                    statements(p + 1, tokens.match(p) - 1);
+                    return tokens.match(p);
+                }
+                case "if": {
+                    if (!header) {
+                        break;
+                    }
+                    region(p + 2, close - 1);
+                    int end = branch(close + 1, limit);
+                    return tokens.is(end + 1, "else") ? branch(end + 2, limit) : end;
+                }
+                case "while": {
+                    if (!header) {
+                        break;
+                    }
+                    int end = extent(close + 1, limit);
+                    effects(p, end);
+                    region(p + 2, close - 1);
+                    branch(close + 1, limit);
+                    effects(p, end);
+                    return end;
+                }
+                case "do": {
+                    int bodyEnd = extent(p + 1, limit);
+                    if (!tokens.is(bodyEnd + 1, "while") || !tokens.is(bodyEnd + 2, "(")) {
+                        break;
+                    }
+                    int condition = bodyEnd + 2;
+                    int end = tokens.match(condition) + 1;
+                    effects(p, end);
+                    branch(p + 1, limit);
+                    region(condition + 1, end - 2);
+                    effects(p, end);
+                    return end;
+                }
+                case "for": {
+                    if (!header) {
+                        break;
+                    }
+                    return forLoop(p, close, limit);
+                }
+                case "switch": {
+                    if (!header) {
+                        break;
+                    }
+                    region(p + 2, close - 1);
+                    int saved = labelMark;
+                    labelMark = table.mark();
+                    int end = branch(close + 1, limit);
+                    labelMark = saved;
+                    return end;
+                }
+                case "case":
+                case "default": {
+                    int colon = tokens.indexOf(":", p, limit + 1);
+                    if (colon < 0) {
+                        break;
+                    }
+                    // Control can arrive here from the switch without anything since it ran
+                    if (labelMark >= 0) {
+                        table.undoTo(labelMark);
+                    }
+                    return colon;
+                }
+                case "try": {
+                    int end = branch(p + 1, limit);
+                    while (tokens.is(end + 1, "catch") && tokens.is(end + 2, "(")) {
+                        end = branch(tokens.match(end + 2) + 1, limit);
+                    }
+                    return end;
+                }
+                default:
+                    if (tokens.isIdentifier(p) && tokens.is(p + 1, ":")) {
+                        if (labelMark >= 0) {
+                            table.undoTo(labelMark);
+                        }
+                        return p + 1;
+                    }
+            }
+            int end = end(p, limit);
+            if (!simple(p, end)) {
+                effects(p, end);
+                if (tokens.indexOf("{", p, end) < 0) {
+                    region(p, end - 1);
+                }
+            }
+            return end;
+        }
+
+        private int forLoop(int p, int close, int limit) {
+            int mark = table.mark();
+            int init = tokens.indexOf(";", p + 2, close);
+            int step = init >= 0 ? tokens.indexOf(";", init + 1, close) : -1;
+            if (step < 0) {
+                init = -1;
+            }
+            // The init runs once, before anything the loop changes
+            if (init >= 0) {
+                region(p + 2, init - 1);
+            }
+            int from = init >= 0 ? init + 1 : p + 2;
+            int end = extent(close + 1, limit);
+            effects(from, end);
+            region(from, (init >= 0 ? step : close) - 1);
+            branch(close + 1, limit);
+            if (init >= 0) {
+                region(step + 1, close - 1);
+            }
+            effects(from, end);
+            table.undoTo(mark);
+            return end;
+        }
+
+        // Last token of the statement at p, without numbering it
+        private int extent(int p, int limit) {
+            boolean header = tokens.is(p + 1, "(") && tokens.match(p + 1) < limit;
+            switch (tokens.text(p)) {
+                case "{":
+                    return tokens.match(p);
+                case "if": {
+                    if (!header) {
+                        break;
+                    }
+                    int end = extent(tokens.match(p + 1) + 1, limit);
+                    return tokens.is(end + 1, "else") ? extent(end + 2, limit) : end;
+                }
+                case "for":
+                case "while":
+                case "switch":
+                    return header ? extent(tokens.match(p + 1) + 1, limit) : end(p, limit);
+                case "do": {
+                    int end = extent(p + 1, limit);
+                    return tokens.is(end + 1, "while") && tokens.is(end + 2, "(") ? tokens.match(end + 2) + 1 : end;
+                }
+                case "try": {
+                    int end = extent(p + 1, limit);
+                    while (tokens.is(end + 1, "catch") && tokens.is(end + 2, "(")) {
+                        end = extent(tokens.match(end + 2) + 1, limit);
+                    }
+                    return end;
+                }
+                default:
+                    break;
+            }
+            return end(p, limit);
+        }
+
+        // The ';' ending the statement at p, or limit
+        private int end(int p, int limit) {
+            for (int q = p; q <= limit; q++) {
+                if (tokens.is(q, ";")) {
+                    return q;
+                }
+                if (tokens.isAny(q, "(", "[", "{")) {
+                    q = tokens.match(q);
+                }
+            }
+            return limit;
+        }
+
+        // return E;  f(args);  v = E;  v[i] += E;  T a = E, *b, c = F;  when nothing but the
+        // last step of each part has side effects
+        private boolean simple(int p, int end) {
+            statementCounter = counter;
+            statementMemory = memory;
+            if (tokens.is(p, "return")) {
+                if (!isPure(p + 1, end - 1)) {
+                    return false;
+                }
+                number(declarableSite(p), p + 1, end - 1);
+                return true;
+            }
+            if (tokens.isIdentifier(p) && tokens.is(p + 1, "(") && tokens.match(p + 1) == end - 1) {
+                if (!isPure(p, end - 1)) {
+                    return false;
+                }
+                number(declarableSite(p), p, end - 1);
+                return true;
+            }
+            int op = tokens.is(p + 1, "[") ? tokens.match(p + 1) + 1 : p + 1;
+            if (tokens.isIdentifier(p) && ASSIGNMENTS.contains(tokens.text(op)) && !tokens.isAny(p - 1, ".", "->")) {
+                if (!isPure(op + 1, end - 1) || op > p + 1 && !isPure(p + 2, op - 2)) {
+                    return false;
+                }
+                Site at = declarableSite(p);
+                if (op > p + 1) {
+                    number(at, p + 2, op - 2);
+                }
+                Node value = number(at, op + 1, end - 1);
+                if (op > p + 1) {
+                    memory++;
+                } else if (tokens.is(op, "=")) {
+                    define(p, value);
+                } else {
+                    write(tokens.text(p), declarationAt(p));
+                }
+                return true;
+            }
+            return declaration(p, end);
+        }
+
+        // T a = E, *b, c = F;
+        private boolean declaration(int p, int end) {
+            int first = p;
+            while (first < end && (tokens.isIdentifier(first) || tokens.isAny(first, "*", "&", "::"))
+                    && !isDeclaredAt(first)) {
+                first++;
+            }
+            if (first == p || first >= end || !isDeclaredAt(first)) {
+                return false;
+            }
+            List<int[]> declarators = new ArrayList<>();
+            for (int q = first; q < end; ) {
+                while (tokens.isAny(q, "*", "&")) {
+                    q++;
+                }
+                if (!isDeclaredAt(q) || !tokens.isAny(q + 1, "=", ",", ";")) {
+                    return false;
+                }
+                int next = q + 1;
+                if (tokens.is(next, "=")) {
+                    while (next < end && !tokens.is(next, ",")) {
+                        next = tokens.isAny(next, "(", "[", "{") ? tokens.match(next) + 1 : next + 1;
+                    }
+                    if (!isPure(q + 2, next - 1)) {
+                        return false;
+                    }
+                }
+                declarators.add(new int[] {q, next});
+                q = next + 1;
+            }
+            Site at = declarableSite(p);
+            for (int[] declarator : declarators) {
+                int name = declarator[0];
+                if (tokens.is(name + 1, "=")) {
+                    define(name, number(at, name + 2, declarator[1] - 1));
+                } else {
+                    write(tokens.text(name), declarationAt(name));
+                }
+            }
+            return true;
+        }
+
+        private boolean isDeclaredAt(int p) {
+            Declaration declaration = tokens.isIdentifier(p) ? declarationAt(p) : null;
+            return declaration != null && declaration.getToken() == p;
+        }
+
+        // The declaration the name at p refers to, or introduces
+        private Declaration declarationAt(int p) {
+            return declarations.resolve(tokens.text(p), p + 1);
+        }
+
+        // Numbers a part of a simple statement, whose last step may be a call
+        private Node number(Site at, int from, int to) {
+            site = at;
+            Node value = parse(from, to);
+            visit(value);
+            site = null;
+            if (tokens.isIdentifier(from) && tokens.is(from + 1, "(") && tokens.match(from + 1) == to
+                    && ArithmeticTypes.returnType(tokens.text(from)) == null && !NOT_CALLS.contains(tokens.text(from))) {
+                memory++;
+            }
+            return value;
+        }
+
+        // What Declarations.canDeclareBefore checks, with the enclosing block known from the walk
+        private Site declarableSite(int start) {
+            if (!tokens.isStatementStart(start)) {
+                return null;
+            }
+            return new Site(start, !tokens.isType(start - 1, TokenType.PREPROCESSOR) && !switchBlock);
+        }
+
+        // No assignments, increments, conditional evaluation or calls other than math
+        // functions, except for a call making up all of from..to
+        private boolean isPure(int from, int to) {
+            int depth = 0;
+            for (int q = from; q <= to; q++) {
+                if (isAssignment(q) || tokens.isAny(q, "++", "--", "?", "&&", "||", "{", "}", "new", "delete", "throw")
+                        || depth == 0 && tokens.is(q, ",") || isStreamOperator(q)) {
+                    return false;
+                }
+                if (tokens.isIdentifier(q) && tokens.is(q + 1, "(") && ArithmeticTypes.returnType(tokens.text(q)) == null
+                        && !tokens.is(q, "sizeof") && !(q == from && tokens.match(q + 1) == to)) {
+                    return false;
+                }
+                if (tokens.isAny(q, "(", "[")) {
+                    depth++;
+                } else if (tokens.isAny(q, ")", "]")) {
+                    depth--;
+                }
+            }
+            return true;
+        }
+
+        // = and the compound assignments, without taking the text of every token
+        private boolean isAssignment(int q) {
+            return tokens.isType(q, TokenType.PUNCTUATOR) && tokens.getSource().charAt(tokens.end(q) - 1) == '='
+                    && !tokens.isAny(q, "==", "!=", "<=", ">=");
+        }
+
+        // cout << x, as opposed to a shift
+        private boolean isStreamOperator(int q) {
+            return tokens.isAny(q, "<<", ">>") && (tokens.isType(q - 1, TokenType.STRING)
+                    || tokens.isIdentifier(q - 1) && declarations.resolve(tokens.text(q - 1), q - 1) == null);
+        }
+
+        // Applies what from..to writes: the versions of the names it assigns, and memory
+        // when it stores through a pointer, assigns an aliased name or calls a function
+        private void effects(int from, int to) {
+            boolean clobbers = false;
+            for (int q = from; q <= to; q++) {
+                if (tokens.isIdentifier(q) && !tokens.isAny(q - 1, ".", "->")) {
+                    if (CountedLoop.isWritten(tokens, q) || isDeclaredAt(q)) {
+                        write(tokens.text(q), declarationAt(q));
+                    }
+                    clobbers |= tokens.is(q + 1, "(") && ArithmeticTypes.returnType(tokens.text(q)) == null
+                            && !NOT_CALLS.contains(tokens.text(q)) || tokens.isAny(q, "new", "delete", "throw");
+                } else if (isAssignment(q)) {
+                    clobbers |= !tokens.isIdentifier(q - 1) || tokens.isAny(q - 2, ".", "->")
+                            || tokens.is(q - 2, "*") && !CountedLoop.endsOperand(tokens, q - 3);
+                } else if (tokens.isAny(q, "++", "--")) {
+                    boolean prefix = tokens.isIdentifier(q + 1) && !tokens.isAny(q + 2, "[", ".", "->", "(");
+                    boolean postfix = tokens.isIdentifier(q - 1) && !tokens.isAny(q - 2, ".", "->", "*");
+                    clobbers |= !prefix && !postfix;
+                } else {
+                    clobbers |= isStreamOperator(q);
+                }
+            }
+            if (clobbers) {
+                memory++;
+            }
+        }
+
+        private void write(String name, Declaration declaration) {
+            versions.put(name, ++counter);
+            if (declaration == null || declarations.isAliased(declaration)) {
+                memory++;
+            }
+        }
+
+        // v = E: v now holds E's value, if it has E's type
+        private void define(int p, Node value) {
+            String name = tokens.text(p);
+            Declaration variable = declarationAt(p);
+            write(name, variable);
+            if (variable == null || value == null || !isComputed(value) || declarations.isAliased(variable)
+                    || !Objects.equals(ArithmeticTypes.canonical(variable.getType()), value.type)) {
+                return;
+            }
+            Entry existing = table.get(value.key);
+            if (existing == null || existing.variable == null && existing.name == null
+                    || !isAvailable(existing, p)) {
+                Entry copy = new Entry(value, name, variable, variableKey(name, variable), sequence++);
+                table.put(value.key, copy);
+                copies.add(copy);
+            }
+        }
+
+        // Looks nodes up top-down; a miss numbers the node's parts, then offers the node as a
+        // new value. Iterative, since sums of thousands of terms nest as deep. Returns whether
+        // the expression reads a variable this statement assigned
+        private boolean visit(Node root) {
+            if (root == null) {
+                return false;
+            }
+            Deque<Node> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Node node = stack.pop();
+                List<Node> children = node.unwrap().children;
+                if (!node.visited) {
+                    node.visited = true;
+                    Entry entry = node.key != null && node.cost > 0 ? table.get(node.key) : null;
+                    if (entry != null && isAvailable(entry, node.from)) {
+                        reuse(entry, node);
+                        node.fresh = entry.variable != null && versions.getOrDefault(entry.name, 0) > statementCounter;
+                        continue;
+                    }
+                    stack.push(node);
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        stack.push(children.get(i));
+                    }
+                    continue;
+                }
+                for (Node child : children) {
+                    node.fresh |= child.fresh;
+                }
+                if (!node.fresh && site != null && isComputed(node) && node.cost >= MIN_COST && site.declarable) {
+                    String type = node.type != null ? node.type : lang == CodeOptimizerService.Language.CPP ? "auto" : null;
+                    if (type != null && !type.equals(ArithmeticTypes.INT_LITERAL)) {
+                        table.put(node.key, new Entry(node, site, type, sequence++));
+                    }
+                }
+            }
+            return root.fresh;
+        }
+
+        // Has a value number and reads something: literal arithmetic is left to constant folding
+        private boolean isComputed(Node node) {
+            return node.key != null && node.cost > 0 && node.reads;
+        }
+
+        // A copy is only good while its variable is the one in scope and still holds the value
+        private boolean isAvailable(Entry entry, int use) {
+            if (entry.variable == null) {
+                return true;
+            }
+            return declarations.resolve(entry.name, use) == entry.variable
+                    && variableKey(entry.name, entry.variable).equals(entry.guard);
+        }
+
+        private void reuse(Entry entry, Node node) {
+            if (entry.name == null) {
+                entry.name = tempName();
+                if (entry.site.temporaries.isEmpty()) {
+                    sites.add(entry.site);
+                }
+                entry.site.temporaries.add(entry);
+                marks.add(new Mark(entry.node.from, entry.node.to, entry.name));
+            }
+            entry.uses++;
+            marks.add(new Mark(node.from, node.to, entry.name));
+        }
+
+        // Keys stay short however deep the expression: they name the value numbers of the operands
+        private String valueOf(String expression) {
+            Integer number = numbers.get(expression);
+            if (number == null) {
+                number = numbers.size();
+                numbers.put(expression, number);
+            }
+            return "v" + number;
+        }
+
+        private String variableKey(String name, Declaration declaration) {
+            String key = name + "#" + versions.getOrDefault(name, 0);
+            return declarations.isAliased(declaration) ? key + "@" + memory : key;
+        }
+
+        // Parses from..to as one expression, or as an opaque node over the parts it can parse
+        private Node parse(int from, int to) {
+            if (from > to) {
+                return null;
+            }
+            int savedPos = pos;
+            int savedLimit = limit;
+            pos = from;
+            limit = to;
+            Node node = binary(0);
+            boolean whole = node != null && pos == to + 1;
+            pos = savedPos;
+            limit = savedLimit;
+            return whole ? node : opaque(from, to);
+        }
+
+        private Node opaque(int from, int to) {
+            List<Node> children = new ArrayList<>();
+            int piece = from;
+            for (int q = from; q <= to; q++) {
+                if (tokens.isAny(q, "(", "[", "{")) {
+                    q = tokens.match(q);
+                } else if (SEPARATORS.contains(tokens.text(q))) {
+                    addPart(children, piece, q - 1);
+                    piece = q + 1;
+                }
+            }
+            if (piece > from) {
+                addPart(children, piece, to);
+            } else {
+                for (int q = from; q <= to; q++) {
+                    if (tokens.isAny(q, "(", "[")) {
+                        addPart(children, q + 1, tokens.match(q) - 1);
+                        q = tokens.match(q);
+                    }
+                }
+            }
+            return new Node(from, to, null, null, 0, children);
+        }
+
+        private void addPart(List<Node> children, int from, int to) {
+            Node part = parse(from, to);
+            if (part != null) {
+                children.add(part);
+            }
+        }
+
+        private Node binary(int minPrecedence) {
+            Node left = unary();
+            while (left != null && pos <= limit) {
+                Integer precedence = PRECEDENCE.get(tokens.text(pos));
+                if (precedence == null || precedence < minPrecedence) {
+                    break;
+                }
+                String operator = tokens.text(pos++);
+                Node right = binary(precedence + 1);
+                if (right == null) {
+                    return null;
+                }
+                left = operation(operator, left, right);
+            }
+            return left;
+        }
+
+        private Node unary() {
+            if (pos > limit) {
+                return null;
+            }
+            int from = pos;
+            String text = tokens.text(pos);
+            if (tokens.isAny(pos, "-", "+", "~", "!")) {
+                pos++;
+                Node operand = unary();
+                if (operand == null) {
+                    return null;
+                }
+                String key = operand.key != null && !text.equals("!") ? valueOf("(" + text + operand.key + ")") : null;
+                return new Node(from, operand.to, key, key != null ? operand.type : null, operand.cost + 1,
+                        List.of(operand));
+            }
+            if (tokens.isAny(pos, "*", "&")) {
+                pos++;
+                Node operand = unary();
+                // Nothing under an address-of is read
+                return operand == null ? null
+                        : new Node(from, operand.to, null, null, 0, text.equals("*") ? List.of(operand) : List.of());
+            }
+            if (text.equals("sizeof")) {
+                pos++;
+                if (tokens.is(pos, "(")) {
+                    pos = tokens.match(pos) + 1;
+                } else if (unary() == null) {
+                    return null;
+                }
+                return new Node(from, pos - 1, null, null, 0, List.of());
+            }
+            if (text.equals("(")) {
+                int close = tokens.match(pos);
+                if (close > limit || close < pos + 2 && !isCast(pos + 1, close - 1)) {
+                    return null;
+                }
+                if (isCast(pos + 1, close - 1)) {
+                    pos = close + 1;
+                    Node operand = unary();
+                    return operand == null ? null : new Node(from, operand.to, null, null, 0, List.of(operand));
+                }
+                Node inner = parse(pos + 1, close - 1);
+                pos = close + 1;
+                Node group = new Node(from, close, inner.key, inner.type, inner.cost, List.of(inner));
+                group.group = true;
+                return postfix(group);
+            }
+            if (tokens.isType(pos, TokenType.NUMBER)) {
+                pos++;
+                String type = ArithmeticTypes.ofLiteral(text);
+                return postfix(new Node(from, from, type != null ? text : null, type, 0, List.of()));
+            }
+            if (tokens.isIdentifier(pos)) {
+                pos++;
+                if (tokens.is(pos, "::")) {
+                    while (tokens.is(pos, "::") && tokens.isIdentifier(pos + 1)) {
+                        pos += 2;
+                    }
+                    return postfix(new Node(from, pos - 1, null, null, 0, List.of()));
+                }
+                return tokens.is(pos, "(") ? call(from) : postfix(variable(from));
+            }
+            if (tokens.isType(pos, TokenType.STRING) || tokens.isType(pos, TokenType.CHARACTER)) {
+                pos++;
+                return postfix(new Node(from, from, null, null, 0, List.of()));
+            }
+            return null;
+        }
+
+        private Node variable(int p) {
+            String name = tokens.text(p);
+            Declaration declaration = declarations.resolve(name, p);
+            String type = declaration != null ? ArithmeticTypes.canonical(declaration.getType()) : null;
+            if (type == null) {
+                return new Node(p, p, null, null, 0, List.of());
+            }
+            Node node = new Node(p, p, valueOf(variableKey(name, declaration)), type, 0, List.of());
+            node.reads = true;
+            node.fresh = versions.getOrDefault(name, 0) > statementCounter
+                    || declarations.isAliased(declaration) && memory > statementMemory;
+            return node;
+        }
+
+        // sqrt(x) has a value number; other calls only have their arguments numbered
+        private Node call(int from) {
+            int open = pos;
+            int close = tokens.match(open);
+            if (close > limit) {
+                return null;
+            }
+            List<Node> arguments = new ArrayList<>();
+            int argument = open + 1;
+            for (int q = open + 1; q < close; q++) {
+                if (tokens.isAny(q, "(", "[", "{")) {
+                    q = tokens.match(q);
+                } else if (tokens.is(q, ",")) {
+                    addPart(arguments, argument, q - 1);
+                    argument = q + 1;
+                }
+            }
+            addPart(arguments, argument, close - 1);
+            pos = close + 1;
+            String name = tokens.text(from);
+            String returnType = ArithmeticTypes.returnType(name);
+            boolean numbered = returnType != null && declarations.resolve(name, from) == null && !arguments.isEmpty();
+            StringBuilder key = new StringBuilder(name).append('(');
+            String argumentType = ArithmeticTypes.INT_LITERAL;
+            int cost = 20;
+            for (Node node : arguments) {
+                numbered &= node.key != null;
+                key.append(node.key).append(',');
+                argumentType = combine(argumentType, node.type);
+                cost += node.cost;
+            }
+            // C++ overloads these for float and integer types, so the C return type only holds for its own
+            String type = returnType != null && returnType.equals(argumentType) ? returnType : null;
+            return postfix(new Node(from, close, numbered ? valueOf(key.append(')').toString()) : null, type, cost,
+                    arguments));
+        }
+
+        private Node postfix(Node node) {
+            while (pos <= limit) {
+                if (tokens.is(pos, "[")) {
+                    int close = tokens.match(pos);
+                    if (close > limit || close == pos + 1) {
+                        return null;
+                    }
+                    Node index = parse(pos + 1, close - 1);
+                    pos = close + 1;
+                    node = load(node, index, close);
+                } else if (tokens.isAny(pos, ".", "->") && tokens.isIdentifier(pos + 1)) {
+                    pos += 2;
+                    node = new Node(node.from, pos - 1, null, null, 0, List.of());
+                } else if (tokens.is(pos, "(")) {
+                    int close = tokens.match(pos);
+                    if (close > limit) {
+                        return null;
+                    }
+                    List<Node> children = new ArrayList<>();
+                    addPart(children, pos + 1, close - 1);
+                    pos = close + 1;
+                    node = new Node(node.from, close, null, null, 0, children);
+                } else if (tokens.isAny(pos, "++", "--")) {
+                    return null;
+                } else {
+                    break;
+                }
+            }
+            return node;
+        }
+
+        // a[i] for a pointer or one-dimensional array of arithmetic elements
+        private Node load(Node base, Node index, int close) {
+            String name = tokens.text(base.from);
+            Declaration declaration = base.from == base.to && tokens.isIdentifier(base.from)
+                    ? declarations.resolve(name, base.from) : null;
+            String type = declaration != null ? ArithmeticTypes.canonical(declaration.getElementType()) : null;
+            if (type == null || index.key == null) {
+                return new Node(base.from, close, null, null, 0, List.of(base, index));
+            }
+            int version = versions.getOrDefault(name, 0);
+            String key = valueOf("[" + name + "#" + version + " " + index.key + "]@" + memory);
+            Node node = new Node(base.from, close, key, type, index.cost + 2, List.of(index));
+            node.reads = true;
+            node.fresh |= version > statementCounter || memory > statementMemory;
+            return node;
+        }
+
+        private Node operation(String operator, Node left, Node right) {
+            int cost = left.cost + right.cost
+                    + (operator.equals("*") ? 3 : operator.equals("/") || operator.equals("%") ? 20 : 1);
+            if (!ARITHMETIC.contains(operator) || left.key == null || right.key == null) {
+                return new Node(left.from, right.to, null, null, cost, List.of(left, right));
+            }
+            String first = left.key;
+            String second = right.key;
+            if (COMMUTATIVE.contains(operator) && first.compareTo(second) > 0) {
+                first = right.key;
+                second = left.key;
+            }
+            return new Node(left.from, right.to, valueOf("(" + first + " " + operator + " " + second + ")"),
+                    combine(left.type, right.type), cost, List.of(left, right));
+        }
+
+        // The type both operands share, int literals taking the other's; null when they differ
+        private String combine(String first, String second) {
+            if (ArithmeticTypes.INT_LITERAL.equals(first)) {
+                return second;
+            }
+            if (ArithmeticTypes.INT_LITERAL.equals(second)) {
+                return first;
+            }
+            return first != null && first.equals(second) ? first : null;
+        }
+
+        // (unsigned long) or (double *), as opposed to a parenthesized variable
+        private boolean isCast(int from, int to) {
+            if (from > to || !tokens.isIdentifier(from)) {
+                return false;
+            }
+            for (int q = from; q <= to; q++) {
+                if (!tokens.isIdentifier(q) && !tokens.isAny(q, "*", "&", "::")
+                        || tokens.isIdentifier(q) && declarations.resolve(tokens.text(q), q) != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Hits only: replaces what the table knows in from..to without adding to it
+        private void region(int from, int to) {
+            if (from <= to) {
+                site = null;
+                statementCounter = counter;
+                statementMemory = memory;
+                effects(from, to);
+                visit(parse(from, to));
+            }
+        }
+
+        private String tempName() {
+            String name = "temp_" + nextTemp++;
+            while (declarations.isMentioned(name)) {
+                name = "temp_" + nextTemp++;
+            }
+            return name;
+        }
+
+        private String finish() {
+            SourceRewriter rewriter = new SourceRewriter(tokens);
+            marks.sort(Comparator.comparingInt((Mark mark) -> mark.from).thenComparingInt(mark -> -mark.to));
+            for (Site declared : sites) {
+                declared.temporaries.sort(Comparator.comparingInt(entry -> entry.sequence));
+                String indent = tokens.indentationOf(declared.start);
+                StringBuilder text = new StringBuilder();
+                for (Entry entry : declared.temporaries) {
+                    Node expression = entry.node.unwrap();
+                    text.append("const ").append(entry.type).append(' ').append(entry.name).append(" = ")
+                            .append(render(expression.from, expression.to)).append(";\n").append(indent);
+                    note("Computed " + tokens.text(expression.from, expression.to) + " once into " + entry.name
+                            + " and reused it " + (entry.uses == 1 ? "once." : entry.uses + " times."));
+                }
+                rewriter.insertBefore(declared.start, text.toString());
+            }
+            for (Entry copy : copies) {
+                if (copy.uses > 0) {
+                    Node expression = copy.node.unwrap();
+                    note("Reused " + copy.name + " instead of recomputing " + tokens.text(expression.from, expression.to)
+                            + (copy.uses == 1 ? "." : " (" + copy.uses + " times)."));
+                }
+            }
+            int covered = -1;
+            for (Mark mark : marks) {
+                if (mark.from > covered) {
+                    rewriter.replace(mark.from, mark.to, mark.name);
+                    covered = mark.to;
+                }
+            }
+            return rewriter.toString();
+        }
+
+        // from..to with the outermost reused values inside it replaced by their names
+        private String render(int from, int to) {
+            String source = tokens.getSource();
+            StringBuilder text = new StringBuilder();
+            int cursor = tokens.start(from);
+            int covered = from - 1;
+            int low = 0;
+            int high = marks.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (marks.get(middle).from < from) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            for (int i = low; i < marks.size() && marks.get(i).from <= to; i++) {
+                Mark mark = marks.get(i);
+                if (mark.from <= covered || mark.to > to || mark.from == from && mark.to == to) {
+                    continue;
+                }
+                text.append(source, cursor, tokens.start(mark.from)).append(mark.name);
+                cursor = tokens.end(mark.to);
+                covered = mark.to;
+            }
+            return text.append(source, cursor, tokens.end(to)).toString();
+        }
+    }
+}
@@ -1,33 +1,892 @@
 package com.example.cppoptimizer.service.CodeTransformer;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.CodeTransformer.Declarations.Declaration;
+import com.example.cppoptimizer.service.Lexer.SourceRewriter;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
 
+/**
+ * Constant propagation and folding. Expressions whose operands are all known are replaced
+ * by the literal of their value, computed the way C computes it (see {@link ConstantValue}).
+ * Operands are known when they are literals, {@code const} variables initialized with a
+ * constant, or local variables that every path to the use last assigned a constant.
+ *
+ * <p>Each function body is walked statement by statement with the values of its local
+ * variables: branches start from copies and keep what both sides agree on, loops and
+ * switches forget what they assign before anything in them is read, and case labels
+ * start over from what held before the switch. An {@code if} whose condition is known
+ * keeps only the branch that runs, and a {@code while} loop that is never entered is
+ * removed.
+ *
+ * <p>Only variables nothing but their name can reach are followed (see
+ * {@link Declarations#isAliased}). Functions with jumps the block structure does not
+ * show, or with conditional compilation, only have their constants propagated.
+ */
 public class ConstantFolder extends CodeTransformer {
+    private static final Map<String, Integer> PRECEDENCE = Map.ofEntries(
+            Map.entry("*", 13), Map.entry("/", 13), Map.entry("%", 13),
+            Map.entry("+", 12), Map.entry("-", 12),
+            Map.entry("<<", 11), Map.entry(">>", 11),
+            Map.entry("<", 10), Map.entry(">", 10), Map.entry("<=", 10), Map.entry(">=", 10),
+            Map.entry("==", 9), Map.entry("!=", 9),
+            Map.entry("&", 8), Map.entry("^", 7), Map.entry("|", 6), Map.entry("&&", 5), Map.entry("||", 4));
+    private static final Set<String> ASSIGNMENTS = Set.of(
+            "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=");
+    // Where an expression that does not parse whole is split to fold its parts
+    private static final Set<String> SEPARATORS = Set.of(
+            ",", ";", "?", ":", "++", "--", "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=",
+            "return", "case", "throw", "else", "do");
+    // Tokens after which a negative literal needs no parentheses
+    private static final Set<String> BOUNDARIES = Set.of(
+            "=", "(", "[", "{", ",", ";", "?", ":", "return", "case");
+    // Jumps the block structure does not show
+    private static final Set<String> UNSUPPORTED = Set.of("goto", "setjmp", "longjmp", "asm", "__asm__");
+    private static final Pattern WORD = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    // #define NAME(parameters) body
+    private static final Pattern DEFINE = Pattern.compile(
+            "#\\s*define\\s+[A-Za-z_][A-Za-z0-9_]*(?:\\(([^)]*)\\))?([\\s\\S]*)");
+
     @Override
-    public String transform(String code, CodeOptimizerService.Language lang) {
-        Pattern pattern = Pattern.compile("(\\d+)\\s*\\+\\s*(\\d+)");
-        Matcher matcher = pattern.matcher(code);
-        StringBuffer result = new StringBuffer();
+    public String transform(TokenStream tokens, CodeOptimizerService.Language lang) {
+        Propagation propagation = new Propagation(tokens, lang);
+        // Whether each enclosing brace outside functions opens a namespace rather than a class
+        Deque<Boolean> scopes = new ArrayDeque<>();
+        int piece = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            checkpoint();
+            if (tokens.isType(i, TokenType.PREPROCESSOR) || tokens.isAny(i, ";", "}")) {
+                propagation.topLevel(piece, i);
+                piece = i + 1;
+                if (tokens.is(i, "}") && !scopes.isEmpty()) {
+                    scopes.pop();
+                }
+            } else if (tokens.is(i, "{")) {
+                propagation.topLevel(piece, i);
+                piece = i + 1;
+                int open = StatementEditor.functionParameters(tokens, i);
+                if (open >= 0 && tokens.match(i) > i) {
+                    // Members of a class may hide the constants a member function seems to use
+                    boolean member = tokens.is(open - 2, "::") || scopes.contains(false);
+                    propagation.function(open, i, tokens.match(i), member);
+                    i = tokens.match(i);
+                    piece = i + 1;
+                } else {
+                    scopes.push(tokens.is(i - 1, "namespace") || tokens.is(i - 2, "namespace")
+                            || tokens.isType(i - 1, TokenType.STRING) && tokens.is(i - 2, "extern"));
+                }
+            }
+        }
+        propagation.topLevel(piece, tokens.size());
+        return propagation.finish();
+    }
 
-        while (matcher.find()) {
-            int a = Integer.parseInt(matcher.group(1));
-            int b = Integer.parseInt(matcher.group(2));
-            matcher.appendReplacement(result, String.valueOf(a + b));
+    @Override
+    public boolean isApplicable(TokenStream tokens) {
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.isType(i, TokenType.NUMBER)) {
+                return true;
+            }
         }
-        matcher.appendTail(result);
-        return result.toString();
+        return false;
+    }
+
+    // Constants declared at file scope are used in every function after them
+    @Override
+    public boolean requiresWholeFile() {
+        return true;
+    }
+
+    // Folded bounds and sizes become the literals those passes match on, and declarations
+    // whose every use now reads the literal are left unused
+    @Override
+    public Set<String> enables() {
+        return Set.of("reduceStrength", "optimizeArithmeticLoops", "eliminateDeadCode", "optimizeMemoryAllocation",
+                "unrollLoops", "hoistCode");
     }
 
     @Override
     public String getInsight() {
-        return "Applied constant folding to simplify arithmetic expressions.";
+        return "Applied constant folding and propagation to compute known values at compile time.";
     }
 
     @Override
     public String getName() {
         return "foldConstants";
     }
-}
\ No newline at end of file
+
+    // An expression over tokens from..to; value is null when it is not known
+    private static final class Node {
+        private final int from;
+        private final int to;
+        private final ConstantValue value;
+        // Replacing it by its value changes the text: it computes something or reads a variable
+        private final boolean computed;
+        private final List<Node> children;
+        private Declaration variable;
+
+        private Node(int from, int to, ConstantValue value, boolean computed, List<Node> children) {
+            this.from = from;
+            this.to = to;
+            this.value = value;
+            this.computed = computed && value != null;
+            this.children = children;
+        }
+    }
+
+    private static final class Propagation {
+        private final TokenStream tokens;
+        private final boolean cpp;
+        private final Declarations declarations;
+        private final StatementEditor editor;
+        private final SourceRewriter rewriter;
+        // Constants never change, local variables only as far as the walk has seen
+        private final Map<Declaration, ConstantValue> constants = new HashMap<>();
+        private Map<Declaration, ConstantValue> known = new HashMap<>();
+        // Names macros may write, template parameters the scan takes for other names, and
+        // declarators it does not see
+        private final Set<String> macroWords = new HashSet<>();
+        private final Set<String> templateParameters = new HashSet<>();
+        private final Set<String> opaque = new HashSet<>();
+        private final Map<Declaration, Integer> uses = new LinkedHashMap<>();
+        private Map<Declaration, ConstantValue> switchEntry;
+        private boolean tracking;
+        private boolean memberFunction;
+        private int parameters;
+        private int body;
+        private int pos;
+        private int limit;
+
+        private Propagation(TokenStream tokens, CodeOptimizerService.Language lang) {
+            this.tokens = tokens;
+            this.cpp = lang == CodeOptimizerService.Language.CPP;
+            this.declarations = Declarations.scan(tokens);
+            this.editor = new StatementEditor(tokens, declarations);
+            this.rewriter = editor.getRewriter();
+            for (int p = 0; p < tokens.size(); p++) {
+                Matcher macro = tokens.isType(p, TokenType.PREPROCESSOR) ? DEFINE.matcher(tokens.text(p)) : null;
+                if (macro != null && macro.matches()) {
+                    Set<String> parameters = new HashSet<>();
+                    Matcher words = WORD.matcher(macro.group(1) != null ? macro.group(1) : "");
+                    while (words.find()) {
+                        parameters.add(words.group());
+                    }
+                    words = WORD.matcher(macro.group(2));
+                    while (words.find()) {
+                        if (!parameters.contains(words.group())) {
+                            macroWords.add(words.group());
+                        }
+                    }
+                } else if (tokens.is(p, "template") && tokens.is(p + 1, "<")) {
+                    p = templateParameters(p + 1);
+                }
+            }
+        }
+
+        // template <typename T, int N = 4>: collects the names, returns the closing '>'
+        private int templateParameters(int open) {
+            int depth = 0;
+            for (int q = open; q < tokens.size(); q++) {
+                if (tokens.is(q, "<")) {
+                    depth++;
+                } else if (tokens.isAny(q, ">", ">>")) {
+                    depth -= tokens.length(q);
+                    if (depth <= 0) {
+                        return q;
+                    }
+                } else if (tokens.isIdentifier(q) && tokens.isAny(q + 1, ",", ">", "=", ">>")) {
+                    templateParameters.add(tokens.text(q));
+                } else if (tokens.isAny(q, ";", "{", "}")) {
+                    return q;
+                }
+            }
+            return tokens.size();
+        }
+
+        // A statement outside function bodies, ending before the ';', '{' or '}' at end
+        private void topLevel(int from, int end) {
+            tracking = false;
+            body = -1;
+            if (from < end && !declaration(from, end)) {
+                region(from, end - 1);
+            }
+        }
+
+        private void function(int open, int brace, int close, boolean member) {
+            known = new HashMap<>();
+            switchEntry = null;
+            parameters = open;
+            body = close;
+            memberFunction = member;
+            opaque.clear();
+            if (!StatementEditor.isBalanced(tokens, brace, close)) {
+                return;
+            }
+            tracking = isSupported(brace, close);
+            statements(brace + 1, close - 1);
+        }
+
+        // No jumps between blocks, no conditional compilation, case labels only directly in
+        // their switch, and no declarators the scan misses
+        private boolean isSupported(int open, int close) {
+            boolean supported = true;
+            for (int p = open; p <= close; p++) {
+                if (tokens.isIdentifier(p) && UNSUPPORTED.contains(tokens.text(p))
+                        || tokens.isType(p, TokenType.PREPROCESSOR)
+                        && tokens.text(p).matches("#\\s*(if|ifdef|ifndef|elif|else|endif)\\b[\\s\\S]*")
+                        || tokens.isAny(p, "case", "default") && !isDirectLabel(p)) {
+                    supported = false;
+                }
+                if (Declarations.isOpaqueDeclarator(tokens, p)) {
+                    opaque.add(tokens.text(p));
+                }
+            }
+            return supported;
+        }
+
+        private boolean isDirectLabel(int p) {
+            if (!tokens.isStatementStart(p) && !tokens.is(p - 1, ":")) {
+                return false;
+            }
+            int block = p - 1;
+            while (block >= 0 && !tokens.is(block, "{")) {
+                block = tokens.isAny(block, "}", ")", "]") && tokens.match(block) >= 0 ? tokens.match(block) - 1 : block - 1;
+            }
+            return block >= 1 && tokens.is(block - 1, ")") && tokens.is(tokens.match(block - 1) - 1, "switch");
+        }
+
+        private void statements(int from, int to) {
+            for (int p = from; p <= to; p++) {
+                checkpoint();
+                p = statement(p, to);
+            }
+        }
+
+        // Walks the statement at p and returns its last token
+        private int statement(int p, int limit) {
+            if (tokens.is(p, ";") || tokens.isType(p, TokenType.PREPROCESSOR)) {
+                return p;
+            }
+            boolean header = tokens.is(p + 1, "(") && tokens.match(p + 1) < limit;
+            int close = header ? tokens.match(p + 1) : -1;
+            switch (tokens.text(p)) {
+                case "{": {
+                    statements(p + 1, tokens.match(p) - 1);
+                    return tokens.match(p);
+                }
+                case "if": {
+                    if (!header || tokens.is(p + 1, "constexpr")) {
+                        break;
+                    }
+                    return ifStatement(p, close, limit);
+                }
+                case "while": {
+                    if (!header) {
+                        break;
+                    }
+                    int end = extent(close + 1, limit);
+                    // Whether the loop is entered at all only depends on what holds before it
+                    Node entered = parse(p + 2, close - 1);
+                    if (entered != null && entered.value != null && !entered.value.isTrue() && editor.isRemovable(p, end)) {
+                        editor.remove(p, end, -1, -1);
+                        note("Removed the while loop at line " + tokens.lineOf(p) + ", whose condition "
+                                + tokens.text(p + 2, close - 1) + " is false when it is reached.");
+                        return end;
+                    }
+                    forget(p, end);
+                    fold(parse(p + 2, close - 1));
+                    Map<Declaration, ConstantValue> entry = new HashMap<>(known);
+                    statement(close + 1, limit);
+                    known = entry;
+                    return end;
+                }
+                case "do": {
+                    int bodyEnd = extent(p + 1, limit);
+                    if (!tokens.is(bodyEnd + 1, "while") || !tokens.is(bodyEnd + 2, "(")) {
+                        break;
+                    }
+                    int condition = bodyEnd + 2;
+                    int end = tokens.match(condition) + 1;
+                    forget(p, end);
+                    Map<Declaration, ConstantValue> entry = new HashMap<>(known);
+                    statement(p + 1, limit);
+                    // continue reaches the condition from anywhere in the body
+                    known = entry;
+                    region(condition + 1, end - 2);
+                    return end;
+                }
+                case "for": {
+                    if (!header) {
+                        break;
+                    }
+                    return forLoop(p, close, limit);
+                }
+                case "switch": {
+                    if (!header) {
+                        break;
+                    }
+                    region(p + 2, close - 1);
+                    int end = extent(close + 1, limit);
+                    forget(p, end);
+                    Map<Declaration, ConstantValue> saved = switchEntry;
+                    switchEntry = new HashMap<>(known);
+                    statement(close + 1, limit);
+                    known = switchEntry;
+                    switchEntry = saved;
+                    return end;
+                }
+                case "case":
+                case "default": {
+                    int colon = tokens.indexOf(":", p, limit + 1);
+                    if (colon < 0) {
+                        break;
+                    }
+                    // Control can arrive here from the switch without anything since it ran
+                    if (switchEntry != null) {
+                        known = new HashMap<>(switchEntry);
+                    }
+                    region(p + 1, colon - 1);
+                    return colon;
+                }
+                case "try": {
+                    int end = extent(p, limit);
+                    Map<Declaration, ConstantValue> entry = new HashMap<>(known);
+                    int handler = statement(p + 1, limit);
+                    // A handler can be entered from anywhere in the try block
+                    known = entry;
+                    forget(p, end);
+                    entry = known;
+                    while (tokens.is(handler + 1, "catch") && tokens.is(handler + 2, "(")) {
+                        known = new HashMap<>(entry);
+                        handler = statement(tokens.match(handler + 2) + 1, limit);
+                    }
+                    known = entry;
+                    return end;
+                }
+                default:
+                    if (tokens.isIdentifier(p) && tokens.is(p + 1, ":")) {
+                        return p + 1;
+                    }
+            }
+            int end = end(p, limit);
+            if (!simple(p, end)) {
+                region(p, end - 1);
+            }
+            return end;
+        }
+
+        private int ifStatement(int p, int close, int limit) {
+            int thenEnd = extent(close + 1, limit);
+            boolean hasElse = tokens.is(thenEnd + 1, "else");
+            int end = hasElse ? extent(thenEnd + 2, limit) : thenEnd;
+            forget(p + 2, close - 1);
+            Node condition = parse(p + 2, close - 1);
+            if (condition != null && condition.value != null && editor.isRemovable(p, end)) {
+                boolean taken = condition.value.isTrue();
+                int keptFrom = taken ? close + 1 : hasElse ? thenEnd + 2 : -1;
+                int keptTo = taken ? thenEnd : hasElse ? end : -1;
+                editor.remove(p, end, keptFrom, keptTo);
+                String line = " at line " + tokens.lineOf(p) + ", whose condition " + tokens.text(p + 2, close - 1);
+                note(taken ? "Kept only the taken branch of the if" + line + " is always true."
+                        : "Removed the never taken branch of the if" + line + " is always false.");
+                return keptFrom >= 0 ? Math.max(statement(keptFrom, limit), end) : end;
+            }
+            fold(condition);
+            Map<Declaration, ConstantValue> entry = new HashMap<>(known);
+            statement(close + 1, limit);
+            Map<Declaration, ConstantValue> taken = known;
+            known = entry;
+            if (hasElse) {
+                statement(thenEnd + 2, limit);
+            }
+            known.entrySet().removeIf(e -> !e.getValue().equals(taken.get(e.getKey())));
+            return end;
+        }
+
+        private int forLoop(int p, int close, int limit) {
+            int end = extent(close + 1, limit);
+            int init = tokens.indexOf(";", p + 2, close);
+            int step = init >= 0 ? tokens.indexOf(";", init + 1, close) : -1;
+            if (step < 0) {
+                // for (T x : range)
+                forget(p, end);
+                region(p + 2, close - 1);
+            } else {
+                // The init runs once, before anything the loop changes
+                if (!simple(p + 2, init)) {
+                    region(p + 2, init - 1);
+                }
+                forget(init + 1, end);
+                region(init + 1, step - 1);
+            }
+            Map<Declaration, ConstantValue> entry = new HashMap<>(known);
+            statement(close + 1, limit);
+            known = entry;
+            if (step >= 0) {
+                region(step + 1, close - 1);
+                known = entry;
+            }
+            return end;
+        }
+
+        // Last token of the statement at p, without walking it
+        private int extent(int p, int limit) {
+            return StatementEditor.extent(tokens, p, limit);
+        }
+
+        private int end(int p, int limit) {
+            return StatementEditor.end(tokens, p, limit);
+        }
+
+        // v = E;  v op= E;  v++;  and declarations, which keep what they store known
+        private boolean simple(int p, int end) {
+            if (!tracking || !tokens.isIdentifier(p) || tokens.isAny(p - 1, ".", "->")) {
+                return declaration(p, end);
+            }
+            if (tokens.isAny(p + 1, "++", "--") && p + 2 == end) {
+                step(p, tokens.is(p + 1, "++") ? "+" : "-");
+                return true;
+            }
+            if (ASSIGNMENTS.contains(tokens.text(p + 1))) {
+                ConstantValue value = evaluate(p + 2, end - 1);
+                Declaration variable = declarations.resolve(tokens.text(p), p);
+                if (tokens.is(p + 1, "=")) {
+                    assign(variable, value);
+                } else {
+                    String operator = tokens.text(p + 1).substring(0, tokens.length(p + 1) - 1);
+                    ConstantValue old = known.get(variable);
+                    assign(variable, old != null && value != null ? old.binary(operator, value, cpp) : null);
+                }
+                return true;
+            }
+            return declaration(p, end);
+        }
+
+        // ++v; --v; v++; v--;
+        private void step(int p, String operator) {
+            Declaration variable = declarations.resolve(tokens.text(p), p);
+            ConstantValue old = known.get(variable);
+            assign(variable, old != null ? old.binary(operator, ConstantValue.ofLiteral("1"), cpp) : null);
+        }
+
+        // T a = E, *b, c[N] = {...};
+        private boolean declaration(int p, int end) {
+            if (tracking && tokens.isAny(p, "++", "--") && tokens.isIdentifier(p + 1) && p + 2 == end) {
+                step(p + 1, tokens.is(p, "++") ? "+" : "-");
+                return true;
+            }
+            int first = p;
+            while (first < end && (tokens.isIdentifier(first) || tokens.isAny(first, "*", "&", "::"))
+                    && !isDeclaredAt(first)) {
+                first++;
+            }
+            if (first == p || first >= end || !isDeclaredAt(first)) {
+                return false;
+            }
+            region(p, first - 1);
+            for (int q = first; q < end; ) {
+                while (tokens.isAny(q, "*", "&")) {
+                    q++;
+                }
+                if (!isDeclaredAt(q)) {
+                    region(q, end - 1);
+                    return true;
+                }
+                int next = q + 1;
+                while (tokens.is(next, "[") && tokens.match(next) > next) {
+                    region(next + 1, tokens.match(next) - 1);
+                    next = tokens.match(next) + 1;
+                }
+                ConstantValue value = null;
+                if (tokens.is(next, "=")) {
+                    int initializer = next + 1;
+                    while (next < end && !tokens.is(next, ",")) {
+                        next = tokens.isAny(next, "(", "[", "{") ? tokens.match(next) + 1 : next + 1;
+                    }
+                    value = evaluate(initializer, next - 1);
+                }
+                define(declarationAt(q), value);
+                if (!tokens.is(next, ",")) {
+                    region(next, end - 1);
+                    return true;
+                }
+                q = next + 1;
+            }
+            return true;
+        }
+
+        // A constant keeps its initial value; a followed variable holds it until it is assigned
+        private void define(Declaration variable, ConstantValue value) {
+            ConstantValue.Type type = typeOf(variable);
+            if (type != null && variable.isConstant() && value != null && (body >= 0 || !variable.isLocal())) {
+                ConstantValue converted = value.convertTo(type);
+                if (converted != null) {
+                    constants.put(variable, converted);
+                }
+                return;
+            }
+            assign(variable, value);
+        }
+
+        private void assign(Declaration variable, ConstantValue value) {
+            if (!isFollowed(variable)) {
+                return;
+            }
+            ConstantValue converted = value != null ? value.convertTo(typeOf(variable)) : null;
+            if (converted != null) {
+                known.put(variable, converted);
+            } else {
+                known.remove(variable);
+            }
+        }
+
+        private boolean isFollowed(Declaration variable) {
+            return tracking && variable != null && variable.isLocal() && !variable.isConstant()
+                    && variable.getToken() > parameters && variable.getToken() < body && typeOf(variable) != null
+                    && !macroWords.contains(tokens.text(variable.getToken()))
+                    && !opaque.contains(tokens.text(variable.getToken())) && !declarations.isAliased(variable);
+        }
+
+        private ConstantValue.Type typeOf(Declaration variable) {
+            if (cpp && "bool".equals(variable.getType())) {
+                return ConstantValue.Type.BOOL;
+            }
+            return ConstantValue.ofDeclared(ArithmeticTypes.canonical(variable.getType()));
+        }
+
+        private boolean isDeclaredAt(int p) {
+            Declaration declaration = tokens.isIdentifier(p) ? declarationAt(p) : null;
+            return declaration != null && declaration.getToken() == p;
+        }
+
+        // The declaration the name at p refers to, or introduces
+        private Declaration declarationAt(int p) {
+            return declarations.resolve(tokens.text(p), p + 1);
+        }
+
+        // Drops what from..to may assign
+        private void forget(int from, int to) {
+            if (known.isEmpty()) {
+                return;
+            }
+            for (int q = from; q <= to; q++) {
+                if (tokens.isIdentifier(q) && !tokens.isAny(q - 1, ".", "->")
+                        && (CountedLoop.isWritten(tokens, q) || isDeclaredAt(q))) {
+                    known.remove(declarationAt(q));
+                }
+            }
+        }
+
+        // Folds from..to after forgetting what it assigns
+        private void region(int from, int to) {
+            if (from <= to) {
+                forget(from, to);
+                fold(parse(from, to));
+            }
+        }
+
+        private ConstantValue evaluate(int from, int to) {
+            if (from > to) {
+                return null;
+            }
+            forget(from, to);
+            Node node = parse(from, to);
+            fold(node);
+            return node.value;
+        }
+
+        // Replaces the outermost computed nodes by their values
+        private void fold(Node root) {
+            if (root == null) {
+                return;
+            }
+            Deque<Node> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Node node = pending.pop();
+                String literal = node.computed ? node.value.render() : null;
+                if (literal == null) {
+                    node.children.forEach(pending::push);
+                    continue;
+                }
+                if (literal.startsWith("-") && node.from > 0 && !BOUNDARIES.contains(tokens.text(node.from - 1))) {
+                    literal = "(" + literal + ")";
+                }
+                int start = tokens.start(node.from);
+                if (start > 0 && isWordChar(tokens.getSource().charAt(start - 1)) && isWordChar(literal.charAt(0))) {
+                    literal = " " + literal;
+                }
+                rewriter.replace(node.from, node.to, literal);
+                countUses(node);
+            }
+        }
+
+        private static boolean isWordChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_';
+        }
+
+        private void countUses(Node root) {
+            Deque<Node> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Node node = pending.pop();
+                if (node.variable != null) {
+                    uses.merge(node.variable, 1, Integer::sum);
+                }
+                node.children.forEach(pending::push);
+            }
+        }
+
+        // Parses from..to as one expression, or as an opaque node over the parts it can parse
+        private Node parse(int from, int to) {
+            if (from > to) {
+                return null;
+            }
+            int savedPos = pos;
+            int savedLimit = limit;
+            pos = from;
+            limit = to;
+            Node node = binary(0);
+            boolean whole = node != null && pos == to + 1;
+            pos = savedPos;
+            limit = savedLimit;
+            return whole ? node : opaque(from, to);
+        }
+
+        private Node opaque(int from, int to) {
+            List<Node> children = new ArrayList<>();
+            int piece = from;
+            for (int q = from; q <= to; q++) {
+                if (tokens.isAny(q, "(", "[", "{") && tokens.match(q) > q) {
+                    q = tokens.match(q);
+                } else if (SEPARATORS.contains(tokens.text(q))) {
+                    addPart(children, piece, q - 1);
+                    piece = q + 1;
+                }
+            }
+            if (piece > from) {
+                addPart(children, piece, to);
+            } else {
+                for (int q = from; q <= to; q++) {
+                    if (tokens.isAny(q, "(", "[", "{") && tokens.match(q) > q && tokens.match(q) <= to) {
+                        addPart(children, q + 1, tokens.match(q) - 1);
+                        q = tokens.match(q);
+                    }
+                }
+            }
+            return new Node(from, to, null, false, children);
+        }
+
+        private void addPart(List<Node> children, int from, int to) {
+            Node part = parse(from, to);
+            if (part != null) {
+                children.add(part);
+            }
+        }
+
+        private Node binary(int minPrecedence) {
+            Node left = unary();
+            while (left != null && pos <= limit) {
+                Integer precedence = PRECEDENCE.get(tokens.text(pos));
+                if (precedence == null || precedence < minPrecedence) {
+                    break;
+                }
+                String operator = tokens.text(pos++);
+                Node right = binary(precedence + 1);
+                if (right == null) {
+                    return null;
+                }
+                left = operation(operator, left, right);
+            }
+            return left;
+        }
+
+        private Node operation(String operator, Node left, Node right) {
+            ConstantValue value = null;
+            if (operator.equals("&&") || operator.equals("||")) {
+                // The right operand is not evaluated once the left one decides
+                boolean decides = left.value != null && left.value.isTrue() == operator.equals("||");
+                if (decides || left.value != null && right.value != null) {
+                    value = ConstantValue.truth(decides ? operator.equals("||") : right.value.isTrue(), cpp);
+                }
+            } else if (left.value != null && right.value != null) {
+                value = left.value.binary(operator, right.value, cpp);
+            }
+            return new Node(left.from, right.to, value, true, List.of(left, right));
+        }
+
+        private Node unary() {
+            if (pos > limit) {
+                return null;
+            }
+            int from = pos;
+            String text = tokens.text(pos);
+            if (tokens.isAny(pos, "-", "+", "~", "!")) {
+                pos++;
+                Node operand = unary();
+                if (operand == null) {
+                    return null;
+                }
+                ConstantValue value = operand.value != null ? operand.value.unary(text, cpp) : null;
+                boolean computed = operand.computed || text.equals("~") || text.equals("!");
+                return new Node(from, operand.to, value, computed, List.of(operand));
+            }
+            if (tokens.isAny(pos, "*", "&")) {
+                pos++;
+                Node operand = unary();
+                // Nothing under an address-of is read
+                return operand == null ? null
+                        : new Node(from, operand.to, null, false, text.equals("*") ? List.of(operand) : List.of());
+            }
+            if (text.equals("sizeof")) {
+                pos++;
+                if (tokens.is(pos, "(")) {
+                    pos = tokens.match(pos) + 1;
+                } else if (unary() == null) {
+                    return null;
+                }
+                return new Node(from, pos - 1, null, false, List.of());
+            }
+            if (text.equals("(")) {
+                int close = tokens.match(pos);
+                if (close > limit || close < pos + 2 && !isCast(pos + 1, close - 1)) {
+                    return null;
+                }
+                if (isCast(pos + 1, close - 1)) {
+                    ConstantValue.Type type = ConstantValue.ofDeclared(
+                            ArithmeticTypes.canonical(Declarations.typeOf(tokens, pos + 1, close - 1)));
+                    pos = close + 1;
+                    Node operand = unary();
+                    if (operand == null) {
+                        return null;
+                    }
+                    ConstantValue value = type != null && operand.value != null ? operand.value.convertTo(type) : null;
+                    return new Node(from, operand.to, value, true, List.of(operand));
+                }
+                Node inner = parse(pos + 1, close - 1);
+                pos = close + 1;
+                return postfix(new Node(from, close, inner.value, inner.computed, List.of(inner)));
+            }
+            if (tokens.isType(pos, TokenType.NUMBER)) {
+                pos++;
+                return postfix(new Node(from, from, ConstantValue.ofLiteral(text), false, List.of()));
+            }
+            if (tokens.isType(pos, TokenType.CHARACTER)) {
+                pos++;
+                return postfix(new Node(from, from, ConstantValue.ofCharacter(text), false, List.of()));
+            }
+            if (tokens.isType(pos, TokenType.STRING)) {
+                pos++;
+                return postfix(new Node(from, from, null, false, List.of()));
+            }
+            if (tokens.isIdentifier(pos)) {
+                pos++;
+                if (tokens.is(pos, "::")) {
+                    while (tokens.is(pos, "::") && tokens.isIdentifier(pos + 1)) {
+                        pos += 2;
+                    }
+                    return postfix(new Node(from, pos - 1, null, false, List.of()));
+                }
+                if (tokens.is(pos, "(")) {
+                    return call();
+                }
+                if (cpp && tokens.isAny(from, "true", "false")) {
+                    return postfix(new Node(from, from, ConstantValue.truth(text.equals("true"), true), false, List.of()));
+                }
+                return postfix(variable(from));
+            }
+            return null;
+        }
+
+        private Node variable(int p) {
+            Declaration declaration = declarations.resolve(tokens.text(p), p);
+            ConstantValue value = null;
+            if (declaration != null && !isDeclaredAt(p) && !CountedLoop.isWritten(tokens, p)
+                    && !templateParameters.contains(tokens.text(p))) {
+                value = constants.get(declaration);
+                if (value != null && memberFunction && !declaration.isLocal()) {
+                    // A member of the class may hide it
+                    value = null;
+                } else if (value == null) {
+                    value = known.get(declaration);
+                }
+            }
+            Node node = new Node(p, p, value, true, List.of());
+            node.variable = value != null ? declaration : null;
+            return node;
+        }
+
+        // Arguments are folded, the call is not
+        private Node call() {
+            int open = pos;
+            int close = tokens.match(open);
+            if (close > limit || close < 0) {
+                return null;
+            }
+            List<Node> arguments = new ArrayList<>();
+            addPart(arguments, open + 1, close - 1);
+            pos = close + 1;
+            return postfix(new Node(open - 1, close, null, false, arguments));
+        }
+
+        private Node postfix(Node node) {
+            while (pos <= limit) {
+                if (tokens.isAny(pos, "[", "(")) {
+                    int close = tokens.match(pos);
+                    if (close > limit || close < 0) {
+                        return null;
+                    }
+                    List<Node> children = new ArrayList<>(List.of(node));
+                    addPart(children, pos + 1, close - 1);
+                    pos = close + 1;
+                    node = new Node(node.from, close, null, false, children);
+                } else if (tokens.isAny(pos, ".", "->") && tokens.isIdentifier(pos + 1)) {
+                    pos += 2;
+                    node = new Node(node.from, pos - 1, null, false, List.of(node));
+                } else if (tokens.isAny(pos, "++", "--")) {
+                    return null;
+                } else {
+                    break;
+                }
+            }
+            return node;
+        }
+
+        // (unsigned long) or (double *), as opposed to a parenthesized variable
+        private boolean isCast(int from, int to) {
+            if (from > to || !tokens.isIdentifier(from)) {
+                return false;
+            }
+            for (int q = from; q <= to; q++) {
+                if (!tokens.isIdentifier(q) && !tokens.isAny(q, "*", "&", "::")
+                        || tokens.isIdentifier(q) && declarations.resolve(tokens.text(q), q) != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String finish() {
+            for (Map.Entry<Declaration, Integer> use : uses.entrySet()) {
+                Declaration variable = use.getKey();
+                ConstantValue value = constants.containsKey(variable) ? constants.get(variable) : null;
+                note("Replaced " + use.getValue() + (use.getValue() == 1 ? " use" : " uses") + " of "
+                        + tokens.text(variable.getToken()) + (value != null ? " with " + value.render() : "")
+                        + " by the value known there.");
+            }
+            return editor.apply();
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A value of an arithmetic C type known at compile time, with the operators C defines on
+ * it. Integer types follow the LP64 data model of 64-bit Linux and macOS (32-bit
+ * {@code int}, 64-bit {@code long}); unsigned arithmetic wraps, and whatever C leaves
+ * undefined or implementation-defined is not evaluated at all: signed overflow, division
+ * by zero, shifts by negative or too wide counts, and shifts of negative numbers.
+ * Floating-point values are IEEE 754 singles and doubles and are only kept while finite.
+ * Operations that cannot be evaluated return null.
+ */
+final class ConstantValue {
+    enum Type {
+        BOOL(1, true, 0, ""), INT(32, false, 1, ""), UNSIGNED(32, true, 1, "u"), LONG(64, false, 2, "L"),
+        UNSIGNED_LONG(64, true, 2, "UL"), LONG_LONG(64, false, 3, "LL"), UNSIGNED_LONG_LONG(64, true, 3, "ULL"),
+        FLOAT(0, false, 0, "f"), DOUBLE(0, false, 0, "");
+
+        private final int bits;
+        private final boolean unsigned;
+        private final int rank;
+        private final String suffix;
+
+        Type(int bits, boolean unsigned, int rank, String suffix) {
+            this.bits = bits;
+            this.unsigned = unsigned;
+            this.rank = rank;
+            this.suffix = suffix;
+        }
+
+        boolean isFloating() {
+            return this == FLOAT || this == DOUBLE;
+        }
+
+        private BigInteger min() {
+            return unsigned ? BigInteger.ZERO : BigInteger.ONE.shiftLeft(bits - 1).negate();
+        }
+
+        private BigInteger max() {
+            return BigInteger.ONE.shiftLeft(unsigned ? bits : bits - 1).subtract(BigInteger.ONE);
+        }
+
+        private Type toUnsigned() {
+            return this == INT ? UNSIGNED : this == LONG ? UNSIGNED_LONG : this == LONG_LONG ? UNSIGNED_LONG_LONG : this;
+        }
+    }
+
+    // The types of ArithmeticTypes.canonical, with the fixed-width names as glibc defines them
+    private static final Map<String, Type> DECLARED = Map.ofEntries(
+            Map.entry("int", Type.INT), Map.entry("unsigned", Type.UNSIGNED), Map.entry("long", Type.LONG),
+            Map.entry("unsigned long", Type.UNSIGNED_LONG), Map.entry("long long", Type.LONG_LONG),
+            Map.entry("unsigned long long", Type.UNSIGNED_LONG_LONG), Map.entry("size_t", Type.UNSIGNED_LONG),
+            Map.entry("int32_t", Type.INT), Map.entry("int64_t", Type.LONG), Map.entry("uint32_t", Type.UNSIGNED),
+            Map.entry("uint64_t", Type.UNSIGNED_LONG), Map.entry("float", Type.FLOAT), Map.entry("double", Type.DOUBLE));
+    private static final Pattern INTEGER = Pattern.compile(
+            "(0[xX][0-9a-fA-F]+|0[bB][01]+|[0-9]+)([uU]?(?:ll|LL|l|L)?|(?:ll|LL|l|L)[uU])");
+    private static final Pattern FLOATING = Pattern.compile(
+            "((?:[0-9]*\\.[0-9]+|[0-9]+\\.)(?:[eE][-+]?[0-9]+)?|[0-9]+[eE][-+]?[0-9]+)([fF]?)");
+    private static final Map<Character, Integer> ESCAPES = Map.of(
+            'n', 10, 't', 9, 'r', 13, '0', 0, '\\', 92, '\'', 39, '"', 34);
+
+    private final Type type;
+    // The exact value of an integer type, or null for the floating types
+    private final BigInteger integer;
+    private final double real;
+
+    private ConstantValue(Type type, BigInteger integer, double real) {
+        this.type = type;
+        this.integer = integer;
+        this.real = real;
+    }
+
+    Type getType() { return type; }
+
+    /** The type a variable declared with a type of {@link ArithmeticTypes#canonical} holds, or null. */
+    static Type ofDeclared(String canonicalType) {
+        return canonicalType != null ? DECLARED.get(canonicalType) : null;
+    }
+
+    /** The value of a numeric literal, or null for long double, hexadecimal floating and malformed literals. */
+    static ConstantValue ofLiteral(String text) {
+        String digits = text.replace("'", "");
+        Matcher matcher = INTEGER.matcher(digits);
+        if (matcher.matches()) {
+            return ofIntegerLiteral(matcher.group(1), matcher.group(2).toLowerCase());
+        }
+        matcher = FLOATING.matcher(digits);
+        if (!matcher.matches()) {
+            return null;
+        }
+        if (matcher.group(2).isEmpty()) {
+            return real(Type.DOUBLE, Double.parseDouble(matcher.group(1)));
+        }
+        return real(Type.FLOAT, Float.parseFloat(matcher.group(1)));
+    }
+
+    // The first type of the literal's list in C11 6.4.4.1 that holds it
+    private static ConstantValue ofIntegerLiteral(String digits, String suffix) {
+        BigInteger value;
+        boolean decimal = false;
+        if (digits.startsWith("0x") || digits.startsWith("0X")) {
+            value = new BigInteger(digits.substring(2), 16);
+        } else if (digits.startsWith("0b") || digits.startsWith("0B")) {
+            value = new BigInteger(digits.substring(2), 2);
+        } else if (digits.length() > 1 && digits.startsWith("0")) {
+            if (!digits.matches("[0-7]+")) {
+                return null;
+            }
+            value = new BigInteger(digits, 8);
+        } else {
+            value = new BigInteger(digits);
+            decimal = true;
+        }
+        List<Type> candidates = switch (suffix) {
+            case "" -> decimal ? List.of(Type.INT, Type.LONG, Type.LONG_LONG)
+                    : List.of(Type.INT, Type.UNSIGNED, Type.LONG, Type.UNSIGNED_LONG);
+            case "u" -> List.of(Type.UNSIGNED, Type.UNSIGNED_LONG);
+            case "l" -> decimal ? List.of(Type.LONG) : List.of(Type.LONG, Type.UNSIGNED_LONG);
+            case "ul", "lu" -> List.of(Type.UNSIGNED_LONG);
+            case "ll" -> decimal ? List.of(Type.LONG_LONG) : List.of(Type.LONG_LONG, Type.UNSIGNED_LONG_LONG);
+            default -> List.of(Type.UNSIGNED_LONG_LONG);
+        };
+        for (Type candidate : candidates) {
+            if (value.compareTo(candidate.max()) <= 0) {
+                return new ConstantValue(candidate, value, 0);
+            }
+        }
+        return null;
+    }
+
+    /** The value of a character literal such as {@code 'a'} or {@code '\n'}, or null for other forms. */
+    static ConstantValue ofCharacter(String text) {
+        Integer code = null;
+        if (text.length() == 3 && text.charAt(0) == '\'' && text.charAt(1) != '\\' && text.charAt(1) < 128) {
+            code = (int) text.charAt(1);
+        } else if (text.length() == 4 && text.startsWith("'\\")) {
+            code = ESCAPES.get(text.charAt(2));
+        }
+        return code != null ? integer(Type.INT, BigInteger.valueOf(code)) : null;
+    }
+
+    /** The result of a comparison or logical operator: {@code int} in C, {@code bool} in C++. */
+    static ConstantValue truth(boolean value, boolean cpp) {
+        return integer(cpp ? Type.BOOL : Type.INT, value ? BigInteger.ONE : BigInteger.ZERO);
+    }
+
+    boolean isTrue() {
+        return integer != null ? integer.signum() != 0 : real != 0;
+    }
+
+    /** The value converted to {@code target} as by assignment, or null when C leaves the result undefined. */
+    ConstantValue convertTo(Type target) {
+        if (target == type) {
+            return this;
+        }
+        if (target == Type.BOOL) {
+            return integer(Type.BOOL, isTrue() ? BigInteger.ONE : BigInteger.ZERO);
+        }
+        if (target.isFloating()) {
+            double converted = integer != null
+                    ? target == Type.FLOAT ? integer.floatValue() : integer.doubleValue()
+                    : target == Type.FLOAT ? (float) real : real;
+            return real(target, converted);
+        }
+        BigInteger value = integer != null ? integer : new BigDecimal(real).toBigInteger();
+        if (target.unsigned && integer != null) {
+            return integer(target, value.mod(BigInteger.ONE.shiftLeft(target.bits)));
+        }
+        return integer(target, value);
+    }
+
+    /** Applies the unary operator {@code operator}, one of {@code + - ~ !}. */
+    ConstantValue unary(String operator, boolean cpp) {
+        if (operator.equals("!")) {
+            return truth(!isTrue(), cpp);
+        }
+        ConstantValue operand = promote();
+        switch (operator) {
+            case "+":
+                return operand;
+            case "-":
+                return operand.integer == null ? real(operand.type, -operand.real)
+                        : operand.wrap(operand.integer.negate());
+            case "~":
+                return operand.integer == null ? null : operand.wrap(operand.integer.not());
+            default:
+                return null;
+        }
+    }
+
+    /** Applies the binary operator {@code operator} other than {@code && ||} to this and {@code other}. */
+    ConstantValue binary(String operator, ConstantValue other, boolean cpp) {
+        if (operator.equals("<<") || operator.equals(">>")) {
+            return shift(operator, other);
+        }
+        Type common = common(type, other.type);
+        ConstantValue left = convertTo(common);
+        ConstantValue right = other.convertTo(common);
+        if (left == null || right == null) {
+            return null;
+        }
+        if (common.isFloating()) {
+            return left.floating(operator, right, cpp);
+        }
+        BigInteger a = left.integer;
+        BigInteger b = right.integer;
+        switch (operator) {
+            case "+": return left.wrap(a.add(b));
+            case "-": return left.wrap(a.subtract(b));
+            case "*": return left.wrap(a.multiply(b));
+            case "/": return b.signum() == 0 ? null : left.wrap(a.divide(b));
+            case "%": return b.signum() == 0 ? null : left.wrap(a.remainder(b));
+            case "&": return left.wrap(a.and(b));
+            case "|": return left.wrap(a.or(b));
+            case "^": return left.wrap(a.xor(b));
+            default: return compare(operator, a.compareTo(b), cpp);
+        }
+    }
+
+    private ConstantValue floating(String operator, ConstantValue right, boolean cpp) {
+        double a = real;
+        double b = right.real;
+        double result;
+        switch (operator) {
+            case "+": result = type == Type.FLOAT ? (float) a + (float) b : a + b; break;
+            case "-": result = type == Type.FLOAT ? (float) a - (float) b : a - b; break;
+            case "*": result = type == Type.FLOAT ? (float) a * (float) b : a * b; break;
+            case "/": result = type == Type.FLOAT ? (float) a / (float) b : a / b; break;
+            case "%": case "&": case "|": case "^": return null;
+            default: return compare(operator, Double.compare(a == 0 ? 0 : a, b == 0 ? 0 : b), cpp);
+        }
+        return real(type, result);
+    }
+
+    private static ConstantValue compare(String operator, int order, boolean cpp) {
+        switch (operator) {
+            case "<": return truth(order < 0, cpp);
+            case ">": return truth(order > 0, cpp);
+            case "<=": return truth(order <= 0, cpp);
+            case ">=": return truth(order >= 0, cpp);
+            case "==": return truth(order == 0, cpp);
+            case "!=": return truth(order != 0, cpp);
+            default: return null;
+        }
+    }
+
+    // The result has the promoted type of the left operand, whatever the count's type
+    private ConstantValue shift(String operator, ConstantValue count) {
+        ConstantValue left = promote();
+        if (left.integer == null || count.integer == null || count.integer.signum() < 0
+                || count.integer.compareTo(BigInteger.valueOf(left.type.bits)) >= 0
+                || !left.type.unsigned && left.integer.signum() < 0) {
+            return null;
+        }
+        int bits = count.integer.intValue();
+        if (operator.equals(">>")) {
+            return left.wrap(left.integer.shiftRight(bits));
+        }
+        // Shifting a one into or past the sign bit is undefined for signed types
+        return left.wrap(left.integer.shiftLeft(bits));
+    }
+
+    /** The literal that spells this value in its type, or null when no plain literal does. */
+    String render() {
+        if (type == Type.BOOL) {
+            return isTrue() ? "true" : "false";
+        }
+        if (type == Type.DOUBLE) {
+            return Double.toString(real);
+        }
+        if (type == Type.FLOAT) {
+            return Float.toString((float) real) + type.suffix;
+        }
+        // -2147483648 is the negation of a literal that does not fit an int
+        return integer.equals(type.min()) && integer.signum() < 0 ? null : integer + type.suffix;
+    }
+
+    private ConstantValue promote() {
+        return type == Type.BOOL ? convertTo(Type.INT) : this;
+    }
+
+    // The usual arithmetic conversions
+    private static Type common(Type a, Type b) {
+        if (a == Type.DOUBLE || b == Type.DOUBLE) {
+            return Type.DOUBLE;
+        }
+        if (a == Type.FLOAT || b == Type.FLOAT) {
+            return Type.FLOAT;
+        }
+        a = a == Type.BOOL ? Type.INT : a;
+        b = b == Type.BOOL ? Type.INT : b;
+        if (a == b || a.unsigned == b.unsigned) {
+            return a.rank >= b.rank ? a : b;
+        }
+        Type unsigned = a.unsigned ? a : b;
+        Type signed = a.unsigned ? b : a;
+        if (unsigned.rank >= signed.rank) {
+            return unsigned;
+        }
+        return signed.bits > unsigned.bits ? signed : signed.toUnsigned();
+    }
+
+    // An exact result in this value's type: wrapped when unsigned, null when a signed type overflows
+    private ConstantValue wrap(BigInteger value) {
+        return type.unsigned ? integer(type, value.mod(BigInteger.ONE.shiftLeft(type.bits))) : integer(type, value);
+    }
+
+    private static ConstantValue integer(Type type, BigInteger value) {
+        return value.compareTo(type.min()) >= 0 && value.compareTo(type.max()) <= 0
+                ? new ConstantValue(type, value, 0) : null;
+    }
+
+    private static ConstantValue real(Type type, double value) {
+        return Double.isFinite(value) ? new ConstantValue(type, null, value) : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ConstantValue)) {
+            return false;
+        }
+        ConstantValue other = (ConstantValue) o;
+        return type == other.type && (integer != null ? integer.equals(other.integer)
+                : Double.doubleToLongBits(real) == Double.doubleToLongBits(other.real));
+    }
+
+    @Override
+    public int hashCode() {
+        return type.hashCode() * 31 + (integer != null ? integer.hashCode() : Double.hashCode(real));
+    }
+}
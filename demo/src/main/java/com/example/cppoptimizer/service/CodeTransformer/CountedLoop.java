@@ -0,0 +1,247 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
+
+/**
+ * A counted loop {@code for (T v = init; v < bound; step) { body }} with a step of
+ * {@code v++}, {@code ++v} or {@code v += k} for a positive literal {@code k}, and
+ * {@code <=} accepted as well. Token ranges are inclusive and index the stream the
+ * loop was parsed from. The body lies between {@link #getOpen} and {@link #getClose}:
+ * its braces, or for a body of a single statement without braces, the {@code )} of
+ * the header and the statement's {@code ;}.
+ */
+final class CountedLoop {
+    private static final Set<String> INDEX_TYPES = Set.of(
+            "int", "long", "short", "unsigned", "signed", "size_t", "ptrdiff_t", "std", "::");
+    private static final Set<String> ASSIGNMENTS = Set.of(
+            "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=", "++", "--");
+    private static final Set<String> BOUND_OPERATORS = Set.of("+", "-", "*", "/", "%", "<<", ">>", "(", ")");
+    // Calls a bound may make when it is allowed to read memory
+    private static final Set<String> BOUND_CALLS = Set.of("strlen", "wcslen");
+
+    private boolean declared;
+    private boolean braced;
+    private int typeFrom;
+    private int typeTo;
+    private int varToken;
+    private String var;
+    private int initFrom;
+    private int initTo;
+    private boolean inclusive;
+    private int boundFrom;
+    private int boundTo;
+    private Set<String> boundNames;
+    private boolean boundReadsMemory;
+    private int stepFrom;
+    private int stepTo;
+    private int step;
+    private int open;
+    private int close;
+
+    private CountedLoop() {
+    }
+
+    /** The loop starting at the {@code for} token {@code forToken}, or null if it is not a counted loop. */
+    static CountedLoop parse(TokenStream tokens, int forToken) {
+        return parse(tokens, forToken, false, false);
+    }
+
+    /**
+     * Like {@link #parse(TokenStream, int)}, but with {@code memoryBounds} the bound may also
+     * read memory: members ({@code v->n}), elements ({@code len[k]}) and {@code strlen}. With
+     * {@code anyForm} the header may assign a counter declared before the loop,
+     * {@code for (v = init; ...)}, and the body may be a single statement without braces.
+     */
+    static CountedLoop parse(TokenStream tokens, int forToken, boolean memoryBounds, boolean anyForm) {
+        int paren = forToken + 1;
+        int closeParen = tokens.match(paren);
+        if (!tokens.is(forToken, "for") || !tokens.is(paren, "(") || closeParen < 0) {
+            return null;
+        }
+        CountedLoop loop = new CountedLoop();
+        loop.braced = tokens.is(closeParen + 1, "{");
+        if (!loop.braced && (!anyForm || tokens.isAny(closeParen + 1, ";", "if", "for", "while", "do", "switch",
+                "else", "try", "case", "default"))) {
+            return null;
+        }
+        loop.typeFrom = paren + 1;
+        int p = loop.typeFrom;
+        while (p < closeParen && INDEX_TYPES.contains(tokens.text(p))) {
+            p++;
+        }
+        loop.declared = p > loop.typeFrom;
+        if (!loop.declared && !anyForm || !tokens.isIdentifier(p) || !tokens.is(p + 1, "=")) {
+            return null;
+        }
+        loop.typeTo = p - 1;
+        loop.varToken = p;
+        loop.var = tokens.text(p);
+        loop.initFrom = p + 2;
+        int initEnd = tokens.statementEnd(loop.initFrom);
+        if (initEnd <= loop.initFrom || initEnd >= closeParen || tokens.indexOf(",", loop.initFrom, initEnd) >= 0) {
+            return null;
+        }
+        loop.initTo = initEnd - 1;
+
+        int cond = initEnd + 1;
+        if (!tokens.is(cond, loop.var) || !tokens.isAny(cond + 1, "<", "<=")) {
+            return null;
+        }
+        loop.inclusive = tokens.is(cond + 1, "<=");
+        loop.boundFrom = cond + 2;
+        int condEnd = tokens.statementEnd(loop.boundFrom);
+        if (condEnd <= loop.boundFrom || condEnd >= closeParen) {
+            return null;
+        }
+        loop.boundTo = condEnd - 1;
+
+        loop.stepFrom = condEnd + 1;
+        loop.stepTo = closeParen - 1;
+        int stepTokens = loop.stepTo - loop.stepFrom + 1;
+        if (stepTokens == 2 && (tokens.is(loop.stepFrom, loop.var) && tokens.is(loop.stepTo, "++")
+                || tokens.is(loop.stepFrom, "++") && tokens.is(loop.stepTo, loop.var))) {
+            loop.step = 1;
+        } else if (stepTokens == 3 && tokens.is(loop.stepFrom, loop.var) && tokens.is(loop.stepFrom + 1, "+=")
+                && tokens.isDecimalInteger(loop.stepTo) && tokens.length(loop.stepTo) <= 4) {
+            loop.step = Integer.parseInt(tokens.text(loop.stepTo));
+        }
+        if (loop.step <= 0) {
+            return null;
+        }
+        loop.open = loop.braced ? closeParen + 1 : closeParen;
+        loop.close = loop.braced ? tokens.match(loop.open) : tokens.statementEnd(closeParen + 1);
+        if (loop.close < 0) {
+            return null;
+        }
+        loop.boundNames = memoryBounds ? loop.memoryBoundNames(tokens) : expressionNames(tokens, loop.boundFrom, loop.boundTo);
+        return loop.boundNames != null ? loop : null;
+    }
+
+    // The variables the bound reads, member names aside, or null if it is neither arithmetic nor a read of memory
+    private Set<String> memoryBoundNames(TokenStream tokens) {
+        Set<String> names = new HashSet<>();
+        for (int p = boundFrom; p <= boundTo; p++) {
+            if (tokens.is(p, "sizeof") && tokens.is(p + 1, "(") && tokens.match(p + 1) > p + 1) {
+                p = tokens.match(p + 1);
+            } else if (tokens.isAny(p, "->", ".") && tokens.isIdentifier(p + 1)) {
+                boundReadsMemory = true;
+                p++;
+            } else if (tokens.isAny(p, "[", "]")) {
+                boundReadsMemory = true;
+            } else if (tokens.isIdentifier(p) && tokens.is(p + 1, "(")) {
+                if (!BOUND_CALLS.contains(tokens.text(p))) {
+                    return null;
+                }
+                boundReadsMemory = true;
+            } else if (tokens.isIdentifier(p)) {
+                names.add(tokens.text(p));
+            } else if (!tokens.isType(p, TokenType.NUMBER) && !BOUND_OPERATORS.contains(tokens.text(p))) {
+                return null;
+            }
+        }
+        return names;
+    }
+
+    /** Variables the expression {@code from..to} reads, or null if it is not plain arithmetic without calls. */
+    static Set<String> expressionNames(TokenStream tokens, int from, int to) {
+        Set<String> names = new HashSet<>();
+        for (int p = from; p <= to; p++) {
+            if (tokens.is(p, "sizeof") && tokens.is(p + 1, "(") && tokens.match(p + 1) > p + 1) {
+                p = tokens.match(p + 1);
+            } else if (tokens.isIdentifier(p) && !tokens.is(p + 1, "(")) {
+                names.add(tokens.text(p));
+            } else if (!tokens.isType(p, TokenType.NUMBER) && !BOUND_OPERATORS.contains(tokens.text(p))) {
+                return null;
+            }
+        }
+        return names;
+    }
+
+    /** Whether the body assigns, increments or takes the address of one of {@code names}. */
+    boolean bodyWrites(TokenStream tokens, Set<String> names) {
+        for (int p = open + 1; p < close; p++) {
+            CodeTransformer.checkpoint();
+            if (tokens.isIdentifier(p) && names.contains(tokens.text(p)) && !tokens.is(p - 1, ".")
+                    && !tokens.is(p - 1, "->") && isWritten(tokens, p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Whether the identifier at {@code p} is assigned, incremented or has its address taken there. */
+    static boolean isWritten(TokenStream tokens, int p) {
+        return ASSIGNMENTS.contains(tokens.text(p + 1))
+                || tokens.isAny(p - 1, "++", "--")
+                || (tokens.is(p - 1, "&") && !endsOperand(tokens, p - 2));
+    }
+
+    // Whether the token before a '&' ends an operand, making the '&' a bitwise and
+    static boolean endsOperand(TokenStream tokens, int p) {
+        return tokens.isIdentifier(p) || tokens.isType(p, TokenType.NUMBER) || tokens.isAny(p, ")", "]");
+    }
+
+    /**
+     * Tokens {@code from..to} of the body as they read {@code offset} iterations later, with
+     * the identifiers of {@code renames} replaced. The induction variable becomes
+     * {@code var + offset}, parenthesized unless it stands alone, e.g. as an index.
+     */
+    String render(TokenStream tokens, int from, int to, long offset, Map<String, String> renames) {
+        if (offset == 0 && renames.isEmpty()) {
+            return tokens.text(from, to);
+        }
+        String source = tokens.getSource();
+        StringBuilder sb = new StringBuilder();
+        int cursor = tokens.start(from);
+        for (int p = from; p <= to; p++) {
+            if (!tokens.isIdentifier(p) || tokens.is(p - 1, ".") || tokens.is(p - 1, "->")) {
+                continue;
+            }
+            String replacement = renames.get(tokens.text(p));
+            if (offset != 0 && tokens.is(p, var)) {
+                boolean alone = tokens.isAny(p - 1, "[", "(", ",", "=") && tokens.isAny(p + 1, "]", ")", ",", ";");
+                String shifted = var + " + " + offset;
+                replacement = alone ? shifted : "(" + shifted + ")";
+            }
+            if (replacement != null) {
+                sb.append(source, cursor, tokens.start(p)).append(replacement);
+                cursor = tokens.end(p);
+            }
+        }
+        sb.append(source, cursor, tokens.end(to));
+        return sb.toString();
+    }
+
+    /** The literal initial value, or -1 if the initializer is not a small decimal literal. */
+    long literalInit(TokenStream tokens) {
+        return initFrom == initTo && tokens.isDecimalInteger(initFrom) && tokens.length(initFrom) <= 9
+                ? Long.parseLong(tokens.text(initFrom)) : -1;
+    }
+
+    /** Whether the header declares the counter rather than assigning one declared before the loop. */
+    boolean declaresCounter() { return declared; }
+    /** Whether the body is a block rather than a single statement. */
+    boolean isBraced() { return braced; }
+    int getTypeFrom() { return typeFrom; }
+    int getTypeTo() { return typeTo; }
+    int getVarToken() { return varToken; }
+    String getVar() { return var; }
+    int getInitFrom() { return initFrom; }
+    int getInitTo() { return initTo; }
+    boolean isInclusive() { return inclusive; }
+    int getBoundFrom() { return boundFrom; }
+    int getBoundTo() { return boundTo; }
+    Set<String> getBoundNames() { return boundNames; }
+    /** Whether the bound reads memory rather than only variables, so stores in the body might change it. */
+    boolean boundReadsMemory() { return boundReadsMemory; }
+    int getStepFrom() { return stepFrom; }
+    int getStepTo() { return stepTo; }
+    int getStep() { return step; }
+    int getOpen() { return open; }
+    int getClose() { return close; }
+}
@@ -1,60 +1,710 @@
 package com.example.cppoptimizer.service.CodeTransformer;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.CodeTransformer.Declarations.Declaration;
+import com.example.cppoptimizer.service.Lexer.SourceRewriter;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
 
+/**
+ * Removes code whose work is never seen. In each function body that is statements after a
+ * {@code return}, {@code break}, {@code continue} or {@code throw} up to the next label,
+ * {@code if} and {@code while} statements with a literal condition that rules them out,
+ * and stores to local variables that no read can observe. Across the file, static
+ * functions nothing refers to are removed as well.
+ *
+ * <p>A store is dead when the variable is not read before the end of its scope, or before
+ * a later assignment of the same block that every path from the store runs into; a loop
+ * around the store counts its whole body as after it. Reads are found by position rather
+ * than by walking paths, which keeps the pass linear. Only local arithmetic variables
+ * nothing but their name can reach are followed (see {@link Declarations#isAliased}),
+ * and only stores whose value is computed without side effects are removed. Declarations
+ * are kept when their initializer does more than compute a value.
+ */
 public class DeadCodeEliminator extends CodeTransformer {
-    @Override
-    public String transform(String code, CodeOptimizerService.Language lang) {
-        String[] lines = code.split("\n");
-        List<String> newLines = new ArrayList<>();
-        Map<String, Integer> variableUsageCount = new HashMap<>();
+    private static final Set<String> ASSIGNMENTS = Set.of(
+            "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=");
+    // Statements the rest of their block is not reached from
+    private static final Set<String> JUMPS = Set.of("return", "break", "continue", "throw", "co_return");
+    // Jumps the block structure does not show
+    private static final Set<String> UNSUPPORTED = Set.of("goto", "setjmp", "longjmp", "asm", "__asm__");
+    // Words of the types whose stores are followed
+    private static final Set<String> SCALAR_WORDS = Set.of(
+            "bool", "_Bool", "char", "short", "int", "long", "signed", "unsigned", "float", "double", "size_t",
+            "int8_t", "int16_t", "int32_t", "int64_t", "uint8_t", "uint16_t", "uint32_t", "uint64_t");
+    // Words in an expression that do more than compute a value
+    private static final Set<String> EFFECTS = Set.of(
+            "new", "delete", "throw", "operator", "co_await", "co_yield", "cin", "cout", "cerr", "clog");
+    private static final Pattern WORD = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    // #define NAME(parameters) body
+    private static final Pattern DEFINE = Pattern.compile(
+            "#\\s*define\\s+[A-Za-z_][A-Za-z0-9_]*(?:\\(([^)]*)\\))?([\\s\\S]*)");
+    // #define NAME body, where the body calls or assigns something
+    private static final Pattern EFFECT_MACRO = Pattern.compile(
+            "#\\s*define\\s+([A-Za-z_][A-Za-z0-9_]*)(?![A-Za-z0-9_(])[\\s\\S]*?"
+                    + "([A-Za-z_][A-Za-z0-9_]*\\s*\\(|\\+\\+|--|[^=!<>]=[^=])[\\s\\S]*");
+    private static final Pattern CONDITIONAL = Pattern.compile("#\\s*(if|ifdef|ifndef|elif|else|endif)\\b[\\s\\S]*");
 
-        // Step 1: Count occurrences of each variable
-        Pattern varPattern = Pattern.compile("(int|float|double|char)\\s+(\\w+)\\s*(=\\s*[^;]+)?\\s*;");
-        for (String line : lines) {
-            Matcher matcher = varPattern.matcher(line.trim());
-            if (matcher.find()) {
-                String varName = matcher.group(2);
-                variableUsageCount.put(varName, variableUsageCount.getOrDefault(varName, 0) + 1);
-            }
-            // Count usages outside declarations
-            for (String word : line.split("\\W+")) {
-                if (variableUsageCount.containsKey(word) && !line.matches(".*(int|float|double|char)\\s+" + word + "\\s*(=\\s*[^;]+)?\\s*;.*")) {
-                    variableUsageCount.put(word, variableUsageCount.get(word) + 1);
+    @Override
+    public String transform(TokenStream tokens, CodeOptimizerService.Language lang) {
+        Elimination elimination = new Elimination(tokens);
+        // Whether each enclosing brace outside functions opens a namespace rather than a class
+        Deque<Boolean> scopes = new ArrayDeque<>();
+        List<int[]> functions = new ArrayList<>();
+        int piece = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            checkpoint();
+            if (tokens.isType(i, TokenType.PREPROCESSOR) || tokens.isAny(i, ";", "}")) {
+                if (tokens.is(i, ";") && !scopes.contains(false)) {
+                    elimination.prototype(piece, i);
+                }
+                piece = i + 1;
+                if (tokens.is(i, "}") && !scopes.isEmpty()) {
+                    scopes.pop();
+                }
+            } else if (tokens.is(i, "{")) {
+                int open = StatementEditor.functionParameters(tokens, i);
+                if (open >= 0 && tokens.match(i) > i) {
+                    functions.add(new int[] {piece, open, i, tokens.match(i)});
+                    if (!scopes.contains(false)) {
+                        elimination.definition(piece, open, tokens.match(i));
+                    }
+                    i = tokens.match(i);
+                } else {
+                    scopes.push(tokens.is(i - 1, "namespace") || tokens.is(i - 2, "namespace")
+                            || tokens.isType(i - 1, TokenType.STRING) && tokens.is(i - 2, "extern"));
                 }
+                piece = i + 1;
             }
         }
-
-        // Step 2: Keep only lines with variables used more than once or non-declaration lines
-        for (String line : lines) {
-            Matcher matcher = varPattern.matcher(line.trim());
-            if (matcher.find()) {
-                String varName = matcher.group(2);
-                if (variableUsageCount.get(varName) > 1) { // Used more than once (declaration + at least one use)
-                    newLines.add(line);
-                }
-            } else {
-                newLines.add(line); // Keep non-declaration lines
+        Set<Integer> removed = elimination.unusedStatics();
+        for (int[] function : functions) {
+            if (!removed.contains(function[0])) {
+                elimination.function(function[1], function[2], function[3]);
             }
         }
+        return elimination.finish();
+    }
 
-        return String.join("\n", newLines);
+    // Whether a static function is used can only be told from the whole file
+    @Override
+    public boolean requiresWholeFile() {
+        return true;
+    }
+
+    // Removing code can leave the variables and functions it used unused in turn
+    @Override
+    public Set<String> enables() {
+        return Set.of("eliminateDeadCode");
     }
 
     @Override
     public String getInsight() {
-        return "Eliminated variables declared but not used elsewhere (dead code).";
+        return "Eliminated unreachable code, stores whose values are never read and unused static functions (dead code).";
     }
 
     @Override
     public String getName() {
         return "eliminateDeadCode";
     }
-}
\ No newline at end of file
+
+    private enum Kind {
+        // v = E;  T v = E;  v op= E; or v++;  which reads v as well
+        ASSIGN, DECLARE, UPDATE
+    }
+
+    // A loop around a store; back edges reach all of it
+    private static final class Loop {
+        private final int start;
+        private final int end;
+        private final Loop outer;
+
+        private Loop(int start, int end, Loop outer) {
+            this.start = start;
+            this.end = end;
+            this.outer = outer;
+        }
+    }
+
+    // A statement that does nothing but store into a variable
+    private static final class Store {
+        private final Declaration variable;
+        private final Kind kind;
+        private final int from;
+        private final int end;
+        private final int target;
+        private final boolean removable;
+        // The block the statement is directly in, or -1 when it is only run under a condition
+        private final int block;
+        private final Loop loop;
+
+        private Store(Declaration variable, Kind kind, int from, int end, int target, boolean removable, int block,
+                Loop loop) {
+            this.variable = variable;
+            this.kind = kind;
+            this.from = from;
+            this.end = end;
+            this.target = target;
+            this.removable = removable;
+            this.block = block;
+            this.loop = loop;
+        }
+
+        // The outermost loop around the store that starts after bound
+        private Loop loopAfter(int bound) {
+            Loop outermost = null;
+            for (Loop l = loop; l != null && l.start > bound; l = l.outer) {
+                outermost = l;
+            }
+            return outermost;
+        }
+    }
+
+    private static final class Elimination {
+        private final TokenStream tokens;
+        private final Declarations declarations;
+        private final StatementEditor editor;
+        private final SourceRewriter rewriter;
+        // Names directives mention, macros with side effects, and names declared volatile
+        private final Set<String> macroWords = new HashSet<>();
+        private final Set<String> effectMacros = new HashSet<>();
+        private final Set<String> volatileNames = new HashSet<>();
+        private final Map<String, Integer> mentions = new HashMap<>();
+        // Definitions and prototypes of static functions: their first and last tokens, and
+        // whether they are a definition
+        private final Map<String, List<int[]>> statics = new LinkedHashMap<>();
+        private final Set<String> opaque = new HashSet<>();
+        private final List<Store> stores = new ArrayList<>();
+        private int[] jumps = new int[0];
+        private Loop loop;
+        private int tries;
+        private boolean tracking;
+        private int parameters;
+        private int body;
+
+        private Elimination(TokenStream tokens) {
+            this.tokens = tokens;
+            this.declarations = Declarations.scan(tokens);
+            this.editor = new StatementEditor(tokens, declarations);
+            this.rewriter = editor.getRewriter();
+            for (int p = 0; p < tokens.size(); p++) {
+                checkpoint();
+                if (tokens.isType(p, TokenType.PREPROCESSOR)) {
+                    // The parameters of a macro are not the variables of the same name
+                    Matcher define = DEFINE.matcher(tokens.text(p));
+                    Set<String> parameters = new HashSet<>();
+                    if (define.matches() && define.group(1) != null) {
+                        Matcher words = WORD.matcher(define.group(1));
+                        while (words.find()) {
+                            parameters.add(words.group());
+                        }
+                    }
+                    Matcher words = WORD.matcher(tokens.text(p));
+                    while (words.find()) {
+                        if (!parameters.contains(words.group())) {
+                            macroWords.add(words.group());
+                        }
+                    }
+                    Matcher macro = EFFECT_MACRO.matcher(tokens.text(p));
+                    if (macro.matches()) {
+                        effectMacros.add(macro.group(1));
+                    }
+                } else if (tokens.isIdentifier(p) && !tokens.isAny(p - 1, ".", "->")) {
+                    mentions.merge(tokens.text(p), 1, Integer::sum);
+                    if (tokens.is(p, "volatile")) {
+                        for (int q = p + 1; q < tokens.size() && !tokens.isAny(q, ";", ")", "{"); q++) {
+                            if (tokens.isIdentifier(q)) {
+                                volatileNames.add(tokens.text(q));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // static T f(...);  at namespace scope, from..end
+        private void prototype(int from, int end) {
+            int open = tokens.indexOf("(", from, end);
+            if (open > from && tokens.match(open) == end - 1 && tokens.isIdentifier(open - 1)
+                    && (tokens.isIdentifier(open - 2) || tokens.isAny(open - 2, "*", "&"))
+                    && tokens.indexOf("=", from, open) < 0 && tokens.indexOf("static", from, open) >= 0) {
+                statics.computeIfAbsent(tokens.text(open - 1), k -> new ArrayList<>()).add(new int[] {from, end, 0});
+            }
+        }
+
+        // static T f(...) { ... }  at namespace scope
+        private void definition(int from, int open, int close) {
+            if (tokens.indexOf("static", from, open) >= 0 && !tokens.is(open - 2, "::")) {
+                statics.computeIfAbsent(tokens.text(open - 1), k -> new ArrayList<>()).add(new int[] {from, close, 1});
+            }
+        }
+
+        // Removes static functions mentioned only by their own definitions and prototypes,
+        // returning where the removed definitions start
+        private Set<Integer> unusedStatics() {
+            Set<Integer> removed = new HashSet<>();
+            for (Map.Entry<String, List<int[]>> function : statics.entrySet()) {
+                String name = function.getKey();
+                List<int[]> parts = function.getValue();
+                if (name.equals("main") || macroWords.contains(name) || parts.stream().noneMatch(part -> part[2] == 1)) {
+                    continue;
+                }
+                int own = 0;
+                for (int[] part : parts) {
+                    for (int q = part[0]; q <= part[1]; q++) {
+                        checkpoint();
+                        if (tokens.is(q, name) && !tokens.isAny(q - 1, ".", "->")) {
+                            own++;
+                        }
+                    }
+                }
+                if (own < mentions.getOrDefault(name, 0)) {
+                    continue;
+                }
+                for (int[] part : parts) {
+                    rewriter.deleteLines(part[0], part[1]);
+                    removed.add(part[0]);
+                }
+                note("Removed the static function " + name + ", which nothing calls.");
+            }
+            return removed;
+        }
+
+        private void function(int open, int brace, int close) {
+            if (!StatementEditor.isBalanced(tokens, brace, close)) {
+                return;
+            }
+            parameters = open;
+            body = close;
+            stores.clear();
+            opaque.clear();
+            loop = null;
+            tries = 0;
+            tracking = true;
+            int[] found = new int[8];
+            int count = 0;
+            for (int p = brace; p <= close; p++) {
+                if (tokens.isIdentifier(p) && UNSUPPORTED.contains(tokens.text(p))
+                        || tokens.isType(p, TokenType.PREPROCESSOR) && CONDITIONAL.matcher(tokens.text(p)).matches()) {
+                    tracking = false;
+                } else if (tokens.isAny(p, "break", "continue", "throw")) {
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = p;
+                }
+                if (Declarations.isOpaqueDeclarator(tokens, p)) {
+                    opaque.add(tokens.text(p));
+                }
+            }
+            jumps = Arrays.copyOf(found, count);
+            statements(brace + 1, close - 1, brace);
+            if (tracking) {
+                eliminateStores();
+            }
+        }
+
+        // The statements of the block opened at block
+        private void statements(int from, int to, int block) {
+            for (int p = from; p <= to; p++) {
+                checkpoint();
+                int end = statement(p, to, block, true);
+                if (JUMPS.contains(tokens.text(p))) {
+                    end = unreachable(p, end, to);
+                }
+                p = end;
+            }
+        }
+
+        // Removes the statements after the jump p..end that nothing can reach, up to the next
+        // label, and returns the last of them
+        private int unreachable(int p, int end, int to) {
+            int last = end;
+            for (int q = end + 1; q <= to; q++) {
+                if (tokens.isAny(q, "case", "default") || tokens.isType(q, TokenType.PREPROCESSOR)
+                        || tokens.isIdentifier(q) && tokens.is(q + 1, ":")) {
+                    break;
+                }
+                int next = StatementEditor.extent(tokens, q, to);
+                if (!editor.isRemovable(q, next) || declaresBeyond(q, next)) {
+                    break;
+                }
+                last = next;
+                q = next;
+            }
+            if (last > end) {
+                rewriter.deleteLines(end + 1, last);
+                note("Removed the statements after the " + tokens.text(p) + " at line " + tokens.lineOf(p)
+                        + ", which are never reached.");
+            }
+            return last;
+        }
+
+        // Whether the statement from..to declares a name still visible after it
+        private boolean declaresBeyond(int from, int to) {
+            for (int q = from; q <= to; q++) {
+                if (Declarations.isOpaqueDeclarator(tokens, q) || tokens.isAny(q, "struct", "class", "union", "enum",
+                        "typedef", "using")) {
+                    return true;
+                }
+                Declaration declaration = tokens.isIdentifier(q) ? declarations.resolve(tokens.text(q), q + 1) : null;
+                if (declaration != null && declaration.getToken() == q && declaration.getScopeEnd() > to) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Walks the statement at p and returns its last token; direct when it runs whenever
+        // its block does
+        private int statement(int p, int limit, int block, boolean direct) {
+            if (tokens.is(p, ";") || tokens.isType(p, TokenType.PREPROCESSOR)) {
+                return p;
+            }
+            boolean header = tokens.is(p + 1, "(") && tokens.match(p + 1) < limit;
+            int close = header ? tokens.match(p + 1) : -1;
+            switch (tokens.text(p)) {
+                case "{": {
+                    statements(p + 1, tokens.match(p) - 1, p);
+                    return tokens.match(p);
+                }
+                case "if": {
+                    if (!header || tokens.is(p + 1, "constexpr")) {
+                        break;
+                    }
+                    return ifStatement(p, close, limit, block);
+                }
+                case "while": {
+                    if (!header) {
+                        break;
+                    }
+                    int end = StatementEditor.extent(tokens, close + 1, limit);
+                    if (Boolean.FALSE.equals(literal(p + 2, close - 1)) && editor.isRemovable(p, end)) {
+                        editor.remove(p, end, -1, -1);
+                        note("Removed the while (" + tokens.text(p + 2) + ") loop at line " + tokens.lineOf(p)
+                                + ", which never runs.");
+                        return end;
+                    }
+                    loop(p, end, close + 1, limit, block);
+                    return end;
+                }
+                case "do": {
+                    int bodyEnd = StatementEditor.extent(tokens, p + 1, limit);
+                    if (!tokens.is(bodyEnd + 1, "while") || !tokens.is(bodyEnd + 2, "(")) {
+                        break;
+                    }
+                    int end = tokens.match(bodyEnd + 2) + 1;
+                    loop(p, end, p + 1, limit, block);
+                    return end;
+                }
+                case "for": {
+                    if (!header) {
+                        break;
+                    }
+                    int end = StatementEditor.extent(tokens, close + 1, limit);
+                    loop(p, end, close + 1, limit, block);
+                    return end;
+                }
+                case "switch": {
+                    if (!header) {
+                        break;
+                    }
+                    statement(close + 1, limit, block, false);
+                    return StatementEditor.extent(tokens, p, limit);
+                }
+                case "case":
+                case "default": {
+                    int colon = tokens.indexOf(":", p, limit + 1);
+                    if (colon < 0) {
+                        break;
+                    }
+                    return colon;
+                }
+                case "try": {
+                    int end = StatementEditor.extent(tokens, p, limit);
+                    // Anything in the try block may throw to a handler that reads what it stored
+                    tries++;
+                    int handler = statement(p + 1, limit, block, false);
+                    tries--;
+                    while (tokens.is(handler + 1, "catch") && tokens.is(handler + 2, "(")) {
+                        handler = statement(tokens.match(handler + 2) + 1, limit, block, false);
+                    }
+                    return end;
+                }
+                default:
+                    if (tokens.isIdentifier(p) && tokens.is(p + 1, ":")) {
+                        return p + 1;
+                    }
+            }
+            int end = StatementEditor.end(tokens, p, limit);
+            store(p, end, direct && tries == 0 ? block : -1);
+            return end;
+        }
+
+        private int ifStatement(int p, int close, int limit, int block) {
+            int thenEnd = StatementEditor.extent(tokens, close + 1, limit);
+            boolean hasElse = tokens.is(thenEnd + 1, "else");
+            int end = hasElse ? StatementEditor.extent(tokens, thenEnd + 2, limit) : thenEnd;
+            Boolean taken = literal(p + 2, close - 1);
+            if (taken != null && editor.isRemovable(p, end)) {
+                int keptFrom = taken ? close + 1 : hasElse ? thenEnd + 2 : -1;
+                int keptTo = taken ? thenEnd : hasElse ? end : -1;
+                editor.remove(p, end, keptFrom, keptTo);
+                note((taken ? "Kept only the taken branch of the if (" : "Removed the never taken branch of the if (")
+                        + tokens.text(p + 2) + ") at line " + tokens.lineOf(p) + ".");
+                if (keptFrom >= 0) {
+                    statement(keptFrom, limit, block, false);
+                }
+                return end;
+            }
+            statement(close + 1, limit, block, false);
+            if (hasElse) {
+                statement(thenEnd + 2, limit, block, false);
+            }
+            return end;
+        }
+
+        private void loop(int p, int end, int bodyStart, int limit, int block) {
+            loop = new Loop(p, end, loop);
+            statement(bodyStart, limit, block, false);
+            loop = loop.outer;
+        }
+
+        // TRUE or FALSE for a condition that is the literal 1, true, 0 or false, otherwise null
+        private Boolean literal(int from, int to) {
+            if (from != to) {
+                return null;
+            }
+            if (tokens.isAny(from, "1", "true")) {
+                return Boolean.TRUE;
+            }
+            return tokens.isAny(from, "0", "false") ? Boolean.FALSE : null;
+        }
+
+        // v = E;  v op= E;  v++;  ++v;  T v = E;  T v;
+        private void store(int p, int end, int block) {
+            if (!tracking || !tokens.is(end, ";")) {
+                return;
+            }
+            Kind kind;
+            int target;
+            int value = end;
+            if (tokens.isIdentifier(p) && ASSIGNMENTS.contains(tokens.text(p + 1))) {
+                kind = tokens.is(p + 1, "=") ? Kind.ASSIGN : Kind.UPDATE;
+                target = p;
+                value = p + 2;
+            } else if (tokens.isIdentifier(p) && tokens.isAny(p + 1, "++", "--") && p + 2 == end) {
+                kind = Kind.UPDATE;
+                target = p;
+            } else if (tokens.isAny(p, "++", "--") && tokens.isIdentifier(p + 1) && p + 2 == end) {
+                kind = Kind.UPDATE;
+                target = p + 1;
+            } else {
+                kind = Kind.DECLARE;
+                target = declarator(p, end);
+                if (target < 0) {
+                    return;
+                }
+                value = tokens.is(target + 1, "=") ? target + 2 : end;
+            }
+            Declaration variable = declarations.resolve(tokens.text(target), kind == Kind.DECLARE ? target + 1 : target);
+            if (!isFollowed(variable)) {
+                return;
+            }
+            boolean removable = isPure(value, end - 1) && tokens.isStatementStart(p)
+                    && !tokens.isType(p - 1, TokenType.PREPROCESSOR);
+            stores.add(new Store(variable, kind, p, end, target, removable, block, loop));
+        }
+
+        // The one name the declaration p..end declares, as in T v = E; or -1
+        private int declarator(int p, int end) {
+            int target = -1;
+            for (int q = p; q < end; q++) {
+                if (tokens.isAny(q, "(", "[", "{")) {
+                    q = tokens.match(q);
+                } else if (tokens.is(q, ",")) {
+                    return -1;
+                } else if (target < 0 && tokens.isIdentifier(q) && tokens.isAny(q + 1, "=", ";")) {
+                    Declaration declaration = declarations.resolve(tokens.text(q), q + 1);
+                    target = declaration != null && declaration.getToken() == q ? q : -2;
+                }
+            }
+            return target;
+        }
+
+        private boolean isFollowed(Declaration variable) {
+            if (variable == null || !variable.isLocal() || variable.getToken() < parameters
+                    || variable.getToken() > body || variable.getType().isEmpty()) {
+                return false;
+            }
+            for (String word : variable.getType().split(" ")) {
+                if (!SCALAR_WORDS.contains(word)) {
+                    return false;
+                }
+            }
+            String name = tokens.text(variable.getToken());
+            return !macroWords.contains(name) && !opaque.contains(name) && !volatileNames.contains(name)
+                    && !declarations.isAliased(variable);
+        }
+
+        // Whether computing from..to has no effect but its value
+        private boolean isPure(int from, int to) {
+            for (int q = from; q <= to; q++) {
+                String text = tokens.text(q);
+                if (ASSIGNMENTS.contains(text) || tokens.isAny(q, "++", "--") || EFFECTS.contains(text)
+                        || effectMacros.contains(text) || volatileNames.contains(text)) {
+                    return false;
+                }
+                // Calls, other than to the math functions
+                if (tokens.is(q, "(") && q > from && (tokens.isAny(q - 1, ")", "]", "}", ">")
+                        || tokens.isIdentifier(q - 1) && !tokens.is(q - 1, "sizeof")
+                        && ArithmeticTypes.returnType(tokens.text(q - 1)) == null)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void eliminateStores() {
+            Map<Declaration, List<Store>> byVariable = new LinkedHashMap<>();
+            for (Store store : stores) {
+                byVariable.computeIfAbsent(store.variable, k -> new ArrayList<>()).add(store);
+            }
+            for (Map.Entry<Declaration, List<Store>> entry : byVariable.entrySet()) {
+                checkpoint();
+                Declaration variable = entry.getKey();
+                List<Store> writes = entry.getValue();
+                int[] reads = reads(variable, writes);
+                String name = tokens.text(variable.getToken());
+                if (isOnlyWritten(reads, writes)) {
+                    boolean all = writes.stream().allMatch(store -> store.removable);
+                    int removed = 0;
+                    for (Store store : writes) {
+                        if (store.removable && (all || store.kind != Kind.DECLARE)) {
+                            rewriter.deleteLines(store.from, store.end);
+                            removed++;
+                        }
+                    }
+                    if (all && writes.get(0).kind == Kind.DECLARE) {
+                        note("Removed " + name + ", which is written but never read.");
+                    } else if (removed > 0) {
+                        note(storesNote(removed, name));
+                    }
+                    continue;
+                }
+                int removed = 0;
+                for (int i = 0; i < writes.size(); i++) {
+                    Store store = writes.get(i);
+                    if (!store.removable || store.kind == Kind.DECLARE && store.target + 1 == store.end
+                            || !isKilled(store, writes, i, reads) && !isUnread(store, reads)) {
+                        continue;
+                    }
+                    if (store.kind == Kind.DECLARE) {
+                        // T v = E;  becomes  T v;
+                        rewriter.replaceRange(tokens.end(store.target), tokens.start(store.end), "");
+                    } else {
+                        rewriter.deleteLines(store.from, store.end);
+                    }
+                    removed++;
+                }
+                if (removed > 0) {
+                    note(storesNote(removed, name));
+                }
+            }
+        }
+
+        private static String storesNote(int removed, String name) {
+            return "Removed " + (removed == 1 ? "a store" : removed + " stores") + " to " + name
+                    + (removed == 1 ? " whose value is" : " whose values are") + " never read.";
+        }
+
+        // The uses of the variable other than the names the writes assign
+        private int[] reads(Declaration variable, List<Store> writes) {
+            int[] uses = declarations.uses(variable);
+            Set<Integer> assigned = new HashSet<>();
+            for (Store store : writes) {
+                if (store.kind != Kind.UPDATE) {
+                    assigned.add(store.target);
+                }
+            }
+            int count = 0;
+            for (int use : uses) {
+                if (!assigned.contains(use)) {
+                    uses[count++] = use;
+                }
+            }
+            return Arrays.copyOf(uses, count);
+        }
+
+        // Whether every read is one of the variable's own removable stores computing its next value
+        private boolean isOnlyWritten(int[] reads, List<Store> writes) {
+            int w = 0;
+            for (int read : reads) {
+                while (w < writes.size() && writes.get(w).end < read) {
+                    w++;
+                }
+                if (w == writes.size() || writes.get(w).from > read || !writes.get(w).removable) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Not read again before the end of the variable's scope, nor in a loop around the store
+        private boolean isUnread(Store store, int[] reads) {
+            Loop around = store.loopAfter(store.variable.getToken());
+            return !hasAny(reads, store.end + 1, store.variable.getScopeEnd())
+                    && (around == null || !hasAny(reads, around.start, around.end));
+        }
+
+        // Overwritten, before any read, by a later assignment every path from the store runs into
+        private boolean isKilled(Store store, List<Store> writes, int index, int[] reads) {
+            for (int i = index + 1; i < writes.size(); i++) {
+                Store next = writes.get(i);
+                if (next.from <= store.end) {
+                    continue;
+                }
+                if (hasAny(reads, store.end + 1, next.from - 1)) {
+                    return false;
+                }
+                if (next.kind != Kind.ASSIGN || next.block < 0 || next.block > store.from
+                        || hasJump(store.end + 1, next.from - 1)) {
+                    continue;
+                }
+                Loop around = store.loopAfter(next.block);
+                if (!hasAny(reads, next.from, next.end) && (around == null || !hasAny(reads, around.start, around.end))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Whether any of the ascending positions lies within from..to
+        private static boolean hasAny(int[] positions, int from, int to) {
+            int index = Arrays.binarySearch(positions, from);
+            index = index >= 0 ? index : -index - 1;
+            return index < positions.length && positions[index] <= to;
+        }
+
+        private boolean hasJump(int from, int to) {
+            return hasAny(jumps, from, to);
+        }
+
+        private String finish() {
+            return editor.apply();
+        }
+    }
+}
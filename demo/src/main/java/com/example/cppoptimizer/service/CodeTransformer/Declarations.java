@@ -0,0 +1,435 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
+
+/**
+ * The variable declarations of a token stream with the range of tokens each one is
+ * visible in, so that a use can be resolved to the declaration it refers to. Names
+ * declared as pointers, references, arrays or with anything unrecognized get an empty
+ * type: they shadow outer declarations without telling a pass anything about the value.
+ */
+final class Declarations {
+    private static final Set<String> UNSIGNED_TYPES = Set.of(
+            "unsigned", "size_t", "uint8_t", "uint16_t", "uint32_t", "uint64_t", "uintptr_t", "uintmax_t");
+    // Declaration words that do not change how the variable computes
+    private static final Set<String> QUALIFIERS = Set.of(
+            "const", "constexpr", "static", "register", "extern", "std", "::", "restrict", "__restrict", "__restrict__");
+    // Words an identifier can follow without being declared by them
+    private static final Set<String> NOT_TYPES = Set.of(
+            "return", "case", "goto", "throw", "delete", "else", "do", "new", "sizeof", "typedef", "using",
+            "operator", "co_return", "co_yield", "co_await");
+    private static final Set<String> DECLARATOR_ENDS = Set.of("=", ";", ",", ")", "[", ":");
+    // Callees known to take their arguments by value, and keywords followed by parentheses
+    private static final Set<String> BY_VALUE = Set.of(
+            "abs", "labs", "fabs", "fabsf", "sqrt", "sqrtf", "exp", "log", "pow", "sin", "cos", "floor", "ceil",
+            "trunc", "round", "fmin", "fmax", "fminf", "fmaxf", "printf", "fprintf", "sprintf", "snprintf", "puts",
+            "putchar", "malloc", "calloc", "realloc", "free", "memset", "memcpy", "exit", "assert",
+            "sizeof", "if", "while", "for", "switch", "return");
+
+    private final TokenStream tokens;
+    private final Map<String, List<Declaration>> byName = new HashMap<>();
+    // Where each name is used, and where lambdas capture by reference
+    private final Map<String, Positions> occurrences = new HashMap<>();
+    private final Positions referenceCaptures = new Positions();
+
+    private Declarations(TokenStream tokens) {
+        this.tokens = tokens;
+    }
+
+    static Declarations scan(TokenStream tokens) {
+        Declarations declarations = new Declarations(tokens);
+        // A region transformed on its own still sees the globals declared before it
+        for (int p = 0; p < tokens.size(); p++) {
+            if (!tokens.isIdentifier(p) || declarations.byName.containsKey(tokens.text(p))) {
+                continue;
+            }
+            Declaration global = FileScope.visible(tokens.text(p));
+            if (global != null) {
+                declarations.byName.computeIfAbsent(global.name, k -> new ArrayList<>()).add(new Declaration(global.name,
+                        -1, tokens.size(), false, global.type, global.constant, global.elementType));
+            }
+        }
+        declarations.scan();
+        return declarations;
+    }
+
+    /** The declarations made outside of any function or block, in source order. */
+    List<Declaration> fileScope() {
+        List<Declaration> globals = new ArrayList<>();
+        for (List<Declaration> candidates : byName.values()) {
+            for (Declaration declaration : candidates) {
+                if (declaration.token >= 0 && declaration.scopeEnd >= tokens.size() && !declaration.local) {
+                    globals.add(declaration);
+                }
+            }
+        }
+        globals.sort(Comparator.comparingInt(declaration -> declaration.token));
+        return globals;
+    }
+
+    /** The innermost declaration of {@code name} visible at token {@code use}, or null if none is in sight. */
+    Declaration resolve(String name, int use) {
+        List<Declaration> candidates = byName.get(name);
+        if (candidates == null) {
+            return null;
+        }
+        // The last declaration before the use, then out through the scopes it is nested in
+        int low = 0;
+        int high = candidates.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (candidates.get(mid).token < use) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        Declaration found = low > 0 ? candidates.get(low - 1) : null;
+        while (found != null && found.scopeEnd < use) {
+            found = found.enclosing;
+        }
+        return found;
+    }
+
+    /** Positions in ascending order where the name of {@code declaration} refers to it, the declarator aside. */
+    int[] uses(Declaration declaration) {
+        Positions all = occurrences.get(declaration.name);
+        if (all == null) {
+            return new int[0];
+        }
+        String name = declaration.name;
+        int first = all.firstAfter(declaration.token);
+        int[] uses = new int[all.firstAfter(declaration.scopeEnd) - first];
+        int count = 0;
+        for (int i = first; i < first + uses.length; i++) {
+            CodeTransformer.checkpoint();
+            if (resolve(name, all.at[i]) == declaration) {
+                uses[count++] = all.at[i];
+            }
+        }
+        return Arrays.copyOf(uses, count);
+    }
+
+    /**
+     * Whether {@code name} appears anywhere as an identifier other than a member name, or
+     * names a global declared before the region being transformed.
+     */
+    boolean isMentioned(String name) {
+        return occurrences.containsKey(name) || byName.containsKey(name) || FileScope.visible(name) != null;
+    }
+
+    /**
+     * Whether anything but plain reads and writes of the variable's name can reach it: its
+     * address is taken, a reference or a by-reference lambda is bound to it, or it is passed
+     * to a function or stream that might take it by reference. Globals and statics always
+     * count as aliased. Sources are not always marked as C++, so C code is judged the same way.
+     */
+    boolean isAliased(Declaration declaration) {
+        if (declaration.aliased == null) {
+            declaration.aliased = !declaration.local || escapes(declaration);
+        }
+        return declaration.aliased;
+    }
+
+    private boolean escapes(Declaration declaration) {
+        int capture = referenceCaptures.firstAfter(declaration.token);
+        if (capture < referenceCaptures.size && referenceCaptures.at[capture] < declaration.scopeEnd) {
+            return true;
+        }
+        String name = declaration.name;
+        Positions uses = occurrences.get(name);
+        for (int i = uses.firstAfter(declaration.token); i < uses.size && uses.at[i] < declaration.scopeEnd; i++) {
+            CodeTransformer.checkpoint();
+            int p = uses.at[i];
+            if (resolve(name, p) != declaration) {
+                continue;
+            }
+            if (tokens.is(p - 1, "&") && !CountedLoop.endsOperand(tokens, p - 2)) {
+                return true;
+            }
+            // T &r = x;
+            if (tokens.is(p - 1, "=") && tokens.isAny(p - 3, "&", "&&")) {
+                return true;
+            }
+            // f(x), cin >> x
+            if (tokens.is(p - 1, ">>") || tokens.isAny(p - 1, "(", ",") && tokens.isAny(p + 1, ")", ",")
+                    && !isByValueArgument(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isByValueArgument(int p) {
+        int depth = 0;
+        for (int q = p - 1; q >= 0; q--) {
+            if (tokens.isAny(q, ")", "]")) {
+                depth++;
+            } else if (tokens.isAny(q, "(", "[") && depth-- == 0) {
+                return !tokens.isIdentifier(q - 1) || BY_VALUE.contains(tokens.text(q - 1));
+            } else if (depth == 0 && tokens.isAny(q, ";", "{", "}")) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    private void scan() {
+        int[] opens = new int[16];
+        int depth = 0;
+        for (int p = 0; p < tokens.size(); p++) {
+            CodeTransformer.checkpoint();
+            if (tokens.isIdentifier(p) && !tokens.isAny(p - 1, ".", "->")) {
+                occurrences.computeIfAbsent(tokens.text(p), k -> new Positions()).add(p);
+            } else if (tokens.is(p, "[") && tokens.is(p + 1, "&")) {
+                referenceCaptures.add(p);
+            }
+            if (tokens.isAny(p, "(", "{")) {
+                if (depth == opens.length) {
+                    opens = Arrays.copyOf(opens, depth * 2);
+                }
+                opens[depth++] = p;
+            } else if (tokens.isAny(p, ")", "}")) {
+                int open = tokens.match(p);
+                while (open >= 0 && depth > 0 && opens[depth - 1] != open) {
+                    depth--;
+                }
+                if (open >= 0 && depth > 0) {
+                    depth--;
+                }
+            } else if (tokens.isIdentifier(p) && DECLARATOR_ENDS.contains(tokens.text(p + 1))) {
+                int typeFrom = typeStart(p);
+                if (typeFrom < 0) {
+                    continue;
+                }
+                String type = typeFrom < p ? typeOf(tokens, typeFrom, p - 1) : "";
+                boolean constant = typeFrom < p && (tokens.indexOf("const", typeFrom, p) >= 0
+                        || tokens.indexOf("constexpr", typeFrom, p) >= 0);
+                int open = depth > 0 ? opens[depth - 1] : -1;
+                int scopeEnd = scopeEnd(open);
+                boolean local = open >= 0 && tokens.indexOf("static", typeFrom, p) < 0
+                        && tokens.indexOf("extern", typeFrom, p) < 0;
+                add(p, scopeEnd, local, tokens.is(p + 1, "[") ? "" : type, constant,
+                        typeFrom < p ? arrayElementType(p, type) : pointeeType(p));
+                // double x[8], y[8];
+                int after = p + 1;
+                while (tokens.is(after, "[") && tokens.match(after) > after) {
+                    after = tokens.match(after) + 1;
+                }
+                if (tokens.isAny(after, "=", ",")) {
+                    addDeclarators(after, scopeEnd, local, type, constant);
+                }
+            }
+        }
+    }
+
+    // unsigned a = 1, b, c[4];
+    private void addDeclarators(int from, int scopeEnd, boolean local, String type, boolean constant) {
+        for (int r = from; r < tokens.size(); r++) {
+            if (tokens.isAny(r, "(", "[", "{") && tokens.match(r) > r) {
+                r = tokens.match(r);
+            } else if (tokens.isAny(r, ";", ")", "}", "]")) {
+                return;
+            } else if (tokens.is(r, ",") && tokens.isIdentifier(r + 1) && tokens.isAny(r + 2, "=", ",", ";", "[")) {
+                add(r + 1, scopeEnd, local, tokens.is(r + 2, "[") ? "" : type, constant, arrayElementType(r + 1, type));
+            }
+        }
+    }
+
+    private void add(int p, int scopeEnd, boolean local, String type, boolean constant, String elementType) {
+        String name = tokens.text(p);
+        Declaration declaration = new Declaration(name, p, scopeEnd, local, type, constant, elementType);
+        declaration.enclosing = resolve(name, p);
+        byName.computeIfAbsent(name, k -> new ArrayList<>()).add(declaration);
+    }
+
+    // int a[n]; but not int a[n][m]; whose elements are arrays themselves
+    private String arrayElementType(int p, String type) {
+        boolean array = tokens.is(p + 1, "[") && tokens.match(p + 1) > p && !tokens.is(tokens.match(p + 1) + 1, "[");
+        return array && !type.isEmpty() ? type : null;
+    }
+
+    // double *p; or double *restrict p; but not double **p; or a template argument
+    private String pointeeType(int p) {
+        int star = tokens.isAny(p - 1, "restrict", "__restrict", "__restrict__") ? p - 2 : p - 1;
+        if (!tokens.is(star, "*") || !tokens.isIdentifier(star - 1) || tokens.is(p + 1, "[")) {
+            return null;
+        }
+        int from = star - 1;
+        while (from > 0 && (tokens.isIdentifier(from - 1) || tokens.is(from - 1, "::"))
+                && !NOT_TYPES.contains(tokens.text(from - 1))) {
+            from--;
+        }
+        return typeOf(tokens, from, star - 1);
+    }
+
+    // First token of the type of a declarator at p, p itself when it is not a plain
+    // variable of a named type, or -1 when p is not declared here
+    private int typeStart(int p) {
+        if (tokens.isAny(p - 1, "*", "&", "&&", ">")) {
+            if (tokens.is(p - 2, ">")) {
+                return p;
+            }
+            // int *p; as opposed to the product in x = a * b;
+            int from = p - 1;
+            while (from > 0 && (tokens.isIdentifier(from - 1) || tokens.isAny(from - 1, "*", "::"))) {
+                from--;
+            }
+            boolean declaration = from < p - 1 && (tokens.isStatementStart(from) || tokens.isAny(from - 1, "(", ",")
+                    && isParameterList(from - 1));
+            return declaration ? p : -1;
+        }
+        if (!tokens.isIdentifier(p - 1) || NOT_TYPES.contains(tokens.text(p - 1))) {
+            return -1;
+        }
+        int from = p - 1;
+        while (from > 0 && (tokens.isIdentifier(from - 1) || tokens.is(from - 1, "::"))
+                && !NOT_TYPES.contains(tokens.text(from - 1))) {
+            from--;
+        }
+        return from;
+    }
+
+    // Whether the '(' or ',' at p is part of the parameters of a function definition or a for init
+    private boolean isParameterList(int p) {
+        int open = p;
+        while (open >= 0 && !tokens.is(open, "(")) {
+            open = tokens.isAny(open, ")", "]", "}") && tokens.match(open) >= 0 ? tokens.match(open) - 1 : open - 1;
+            if (open >= 0 && tokens.isAny(open, ";", "{", "}")) {
+                return false;
+            }
+        }
+        int close = tokens.match(open);
+        return close > open && (tokens.is(open - 1, "for") || tokens.isIdentifier(open - 1)
+                && tokens.isAny(close + 1, "{", "const", "noexcept", "override"));
+    }
+
+    /** Whether {@code p} names a variable initialized as {@code T x(1);} or {@code T x{1};}, which are not recorded. */
+    static boolean isOpaqueDeclarator(TokenStream tokens, int p) {
+        return tokens.isIdentifier(p) && tokens.isAny(p + 1, "(", "{")
+                && (tokens.isIdentifier(p - 1) && !NOT_TYPES.contains(tokens.text(p - 1))
+                || tokens.isAny(p - 1, ">", "*", "&"));
+    }
+
+    /**
+     * Whether a declaration inserted right before the statement at {@code p} is in scope
+     * there: {@code p} starts a statement, is not the target of a directive such as
+     * {@code #pragma omp}, and case labels cannot jump past it.
+     */
+    static boolean canDeclareBefore(TokenStream tokens, int p) {
+        if (!tokens.isStatementStart(p) || tokens.isType(p - 1, TokenType.PREPROCESSOR)) {
+            return false;
+        }
+        int block = p - 1;
+        while (block >= 0 && !tokens.is(block, "{")) {
+            block = tokens.isAny(block, "}", ")", "]") && tokens.match(block) >= 0 ? tokens.match(block) - 1 : block - 1;
+        }
+        return block < 1 || !tokens.is(block - 1, ")") || !tokens.is(tokens.match(block - 1) - 1, "switch");
+    }
+
+    /** The type words of {@code from..to} without qualifiers, e.g. "unsigned long" for {@code const unsigned long}. */
+    static String typeOf(TokenStream tokens, int from, int to) {
+        StringBuilder type = new StringBuilder();
+        for (int p = from; p <= to; p++) {
+            if (!QUALIFIERS.contains(tokens.text(p))) {
+                type.append(type.length() > 0 ? " " : "").append(tokens.text(p));
+            }
+        }
+        return type.toString();
+    }
+
+    // Where a declaration made inside the bracket at open stops being visible
+    private int scopeEnd(int open) {
+        int close = tokens.match(open);
+        if (open < 0 || close < 0) {
+            return tokens.size();
+        }
+        if (tokens.is(open, "{")) {
+            return close;
+        }
+        // Header declarations live for their statement, parameters for the function body
+        int after = close + 1;
+        if (!tokens.isAny(open - 1, "for", "if", "while", "switch")) {
+            while (tokens.isIdentifier(after)) {
+                after++;
+            }
+        }
+        if (tokens.is(after, "{") && tokens.match(after) > after) {
+            return tokens.match(after);
+        }
+        int end = tokens.statementEnd(after);
+        return end >= 0 ? end : close;
+    }
+
+    // Token indices in ascending order
+    private static final class Positions {
+        private int[] at = new int[4];
+        private int size;
+
+        private void add(int p) {
+            if (size == at.length) {
+                at = Arrays.copyOf(at, size * 2);
+            }
+            at[size++] = p;
+        }
+
+        // Index of the first position after p, or size
+        private int firstAfter(int p) {
+            int index = Arrays.binarySearch(at, 0, size, p + 1);
+            return index >= 0 ? index : -index - 1;
+        }
+    }
+
+    static final class Declaration {
+        private final String name;
+        private final int token;
+        private final int scopeEnd;
+        private final boolean local;
+        private final String type;
+        private final boolean constant;
+        private final boolean unsigned;
+        private final String elementType;
+        private Boolean aliased;
+        // The declaration of the same name this one shadows
+        private Declaration enclosing;
+
+        private Declaration(String name, int token, int scopeEnd, boolean local, String type, boolean constant,
+                String elementType) {
+            this.name = name;
+            this.token = token;
+            this.elementType = elementType;
+            this.scopeEnd = scopeEnd;
+            this.local = local;
+            this.type = type;
+            this.constant = constant && !type.isEmpty();
+            boolean unsigned = false;
+            for (String word : type.split(" ")) {
+                unsigned |= UNSIGNED_TYPES.contains(word);
+            }
+            this.unsigned = unsigned;
+        }
+
+        String getName() { return name; }
+        /** Index of the declared name's token, -1 for a global of the rest of the file. */
+        int getToken() { return token; }
+        /** Last token the declaration is visible at. */
+        int getScopeEnd() { return scopeEnd; }
+        /** Declared inside a function or block without {@code static} or {@code extern}. */
+        boolean isLocal() { return local; }
+        /** Type words without qualifiers; empty for pointers, arrays and unrecognized declarators. */
+        String getType() { return type; }
+        boolean isConstant() { return constant; }
+        boolean isUnsigned() { return unsigned; }
+        /** Type words of what {@code name[i]} reads for a pointer or one-dimensional array, otherwise null. */
+        String getElementType() { return elementType; }
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.example.cppoptimizer.service.CodeTransformer.Declarations.Declaration;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+
+/**
+ * The file-scope declarations of a whole translation unit, for passes that run on one
+ * top-level region at a time. While a region is transformed {@link #within} it, names
+ * the region does not declare itself resolve to the globals declared before it, as
+ * they would in the whole file, so a region-local pass sees the same types either way.
+ * Like {@link PassNotes} the binding belongs to the thread running the pass.
+ */
+public final class FileScope {
+    private static final ThreadLocal<Region> CURRENT = new ThreadLocal<>();
+
+    private final TokenStream tokens;
+    // File-scope declarations in source order, all of them and by name
+    private final List<Declaration> globals;
+    private final Map<String, List<Declaration>> byName = new HashMap<>();
+    // The digest of the first c globals at c, each one chaining the one before
+    private final String[] digests;
+
+    private FileScope(TokenStream tokens) {
+        this.tokens = tokens;
+        this.globals = Declarations.scan(tokens).fileScope();
+        this.digests = new String[globals.size() + 1];
+        digests[0] = "";
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (int c = 0; c < globals.size(); c++) {
+                Declaration global = globals.get(c);
+                byName.computeIfAbsent(global.getName(), k -> new ArrayList<>()).add(global);
+                String declared = (global.isConstant() ? "const " : "") + global.getType() + ' ' + global.getName()
+                        + (global.getElementType() != null ? "[]" : "") + ';';
+                digest.update(digests[c].getBytes(StandardCharsets.UTF_8));
+                digest.update(declared.getBytes(StandardCharsets.UTF_8));
+                digests[c + 1] = HexFormat.of().formatHex(digest.digest());
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public static FileScope of(TokenStream tokens) {
+        return new FileScope(tokens);
+    }
+
+    /** Runs {@code pass} on the region starting at character {@code regionStart} of the file. */
+    public String within(int regionStart, Supplier<String> pass) {
+        Region outer = CURRENT.get();
+        CURRENT.set(new Region(this, regionStart));
+        try {
+            return pass.get();
+        } finally {
+            if (outer != null) {
+                CURRENT.set(outer);
+            } else {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    /**
+     * A digest of the globals a region starting at {@code regionStart} sees: a region's
+     * output depends on them as well as on its own text.
+     */
+    public String signature(int regionStart) {
+        return digests[declaredBefore(regionStart)];
+    }
+
+    /**
+     * The last global named {@code name} declared before the region being transformed on
+     * this thread, or null if there is none or no region is.
+     */
+    static Declaration visible(String name) {
+        Region region = CURRENT.get();
+        return region != null ? region.scope.lastBefore(name, region.start) : null;
+    }
+
+    private Declaration lastBefore(String name, int regionStart) {
+        List<Declaration> candidates = byName.get(name);
+        if (candidates == null) {
+            return null;
+        }
+        int low = 0;
+        int high = candidates.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tokens.start(candidates.get(mid).getToken()) < regionStart) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low > 0 ? candidates.get(low - 1) : null;
+    }
+
+    private int declaredBefore(int regionStart) {
+        int low = 0;
+        int high = globals.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tokens.start(globals.get(mid).getToken()) < regionStart) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static final class Region {
+        private final FileScope scope;
+        private final int start;
+
+        private Region(FileScope scope, int start) {
+            this.scope = scope;
+            this.start = start;
+        }
+    }
+}
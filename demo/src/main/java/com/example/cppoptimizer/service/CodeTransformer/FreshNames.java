@@ -0,0 +1,44 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Names for the variables a pass introduces: never mentioned in the source and never
+ * handed out twice. Each prefix remembers the next number to try, like the temporaries
+ * of {@link CommonSubexpressionEliminator}, so picking many names with one prefix does
+ * not retry all the ones taken before.
+ */
+final class FreshNames {
+    private final Declarations declarations;
+    private final Map<String, Integer> nextSuffix = new HashMap<>();
+    private final Set<String> chosen = new HashSet<>();
+
+    FreshNames(Declarations declarations) {
+        this.declarations = declarations;
+    }
+
+    /** {@code prefix} followed by a number, counting from 0: {@code bound_0}, {@code bound_1}, ... */
+    String numbered(String prefix) {
+        return pick(prefix, false);
+    }
+
+    /** {@code base} itself while it is free, then {@code base1}, {@code base2}, ... */
+    String based(String base) {
+        return pick(base, true);
+    }
+
+    private String pick(String prefix, boolean bare) {
+        int n = nextSuffix.getOrDefault(prefix, 0);
+        while (true) {
+            String name = bare && n == 0 ? prefix : prefix + n;
+            n++;
+            if (!declarations.isMentioned(name) && chosen.add(name)) {
+                nextSuffix.put(prefix, n);
+                return name;
+            }
+        }
+    }
+}
@@ -1,105 +1,1071 @@
 package com.example.cppoptimizer.service.CodeTransformer;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
 
 import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.Lexer.CppLexer;
+import com.example.cppoptimizer.service.Lexer.SourceRewriter;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
 
+/**
+ * Inlines calls to functions defined at file scope. Functions are visited bottom-up over
+ * the call graph, so a body is copied into its callers with its own calls already inlined;
+ * functions on a cycle of the graph are recursive and are never inlined.
+ *
+ * <p>Each call site is weighed on its own: the tokens a copy adds against the call overhead
+ * it saves, which counts for more inside loops and for constant arguments. Copies that grow
+ * the code are paid for from a budget of the configured percentage of the file's tokens.
+ * A function whose body is {@code return E;} becomes the expression {@code E}, with the
+ * arguments substituted where that keeps their evaluation and conversions the same. Other
+ * bodies are copied into a block in front of the statement making the call, with the
+ * arguments evaluated into temporaries of the parameter types and the result stored in one
+ * of the return type. Bodies that return anywhere but at their end, declare statics, use
+ * labels or variadic arguments are left alone.
+ */
 public class FunctionInliner extends CodeTransformer {
+    public static final int DEFAULT_GROWTH_PERCENT = 20;
+    // What a call costs beyond the inlined code, in tokens: the call, frame and return,
+    // and moving each argument into place
+    private static final int CALL_COST = 6;
+    private static final int ARGUMENT_COST = 2;
+    // A constant argument lets the copy fold
+    private static final int CONSTANT_ARGUMENT_BONUS = 4;
+    // A call in a loop runs many times for one copy of the body
+    private static final int LOOP_WEIGHT = 8;
+    // Tokens of the declaration that holds an argument or the result
+    private static final int TEMPORARY_COST = 5;
+    // Bodies larger than this are never copied, whatever the budget
+    private static final int MAX_BODY_TOKENS = 200;
+    // Growth any file may have, so that small files inline at all
+    private static final int MIN_BUDGET = 64;
+    private static final String INDENT = "    ";
+    // Specifiers of a definition that say nothing about its return type
+    private static final Set<String> SPECIFIERS = Set.of("static", "inline", "__inline", "__inline__", "extern", "constexpr");
+    // Types a temporary can be declared with and a value cast to
+    private static final Set<String> PRIMITIVES = Set.of(
+            "bool", "_Bool", "char", "short", "int", "long", "unsigned", "signed", "float", "double");
+    // Whatever ties a body to being a function of its own
+    private static final Set<String> NOT_COPYABLE = Set.of(
+            "static", "thread_local", "goto", "asm", "__asm__", "setjmp", "longjmp", "va_start", "va_arg", "va_end",
+            "alloca", "__func__", "__FUNCTION__", "__PRETTY_FUNCTION__", "this", "co_await", "co_yield", "co_return");
+    // Statements whose head cannot take a block in front of it
+    private static final Set<String> NOT_HOISTABLE = Set.of(
+            "for", "while", "do", "else", "case", "default", "goto", "break", "continue", "try", "catch",
+            "static", "thread_local", "extern", "typedef", "using", "template", "co_return", "co_yield");
+    private static final Set<String> ASSIGNMENTS = Set.of(
+            "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=", "++", "--");
+    private static final Set<String> LOGICAL = Set.of("<", ">", "<=", ">=", "==", "!=", "&&", "||", "!");
+    private static final Set<String> ARITHMETIC = Set.of("+", "-", "*", "/", "%", "(", ")");
+    // Binding of binary operators, tightest first; unary operators and casts bind at 2
+    private static final Map<String, Integer> PRECEDENCE = Map.ofEntries(
+            Map.entry("*", 3), Map.entry("/", 3), Map.entry("%", 3), Map.entry("+", 4), Map.entry("-", 4),
+            Map.entry("<<", 5), Map.entry(">>", 5), Map.entry("<", 6), Map.entry("<=", 6), Map.entry(">", 6),
+            Map.entry(">=", 6), Map.entry("==", 7), Map.entry("!=", 7), Map.entry("&", 8), Map.entry("^", 9),
+            Map.entry("|", 10), Map.entry("&&", 11), Map.entry("||", 12), Map.entry("?", 13), Map.entry(":", 13),
+            Map.entry(",", 15));
+
+    private final int growthPercent;
+
+    public FunctionInliner() {
+        this(DEFAULT_GROWTH_PERCENT);
+    }
+
+    public FunctionInliner(int growthPercent) {
+        if (growthPercent < 0 || growthPercent > 1000) {
+            throw new IllegalArgumentException("Inline growth must be 0 to 1000 percent, not " + growthPercent);
+        }
+        this.growthPercent = growthPercent;
+    }
+
     @Override
-    public String transform(String code, CodeOptimizerService.Language lang) {
-        // Normalize line endings
-        code = code.replaceAll("\r\n", "\n").replaceAll("\r", "\n");
-
-        List<String> newLines = new ArrayList<>();
-        List<String> functionDefs = new ArrayList<>();
-        List<String> functionBodies = new ArrayList<>();
-        List<String> functionParams = new ArrayList<>();
-
-        // Pattern to match function definitions
-        Pattern funcPattern = Pattern.compile(
-            "(int|float|double|char)\\s+(\\w+)\\s*\\(\\s*(\\w+\\s+\\w+)\\s*\\)\\s*\\{([^}]*)\\}",
-            Pattern.DOTALL
-        );
-        Matcher funcMatcher = funcPattern.matcher(code);
-        while (funcMatcher.find()) {
-            String funcName = funcMatcher.group(2);
-            String param = funcMatcher.group(3).split("\\s+")[1]; // e.g., "int x" -> "x"
-            String body = funcMatcher.group(4).trim();
-            String[] bodyLines = body.split("\n");
-            boolean isSmall = bodyLines.length <= 3 && !body.contains("for") && !body.contains("while");
-            if (isSmall) {
-                functionDefs.add(funcName);
-                functionBodies.add(body);
-                functionParams.add(param);
-            }
-        }
-
-        boolean inlined = false;
-        String[] lines = code.split("\n");
-        for (String line : lines) {
-            String newLine = line;
-            for (int i = 0; i < functionDefs.size(); i++) {
-                String funcName = functionDefs.get(i);
-                String body = functionBodies.get(i);
-                String param = functionParams.get(i);
-                Pattern callPattern = Pattern.compile(funcName + "\\s*\\(\\s*([^)]+)\\s*\\)\\s*;");
-                Matcher callMatcher = callPattern.matcher(newLine);
-                if (callMatcher.find()) {
-                    String arg = callMatcher.group(1).trim();
-
-                    // Substitute parameter in the body
-                    String inlinedBody = body.replaceAll("\\b" + param + "\\b", arg);
-
-                    // Handle return statements
-                    Pattern returnPattern = Pattern.compile("return\\s+([^;]+);", Pattern.DOTALL);
-                    Matcher returnMatcher = returnPattern.matcher(inlinedBody);
-                    if (returnMatcher.find()) {
-                        inlinedBody = returnMatcher.group(1).trim(); // Extract expression after 'return'
-
-                        // Try to evaluate constant expressions
-                        Pattern constPattern = Pattern.compile("(\\d+)\\s*\\+\\s*(\\d+)");
-                        Matcher constMatcher = constPattern.matcher(inlinedBody);
-                        if (constMatcher.matches()) {
-                            int val = Integer.parseInt(constMatcher.group(1)) + Integer.parseInt(constMatcher.group(2));
-                            inlinedBody = String.valueOf(val);
-                        }
+    public String transform(TokenStream tokens, CodeOptimizerService.Language lang) {
+        List<Function> functions = findFunctions(tokens);
+        // Only names that stand for exactly one free function can be inlined
+        Map<String, Function> callees = new HashMap<>();
+        Set<String> ambiguous = new HashSet<>(Set.of("main"));
+        for (Function function : functions) {
+            if (!function.global || callees.put(function.name, function) != null) {
+                ambiguous.add(function.name);
+            }
+        }
+        callees.keySet().removeAll(ambiguous);
+        if (callees.isEmpty()) {
+            return tokens.getSource();
+        }
+        CallSiteIndex index = CallSiteIndex.build(tokens, new ArrayList<>(callees.keySet()));
+        int[] sites = index.callSites();
+        if (sites.length == 0) {
+            return tokens.getSource();
+        }
+
+        // The call graph: which callees each function body calls
+        int[] starts = new int[functions.size()];
+        for (int f = 0; f < starts.length; f++) {
+            starts[f] = functions.get(f).brace;
+        }
+        for (int site : sites) {
+            checkpoint();
+            int f = Arrays.binarySearch(starts, site);
+            f = f >= 0 ? f : -f - 2;
+            if (f >= 0 && site < functions.get(f).close) {
+                Function callee = callees.get(index.name(index.idOf(tokens, site)));
+                if (!functions.get(f).callees.contains(callee)) {
+                    functions.get(f).callees.add(callee);
+                }
+            }
+        }
+
+        Inlining inlining = new Inlining(tokens, callees, index,
+                growthPercent > 0 ? Math.max(MIN_BUDGET, (int) ((long) tokens.size() * growthPercent / 100)) : 0);
+        for (Function function : bottomUp(functions)) {
+            checkpoint();
+            inlining.rewrite(function);
+        }
+        return inlining.finish(functions);
+    }
+
+    // Function bodies in the file; free functions are those outside classes and named namespaces,
+    // and only those declared static or in an anonymous namespace are private to the file
+    private static List<Function> findFunctions(TokenStream tokens) {
+        List<Function> functions = new ArrayList<>();
+        // Braces open outside function bodies, and whether each one opens an anonymous namespace
+        Deque<Boolean> scopes = new ArrayDeque<>();
+        int named = 0;
+        int anonymous = 0;
+        int piece = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            checkpoint();
+            if (tokens.isType(i, TokenType.PREPROCESSOR) || tokens.isAny(i, ";", "}")) {
+                piece = i + 1;
+                if (tokens.is(i, "}") && !scopes.isEmpty()) {
+                    if (scopes.pop()) {
+                        anonymous--;
                     } else {
-                        // If no return statement, use the entire body (e.g., for void functions or implicit returns)
-                        inlinedBody = inlinedBody.trim();
+                        named--;
                     }
-
-                    // Replace the function call with the inlined body
-                    newLine = newLine.replaceAll(funcName + "\\s*\\([^)]*\\)\\s*;", inlinedBody + ";");
-                    inlined = true;
                 }
+            } else if (tokens.is(i, "{")) {
+                int open = StatementEditor.functionParameters(tokens, i);
+                if (open >= 0 && tokens.match(i) > i) {
+                    boolean internal = anonymous > 0 || tokens.indexOf("static", piece, open) >= 0;
+                    functions.add(new Function(tokens.text(open - 1), piece, i, tokens.match(i), named == 0, internal));
+                    i = tokens.match(i);
+                } else if (tokens.is(i - 1, "namespace")) {
+                    scopes.push(true);
+                    anonymous++;
+                } else {
+                    scopes.push(false);
+                    named++;
+                }
+                piece = i + 1;
             }
-            newLines.add(newLine);
         }
+        return functions;
+    }
 
-        if (inlined) {
-            String result = String.join("\n", newLines);
-            // Remove original function definitions
-            for (String funcName : functionDefs) {
-                result = result.replaceAll(
-                    "(int|float|double|char)\\s+" + funcName + "\\s*\\([^)]*\\)\\s*\\{[^}]*\\}",
-                    ""
-                );
+    // Strongly connected components of the call graph, callees before their callers (Tarjan)
+    private static List<Function> bottomUp(List<Function> functions) {
+        List<Function> order = new ArrayList<>(functions.size());
+        Deque<Function> stack = new ArrayDeque<>();
+        Deque<Function> path = new ArrayDeque<>();
+        int counter = 0;
+        for (Function root : functions) {
+            if (root.index >= 0) {
+                continue;
+            }
+            root.index = root.low = counter++;
+            stack.push(root);
+            root.onStack = true;
+            path.push(root);
+            while (!path.isEmpty()) {
+                checkpoint();
+                Function function = path.peek();
+                if (function.nextCallee < function.callees.size()) {
+                    Function callee = function.callees.get(function.nextCallee++);
+                    if (callee.index < 0) {
+                        callee.index = callee.low = counter++;
+                        stack.push(callee);
+                        callee.onStack = true;
+                        path.push(callee);
+                    } else if (callee.onStack) {
+                        function.low = Math.min(function.low, callee.index);
+                    }
+                    continue;
+                }
+                path.pop();
+                if (!path.isEmpty()) {
+                    path.peek().low = Math.min(path.peek().low, function.low);
+                }
+                if (function.low == function.index) {
+                    List<Function> component = new ArrayList<>();
+                    Function member;
+                    do {
+                        member = stack.pop();
+                        member.onStack = false;
+                        component.add(member);
+                    } while (member != function);
+                    boolean recursive = component.size() > 1 || function.callees.contains(function);
+                    for (Function f : component) {
+                        f.recursive = recursive;
+                    }
+                    order.addAll(component);
+                }
             }
-            return result;
         }
-        return code;
+        return order;
+    }
+
+    // Definitions and call sites live in different functions
+    @Override
+    public boolean requiresWholeFile() {
+        return true;
+    }
+
+    // Inlined bodies expose literal arithmetic, unused locals and further calls
+    @Override
+    public Set<String> enables() {
+        return Set.of("foldConstants", "eliminateDeadCode", "inlineFunctions");
     }
 
     @Override
     public String getInsight() {
-        return "Inlined small functions to reduce function call overhead.";
+        return "Inlined calls to non-recursive functions where the call overhead saved outweighs the code added.";
     }
 
     @Override
     public String getName() {
         return "inlineFunctions";
     }
-}
\ No newline at end of file
+
+    @Override
+    public String describe() {
+        return getName() + "(growthPercent=" + growthPercent + ")";
+    }
+
+    private static final class Inlining {
+        private final TokenStream tokens;
+        private final Map<String, Function> callees;
+        private final CallSiteIndex index;
+        private final Map<String, Integer> references = new HashMap<>();
+        private int budget;
+        // Names in use anywhere, so temporaries never shadow or collide
+        private Set<String> taken;
+
+        private Inlining(TokenStream tokens, Map<String, Function> callees, CallSiteIndex index, int budget) {
+            this.tokens = tokens;
+            this.callees = callees;
+            this.index = index;
+            this.budget = budget;
+            for (int id = 0; id < index.size(); id++) {
+                references.put(index.name(id), index.referenceCount(id));
+            }
+        }
+
+        // Inlines the calls in one body, whose callees are all final by now
+        private void rewrite(Function function) {
+            boolean calls = false;
+            for (Function callee : function.callees) {
+                calls |= !callee.recursive && callee.shape(tokens) != null;
+            }
+            if (!calls) {
+                return;
+            }
+            TokenStream text = function.text(tokens);
+            int brace = function.brace - function.start;
+            int close = text.size() - 1;
+            Declarations declarations = Declarations.scan(text);
+            int[] depths = loopDepths(text, brace, close);
+            SourceRewriter rewriter = new SourceRewriter(text);
+            int covered = -1;
+            for (int p = brace + 1; p < close; p++) {
+                checkpoint();
+                if (p <= covered || !text.isIdentifier(p) || !text.is(p + 1, "(") || text.isAny(p - 1, ".", "->", "::")) {
+                    continue;
+                }
+                Function callee = callees.get(text.text(p));
+                if (callee == null || callee.recursive || declarations.resolve(callee.name, p) != null) {
+                    continue;
+                }
+                Shape shape = callee.shape(tokens);
+                int end = shape != null ? inline(function, text, declarations, rewriter, p, callee, shape, depths[p]) : -1;
+                covered = Math.max(covered, end);
+            }
+            if (rewriter.hasEdits()) {
+                function.text = CppLexer.lex(rewriter.toString());
+                function.changed = true;
+            }
+        }
+
+        // Inlines the call at p; returns the last token replaced, or -1 if the call stays
+        private int inline(Function caller, TokenStream text, Declarations declarations, SourceRewriter rewriter,
+                int p, Function callee, Shape shape, int depth) {
+            int callClose = text.match(p + 1);
+            List<int[]> arguments = arguments(text, p + 1, callClose);
+            if (arguments == null || arguments.size() != shape.parameters.size()) {
+                return -1;
+            }
+            // The callee's globals must not be hidden by the caller's locals
+            for (String name : shape.freeNames) {
+                Declarations.Declaration declaration = declarations.resolve(name, p);
+                if (declaration != null && declaration.isLocal()) {
+                    return -1;
+                }
+            }
+            String[] direct = new String[arguments.size()];
+            boolean allDirect = true;
+            int constants = 0;
+            for (int a = 0; a < direct.length; a++) {
+                int[] argument = arguments.get(a);
+                direct[a] = directArgument(text, declarations, argument[0], argument[1], shape, shape.parameters.get(a));
+                allDirect &= direct[a] != null;
+                constants += text.isType(argument[0], TokenType.NUMBER) && argument[0] == argument[1] ? 1 : 0;
+            }
+            int benefit = (CALL_COST + ARGUMENT_COST * direct.length + CONSTANT_ARGUMENT_BONUS * constants)
+                    * (depth > 0 ? LOOP_WEIGHT : 1);
+            int line = tokens.lineOf(caller.start) + text.lineOf(p) - 1;
+
+            // return E; with every argument substituted: the call becomes E
+            if (shape.isExpression() && allDirect && shape.castable && !shape.hasEffects) {
+                int growth = shape.size - 2 - (callClose - p + 1);
+                if (!isWorthIt(callee, shape, growth, benefit)) {
+                    return -1;
+                }
+                String value = shape.text.render(shape.returnToken + 1, shape.close - 2, substitution(shape, direct));
+                int precedence = 2;
+                if (shape.needsCast) {
+                    value = "(" + shape.returnType + ")(" + value + ")";
+                } else {
+                    precedence = shape.precedence;
+                }
+                if (needsParentheses(text, p, callClose, precedence)) {
+                    value = "(" + value + ")";
+                }
+                rewriter.replace(p, callClose, value);
+                return inlined(caller, callee, line, callClose);
+            }
+
+            // Otherwise the body is copied into a block, as the statement itself or in front of it
+            int end = text.is(callClose + 1, ";") ? callClose + 1 : -1;
+            int s;
+            String form;
+            if (end > 0 && isStatementPosition(text, p)) {
+                s = p;
+                form = "statement";
+            } else if (end > 0 && shape.returnType != null && text.is(p - 1, "return") && isStatementPosition(text, p - 1)) {
+                s = p - 1;
+                form = "return";
+            } else if (end > 0 && ASSIGNMENTS.contains(text.text(p - 1)) && text.isIdentifier(p - 2)
+                    && isStatementPosition(text, p - 2) && !shape.mentions(text.text(p - 2))
+                    && (text.is(p - 1, "=") ? hasReturnType(declarations.resolve(text.text(p - 2), p - 2), shape)
+                    : shape.returnType != null && shape.castable)) {
+                s = p - 2;
+                form = "assign";
+            } else if (end > 0 && text.is(p - 1, "=") && text.isIdentifier(p - 2) && isDeclarationOf(text, declarations, p - 2, shape)) {
+                s = text.statementStart(p);
+                form = "declare";
+            } else if (shape.returnType != null && shape.castable && (s = hoistPoint(text, p)) >= 0) {
+                form = "hoist";
+            } else {
+                return -1;
+            }
+
+            // A statement that is the body of an if, loop or else gets braces on the line of its head
+            boolean nested = !text.isStatementStart(s);
+            String indent = text.indentationOf(nested ? s - 1 : s);
+            String inner = indent + INDENT;
+            StringBuilder block = new StringBuilder("{\n");
+            Map<String, String> substitution = new HashMap<>();
+            List<String> temporaries = new ArrayList<>();
+            for (int a = 0; a < direct.length; a++) {
+                Parameter parameter = shape.parameters.get(a);
+                if (direct[a] != null) {
+                    substitution.put(parameter.name, direct[a]);
+                    continue;
+                }
+                String name = fresh(callee.name + "_" + parameter.name);
+                substitution.put(parameter.name, name);
+                temporaries.add(name);
+                block.append(inner).append(declare(parameter.type, name)).append(" = ")
+                        .append(text.text(arguments.get(a)[0], arguments.get(a)[1])).append(";\n");
+            }
+            int growth = shape.size + TEMPORARY_COST * (temporaries.size() + (form.equals("hoist") ? 1 : 0))
+                    - (callClose - p + 1);
+            if (!isWorthIt(callee, shape, growth, benefit)) {
+                if (!temporaries.isEmpty()) {
+                    taken.removeAll(temporaries);
+                }
+                return -1;
+            }
+            int last = shape.returnToken >= 0 ? shape.returnToken - 1 : shape.close - 1;
+            if (last > shape.brace) {
+                block.append(reindent(shape.text.render(shape.brace + 1, last, substitution),
+                        shape.text.indentationOf(shape.brace + 1), inner)).append('\n');
+            }
+            String value = shape.returnType != null
+                    ? shape.text.render(shape.returnToken + 1, shape.close - 2, substitution) : null;
+            // A body that is only its return needs no block around the returned value
+            boolean bare = temporaries.isEmpty() && last <= shape.brace;
+            String cast = value != null && shape.needsCast ? "(" + shape.returnType + ")(" + value + ")" : value;
+            switch (form) {
+                case "statement":
+                    if (value != null && hasEffects(shape.text, shape.returnToken + 1, shape.close - 2)) {
+                        block.append(inner).append(value).append(";\n");
+                        if (bare) {
+                            rewriter.replace(p, callClose, value);
+                            return inlined(caller, callee, line, end);
+                        }
+                    } else if (bare) {
+                        if (nested) {
+                            rewriter.delete(p, callClose);
+                        } else {
+                            rewriter.deleteLines(s, end);
+                        }
+                        return inlined(caller, callee, line, end);
+                    }
+                    replace(rewriter, text, s, end, nested, block.append(indent).append('}').toString());
+                    return inlined(caller, callee, line, end);
+                case "return":
+                case "assign":
+                case "declare":
+                    if (bare) {
+                        rewriter.replace(p, callClose, text.is(p - 1, "=") ? value : cast);
+                        return inlined(caller, callee, line, end);
+                    }
+                    if (form.equals("return")) {
+                        block.append(inner).append("return ").append(cast).append(";\n");
+                    } else {
+                        block.append(inner).append(text.text(p - 2)).append(' ').append(text.text(p - 1)).append(' ')
+                                .append(text.is(p - 1, "=") ? value : cast).append(";\n");
+                    }
+                    block.append(indent).append('}');
+                    if (form.equals("declare")) {
+                        rewriter.replace(s, end, text.text(s, p - 2) + ";\n" + indent + block);
+                    } else {
+                        replace(rewriter, text, s, end, nested, block.toString());
+                    }
+                    return inlined(caller, callee, line, end);
+                default: {
+                    String result = fresh(callee.name + "_result");
+                    if (bare) {
+                        rewriter.insertBefore(s, declare(shape.returnType, result) + " = " + value + ";\n" + indent);
+                    } else {
+                        block.append(inner).append(result).append(" = ").append(value).append(";\n");
+                        rewriter.insertBefore(s, declare(shape.returnType, result) + ";\n" + indent + block.append(indent)
+                                .append("}\n").append(indent));
+                    }
+                    rewriter.replace(p, callClose, result);
+                    return inlined(caller, callee, line, callClose);
+                }
+            }
+        }
+
+        // Deletes a definition with the blank line that separated it from the next one
+        private void delete(SourceRewriter rewriter, Function function) {
+            String source = tokens.getSource();
+            int start = tokens.start(function.start);
+            int end = tokens.end(function.close);
+            int next = source.indexOf('\n', end);
+            if (next < 0 || !source.substring(end, next).isBlank()
+                    || start > 0 && source.charAt(start - 1) != '\n') {
+                rewriter.deleteLines(function.start, function.close);
+                return;
+            }
+            int after = source.indexOf('\n', next + 1);
+            if (after >= 0 && source.substring(next + 1, after).isBlank()) {
+                next = after;
+            }
+            rewriter.replaceRange(start, next + 1, "");
+        }
+
+        // Adds sign to the count of each name in counts for every occurrence in text
+        private static void count(Map<String, Integer> counts, TokenStream text, int sign) {
+            for (int q = 0; q < text.size(); q++) {
+                if (text.isIdentifier(q)) {
+                    counts.computeIfPresent(text.text(q), (name, count) -> count + sign);
+                }
+            }
+        }
+
+        private void replace(SourceRewriter rewriter, TokenStream text, int s, int end, boolean nested, String block) {
+            if (nested) {
+                rewriter.replaceRange(text.end(s - 1), text.end(end), " " + block);
+            } else {
+                rewriter.replace(s, end, block);
+            }
+        }
+
+        private int inlined(Function caller, Function callee, int line, int end) {
+            callee.inlined++;
+            note("Inlined the call to " + callee.name + " in " + caller.name + " at line " + line + ".");
+            return end;
+        }
+
+        // The size/benefit decision for one call site
+        private boolean isWorthIt(Function callee, Shape shape, int growth, int benefit) {
+            if (shape.size > MAX_BODY_TOKENS) {
+                return false;
+            }
+            // Shrinking the code is always worth it, and so is inlining the only use of a
+            // function private to the file, which takes the definition out
+            if (growth <= 0 || callee.internal && references.get(callee.name) == 2) {
+                return true;
+            }
+            if (benefit < growth || growth > budget) {
+                return false;
+            }
+            budget -= growth;
+            return true;
+        }
+
+        /**
+         * The text to substitute for a parameter where evaluating the argument in place of
+         * the parameter is the same as evaluating it once and converting it to the parameter
+         * type: a literal of that type or an unaliased local of that type, or a pure expression
+         * over such operands that the body reads only once. Null where a temporary is needed.
+         */
+        private String directArgument(TokenStream text, Declarations declarations, int from, int to,
+                Shape shape, Parameter parameter) {
+            if (parameter.written || parameter.canonical == null) {
+                return null;
+            }
+            List<String> types = new ArrayList<>();
+            for (int q = from; q <= to; q++) {
+                if (text.isType(q, TokenType.NUMBER)) {
+                    types.add(ArithmeticTypes.ofLiteral(text.text(q)));
+                } else if (text.isIdentifier(q)) {
+                    Declarations.Declaration declaration = declarations.resolve(text.text(q), q);
+                    if (declaration == null || !declaration.isLocal() || shape.touchesMemory && declarations.isAliased(declaration)
+                            || text.is(q + 1, "(") || shape.mentions(text.text(q))) {
+                        return null;
+                    }
+                    types.add(ArithmeticTypes.canonical(declaration.getType()));
+                } else if (!ARITHMETIC.contains(text.text(q)) || from == to) {
+                    return null;
+                }
+            }
+            if (from == to) {
+                String type = types.get(0);
+                boolean same = ArithmeticTypes.INT_LITERAL.equals(type) ? parameter.canonical.equals("int")
+                        : parameter.canonical.equals(type);
+                return same ? text.text(from) : null;
+            }
+            return parameter.reads <= 1 && parameter.canonical.equals(ArithmeticTypes.common(types))
+                    ? "(" + text.text(from, to) + ")" : null;
+        }
+
+        // v = f(...); where v holds the return type, so the result can go straight to it
+        private boolean hasReturnType(Declarations.Declaration declaration, Shape shape) {
+            return declaration != null && shape.returnCanonical != null
+                    && shape.returnCanonical.equals(ArithmeticTypes.canonical(declaration.getType()));
+        }
+
+        // T v = f(...); that can become T v; and a block assigning v
+        private boolean isDeclarationOf(TokenStream text, Declarations declarations, int v, Shape shape) {
+            Declarations.Declaration declaration = declarations.resolve(text.text(v), v + 1);
+            int s = text.statementStart(v);
+            if (declaration == null || declaration.getToken() != v || s >= v || !Declarations.canDeclareBefore(text, s)
+                    || !hasReturnType(declaration, shape) || shape.mentions(text.text(v))) {
+                return false;
+            }
+            for (int q = s; q < v; q++) {
+                if (!text.isIdentifier(q) || text.isAny(q, "const", "constexpr", "static", "auto", "volatile", "extern")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String fresh(String base) {
+            if (taken == null) {
+                taken = new HashSet<>();
+                for (int i = 0; i < tokens.size(); i++) {
+                    if (tokens.isIdentifier(i)) {
+                        taken.add(tokens.text(i));
+                    }
+                }
+            }
+            String name = base;
+            for (int k = 2; !taken.add(name); k++) {
+                name = base + "_" + k;
+            }
+            return name;
+        }
+
+        // The file with the rewritten bodies, and without the definitions private to the file
+        // that every call now inlines; other files may still call the rest
+        private String finish(List<Function> functions) {
+            List<String> names = new ArrayList<>();
+            boolean inlined = false;
+            for (Function function : functions) {
+                inlined |= function.inlined > 0;
+                if (function.inlined > 0 && function.internal) {
+                    names.add(function.name);
+                }
+            }
+            if (!inlined) {
+                return tokens.getSource();
+            }
+            Map<String, Integer> remaining = new HashMap<>();
+            for (String name : names) {
+                remaining.put(name, references.get(name));
+            }
+            for (Function function : functions) {
+                if (function.changed) {
+                    count(remaining, function.original, -1);
+                    count(remaining, function.text, 1);
+                }
+            }
+            SourceRewriter rewriter = new SourceRewriter(tokens);
+            Set<String> removed = new HashSet<>();
+            for (String name : names) {
+                // The definition itself is the one reference left
+                if (remaining.get(name) == 1) {
+                    Function function = callees.get(name);
+                    delete(rewriter, function);
+                    removed.add(function.name);
+                }
+            }
+            for (Function function : functions) {
+                if (function.changed && !(function.global && removed.contains(function.name))) {
+                    rewriter.replace(function.start, function.close, function.text.getSource());
+                }
+            }
+            return rewriter.toString();
+        }
+    }
+
+    private static Map<String, String> substitution(Shape shape, String[] direct) {
+        Map<String, String> substitution = new HashMap<>();
+        for (int a = 0; a < direct.length; a++) {
+            substitution.put(shape.parameters.get(a).name, direct[a]);
+        }
+        return substitution;
+    }
+
+    // The argument ranges of the call whose parentheses are open..close, or null if one is empty
+    private static List<int[]> arguments(TokenStream text, int open, int close) {
+        List<int[]> arguments = new ArrayList<>();
+        if (close < 0 || close == open + 1) {
+            return close < 0 ? null : arguments;
+        }
+        int from = open + 1;
+        for (int q = open + 1; q <= close; q++) {
+            if (text.isAny(q, "(", "[", "{") && text.match(q) > q) {
+                q = text.match(q);
+            } else if (text.is(q, ",") || q == close) {
+                if (q == from) {
+                    return null;
+                }
+                arguments.add(new int[] {from, q - 1});
+                from = q + 1;
+            }
+        }
+        return arguments;
+    }
+
+    // How many loops enclose each token of the body
+    private static int[] loopDepths(TokenStream text, int brace, int close) {
+        int[] depths = new int[text.size() + 1];
+        for (int q = brace + 1; q < close; q++) {
+            boolean loop = text.isAny(q, "for", "while") && text.is(q + 1, "(") || text.is(q, "do");
+            // The while of a do-while belongs to the do
+            if (loop && !(text.is(q, "while") && text.is(q - 1, "}") && text.is(text.match(q - 1) - 1, "do"))) {
+                depths[q]++;
+                depths[Math.min(StatementEditor.extent(text, q, close) + 1, text.size())]--;
+            }
+        }
+        for (int q = 1; q < depths.length; q++) {
+            depths[q] += depths[q - 1];
+        }
+        return depths;
+    }
+
+    // A call or assignment at p may be replaced by a block: p is where a statement goes
+    private static boolean isStatementPosition(TokenStream text, int p) {
+        return text.isStatementStart(p) && isInBlock(text, p) || text.isAny(p - 1, "else", "do")
+                || text.is(p - 1, ")") && text.isAny(text.match(p - 1) - 1, "if", "while", "for");
+    }
+
+    // Whether the innermost bracket around p is a brace, unlike the clauses of a for header
+    private static boolean isInBlock(TokenStream text, int p) {
+        int q = p - 1;
+        while (q >= 0 && !text.isAny(q, "{", "(", "[")) {
+            q = text.isAny(q, "}", ")", "]") && text.match(q) >= 0 ? text.match(q) - 1 : q - 1;
+        }
+        return q >= 0 && text.is(q, "{");
+    }
+
+    /**
+     * The statement a block computing the call at {@code p} can go in front of, or -1: a simple
+     * statement or the head of an if or switch, in which the call is evaluated exactly once and
+     * before anything that is sequenced after it.
+     */
+    private static int hoistPoint(TokenStream text, int p) {
+        int s = text.statementStart(p);
+        if (!Declarations.canDeclareBefore(text, s) || !isInBlock(text, s) || NOT_HOISTABLE.contains(text.text(s)) || text.is(s + 1, ":")) {
+            return -1;
+        }
+        int from = s;
+        int to = text.statementEnd(s);
+        if (text.isAny(s, "if", "switch")) {
+            from = s + 2;
+            to = text.is(s + 1, "(") ? text.match(s + 1) : -1;
+        }
+        if (to < 0 || p < from || p > to) {
+            return -1;
+        }
+        int depth = 0;
+        for (int q = from; q < to; q++) {
+            if (text.isAny(q, "&&", "||", "?", "{", "}") || text.is(q, ",") && depth == 0) {
+                return -1;
+            }
+            depth += text.isAny(q, "(", "[") ? 1 : text.isAny(q, ")", "]") ? -1 : 0;
+        }
+        return s;
+    }
+
+    // Whether from..to may assign, allocate or call anything but a math function
+    private static boolean hasEffects(TokenStream text, int from, int to) {
+        for (int q = from; q <= to; q++) {
+            if (ASSIGNMENTS.contains(text.text(q)) || text.isAny(q, "new", "delete", "throw")) {
+                return true;
+            }
+            if (text.is(q, "(") && (text.isAny(q - 1, ")", "]", ">") || text.isIdentifier(q - 1)
+                    && !text.isAny(q - 1, "sizeof", "if", "while", "for", "switch", "return")
+                    && ArithmeticTypes.returnType(text.text(q - 1)) == null)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether an expression whose loosest operator has {@code precedence} needs parentheses in
+     * place of the call {@code p..close}: the operators around the call bind tighter, or as
+     * tight on its left, where the expression would lose its left-to-right grouping.
+     */
+    private static boolean needsParentheses(TokenStream text, int p, int close, int precedence) {
+        int left = 100;
+        if (PRECEDENCE.containsKey(text.text(p - 1)) && CountedLoop.endsOperand(text, p - 2)) {
+            left = PRECEDENCE.get(text.text(p - 1));
+        } else if (!text.isAny(p - 1, "(", "[", "{", ";", "return") && !ASSIGNMENTS.contains(text.text(p - 1))
+                && !text.is(p - 1, ",")) {
+            // A unary operator or a cast
+            left = 2;
+        } else if (text.is(p - 1, ",")) {
+            left = PRECEDENCE.get(",");
+        }
+        int right = 100;
+        if (PRECEDENCE.containsKey(text.text(close + 1))) {
+            right = PRECEDENCE.get(text.text(close + 1));
+        } else if (text.isAny(close + 1, "[", "(", ".", "->", "++", "--")) {
+            right = 1;
+        }
+        boolean leftAssociative = precedence >= 3 && precedence <= 12;
+        return precedence >= left || precedence > right || precedence == right && !leftAssociative;
+    }
+
+    private static String declare(String type, String name) {
+        return type + (type.endsWith("*") ? "" : " ") + name;
+    }
+
+    // Moves lines indented by base to the given indentation
+    private static String reindent(String text, String base, String indentation) {
+        String[] lines = text.split("\n", -1);
+        StringBuilder out = new StringBuilder(indentation).append(lines[0]);
+        for (int l = 1; l < lines.length; l++) {
+            String line = lines[l];
+            int strip = 0;
+            while (strip < base.length() && strip < line.length() && Character.isWhitespace(line.charAt(strip))) {
+                strip++;
+            }
+            line = line.substring(strip);
+            out.append('\n').append(line.isBlank() ? "" : indentation + line);
+        }
+        return out.toString();
+    }
+
+    private static final class Function {
+        private final String name;
+        // The definition in the file, from its first token to the closing brace
+        private final int start;
+        private final int brace;
+        private final int close;
+        private final boolean global;
+        // Declared static or in an anonymous namespace, so no other file can call it
+        private final boolean internal;
+        private final List<Function> callees = new ArrayList<>();
+        private boolean recursive;
+        // The definition as lexed from the file, and as it reads after inlining into it
+        private TokenStream original;
+        private TokenStream text;
+        private boolean changed;
+        private int inlined;
+        private Shape shape;
+        private boolean analyzed;
+        // Tarjan's bookkeeping
+        private int index = -1;
+        private int low;
+        private boolean onStack;
+        private int nextCallee;
+
+        private Function(String name, int start, int brace, int close, boolean global, boolean internal) {
+            this.name = name;
+            this.start = start;
+            this.brace = brace;
+            this.close = close;
+            this.global = global;
+            this.internal = internal;
+        }
+
+        private TokenStream text(TokenStream tokens) {
+            if (original == null) {
+                original = tokens.slice(start, close);
+                text = original;
+            }
+            return text;
+        }
+
+        private Shape shape(TokenStream tokens) {
+            if (!analyzed) {
+                analyzed = true;
+                shape = Shape.of(text(tokens), brace - start);
+            }
+            return shape;
+        }
+    }
+
+    private static final class Parameter {
+        private final String name;
+        // As written, e.g. "const double *"
+        private final String type;
+        private final String canonical;
+        private final boolean written;
+        // Occurrences in the body
+        private final int reads;
+
+        private Parameter(String name, String type, String canonical, boolean written, int reads) {
+            this.name = name;
+            this.type = type;
+            this.canonical = canonical;
+            this.written = written;
+            this.reads = reads;
+        }
+    }
+
+    // What a definition looks like to its callers, if it can be copied into them
+    private static final class Shape {
+        private final TokenStream text;
+        private final Declarations declarations;
+        private final int brace;
+        private final int close;
+        private final int size;
+        // Null for void
+        private final String returnType;
+        private final String returnCanonical;
+        // The return type can declare a temporary and be cast to
+        private final boolean castable;
+        private final List<Parameter> parameters;
+        // The return ending the body, or -1
+        private final int returnToken;
+        // Names the body uses without declaring them
+        private final Set<String> freeNames;
+        // The returned value may not have the return type until converted
+        private final boolean needsCast;
+        // The body may reach variables through pointers or calls, or E has effects
+        private final boolean touchesMemory;
+        private final boolean hasEffects;
+        // How loosely the returned expression binds, as in PRECEDENCE
+        private final int precedence;
+
+        private Shape(TokenStream text, int brace, String returnType, boolean castable, List<Parameter> parameters,
+                int returnToken, Declarations declarations, Set<String> freeNames) {
+            this.text = text;
+            this.brace = brace;
+            this.close = text.size() - 1;
+            this.size = close - brace - 1;
+            this.returnType = returnType;
+            this.returnCanonical = returnType != null && !returnType.contains("*")
+                    ? ArithmeticTypes.canonical(returnType) : null;
+            this.castable = castable;
+            this.parameters = parameters;
+            this.returnToken = returnToken;
+            this.declarations = declarations;
+            this.freeNames = freeNames;
+            this.needsCast = returnType != null && needsCast();
+            this.hasEffects = returnType != null && hasEffects(text, returnToken + 1, close - 2);
+            boolean touches = false;
+            for (int q = brace + 1; q < close && !touches; q++) {
+                touches = text.isAny(q, "[", "->") || text.is(q, "*") && !CountedLoop.endsOperand(text, q - 1)
+                        || text.is(q, "(") && hasEffects(text, q, q);
+            }
+            this.touchesMemory = touches;
+            int precedence = 1;
+            for (int q = returnToken + 1; returnType != null && q < close - 1; q++) {
+                if (text.isAny(q, "(", "[") && text.match(q) > q) {
+                    q = text.match(q);
+                } else if (PRECEDENCE.containsKey(text.text(q)) && CountedLoop.endsOperand(text, q - 1)) {
+                    precedence = Math.max(precedence, PRECEDENCE.get(text.text(q)));
+                } else if (q == returnToken + 1 && !text.isIdentifier(q) && !text.isType(q, TokenType.NUMBER)) {
+                    precedence = Math.max(precedence, 2);
+                }
+            }
+            this.precedence = precedence;
+        }
+
+        // Whether name means anything in the body but a parameter, which copies rename
+        private boolean mentions(String name) {
+            for (Parameter parameter : parameters) {
+                if (parameter.name.equals(name)) {
+                    return false;
+                }
+            }
+            return declarations.isMentioned(name);
+        }
+
+        // The body is return E;
+        private boolean isExpression() {
+            return returnType != null && returnToken == brace + 1;
+        }
+
+        // Whether E might have a type other than the return type
+        private boolean needsCast() {
+            List<String> types = new ArrayList<>();
+            boolean logical = false;
+            boolean arithmetic = false;
+            for (int q = returnToken + 1; q < close - 1; q++) {
+                if (text.isType(q, TokenType.NUMBER)) {
+                    types.add(ArithmeticTypes.ofLiteral(text.text(q)));
+                } else if (text.isIdentifier(q)) {
+                    Declarations.Declaration declaration = declarations.resolve(text.text(q), q);
+                    types.add(text.is(q + 1, "(") ? ArithmeticTypes.returnType(text.text(q))
+                            : declaration != null ? ArithmeticTypes.canonical(declaration.getType()) : null);
+                } else {
+                    logical |= LOGICAL.contains(text.text(q));
+                    arithmetic |= ARITHMETIC.contains(text.text(q)) && !text.isAny(q, "(", ")");
+                    if (text.isAny(q, "?", "[", ".", "->")) {
+                        return true;
+                    }
+                }
+            }
+            if (logical) {
+                return arithmetic || !"int".equals(returnCanonical);
+            }
+            return returnCanonical == null || !returnCanonical.equals(ArithmeticTypes.common(types));
+        }
+
+        private static Shape of(TokenStream text, int brace) {
+            int open = StatementEditor.functionParameters(text, brace);
+            int close = text.size() - 1;
+            if (open < 1 || text.match(open) != brace - 1) {
+                return null;
+            }
+            String returnType = returnType(text, open - 2);
+            if (returnType == null) {
+                return null;
+            }
+            for (int q = brace + 1; q < close; q++) {
+                if (NOT_COPYABLE.contains(text.text(q)) || text.isIdentifier(q) && text.is(q + 1, ":")
+                        && text.isStatementStart(q) && !text.isAny(q, "default", "public", "private", "protected")) {
+                    return null;
+                }
+            }
+            // A single exit: one return, ending the body
+            int returnToken = -1;
+            for (int q = brace + 1; q < close; q++) {
+                if (text.is(q, "return")) {
+                    if (returnToken >= 0 || !text.isStatementStart(q) || text.statementEnd(q) != close - 1) {
+                        return null;
+                    }
+                    returnToken = q;
+                }
+            }
+            boolean isVoid = returnType.equals("void");
+            if (isVoid ? returnToken >= 0 && !text.is(returnToken + 1, ";") : returnToken < 0 || text.is(returnToken + 1, ";")) {
+                return null;
+            }
+
+            Declarations declarations = Declarations.scan(text);
+            List<Parameter> parameters = parameters(text, open, brace - 1, declarations, close);
+            if (parameters == null) {
+                return null;
+            }
+            Set<String> freeNames = new HashSet<>();
+            for (int q = brace + 1; q < close; q++) {
+                if (text.isIdentifier(q) && !text.isAny(q - 1, ".", "->") && declarations.resolve(text.text(q), q) == null) {
+                    freeNames.add(text.text(q));
+                }
+            }
+            boolean castable = returnType.endsWith("*") || PRIMITIVES.containsAll(Arrays.asList(returnType.split(" ")));
+            return new Shape(text, brace, isVoid ? null : returnType, castable, parameters, returnToken,
+                    declarations, freeNames);
+        }
+
+        // The return type words of a head ending at last, without specifiers, or null if unsupported
+        private static String returnType(TokenStream text, int last) {
+            StringBuilder type = new StringBuilder();
+            boolean pointer = text.indexOf("*", 0, last + 1) >= 0;
+            for (int q = 0; q <= last; q++) {
+                // const on a value is dropped, and a const pointer cannot be assigned the result
+                if (SPECIFIERS.contains(text.text(q)) || text.is(q, "const") && !pointer) {
+                    continue;
+                }
+                if (!text.isIdentifier(q) && !text.is(q, "*") || text.isAny(q, "template", "virtual", "operator", "friend")
+                        || text.is(q, "const") && text.is(q - 1, "*")) {
+                    return null;
+                }
+                boolean star = text.is(q, "*");
+                type.append(type.length() > 0 && !(star && text.is(q - 1, "*")) ? " " : "").append(text.text(q));
+            }
+            return type.length() > 0 ? type.toString() : null;
+        }
+
+        // Plain by-value parameters (T name), or null if any is something else
+        private static List<Parameter> parameters(TokenStream text, int open, int paramClose,
+                Declarations declarations, int close) {
+            List<Parameter> parameters = new ArrayList<>();
+            if (paramClose == open + 2 && text.is(open + 1, "void")) {
+                return parameters;
+            }
+            List<int[]> ranges = arguments(text, open, paramClose);
+            if (ranges == null) {
+                return null;
+            }
+            for (int[] range : ranges) {
+                int name = range[1];
+                if (!text.isIdentifier(name) || name == range[0]) {
+                    return null;
+                }
+                for (int q = range[0]; q < name; q++) {
+                    if (!text.isIdentifier(q) && !text.is(q, "*")) {
+                        return null;
+                    }
+                }
+                Declarations.Declaration declaration = declarations.resolve(text.text(name), name + 1);
+                if (declaration == null || declaration.getToken() != name) {
+                    return null;
+                }
+                boolean written = false;
+                int reads = 0;
+                for (int use : declarations.uses(declaration)) {
+                    written |= CountedLoop.isWritten(text, use) || text.isAny(use + 1, "++", "--");
+                    reads++;
+                }
+                String type = text.text(range[0], name - 1);
+                String canonical = text.indexOf("*", range[0], name) < 0
+                        ? ArithmeticTypes.canonical(Declarations.typeOf(text, range[0], name - 1)) : null;
+                parameters.add(new Parameter(text.text(name), type, canonical, written, reads));
+            }
+            return parameters;
+        }
+    }
+}
@@ -0,0 +1,734 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.CodeTransformer.Declarations.Declaration;
+import com.example.cppoptimizer.service.Lexer.SourceRewriter;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
+
+/**
+ * Reorders perfectly nested counted loops ({@link CountedLoop}) to follow the order arrays
+ * sit in memory. The rows of a C array are contiguous, so a nest runs fastest when its
+ * innermost loop steps through the last subscript:
+ *
+ * <ul>
+ * <li>The two innermost loops of a nest are interchanged when more of the body's array
+ * accesses walk along their rows with the outer counter than with the inner one:
+ * {@code for (j) for (i) a[i][j]} becomes {@code for (i) for (j) a[i][j]}.</li>
+ * <li>Adjacent nests with the same bounds that use the same arrays are fused, so each
+ * element is used by both bodies while it is still in cache.</li>
+ * <li>Nests that cross the rows of one array whichever way they run, such as a transpose,
+ * are tiled into square blocks of the configured size when their bounds are not small.</li>
+ * </ul>
+ *
+ * <p>Each change keeps the order in which every array element is stored and read back: the
+ * arrays the body stores to must be indexed the same way everywhere, one counter per
+ * subscript, and must be arrays of their own rather than pointers that could reach the
+ * others. Nests that call functions other than pure math, leave early, work through
+ * pointers or carry a value from one iteration to the next are left alone.
+ */
+public class LoopNestOptimizer extends CodeTransformer {
+    public static final int DEFAULT_TILE_SIZE = 32;
+    private static final Set<String> UNSAFE = Set.of(
+            "for", "while", "do", "break", "continue", "return", "goto", "case", "default", "switch",
+            "throw", "try", "co_await", "co_yield", "co_return", "asm", "__asm__", "volatile", "static");
+    private static final Set<String> PURE_FUNCTIONS = Set.of(
+            "abs", "labs", "fabs", "fabsf", "sqrt", "sqrtf", "cbrt", "exp", "expf", "exp2", "log", "logf",
+            "log2", "log10", "pow", "powf", "sin", "sinf", "cos", "cosf", "tan", "atan", "atan2", "floor",
+            "ceil", "round", "trunc", "fmin", "fmax", "fminf", "fmaxf", "fma", "hypot", "min", "max",
+            // Keywords that take parentheses without being calls
+            "if", "sizeof", "alignof", "_Alignof", "static_cast", "const_cast");
+    private static final Set<String> DECLARATION_STARTS = Set.of(
+            "int", "long", "short", "unsigned", "signed", "char", "float", "double", "bool", "_Bool", "auto",
+            "const", "size_t", "struct", "union", "enum", "register");
+    private static final Set<String> ASSIGNMENTS = Set.of(
+            "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=", "++", "--");
+    private static final String INDENT = "    ";
+
+    private final int tileSize;
+
+    public LoopNestOptimizer() {
+        this(DEFAULT_TILE_SIZE);
+    }
+
+    /** {@code tileSize} is the edge of the blocks nests are tiled into; 0 turns tiling off. */
+    public LoopNestOptimizer(int tileSize) {
+        if (tileSize != 0 && (tileSize < 2 || tileSize > 4096)) {
+            throw new IllegalArgumentException("Tile size must be 0 or 2 to 4096, not " + tileSize);
+        }
+        this.tileSize = tileSize;
+    }
+
+    @Override
+    public String transform(TokenStream tokens, CodeOptimizerService.Language lang) {
+        Optimization optimization = null;
+        for (int i = 0; i < tokens.size(); i++) {
+            checkpoint();
+            if (!tokens.is(i, "for") || !tokens.isStatementStart(i) || tokens.isType(i - 1, TokenType.PREPROCESSOR)) {
+                continue;
+            }
+            Nest nest = Nest.parse(tokens, i);
+            if (nest == null) {
+                continue;
+            }
+            if (optimization == null) {
+                optimization = new Optimization(tokens);
+            }
+            int next = nest.outermost().getClose() + 1;
+            Nest following = tokens.is(next, "for") ? Nest.parse(tokens, next) : null;
+            if (following != null && optimization.fuse(nest, following)) {
+                i = following.outermost().getClose();
+            } else if (nest.depth() >= 2 && optimization.reorder(nest)) {
+                i = nest.outermost().getClose();
+            } else {
+                // Loops inside the innermost body may form nests of their own
+                i = nest.innermost().getOpen();
+            }
+        }
+        return optimization != null ? optimization.rewriter.toString() : tokens.getSource();
+    }
+
+    // A fused nest may fuse with the next one, and an interchanged one may still need tiling
+    @Override
+    public Set<String> enables() {
+        return Set.of("optimizeLoopNests");
+    }
+
+    // Whether arrays are separate objects depends on their declarations, which may be global
+    @Override
+    public boolean requiresWholeFile() {
+        return true;
+    }
+
+    @Override
+    public boolean isApplicable(TokenStream tokens) {
+        return tokens.contains("for") && tokens.contains("[");
+    }
+
+    @Override
+    public String getInsight() {
+        return "Reordered nested array loops for cache locality: interchanged loops to walk arrays along their rows, "
+                + "fused adjacent loops over the same arrays and tiled nests that cross rows.";
+    }
+
+    @Override
+    public String getName() {
+        return "optimizeLoopNests";
+    }
+
+    @Override
+    public String describe() {
+        return getName() + "(tileSize=" + tileSize + ")";
+    }
+
+    // "a", "a and b", "a, b and c"
+    private static String names(Set<String> names) {
+        List<String> list = new ArrayList<>(names);
+        if (list.size() == 1) {
+            return list.get(0);
+        }
+        return String.join(", ", list.subList(0, list.size() - 1)) + " and " + list.get(list.size() - 1);
+    }
+
+    /** The state of one run: the file's declarations, the names taken and the edits made. */
+    private final class Optimization {
+        private final TokenStream tokens;
+        private final Declarations declarations;
+        private final SourceRewriter rewriter;
+        private final FreshNames freshNames;
+        // Function bodies as {name token, opening brace, closing brace}
+        private final List<int[]> functions = new ArrayList<>();
+
+        private Optimization(TokenStream tokens) {
+            this.tokens = tokens;
+            this.declarations = Declarations.scan(tokens);
+            this.freshNames = new FreshNames(declarations);
+            this.rewriter = new SourceRewriter(tokens);
+            for (int i = 0; i < tokens.size(); i++) {
+                if (tokens.is(i, "{")) {
+                    int open = StatementEditor.functionParameters(tokens, i);
+                    if (open >= 0 && tokens.match(i) > i) {
+                        functions.add(new int[] {open - 1, i, tokens.match(i)});
+                        i = tokens.match(i);
+                    }
+                }
+            }
+        }
+
+        /** Fuses {@code second} into {@code first} when their headers match and they share an array. */
+        private boolean fuse(Nest first, Nest second) {
+            if (first.depth() != second.depth()) {
+                return false;
+            }
+            // The second nest's counters, named as in the first one
+            Map<String, String> renames = new HashMap<>();
+            for (int k = 0; k < first.depth(); k++) {
+                if (!first.loops.get(k).getVar().equals(second.loops.get(k).getVar())) {
+                    renames.put(second.loops.get(k).getVar(), first.loops.get(k).getVar());
+                }
+            }
+            for (int k = 0; k < first.depth(); k++) {
+                CountedLoop a = first.loops.get(k);
+                CountedLoop b = second.loops.get(k);
+                if (a.getStep() != b.getStep() || a.isInclusive() != b.isInclusive()
+                        || !normalized(a.getTypeFrom(), a.getTypeTo(), Map.of()).equals(normalized(b.getTypeFrom(), b.getTypeTo(), renames))
+                        || !normalized(a.getInitFrom(), a.getInitTo(), Map.of()).equals(normalized(b.getInitFrom(), b.getInitTo(), renames))
+                        || !normalized(a.getBoundFrom(), a.getBoundTo(), Map.of()).equals(normalized(b.getBoundFrom(), b.getBoundTo(), renames))) {
+                    return false;
+                }
+            }
+            Body one = scan(first, Map.of());
+            Body two = scan(second, renames);
+            Set<Declaration> shared = new LinkedHashSet<>();
+            Set<String> sharedNames = new LinkedHashSet<>();
+            for (Access access : one.accesses) {
+                for (Access other : two.accesses) {
+                    if (access.declaration == other.declaration && shared.add(access.declaration)) {
+                        sharedNames.add(access.name);
+                    }
+                }
+            }
+            if (shared.isEmpty()) {
+                return false;
+            }
+            String label = "the loops over " + first.outermost().getVar() + " at lines " + tokens.lineOf(first.forToken(0))
+                    + " and " + tokens.lineOf(second.forToken(0)) + " in " + functionName(first.forToken(0));
+            String reason = one.reason != null ? one.reason : two.reason;
+            if (reason == null) {
+                reason = checkFusion(first, second, one, two, renames);
+            }
+            if (reason != null) {
+                note("Did not fuse " + label + ": " + reason + ".");
+                return false;
+            }
+            CountedLoop inner = first.innermost();
+            CountedLoop other = second.innermost();
+            String body = "\n" + tokens.indentationOf(two.from) + other.render(tokens, two.from, two.to, 0, renames);
+            if (one.from <= one.to) {
+                rewriter.insertAfter(one.to, body);
+            } else {
+                rewriter.insertAfter(inner.getOpen(), body);
+            }
+            rewriter.deleteLines(second.forToken(0), second.outermost().getClose());
+            note("Fused " + label + ", which both use " + names(sharedNames) + ".");
+            return true;
+        }
+
+        private String checkFusion(Nest first, Nest second, Body one, Body two, Map<String, String> renames) {
+            for (Map.Entry<String, String> rename : renames.entrySet()) {
+                if (!renames.containsKey(rename.getValue()) && tokens.indexOf(rename.getValue(), two.from, two.to + 1) >= 0) {
+                    return "the second loop uses " + rename.getValue() + " for something else";
+                }
+            }
+            Set<String> header = new HashSet<>(first.headerNames(tokens));
+            header.addAll(second.headerNames(tokens));
+            if (first.innermost().bodyWrites(tokens, header) || second.innermost().bodyWrites(tokens, header)) {
+                return "their bodies change a counter or a bound";
+            }
+            for (String name : one.declared) {
+                if (tokens.indexOf(name, two.from, two.to + 1) >= 0) {
+                    return "both loops use the name " + name;
+                }
+            }
+            for (String name : two.declared) {
+                if (tokens.indexOf(name, one.from, one.to + 1) >= 0) {
+                    return "both loops use the name " + name;
+                }
+            }
+            for (String name : one.written.keySet()) {
+                if (tokens.indexOf(name, two.from, two.to + 1) >= 0) {
+                    return "the second loop uses " + name + ", which the first one changes";
+                }
+            }
+            for (String name : two.written.keySet()) {
+                if (tokens.indexOf(name, one.from, one.to + 1) >= 0) {
+                    return "the first loop uses " + name + ", which the second one changes";
+                }
+            }
+            // Each element stored to must be used in a single iteration, so running both bodies
+            // in that iteration keeps the order of its uses
+            List<Access> accesses = new ArrayList<>(one.accesses);
+            accesses.addAll(two.accesses);
+            return checkStores(accesses, first.vars(), true);
+        }
+
+        /**
+         * Interchanges or tiles the two innermost loops of {@code nest}. Returns whether it did.
+         */
+        private boolean reorder(Nest nest) {
+            CountedLoop outer = nest.loops.get(nest.depth() - 2);
+            CountedLoop inner = nest.innermost();
+            Body body = scan(nest, Map.of());
+            int along = 0;
+            int across = 0;
+            int outerScore = 0;
+            int innerScore = 0;
+            Set<String> outerRows = new LinkedHashSet<>();
+            Set<String> crossed = new LinkedHashSet<>();
+            for (Access access : body.accesses) {
+                outerScore += access.score(outer.getVar());
+                innerScore += access.score(inner.getVar());
+                if (access.along(outer.getVar())) {
+                    outerRows.add(access.name);
+                }
+                if (access.along(inner.getVar())) {
+                    along++;
+                } else if (access.mentions(inner.getVar())) {
+                    across++;
+                    crossed.add(access.name);
+                }
+            }
+            boolean interchange = outerScore > innerScore;
+            boolean tile = !interchange && tileSize > 0 && along > 0 && across > 0 && outer.getStep() == 1
+                    && inner.getStep() == 1 && isLarge(outer) && isLarge(inner);
+            if (!interchange && !tile) {
+                return false;
+            }
+            int forOuter = nest.forToken(nest.depth() - 2);
+            int forInner = nest.forToken(nest.depth() - 1);
+            String label = "the loops over " + outer.getVar() + " and " + inner.getVar() + " in " + functionName(forOuter)
+                    + " (line " + tokens.lineOf(forOuter) + ")";
+            String reason = body.reason != null ? body.reason : checkReorder(nest, body);
+            if (reason != null) {
+                note("Left " + label + " as they are: " + reason + ".");
+                return false;
+            }
+            if (interchange) {
+                rewriter.replace(forOuter + 1, outer.getOpen() - 1, tokens.text(forInner + 1, inner.getOpen() - 1));
+                rewriter.replace(forInner + 1, inner.getOpen() - 1, tokens.text(forOuter + 1, outer.getOpen() - 1));
+                note("Interchanged " + label + ", so the inner loop walks along the rows of " + names(outerRows) + ".");
+            } else {
+                rewriter.replace(forOuter, outer.getClose(), tiled(forOuter, outer, inner));
+                note("Tiled " + label + " into " + tileSize + " x " + tileSize + " blocks, as it crosses the rows of "
+                        + names(crossed) + ".");
+            }
+            return true;
+        }
+
+        private String checkReorder(Nest nest, Body body) {
+            CountedLoop outer = nest.loops.get(nest.depth() - 2);
+            CountedLoop inner = nest.innermost();
+            Set<String> innerHeader = CountedLoop.expressionNames(tokens, inner.getInitFrom(), inner.getInitTo());
+            Set<String> innerBound = CountedLoop.expressionNames(tokens, inner.getBoundFrom(), inner.getBoundTo());
+            if (innerHeader == null || innerBound == null || innerHeader.contains(outer.getVar())
+                    || innerBound.contains(outer.getVar())) {
+                return "the bounds of the loop over " + inner.getVar() + " depend on " + outer.getVar();
+            }
+            if (inner.bodyWrites(tokens, new HashSet<>(nest.headerNames(tokens)))) {
+                return "the body changes a counter or a bound";
+            }
+            for (Map.Entry<String, Integer> scalar : body.written.entrySet()) {
+                String reason = checkSum(body, scalar.getKey(), scalar.getValue());
+                if (reason != null) {
+                    return reason;
+                }
+            }
+            return checkStores(body.accesses, List.of(outer.getVar(), inner.getVar()), false);
+        }
+
+        // Integer sums come out the same in any order; anything else carries a value across iterations
+        private String checkSum(Body body, String name, int first) {
+            Declaration declaration = declarations.resolve(name, first);
+            String type = declaration != null ? declaration.getType() : "";
+            boolean sum = !type.isEmpty() && !type.contains("float") && !type.contains("double")
+                    && !declarations.isAliased(declaration);
+            for (int p = body.from; sum && p <= body.to; p++) {
+                if (tokens.is(p, name) && !tokens.isAny(p - 1, ".", "->")) {
+                    int end = tokens.statementEnd(p);
+                    sum = tokens.isStatementStart(p) && tokens.isAny(p + 1, "+=", "-=") && end > p
+                            && tokens.indexOf(name, p + 2, end) < 0;
+                }
+            }
+            return sum ? null : "it carries " + name + " from one iteration to the next";
+        }
+
+        // Why reordering the iterations could change the order in which an element of a stored-to
+        // array is used, or null. Its accesses must all name the same element, one counter per
+        // subscript, and the element must follow one of counters, or every one of them with all.
+        // The array must also be an object of its own, which no other array in the nest can reach
+        private String checkStores(List<Access> accesses, List<String> counters, boolean all) {
+            Map<Declaration, Access> stores = new LinkedHashMap<>();
+            for (Access access : accesses) {
+                if (access.write) {
+                    stores.putIfAbsent(access.declaration, access);
+                }
+            }
+            for (Access store : stores.values()) {
+                for (Access access : accesses) {
+                    if (access.declaration == store.declaration) {
+                        if (!access.key.equals(store.key)) {
+                            return "it stores to " + store.name + "[" + store.key + "] and also uses " + access.name + "["
+                                    + access.key + "]";
+                        }
+                        if (!access.regular) {
+                            return "it indexes " + store.name + " with more than one counter in a subscript";
+                        }
+                    } else if (!separate(store.declaration, access.declaration)) {
+                        return "it cannot tell whether " + store.name + " and " + access.name + " overlap";
+                    }
+                }
+                boolean follows = false;
+                for (String counter : counters) {
+                    follows |= store.mentions(counter);
+                }
+                if (all ? !store.mentionsAll(counters) : !follows) {
+                    return "it stores to " + store.name + "[" + store.key + "] on more than one iteration";
+                }
+            }
+            return null;
+        }
+
+        private boolean separate(Declaration a, Declaration b) {
+            return isArray(a) && isArray(b) || isPrivate(a) || isPrivate(b);
+        }
+
+        // Declared as an array rather than as a pointer or a parameter
+        private boolean isArray(Declaration declaration) {
+            int t = declaration.getToken();
+            return tokens.is(t + 1, "[") && !isParameter(t);
+        }
+
+        // A local array only ever indexed, so no pointer can lead to it
+        private boolean isPrivate(Declaration declaration) {
+            if (!declaration.isLocal() || !isArray(declaration)) {
+                return false;
+            }
+            for (int use : declarations.uses(declaration)) {
+                if (!tokens.is(use + 1, "[")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Whether the declarator at t sits in a parenthesized list
+        private boolean isParameter(int t) {
+            int depth = 0;
+            for (int p = t - 1; p >= 0; p--) {
+                if (tokens.isAny(p, ")", "]")) {
+                    depth++;
+                } else if (tokens.isAny(p, "(", "[")) {
+                    if (depth == 0) {
+                        return tokens.is(p, "(");
+                    }
+                    depth--;
+                } else if (depth == 0 && tokens.isAny(p, ";", "{", "}")) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        // Loops whose literal bounds fit in one block gain nothing from tiling
+        private boolean isLarge(CountedLoop loop) {
+            long init = loop.literalInit(tokens);
+            int bound = loop.getBoundFrom();
+            if (init < 0 || bound != loop.getBoundTo() || !tokens.isDecimalInteger(bound) || tokens.length(bound) > 9) {
+                return true;
+            }
+            return Long.parseLong(tokens.text(bound)) - init > tileSize;
+        }
+
+        // for (ii) for (jj) for (i in block ii) for (j in block jj) body
+        private String tiled(int forOuter, CountedLoop outer, CountedLoop inner) {
+            String indent = tokens.indentationOf(forOuter);
+            String outerBlock = freshNames.based(outer.getVar() + "_block");
+            String innerBlock = freshNames.based(inner.getVar() + "_block");
+            StringBuilder out = new StringBuilder();
+            out.append(blockHeader(outer, outerBlock)).append('\n');
+            out.append(indent).append(INDENT).append(blockHeader(inner, innerBlock)).append('\n');
+            out.append(indent).append(INDENT.repeat(2)).append(pointHeader(outer, outerBlock)).append('\n');
+            out.append(indent).append(INDENT.repeat(3)).append(pointHeader(inner, innerBlock));
+            // The body moves two levels deeper
+            String body = tokens.getSource().substring(tokens.end(inner.getOpen()), tokens.start(inner.getClose()));
+            body = body.substring(0, body.lastIndexOf('\n') + 1);
+            for (String line : body.split("\n", -1)) {
+                if (!line.isBlank()) {
+                    out.append('\n').append(INDENT.repeat(2)).append(line);
+                }
+            }
+            out.append('\n');
+            for (int level = 3; level >= 0; level--) {
+                out.append(indent).append(INDENT.repeat(level)).append('}').append(level > 0 ? "\n" : "");
+            }
+            return out.toString();
+        }
+
+        private String blockHeader(CountedLoop loop, String block) {
+            return "for (" + tokens.text(loop.getTypeFrom(), loop.getTypeTo()) + " " + block + " = "
+                    + tokens.text(loop.getInitFrom(), loop.getInitTo()) + "; " + block + (loop.isInclusive() ? " <= " : " < ")
+                    + tokens.text(loop.getBoundFrom(), loop.getBoundTo()) + "; " + block + " += " + tileSize + ") {";
+        }
+
+        private String pointHeader(CountedLoop loop, String block) {
+            String var = loop.getVar();
+            return "for (" + tokens.text(loop.getTypeFrom(), loop.getTypeTo()) + " " + var + " = " + block + "; " + var
+                    + " < " + block + " + " + tileSize + " && " + var + (loop.isInclusive() ? " <= " : " < ")
+                    + tokens.text(loop.getBoundFrom(), loop.getBoundTo()) + "; " + var + "++) {";
+        }
+
+        // What the innermost body of nest does, with its counters named through renames
+        private Body scan(Nest nest, Map<String, String> renames) {
+            CountedLoop inner = nest.innermost();
+            Body body = new Body(inner.getOpen() + 1, inner.getClose() - 1);
+            Map<String, String> counters = new HashMap<>();
+            for (String var : nest.vars()) {
+                counters.put(var, renames.getOrDefault(var, var));
+            }
+            for (int p = body.from; p <= body.to && body.reason == null; p++) {
+                checkpoint();
+                String text = tokens.text(p);
+                if (tokens.isType(p, TokenType.PREPROCESSOR)) {
+                    body.reason = "it contains preprocessor directives";
+                } else if (UNSAFE.contains(text)) {
+                    body.reason = "it uses " + text;
+                } else if (tokens.isIdentifier(p) && tokens.is(p + 1, ":") && tokens.isStatementStart(p)) {
+                    body.reason = "it has a label";
+                } else if (tokens.isIdentifier(p) && tokens.is(p + 1, "(")) {
+                    if (!PURE_FUNCTIONS.contains(text) && !DECLARATION_STARTS.contains(text)) {
+                        body.reason = "it calls " + text;
+                    }
+                } else if (tokens.is(p, "(") && tokens.isAny(p - 1, ")", "]")) {
+                    body.reason = "it calls through a pointer";
+                } else if (tokens.isAny(p, ".", "->")) {
+                    body.reason = "it accesses struct members";
+                } else if (tokens.isAny(p, "*", "&") && !CountedLoop.endsOperand(tokens, p - 1)) {
+                    body.reason = "it works through pointers";
+                } else if (tokens.isIdentifier(p) && tokens.is(p + 1, "[")) {
+                    p = access(inner, body, p, counters);
+                } else if (tokens.isIdentifier(p) && !counters.containsKey(text)) {
+                    // Resolving after p also finds a declarator at p
+                    Declaration declaration = declarations.resolve(text, p + 1);
+                    if (declaration != null && declaration.getToken() >= body.from) {
+                        if (declaration.getToken() == p) {
+                            body.declared.add(text);
+                        }
+                    } else if (CountedLoop.isWritten(tokens, p)) {
+                        body.written.putIfAbsent(text, p);
+                    }
+                }
+            }
+            return body;
+        }
+
+        // Records the element access at p and returns its last token; sets the reason when it cannot be followed
+        private int access(CountedLoop inner, Body body, int p, Map<String, String> counters) {
+            String name = tokens.text(p);
+            Declaration declaration = declarations.resolve(name, p);
+            if (declaration == null) {
+                body.reason = "it indexes " + name + ", which is not declared in the file";
+                return p;
+            }
+            Access access = new Access(name, declaration);
+            StringBuilder key = new StringBuilder();
+            int q = p + 1;
+            while (tokens.is(q, "[")) {
+                int close = tokens.match(q);
+                if (close <= q + 1) {
+                    body.reason = "it indexes " + name + " in a way it cannot follow";
+                    return p;
+                }
+                Set<String> mentioned = new LinkedHashSet<>();
+                int at = -1;
+                for (int r = q + 1; r < close; r++) {
+                    String text = tokens.text(r);
+                    if (tokens.is(r, "[")) {
+                        body.reason = "it indexes " + name + " indirectly";
+                        return p;
+                    }
+                    if (counters.containsKey(text)) {
+                        if (!mentioned.add(counters.get(text))) {
+                            at = -2;
+                        } else if (at == -1) {
+                            at = r;
+                        }
+                    } else if (tokens.isIdentifier(r) && !tokens.is(r + 1, "(")) {
+                        Declaration index = declarations.resolve(text, r);
+                        if (index == null || index.getToken() >= body.from || inner.bodyWrites(tokens, Set.of(text))) {
+                            body.reason = "it indexes " + name + " with " + text + ", which changes inside the loop";
+                            return p;
+                        }
+                    }
+                }
+                boolean unit = mentioned.size() == 1 && at >= 0 && isUnitStride(q + 1, close - 1, at);
+                access.subscripts.add(mentioned);
+                access.units.add(unit);
+                key.append(key.length() > 0 ? "][" : "").append(normalized(q + 1, close - 1, counters));
+                q = close + 1;
+            }
+            access.key = key.toString();
+            access.write = ASSIGNMENTS.contains(tokens.text(q)) || tokens.isAny(p - 1, "++", "--");
+            access.regular = access.isRegular();
+            body.accesses.add(access);
+            return q - 1;
+        }
+
+        // i, i + e, i - e or e + i, where e only adds, subtracts and multiplies
+        private boolean isUnitStride(int from, int to, int at) {
+            for (int q = from; q <= to; q++) {
+                if (!tokens.isIdentifier(q) && !tokens.isType(q, TokenType.NUMBER) && !tokens.isAny(q, "+", "-", "*", "(", ")")) {
+                    return false;
+                }
+            }
+            return at == from && (at == to || tokens.isAny(at + 1, "+", "-"))
+                    || at == to && tokens.is(at - 1, "+") && at - 1 > from;
+        }
+
+        // Tokens from..to joined by spaces, with identifiers replaced through renames
+        private String normalized(int from, int to, Map<String, String> renames) {
+            StringBuilder sb = new StringBuilder();
+            for (int p = from; p <= to; p++) {
+                String text = tokens.text(p);
+                sb.append(sb.length() > 0 ? " " : "").append(tokens.isIdentifier(p) ? renames.getOrDefault(text, text) : text);
+            }
+            return sb.toString();
+        }
+
+        private String functionName(int p) {
+            for (int[] function : functions) {
+                if (function[1] < p && p < function[2]) {
+                    return tokens.text(function[0]);
+                }
+            }
+            return "the file";
+        }
+    }
+
+    /** Counted loops each making up the whole body of the one before, outermost first. */
+    private static final class Nest {
+        private final List<Integer> fors;
+        private final List<CountedLoop> loops;
+
+        private Nest(List<Integer> fors, List<CountedLoop> loops) {
+            this.fors = fors;
+            this.loops = loops;
+        }
+
+        static Nest parse(TokenStream tokens, int forToken) {
+            List<Integer> fors = new ArrayList<>();
+            List<CountedLoop> loops = new ArrayList<>();
+            CountedLoop loop = CountedLoop.parse(tokens, forToken);
+            int f = forToken;
+            while (loop != null) {
+                fors.add(f);
+                loops.add(loop);
+                f = loop.getOpen() + 1;
+                CountedLoop next = tokens.is(f, "for") ? CountedLoop.parse(tokens, f) : null;
+                loop = next != null && next.getClose() == loop.getClose() - 1 ? next : null;
+            }
+            return loops.isEmpty() ? null : new Nest(fors, loops);
+        }
+
+        int depth() { return loops.size(); }
+        int forToken(int level) { return fors.get(level); }
+        CountedLoop outermost() { return loops.get(0); }
+        CountedLoop innermost() { return loops.get(loops.size() - 1); }
+
+        List<String> vars() {
+            List<String> vars = new ArrayList<>();
+            for (CountedLoop loop : loops) {
+                vars.add(loop.getVar());
+            }
+            return vars;
+        }
+
+        // Counters and the variables the headers read
+        List<String> headerNames(TokenStream tokens) {
+            List<String> names = vars();
+            for (CountedLoop loop : loops) {
+                names.addAll(loop.getBoundNames());
+                Set<String> init = CountedLoop.expressionNames(tokens, loop.getInitFrom(), loop.getInitTo());
+                if (init != null) {
+                    names.addAll(init);
+                }
+            }
+            return names;
+        }
+    }
+
+    /** The innermost body of a nest: its element accesses, and the variables it declares and changes. */
+    private static final class Body {
+        private final int from;
+        private final int to;
+        private final List<Access> accesses = new ArrayList<>();
+        private final Set<String> declared = new HashSet<>();
+        // Variables from outside the body it changes, with their first occurrence
+        private final Map<String, Integer> written = new LinkedHashMap<>();
+        private String reason;
+
+        private Body(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /** One element access: the counters each subscript mentions and whether it steps with them one at a time. */
+    private static final class Access {
+        private final String name;
+        private final Declaration declaration;
+        private final List<Set<String>> subscripts = new ArrayList<>();
+        private final List<Boolean> units = new ArrayList<>();
+        private String key;
+        private boolean write;
+        // Each subscript follows at most one counter, one element at a time, and no counter two subscripts
+        private boolean regular;
+
+        private Access(String name, Declaration declaration) {
+            this.name = name;
+            this.declaration = declaration;
+        }
+
+        boolean mentions(String counter) {
+            for (Set<String> subscript : subscripts) {
+                if (subscript.contains(counter)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean mentionsAll(List<String> counters) {
+            for (String counter : counters) {
+                if (!mentions(counter)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // The last subscript steps with counter, so consecutive iterations use neighbouring elements
+        boolean along(String counter) {
+            int last = subscripts.size() - 1;
+            return units.get(last) && subscripts.get(last).contains(counter);
+        }
+
+        int score(String counter) {
+            return along(counter) ? 1 : mentions(counter) ? -1 : 0;
+        }
+
+        private boolean isRegular() {
+            Set<String> seen = new HashSet<>();
+            for (int s = 0; s < subscripts.size(); s++) {
+                Set<String> subscript = subscripts.get(s);
+                if (!subscript.isEmpty() && !units.get(s) || subscript.size() > 1) {
+                    return false;
+                }
+                for (String counter : subscript) {
+                    if (!seen.add(counter)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -1,47 +1,274 @@
 package com.example.cppoptimizer.service.CodeTransformer;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.Lexer.SourceRewriter;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
 
+/**
+ * Unrolls counted loops. Loops with literal bounds and at most four iterations are
+ * replaced by copies of their body, each in its own scope if it declares variables.
+ * Other innermost loops of the form
+ * {@code for (T v = init; v < bound; v++ / v += k) { body }} are unrolled by the
+ * configured factor into a main loop that runs the body that many times per test,
+ * followed by a remainder loop for the leftover iterations.
+ *
+ * <p>Either way the bound must be one the body cannot change and the body's effects
+ * must all be visible in it: loops that call functions (other than pure math
+ * functions), leave early, declare statics or write the induction variable or the
+ * bound are left alone.
+ */
 public class LoopUnroller extends CodeTransformer {
+    public static final int DEFAULT_FACTOR = 4;
+    // for (int v = N; v < M; v++) {
+    private static final String[] LOOP_HEADER = {"for", "(", "int", "$", "=", "#", ";", "$", "<", "#", ";", "$", "++", ")", "{"};
+    // Control flow and declarations whose meaning changes when a body is repeated
+    private static final Set<String> UNSAFE = Set.of(
+            "for", "while", "do", "break", "continue", "return", "goto", "case", "default", "switch",
+            "throw", "try", "co_await", "co_yield", "co_return", "asm", "__asm__", "volatile", "static");
+    private static final Set<String> PURE_FUNCTIONS = Set.of(
+            "abs", "labs", "fabs", "fabsf", "sqrt", "sqrtf", "cbrt", "exp", "expf", "exp2", "log", "logf",
+            "log2", "log10", "pow", "powf", "sin", "sinf", "cos", "cosf", "tan", "atan", "atan2", "floor",
+            "ceil", "round", "trunc", "fmin", "fmax", "fminf", "fmaxf", "fma", "hypot", "min", "max",
+            // Keywords that take parentheses without being calls
+            "if", "sizeof", "alignof", "_Alignof", "static_cast", "const_cast");
+    private static final Set<String> DECLARATION_STARTS = Set.of(
+            "int", "long", "short", "unsigned", "signed", "char", "float", "double", "bool", "_Bool", "auto",
+            "const", "size_t", "struct", "union", "enum", "register");
+    // Upper bound on the tokens of all copies of a body; larger bodies get a smaller factor
+    private static final int MAX_UNROLLED_TOKENS = 512;
+    private static final String INDENT = "    ";
+
+    private final int factor;
+
+    public LoopUnroller() {
+        this(DEFAULT_FACTOR);
+    }
+
+    public LoopUnroller(int factor) {
+        if (factor != 2 && factor != 4 && factor != 8) {
+            throw new IllegalArgumentException("Unroll factor must be 2, 4 or 8, not " + factor);
+        }
+        this.factor = factor;
+    }
+
     @Override
-    public String transform(String code, CodeOptimizerService.Language lang) {
-        Pattern loopPattern = Pattern.compile("for\\s*\\(\\s*int\\s+(\\w+)\\s*=\\s*(\\d+)\\s*;\\s*\\1\\s*<\\s*(\\d+)\\s*;\\s*\\1\\s*\\+\\+\\s*\\)\\s*\\{([^}]*)\\}");
-        Matcher matcher = loopPattern.matcher(code);
-        StringBuffer result = new StringBuffer();
+    public String transform(TokenStream tokens, CodeOptimizerService.Language lang) {
+        SourceRewriter rewriter = new SourceRewriter(tokens);
+
+        for (int i = 0; i < tokens.size(); i++) {
+            checkpoint();
+            // A directive such as #pragma GCC ivdep applies to the loop after it, which must stay a loop
+            if (!tokens.is(i, "for") || tokens.isType(i - 1, TokenType.PREPROCESSOR)) {
+                continue;
+            }
+            int close = unrollFully(tokens, i, rewriter);
+            if (close < 0) {
+                close = unrollPartially(tokens, i, rewriter);
+            }
+            if (close >= 0) {
+                i = close;
+            }
+        }
+        return rewriter.toString();
+    }
+
+    // Small loops with literal bounds become straight-line code; returns the loop's last token, or -1
+    private int unrollFully(TokenStream tokens, int i, SourceRewriter rewriter) {
+        int open = tokens.matchSequence(i, LOOP_HEADER) - 1;
+        if (open < 0 || !isCanonicalLoop(tokens, i)) {
+            return -1;
+        }
+        CountedLoop loop = CountedLoop.parse(tokens, i);
+        int close = tokens.match(open);
+        if (loop == null || close < 0 || tokens.indexOf("{", open + 1, close) >= 0 || !isUnrollableBody(tokens, loop)) {
+            return -1;
+        }
+        String loopVar = tokens.text(i + 3);
+        int start = Integer.parseInt(tokens.text(i + 5));
+        int end = Integer.parseInt(tokens.text(i + 9));
+
+        int iterations = end - start;
+        if (iterations > 4 || iterations <= 0 || close <= open + 1) {
+            return -1;
+        }
+        boolean scoped = declaresVariables(tokens, open, close);
+        String indent = tokens.indentationOf(i);
+        StringBuilder unrolled = new StringBuilder();
+        for (int k = start; k < end; k++) {
+            String unrolledBody = tokens.render(open + 1, close - 1, Map.of(loopVar, String.valueOf(k)));
+            unrolled.append(k > start ? "\n" + indent : "").append(scoped ? "{ " + unrolledBody + " }" : unrolledBody);
+        }
+        rewriter.replace(i, close, unrolled.toString());
+        return close;
+    }
+
+    // Same induction variable in all three header clauses and small literal bounds
+    private boolean isCanonicalLoop(TokenStream tokens, int forToken) {
+        String loopVar = tokens.text(forToken + 3);
+        return tokens.is(forToken + 7, loopVar) && tokens.is(forToken + 11, loopVar)
+                && tokens.length(forToken + 5) <= 9 && tokens.length(forToken + 9) <= 9;
+    }
+
+    private int unrollPartially(TokenStream tokens, int i, SourceRewriter rewriter) {
+        CountedLoop loop = CountedLoop.parse(tokens, i);
+        if (loop == null) {
+            return -1;
+        }
+        int bodyTokens = loop.getClose() - loop.getOpen() - 1;
+        int f = factor;
+        while (f > 2 && bodyTokens * f > MAX_UNROLLED_TOKENS) {
+            f /= 2;
+        }
+        if (bodyTokens <= 0 || bodyTokens * f > MAX_UNROLLED_TOKENS || !isUnrollableBody(tokens, loop)) {
+            return -1;
+        }
+
+        // With literal bounds the trip count is known: skip loops too short to unroll and
+        // leave out the remainder loop when nothing is left over
+        boolean remainder = true;
+        if (tokens.isDecimalInteger(loop.getInitFrom()) && loop.getInitFrom() == loop.getInitTo()
+                && tokens.isDecimalInteger(loop.getBoundFrom()) && loop.getBoundFrom() == loop.getBoundTo()
+                && tokens.length(loop.getInitFrom()) <= 9 && tokens.length(loop.getBoundFrom()) <= 9) {
+            long span = Long.parseLong(tokens.text(loop.getBoundFrom())) - Long.parseLong(tokens.text(loop.getInitFrom()))
+                    + (loop.isInclusive() ? 1 : 0);
+            long trips = span <= 0 ? 0 : (span + loop.getStep() - 1) / loop.getStep();
+            if (trips < f) {
+                return -1;
+            }
+            remainder = trips % f != 0;
+        }
 
-        while (matcher.find()) {
-            String loopVar = matcher.group(1);
-            int start = Integer.parseInt(matcher.group(2));
-            int end = Integer.parseInt(matcher.group(3));
-            String body = matcher.group(4).trim();
+        String indent = tokens.indentationOf(i);
+        String inner = indent + INDENT;
+        String bodyIndent = inner + INDENT;
+        boolean scoped = declaresVariables(tokens, loop.getOpen(), loop.getClose());
+        String op = loop.isInclusive() ? " <= " : " < ";
+        String bound = tokens.text(loop.getBoundFrom(), loop.getBoundTo());
 
-            int iterations = end - start;
-            if (iterations <= 4 && iterations > 0) {
-                StringBuilder unrolled = new StringBuilder();
-                for (int i = start; i < end; i++) {
-                    String unrolledBody = body.replaceAll("\\b" + loopVar + "\\b", String.valueOf(i));
-                    unrolled.append(unrolledBody).append("\n");
-                }
-                matcher.appendReplacement(result, unrolled.toString());
-            } else {
-                matcher.appendReplacement(result, matcher.group(0));
+        StringBuilder out = new StringBuilder();
+        out.append("{\n");
+        out.append(inner).append(tokens.text(loop.getTypeFrom(), loop.getTypeTo())).append(' ').append(loop.getVar())
+                .append(" = ").append(tokens.text(loop.getInitFrom(), loop.getInitTo())).append(";\n");
+        out.append(inner).append("for (; ").append(loop.getVar()).append(" + ").append((long) (f - 1) * loop.getStep())
+                .append(op).append(bound).append("; ").append(loop.getVar()).append(" += ").append((long) f * loop.getStep())
+                .append(") {\n");
+        for (int k = 0; k < f; k++) {
+            appendBody(out, tokens, loop, (long) k * loop.getStep(), bodyIndent, scoped);
+        }
+        out.append(inner).append("}\n");
+        if (remainder) {
+            out.append(inner).append("for (; ").append(loop.getVar()).append(op).append(bound).append("; ")
+                    .append(tokens.text(loop.getStepFrom(), loop.getStepTo())).append(") {\n");
+            appendBody(out, tokens, loop, 0, bodyIndent, false);
+            out.append(inner).append("}\n");
+        }
+        out.append(indent).append("}");
+        rewriter.replace(i, loop.getClose(), out.toString());
+        return loop.getClose();
+    }
+
+    // Every effect of the body is visible in it: no calls to unknown functions, no early
+    // exits, and neither the induction variable nor the bound is written or has its address taken
+    private boolean isUnrollableBody(TokenStream tokens, CountedLoop loop) {
+        for (int p = loop.getOpen() + 1; p < loop.getClose(); p++) {
+            checkpoint();
+            String text = tokens.text(p);
+            if (tokens.isType(p, TokenType.PREPROCESSOR) || UNSAFE.contains(text)) {
+                return false;
+            }
+            if (tokens.is(p + 1, "(") && !isPureCall(tokens, p)) {
+                return false;
+            }
+            // A label, as in "again: ...", could be the target of a jump from outside
+            if (tokens.isIdentifier(p) && tokens.is(p + 1, ":") && tokens.isStatementStart(p)) {
+                return false;
             }
         }
-        matcher.appendTail(result);
+        Set<String> fixed = new HashSet<>(loop.getBoundNames());
+        fixed.add(loop.getVar());
+        return !loop.bodyWrites(tokens, fixed);
+    }
 
-        return result.toString();
+    private boolean isPureCall(TokenStream tokens, int p) {
+        if (tokens.is(p, ">")) {
+            // static_cast<T>(x): find the cast keyword in front of the template argument
+            int q = p - 1;
+            while (q > 0 && !tokens.is(q, "<") && !tokens.isAny(q, ";", "{", "}")) {
+                q--;
+            }
+            return tokens.is(q, "<") && tokens.isAny(q - 1, "static_cast", "const_cast");
+        }
+        if (!tokens.isIdentifier(p)) {
+            // Calls through expressions such as (*fn)(x) or table[i](x)
+            return !tokens.isAny(p, ")", "]");
+        }
+        return PURE_FUNCTIONS.contains(tokens.text(p)) && !tokens.is(p - 1, ".") && !tokens.is(p - 1, "->");
+    }
+
+    // Copies that declare variables at the top level of the body need their own scope
+    private boolean declaresVariables(TokenStream tokens, int open, int close) {
+        for (int p = open + 1; p < close; p++) {
+            if (tokens.is(p, "{") && tokens.match(p) > p) {
+                p = tokens.match(p);
+            } else if (tokens.isStatementStart(p) && (DECLARATION_STARTS.contains(tokens.text(p))
+                    || tokens.isIdentifier(p) && tokens.isIdentifier(p + 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void appendBody(StringBuilder out, TokenStream tokens, CountedLoop loop, long offset, String indent, boolean scoped) {
+        String body = reindent(loop.render(tokens, loop.getOpen() + 1, loop.getClose() - 1, offset, Map.of()),
+                tokens.indentationOf(loop.getOpen() + 1), scoped ? indent + INDENT : indent);
+        if (scoped) {
+            out.append(indent).append("{\n").append(indent).append(INDENT).append(body).append('\n')
+                    .append(indent).append("}\n");
+        } else {
+            out.append(indent).append(body).append('\n');
+        }
+    }
+
+    // Moves continuation lines from the body's old indentation to the new one
+    private static String reindent(String text, String from, String to) {
+        String[] lines = text.split("\n", -1);
+        StringBuilder sb = new StringBuilder(lines[0]);
+        for (int l = 1; l < lines.length; l++) {
+            String line = lines[l];
+            sb.append('\n').append(to).append(line.startsWith(from) ? line.substring(from.length()) : line.stripLeading());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean isApplicable(TokenStream tokens) {
+        return tokens.contains("for");
+    }
+
+    // Unrolled bodies have the induction variable replaced by literals
+    @Override
+    public Set<String> enables() {
+        return Set.of("foldConstants");
     }
 
     @Override
     public String getInsight() {
-        return "Unrolled small loops to reduce loop overhead.";
+        return "Unrolled loops to reduce loop overhead: small loops completely, others by a factor of " + factor
+                + " with a remainder loop.";
     }
 
     @Override
     public String getName() {
         return "unrollLoops";
     }
-}
\ No newline at end of file
+
+    @Override
+    public String describe() {
+        return getName() + "(factor=" + factor + ")";
+    }
+}
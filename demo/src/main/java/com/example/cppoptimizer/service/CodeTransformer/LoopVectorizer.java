@@ -0,0 +1,955 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.CodeTransformer.Declarations.Declaration;
+import com.example.cppoptimizer.service.Lexer.SourceRewriter;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
+
+/**
+ * Removes what keeps the compiler from vectorizing simple array loops. It looks at
+ * innermost counted loops ({@link CountedLoop}) that step by one through one-dimensional
+ * arrays, indexing each with the counter plus an offset the loop does not change, and
+ * whose body is straight-line code:
+ *
+ * <ul>
+ * <li>Pointer parameters the loop stores through get {@code restrict} ({@code __restrict}
+ * in C++) when every call in the file passes them separate arrays and nothing else can
+ * call the function: it is static, or the file holds {@code main}.</li>
+ * <li>A bound read from memory, such as {@code v->n} or {@code strlen(s)}, is read once
+ * before the loop when none of the body's stores can change it.</li>
+ * <li>Integer sums ({@code s += ...}) are split into partial sums that run side by side.
+ * Floating point sums would round differently, so they get {@code #pragma omp simd
+ * reduction(+:s)} instead, which reorders them only in builds with {@code -fopenmp-simd}.</li>
+ * <li>Loops over pointers to separate allocations get {@code #pragma GCC ivdep}.</li>
+ * </ul>
+ *
+ * <p>Loops that store to an array at another offset than they read it, carry a scalar from
+ * one iteration to the next, branch, leave early or call anything but simple math are
+ * left alone, and a note says why.
+ */
+public class LoopVectorizer extends CodeTransformer {
+    // Partial sums an integer sum is split into
+    private static final int LANES = 4;
+    // Upper bound on the tokens of the body copies of a split loop
+    private static final int MAX_SPLIT_TOKENS = 512;
+    private static final Set<String> LEAVES = Set.of(
+            "break", "continue", "return", "goto", "throw", "co_await", "co_yield", "co_return");
+    private static final Set<String> BRANCHES = Set.of("if", "else", "switch", "case", "default", "try");
+    private static final Set<String> UNSAFE = Set.of("volatile", "asm", "__asm__", "static");
+    // Math the compilers have vector versions of without relaxing errno or rounding
+    private static final Set<String> VECTOR_FUNCTIONS = Set.of(
+            "abs", "fabs", "fabsf", "fmin", "fminf", "fmax", "fmaxf", "floor", "floorf", "ceil", "ceilf", "trunc",
+            "truncf", "fma", "fmaf", "sizeof");
+    private static final Set<String> ASSIGNMENTS = Set.of(
+            "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=", "++", "--");
+    private static final Set<String> DECLARATION_STARTS = Set.of(
+            "int", "long", "short", "unsigned", "signed", "char", "float", "double", "bool", "_Bool", "auto",
+            "const", "size_t", "struct", "union", "enum", "register");
+    private static final Set<String> RESTRICT = Set.of("restrict", "__restrict", "__restrict__");
+    // Words in front of a name followed by '(' that make it a call rather than a declaration
+    private static final Set<String> STATEMENT_WORDS = Set.of(
+            "return", "else", "case", "do", "goto", "throw", "delete", "new", "sizeof", "co_return", "co_yield",
+            "co_await");
+    private static final String INDENT = "    ";
+
+    @Override
+    public String transform(TokenStream tokens, CodeOptimizerService.Language lang) {
+        List<Function> functions = findFunctions(tokens);
+        Vectorization vectorization = null;
+        for (Function function : functions) {
+            List<Candidate> candidates = new ArrayList<>();
+            for (int i = function.brace + 1; i < function.close; i++) {
+                checkpoint();
+                // A loop a directive applies to has been looked at before
+                if (!tokens.is(i, "for") || tokens.isType(i - 1, TokenType.PREPROCESSOR)) {
+                    continue;
+                }
+                CountedLoop loop = CountedLoop.parse(tokens, i, true, true);
+                if (loop == null || tokens.indexOf("[", loop.getOpen() + 1, loop.getClose()) < 0
+                        || containsLoop(tokens, loop)) {
+                    continue;
+                }
+                if (vectorization == null) {
+                    vectorization = new Vectorization(tokens, lang, functions);
+                }
+                candidates.add(vectorization.analyze(function, i, loop));
+                i = loop.getClose();
+            }
+            if (!candidates.isEmpty()) {
+                vectorization.rewrite(function, candidates);
+            }
+        }
+        return vectorization != null ? vectorization.rewriter.toString() : tokens.getSource();
+    }
+
+    // Restrict qualifiers depend on every call of the function
+    @Override
+    public boolean requiresWholeFile() {
+        return true;
+    }
+
+    @Override
+    public boolean isApplicable(TokenStream tokens) {
+        return tokens.contains("for") && tokens.contains("[");
+    }
+
+    @Override
+    public String getInsight() {
+        return "Prepared array loops for the compiler's vectorizer: marked non-overlapping pointers restrict, read bounds "
+                + "once, split sums and added vectorization pragmas.";
+    }
+
+    @Override
+    public String getName() {
+        return "vectorizeLoops";
+    }
+
+    private static boolean containsLoop(TokenStream tokens, CountedLoop loop) {
+        for (int p = loop.getOpen() + 1; p < loop.getClose(); p++) {
+            if (tokens.isAny(p, "for", "while", "do")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Function bodies in the file; free functions are those outside classes and namespaces
+    private static List<Function> findFunctions(TokenStream tokens) {
+        List<Function> functions = new ArrayList<>();
+        int scopes = 0;
+        int piece = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            checkpoint();
+            if (tokens.isType(i, TokenType.PREPROCESSOR) || tokens.isAny(i, ";", "}")) {
+                piece = i + 1;
+                if (tokens.is(i, "}") && scopes > 0) {
+                    scopes--;
+                }
+            } else if (tokens.is(i, "{")) {
+                int open = StatementEditor.functionParameters(tokens, i);
+                if (open >= 0 && tokens.match(i) > i) {
+                    functions.add(new Function(tokens.text(open - 1), open, i, tokens.match(i),
+                            tokens.indexOf("static", piece, open) >= 0, scopes == 0));
+                    i = tokens.match(i);
+                } else {
+                    scopes++;
+                }
+                piece = i + 1;
+            }
+        }
+        return functions;
+    }
+
+    // "a", "a and b", "a, b and c"
+    private static String names(List<String> names) {
+        if (names.size() == 1) {
+            return names.get(0);
+        }
+        return String.join(", ", names.subList(0, names.size() - 1)) + " and " + names.get(names.size() - 1);
+    }
+
+    /** The state of one run: the file's declarations, what has been proven about each function and the edits made. */
+    private final class Vectorization {
+        private final TokenStream tokens;
+        private final CodeOptimizerService.Language lang;
+        private final List<Function> functions;
+        private final Declarations declarations;
+        private final SourceRewriter rewriter;
+        // Without main, functions that are not static may be called from other files
+        private final boolean wholeProgram;
+        private final boolean hasGoto;
+        // Why a parameter cannot be marked restrict, "" when it can
+        private final Map<Declaration, String> separate = new HashMap<>();
+        private final Set<Declaration> qualified = new HashSet<>();
+        private final FreshNames freshNames;
+
+        private Vectorization(TokenStream tokens, CodeOptimizerService.Language lang, List<Function> functions) {
+            this.tokens = tokens;
+            this.lang = lang;
+            this.functions = functions;
+            this.declarations = Declarations.scan(tokens);
+            this.freshNames = new FreshNames(declarations);
+            this.rewriter = new SourceRewriter(tokens);
+            boolean main = false;
+            for (Function function : functions) {
+                main |= function.name.equals("main") && function.free;
+            }
+            this.wholeProgram = main;
+            this.hasGoto = tokens.contains("goto");
+        }
+
+        private Candidate analyze(Function function, int forToken, CountedLoop loop) {
+            Candidate candidate = new Candidate(forToken, loop, "the loop over " + loop.getVar() + " in " + function.name
+                    + " (line " + tokens.lineOf(forToken) + ")");
+            candidate.reason = check(candidate);
+            return candidate;
+        }
+
+        // Why the loop cannot run as vector lanes, or null once the candidate holds what it needs to
+        private String check(Candidate candidate) {
+            CountedLoop loop = candidate.loop;
+            if (loop.getStep() != 1) {
+                return "it steps by " + loop.getStep();
+            }
+            if (!tokens.isStatementStart(candidate.forToken)) {
+                return "it is the body of another statement";
+            }
+            if (loop.bodyWrites(tokens, Set.of(loop.getVar()))) {
+                return "it changes its counter " + loop.getVar();
+            }
+            if (loop.bodyWrites(tokens, loop.getBoundNames())) {
+                return "it changes its bound";
+            }
+            String shape = checkShape(loop);
+            if (shape != null) {
+                return shape;
+            }
+
+            Map<String, List<Integer>> written = new LinkedHashMap<>();
+            for (int p = loop.getOpen() + 1; p < loop.getClose(); p++) {
+                checkpoint();
+                if (!tokens.isIdentifier(p) || tokens.isAny(p - 1, ".", "->") || tokens.is(p + 1, "(")
+                        || tokens.is(p, loop.getVar())) {
+                    continue;
+                }
+                if (tokens.is(p + 1, "[")) {
+                    String reason = access(candidate, p);
+                    if (reason != null) {
+                        return reason;
+                    }
+                    continue;
+                }
+                // Resolving after p also finds a declarator at p
+                Declaration declaration = declarations.resolve(tokens.text(p), p + 1);
+                boolean local = declaration != null && declaration.getToken() > loop.getOpen();
+                if (!local && CountedLoop.isWritten(tokens, p)) {
+                    written.computeIfAbsent(tokens.text(p), k -> new ArrayList<>());
+                }
+            }
+            for (String name : written.keySet()) {
+                String reason = scalar(candidate, name);
+                if (reason != null) {
+                    return reason;
+                }
+            }
+            for (Base base : candidate.bases.values()) {
+                if (base.written && base.offsets.size() > 1) {
+                    List<String> offsets = new ArrayList<>(base.offsets);
+                    return "it uses " + base.name + "[" + offsets.get(0) + "] and " + base.name + "[" + offsets.get(1)
+                            + "] and stores to one of them, so its iterations depend on each other";
+                }
+            }
+            return overlaps(candidate);
+        }
+
+        // Straight-line code without calls, branches, members or pointers
+        private String checkShape(CountedLoop loop) {
+            if (loop.isBraced() && loop.getClose() > loop.getOpen() + 1 && !tokens.is(loop.getClose() - 1, ";")) {
+                return "its body does not end in a statement";
+            }
+            for (int p = loop.getOpen() + 1; p < loop.getClose(); p++) {
+                String text = tokens.text(p);
+                if (tokens.isType(p, TokenType.PREPROCESSOR)) {
+                    return "it contains preprocessor directives";
+                }
+                if (BRANCHES.contains(text)) {
+                    return "it branches with " + text;
+                }
+                if (LEAVES.contains(text) || UNSAFE.contains(text)) {
+                    return "it uses " + text;
+                }
+                if (tokens.is(p, "{")) {
+                    return "it has a nested block";
+                }
+                if (tokens.isIdentifier(p) && tokens.is(p + 1, ":") && tokens.isStatementStart(p)) {
+                    return "it has a label";
+                }
+                if (tokens.is(p + 1, "(") && tokens.isIdentifier(p) && !VECTOR_FUNCTIONS.contains(text)
+                        && !DECLARATION_STARTS.contains(text)) {
+                    return "it calls " + text;
+                }
+                if (tokens.is(p + 1, "(") && tokens.isAny(p, ")", "]")) {
+                    return "it calls through a pointer";
+                }
+                if (tokens.isAny(p, ".", "->")) {
+                    return "it accesses struct members";
+                }
+                if (tokens.is(p, "*") && !CountedLoop.endsOperand(tokens, p - 1)) {
+                    return "it dereferences a pointer";
+                }
+            }
+            return null;
+        }
+
+        // Records the element access name[...] at p; returns why it keeps the loop scalar, or null
+        private String access(Candidate candidate, int p) {
+            String name = tokens.text(p);
+            int open = p + 1;
+            int close = tokens.match(open);
+            if (close < 0 || close == open + 1) {
+                return "it indexes " + name + " in a way it cannot follow";
+            }
+            if (tokens.is(close + 1, "[")) {
+                return "it indexes the multi-dimensional array " + name;
+            }
+            if (tokens.is(p - 1, "&") && !CountedLoop.endsOperand(tokens, p - 2)) {
+                return "it takes the address of an element of " + name;
+            }
+            Declaration declaration = declarations.resolve(name, p);
+            if (declaration == null) {
+                return "it indexes " + name + ", which is not declared in the file";
+            }
+            String var = candidate.loop.getVar();
+            int uses = 0;
+            int at = -1;
+            for (int q = open + 1; q < close; q++) {
+                if (tokens.is(q, "[")) {
+                    return "it indexes " + name + " indirectly";
+                }
+                if (tokens.is(q, var)) {
+                    uses++;
+                    at = q;
+                } else if (tokens.isIdentifier(q) && !tokens.is(q + 1, "(")) {
+                    Declaration index = declarations.resolve(tokens.text(q), q);
+                    if (index == null || index.getToken() > candidate.loop.getOpen()
+                            || candidate.loop.bodyWrites(tokens, Set.of(tokens.text(q)))) {
+                        return "it indexes " + name + " with " + tokens.text(q) + ", which changes inside the loop";
+                    }
+                }
+            }
+            boolean write = ASSIGNMENTS.contains(tokens.text(close + 1)) || tokens.isAny(p - 1, "++", "--");
+            if (uses == 0 && write) {
+                return "it stores to the same element of " + name + " on every iteration";
+            }
+            if (uses > 1 || uses == 1 && !isUnitStride(open + 1, close - 1, at)) {
+                return "it steps through " + name + " with the index " + tokens.text(open + 1, close - 1)
+                        + ", not one element at a time";
+            }
+            StringBuilder offset = new StringBuilder();
+            for (int q = open + 1; q < close; q++) {
+                offset.append(offset.length() > 0 ? " " : "").append(tokens.text(q));
+            }
+            Base base = candidate.bases.computeIfAbsent(declaration, d -> new Base(name, d, kind(d)));
+            base.offsets.add(offset.toString());
+            base.written |= write;
+            return null;
+        }
+
+        // i, i + e, i - e or e + i, where e only adds, subtracts and multiplies
+        private boolean isUnitStride(int from, int to, int at) {
+            for (int q = from; q <= to; q++) {
+                if (!tokens.isIdentifier(q) && !tokens.isType(q, TokenType.NUMBER) && !tokens.isAny(q, "+", "-", "*", "(", ")")) {
+                    return false;
+                }
+            }
+            return at == from && (at == to || tokens.isAny(at + 1, "+", "-"))
+                    || at == to && tokens.is(at - 1, "+") && at - 1 > from;
+        }
+
+        // A variable from outside the body that the body assigns: a temporary, a sum or a carried value
+        private String scalar(Candidate candidate, String name) {
+            CountedLoop loop = candidate.loop;
+            List<Integer> occurrences = new ArrayList<>();
+            for (int p = loop.getOpen() + 1; p < loop.getClose(); p++) {
+                if (tokens.is(p, name) && !tokens.isAny(p - 1, ".", "->")) {
+                    occurrences.add(p);
+                }
+            }
+            Declaration declaration = declarations.resolve(name, occurrences.get(0));
+            if (declaration == null || declaration.getType().isEmpty() || declarations.isAliased(declaration)) {
+                return "it stores to " + name + ", which code outside the loop can see";
+            }
+            // Assigned before it is read in every iteration, so no value crosses from one to the next
+            int first = occurrences.get(0);
+            if (startsStatement(loop, first) && tokens.is(first + 1, "=") && !mentions(first + 2, name)) {
+                return null;
+            }
+            for (int p : occurrences) {
+                if (!startsStatement(loop, p) || !tokens.isAny(p + 1, "+=", "-=") || mentions(p + 2, name)) {
+                    return "it carries " + name + " from one iteration to the next";
+                }
+            }
+            candidate.sums.put(name, declaration);
+            return null;
+        }
+
+        // The first token of a body without braces starts a statement too
+        private boolean startsStatement(CountedLoop loop, int p) {
+            return tokens.isStatementStart(p) || p == loop.getOpen() + 1;
+        }
+
+        // Whether the statement from p on reads name
+        private boolean mentions(int p, String name) {
+            int end = tokens.statementEnd(p);
+            return end < 0 || tokens.indexOf(name, p, end) >= 0;
+        }
+
+        // Pairs of arrays that could overlap where one is stored to; collects what would rule it out
+        private String overlaps(Candidate candidate) {
+            List<Base> bases = new ArrayList<>(candidate.bases.values());
+            for (int a = 0; a < bases.size(); a++) {
+                for (int b = a + 1; b < bases.size(); b++) {
+                    Base x = bases.get(a);
+                    Base y = bases.get(b);
+                    if (!x.written && !y.written || x.kind == Kind.ARRAY && y.kind == Kind.ARRAY
+                            || x.kind == Kind.RESTRICT || y.kind == Kind.RESTRICT) {
+                        continue;
+                    }
+                    if (x.kind == Kind.OTHER || y.kind == Kind.OTHER) {
+                        return "it cannot tell whether " + x.name + " and " + y.name + " overlap";
+                    }
+                    if (x.kind == Kind.PARAMETER || y.kind == Kind.PARAMETER) {
+                        for (Base base : List.of(x, y)) {
+                            if (base.kind == Kind.PARAMETER) {
+                                candidate.restrict.add(base);
+                            }
+                        }
+                    } else {
+                        for (Base base : List.of(x, y)) {
+                            if (base.kind == Kind.ALLOCATION) {
+                                candidate.allocations.add(base.name);
+                            }
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        private Kind kind(Declaration declaration) {
+            int t = declaration.getToken();
+            if (isParameter(t)) {
+                if (RESTRICT.contains(tokens.text(t - 1))) {
+                    return Kind.RESTRICT;
+                }
+                boolean pointer = tokens.is(t - 1, "*") && !tokens.is(t - 2, "*");
+                boolean array = tokens.is(t + 1, "[") && tokens.isAny(tokens.match(t + 1) + 1, ",", ")");
+                return pointer || array ? Kind.PARAMETER : Kind.OTHER;
+            }
+            if (tokens.is(t + 1, "[")) {
+                return Kind.ARRAY;
+            }
+            return isAllocation(declaration) ? Kind.ALLOCATION : Kind.OTHER;
+        }
+
+        // Functions are in file order, so the last one whose parameters open before t is the only candidate
+        private boolean isParameter(int t) {
+            int low = 0;
+            int high = functions.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (functions.get(mid).open < t) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low > 0 && t < tokens.match(functions.get(low - 1).open);
+        }
+
+        // T *p = malloc(...), calloc, new or a cast of them, and p never points anywhere else
+        private boolean isAllocation(Declaration declaration) {
+            int t = declaration.getToken();
+            if (!declaration.isLocal() || !tokens.is(t - 1, "*") || !tokens.is(t + 1, "=")) {
+                return false;
+            }
+            int init = t + 2;
+            if (tokens.is(init, "(") && tokens.match(init) > init) {
+                init = tokens.match(init) + 1;
+            }
+            if (!tokens.isAny(init, "malloc", "calloc", "new")) {
+                return false;
+            }
+            for (int use : declarations.uses(declaration)) {
+                if (CountedLoop.isWritten(tokens, use)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Decides which parameters become restrict, then rewrites the loops that can run as vector lanes. */
+        private void rewrite(Function function, List<Candidate> candidates) {
+            for (Candidate candidate : candidates) {
+                if (candidate.reason == null) {
+                    for (Base base : candidate.restrict) {
+                        String reason = separate.computeIfAbsent(base.declaration, d -> separate(function, base));
+                        if (!reason.isEmpty()) {
+                            candidate.reason = reason;
+                            break;
+                        }
+                    }
+                }
+                if (candidate.reason == null) {
+                    for (Base base : candidate.restrict) {
+                        if (qualified.add(base.declaration)) {
+                            qualify(base.declaration);
+                        }
+                    }
+                    candidate.reason = hoist(candidate);
+                }
+                if (candidate.reason != null) {
+                    note("Left " + candidate.label + " as it is: " + candidate.reason + ".");
+                } else {
+                    emit(candidate);
+                }
+            }
+        }
+
+        // Why parameter base may share memory with another one or with a global the function uses,
+        // or "" when every call in the file passes it an array of its own
+        private String separate(Function function, Base base) {
+            if (!function.free) {
+                return function.name + " is a member function";
+            }
+            if (function.name.equals("main") || !function.isStatic && !wholeProgram) {
+                return function.name + " can be called from other files";
+            }
+            for (int use : declarations.uses(base.declaration)) {
+                if (CountedLoop.isWritten(tokens, use)) {
+                    return function.name + " changes " + base.name;
+                }
+            }
+            List<Integer> parameters = parameterNames(function.open);
+            int index = parameters.indexOf(base.declaration.getToken());
+            int definitions = 0;
+            for (Function other : functions) {
+                definitions += other.name.equals(function.name) ? 1 : 0;
+            }
+            if (index < 0 || definitions > 1) {
+                return function.name + " is overloaded";
+            }
+            for (int p = 0; p < tokens.size(); p++) {
+                checkpoint();
+                if (!tokens.is(p, function.name) || p == function.open - 1) {
+                    continue;
+                }
+                if (!tokens.is(p + 1, "(") || tokens.isAny(p - 1, ".", "->", "::", "&")) {
+                    return "the address of " + function.name + " is taken";
+                }
+                if (isDeclaration(p)) {
+                    continue;
+                }
+                String reason = call(function, base, parameters, index, p);
+                if (reason != null) {
+                    return reason;
+                }
+            }
+            return "";
+        }
+
+        // Whether the call at p passes base an array that no other pointer argument or used global shares
+        private String call(Function function, Base base, List<Integer> parameters, int index, int p) {
+            List<int[]> arguments = arguments(p + 1);
+            int line = tokens.lineOf(p);
+            if (arguments.size() != parameters.size()) {
+                return "the call at line " + line + " does not pass every parameter";
+            }
+            Declaration mine = object(arguments.get(index), p);
+            boolean readOnly = isReadOnly(base.declaration);
+            for (int other = 0; other < parameters.size(); other++) {
+                int name = parameters.get(other);
+                if (other == index || name < 0 || !isPointerParameter(name)) {
+                    continue;
+                }
+                Declaration declaration = declarations.resolve(tokens.text(name), name);
+                if (readOnly && declaration != null && isReadOnly(declaration)) {
+                    continue;
+                }
+                Declaration theirs = object(arguments.get(other), p);
+                if (mine == null || theirs == null || mine == theirs) {
+                    return "the call at line " + line + " passes " + text(arguments.get(index)) + " and "
+                            + text(arguments.get(other)) + ", which may overlap";
+                }
+            }
+            if (mine != null && !mine.isLocal()) {
+                String global = tokens.text(mine.getToken());
+                for (int q = function.brace + 1; q < function.close; q++) {
+                    if (tokens.is(q, global) && declarations.resolve(global, q) == mine) {
+                        return "the call at line " + line + " passes " + global + ", which " + function.name
+                                + " also uses directly";
+                    }
+                }
+            }
+            return null;
+        }
+
+        // The array or variable an argument is the whole of: name of an array or allocation, or &name
+        private Declaration object(int[] argument, int at) {
+            int from = argument[0];
+            int to = argument[1];
+            if (from == to && tokens.isIdentifier(from)) {
+                Declaration declaration = declarations.resolve(tokens.text(from), at);
+                if (declaration == null || isParameter(declaration.getToken())) {
+                    return null;
+                }
+                boolean array = tokens.is(declaration.getToken() + 1, "[");
+                return array || isAllocation(declaration) ? declaration : null;
+            }
+            if (to == from + 1 && tokens.is(from, "&") && tokens.isIdentifier(to)) {
+                Declaration declaration = declarations.resolve(tokens.text(to), at);
+                return declaration != null && !isParameter(declaration.getToken())
+                        && !tokens.isAny(declaration.getToken() - 1, "&", "&&") ? declaration : null;
+            }
+            return null;
+        }
+
+        // Pointers to const, and pointers only read through by subscripts
+        private boolean isReadOnly(Declaration declaration) {
+            int t = declaration.getToken();
+            int star = RESTRICT.contains(tokens.text(t - 1)) ? t - 2 : t - 1;
+            for (int q = star - 1; q >= 0 && !tokens.isAny(q, "(", ","); q--) {
+                if (tokens.is(q, "const") && tokens.is(star, "*")) {
+                    return true;
+                }
+            }
+            for (int use : declarations.uses(declaration)) {
+                int close = tokens.is(use + 1, "[") ? tokens.match(use + 1) : -1;
+                while (close >= 0 && tokens.is(close + 1, "[")) {
+                    close = tokens.match(close + 1);
+                }
+                if (close < 0 || ASSIGNMENTS.contains(tokens.text(close + 1)) || tokens.isAny(use - 1, "++", "--", "&")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isPointerParameter(int name) {
+            return tokens.isAny(name - 1, "*", "&", "&&") || RESTRICT.contains(tokens.text(name - 1))
+                    || tokens.is(name + 1, "[");
+        }
+
+        // Names of the parameters declared in the list opening at open, -1 for unnamed ones
+        private List<Integer> parameterNames(int open) {
+            List<Integer> names = new ArrayList<>();
+            int close = tokens.match(open);
+            if (close == open + 1 || close == open + 2 && tokens.is(open + 1, "void")) {
+                return names;
+            }
+            for (int[] parameter : arguments(open)) {
+                int name = parameter[1];
+                if (tokens.is(name, "]") && tokens.match(name) > parameter[0]) {
+                    name = tokens.match(name) - 1;
+                }
+                names.add(tokens.isIdentifier(name) && name > parameter[0] ? name : -1);
+            }
+            return names;
+        }
+
+        // Token ranges of the comma-separated items inside the parentheses opening at open
+        private List<int[]> arguments(int open) {
+            List<int[]> arguments = new ArrayList<>();
+            int close = tokens.match(open);
+            if (close <= open + 1) {
+                return arguments;
+            }
+            int start = open + 1;
+            for (int p = open + 1; p <= close; p++) {
+                if (tokens.isAny(p, "(", "[", "{") && tokens.match(p) > p) {
+                    p = tokens.match(p);
+                } else if (tokens.isAny(p, ",", ")") && (p == close || tokens.is(p, ","))) {
+                    arguments.add(new int[] {start, p - 1});
+                    start = p + 1;
+                }
+            }
+            return arguments;
+        }
+
+        // The name at p, followed by '(', declares or defines the function rather than calling it
+        private boolean isDeclaration(int p) {
+            int start = tokens.statementStart(p);
+            if (start == p || STATEMENT_WORDS.contains(tokens.text(start))) {
+                return false;
+            }
+            for (int q = start; q < p; q++) {
+                if (!tokens.isIdentifier(q) && !tokens.isAny(q, "*", "&", "::")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String text(int[] range) {
+            return tokens.text(range[0], range[1]);
+        }
+
+        private void qualify(Declaration declaration) {
+            int t = declaration.getToken();
+            String keyword = lang == CodeOptimizerService.Language.CPP ? "__restrict" : "restrict";
+            if (tokens.is(t + 1, "[")) {
+                // T a[] and T a[N] declare a pointer parameter as well
+                rewriter.replace(t, tokens.match(t + 1), "*" + keyword + " " + tokens.text(t));
+            } else {
+                rewriter.insertBefore(t, keyword + " ");
+            }
+        }
+
+        // Reads a bound such as v->n or strlen(s) once before the loop, when no store of the body can
+        // change what it reads: every store goes to an array of the function or through a restrict pointer
+        private String hoist(Candidate candidate) {
+            CountedLoop loop = candidate.loop;
+            if (!loop.boundReadsMemory()) {
+                return null;
+            }
+            String bound = tokens.text(loop.getBoundFrom(), loop.getBoundTo());
+            if (hasGoto || !Declarations.canDeclareBefore(tokens, candidate.forToken)) {
+                return "its bound " + bound + " is read again on every iteration";
+            }
+            for (Base base : candidate.bases.values()) {
+                if (!base.written) {
+                    continue;
+                }
+                boolean separate = base.kind == Kind.RESTRICT || qualified.contains(base.declaration)
+                        || base.kind == Kind.ARRAY && isPrivate(base.declaration);
+                if (tokens.indexOf(base.name, loop.getBoundFrom(), loop.getBoundTo() + 1) >= 0 || !separate) {
+                    return "its bound " + bound + " is read from memory that the stores to " + base.name
+                            + " might change";
+                }
+            }
+            candidate.boundName = freshNames.numbered("bound_");
+            candidate.boundType = boundType(loop);
+            return null;
+        }
+
+        // A local array only ever indexed, so no pointer can lead to it
+        private boolean isPrivate(Declaration declaration) {
+            if (!declaration.isLocal() || isParameter(declaration.getToken())) {
+                return false;
+            }
+            for (int use : declarations.uses(declaration)) {
+                if (!tokens.is(use + 1, "[")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String boundType(CountedLoop loop) {
+            int from = loop.getBoundFrom();
+            int to = loop.getBoundTo();
+            // (int) strlen(s)
+            if (tokens.is(from, "(") && tokens.match(from) > from && tokens.match(from) < to
+                    && isTypeWords(from + 1, tokens.match(from) - 1)) {
+                return tokens.text(from + 1, tokens.match(from) - 1);
+            }
+            if (tokens.isAny(from, "strlen", "wcslen") && tokens.match(from + 1) == to) {
+                return "size_t";
+            }
+            String text = tokens.text(from, to);
+            return lang == CodeOptimizerService.Language.CPP ? "auto" : "__typeof__(" + text + ")";
+        }
+
+        private boolean isTypeWords(int from, int to) {
+            for (int p = from; p <= to; p++) {
+                if (!DECLARATION_STARTS.contains(tokens.text(p)) && !tokens.is(p, "size_t")) {
+                    return false;
+                }
+            }
+            return from <= to;
+        }
+
+        private void emit(Candidate candidate) {
+            CountedLoop loop = candidate.loop;
+            List<String> done = new ArrayList<>();
+            if (!candidate.restrict.isEmpty()) {
+                List<String> restricted = new ArrayList<>();
+                for (Base base : candidate.restrict) {
+                    restricted.add(base.name);
+                }
+                done.add("marked " + names(restricted) + " restrict, as every call passes "
+                        + (restricted.size() == 1 ? "it a separate array" : "them separate arrays"));
+            }
+            String indent = tokens.indentationOf(candidate.forToken);
+            StringBuilder before = new StringBuilder();
+            String bound = tokens.text(loop.getBoundFrom(), loop.getBoundTo());
+            if (candidate.boundName != null) {
+                before.append("const ").append(candidate.boundType).append(' ').append(candidate.boundName)
+                        .append(" = ").append(bound).append(";\n").append(indent);
+                done.add("read its bound " + bound + " once into " + candidate.boundName);
+                bound = candidate.boundName;
+            }
+
+            List<String> floating = new ArrayList<>();
+            List<String> integer = new ArrayList<>();
+            for (Map.Entry<String, Declaration> sum : candidate.sums.entrySet()) {
+                String type = sum.getValue().getType();
+                (type.contains("float") || type.contains("double") ? floating : integer).add(sum.getKey());
+            }
+            String pragma = null;
+            if (!floating.isEmpty()) {
+                pragma = "#pragma omp simd reduction(+:" + String.join(", ", floating) + ")";
+                done.add("added " + pragma + ", so builds with -fopenmp-simd may reorder the floating point "
+                        + (floating.size() == 1 ? "sum" : "sums"));
+            } else if (!candidate.allocations.isEmpty()) {
+                pragma = "#pragma GCC ivdep";
+                done.add("added " + pragma + ", as " + names(new ArrayList<>(candidate.allocations))
+                        + (candidate.allocations.size() == 1 ? " points to an allocation of its own" : " point to separate allocations"));
+            }
+
+            boolean split = floating.isEmpty() && !integer.isEmpty() && !declaresVariables(loop)
+                    && (loop.getClose() - loop.getOpen()) * LANES <= MAX_SPLIT_TOKENS;
+            if (split) {
+                done.add("split the " + (integer.size() == 1 ? "sum into " : "sums into ") + names(integer) + " into "
+                        + LANES + " partial sums");
+                rewriter.replace(candidate.forToken, loop.getClose(),
+                        before + splitLoop(candidate, integer, bound, pragma, indent));
+            } else {
+                if (pragma != null) {
+                    before.append(pragma).append('\n').append(indent);
+                }
+                if (before.length() > 0) {
+                    rewriter.insertBefore(candidate.forToken, before.toString());
+                }
+                if (candidate.boundName != null) {
+                    rewriter.replace(loop.getBoundFrom(), loop.getBoundTo(), candidate.boundName);
+                }
+            }
+            if (!done.isEmpty()) {
+                note("Made " + candidate.label + " vectorizable: " + String.join("; ", done) + ".");
+            }
+        }
+
+        // Copies that declare variables at the top level of the body would need their own scope
+        private boolean declaresVariables(CountedLoop loop) {
+            for (int p = loop.getOpen() + 1; p < loop.getClose(); p++) {
+                if (tokens.isStatementStart(p) && (DECLARATION_STARTS.contains(tokens.text(p))
+                        || tokens.isIdentifier(p) && tokens.isIdentifier(p + 1))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // The loop running LANES iterations per test, each adding into a sum of its own, then the rest
+        // of the iterations one at a time; the partial sums are added up at the end. Integer sums come
+        // out the same in any order
+        private String splitLoop(Candidate candidate, List<String> sums, String bound, String pragma, String indent) {
+            CountedLoop loop = candidate.loop;
+            String inner = indent + INDENT;
+            String bodyIndent = inner + INDENT;
+            List<Map<String, String>> lanes = new ArrayList<>();
+            lanes.add(Map.of());
+            for (int k = 1; k < LANES; k++) {
+                lanes.add(new HashMap<>());
+            }
+            StringBuilder out = new StringBuilder("{\n");
+            for (String sum : sums) {
+                out.append(inner).append(candidate.sums.get(sum).getType()).append(' ');
+                for (int k = 1; k < LANES; k++) {
+                    String lane = freshNames.numbered(sum + "_");
+                    lanes.get(k).put(sum, lane);
+                    out.append(k > 1 ? ", " : "").append(lane).append(" = 0");
+                }
+                out.append(";\n");
+            }
+            String op = loop.isInclusive() ? " <= " : " < ";
+            String var = loop.getVar();
+            // A counter declared before the loop keeps the value it ends with
+            out.append(inner).append(loop.declaresCounter() ? tokens.text(loop.getTypeFrom(), loop.getTypeTo()) + " " : "")
+                    .append(var).append(" = ").append(tokens.text(loop.getInitFrom(), loop.getInitTo())).append(";\n");
+            if (pragma != null) {
+                out.append(inner).append(pragma).append('\n');
+            }
+            out.append(inner).append("for (; ").append(var).append(" + ").append(LANES - 1).append(op).append(bound)
+                    .append("; ").append(var).append(" += ").append(LANES).append(") {\n");
+            for (int k = 0; k < LANES; k++) {
+                for (int s = loop.getOpen() + 1; s < loop.getClose(); s = tokens.statementEnd(s) + 1) {
+                    out.append(bodyIndent).append(loop.render(tokens, s, tokens.statementEnd(s), k, lanes.get(k)))
+                            .append('\n');
+                }
+            }
+            out.append(inner).append("}\n");
+            out.append(inner).append("for (; ").append(var).append(op).append(bound).append("; ").append(var)
+                    .append("++) {\n");
+            for (int s = loop.getOpen() + 1; s < loop.getClose(); s = tokens.statementEnd(s) + 1) {
+                out.append(bodyIndent).append(tokens.text(s, tokens.statementEnd(s))).append('\n');
+            }
+            out.append(inner).append("}\n");
+            for (String sum : sums) {
+                List<String> partial = new ArrayList<>();
+                for (int k = 1; k < LANES; k++) {
+                    partial.add(lanes.get(k).get(sum));
+                }
+                out.append(inner).append(sum).append(" += ").append(String.join(" + ", partial)).append(";\n");
+            }
+            out.append(indent).append("}");
+            return out.toString();
+        }
+    }
+
+    private enum Kind {
+        // An array declared as one, a distinct object of its own
+        ARRAY,
+        // A local pointer to memory it allocated and never changes
+        ALLOCATION,
+        // A pointer parameter, and one already marked restrict
+        PARAMETER,
+        RESTRICT,
+        OTHER
+    }
+
+    /** An array the loop indexes, and the offsets from the counter it indexes it at. */
+    private static final class Base {
+        private final String name;
+        private final Declaration declaration;
+        private final Kind kind;
+        private final Set<String> offsets = new LinkedHashSet<>();
+        private boolean written;
+
+        private Base(String name, Declaration declaration, Kind kind) {
+            this.name = name;
+            this.declaration = declaration;
+            this.kind = kind;
+        }
+    }
+
+    private static final class Candidate {
+        private final int forToken;
+        private final CountedLoop loop;
+        private final String label;
+        private final Map<Declaration, Base> bases = new LinkedHashMap<>();
+        // Variables the body only adds to, by name
+        private final Map<String, Declaration> sums = new LinkedHashMap<>();
+        private final Set<Base> restrict = new LinkedHashSet<>();
+        private final Set<String> allocations = new LinkedHashSet<>();
+        private String reason;
+        private String boundName;
+        private String boundType;
+
+        private Candidate(int forToken, CountedLoop loop, String label) {
+            this.forToken = forToken;
+            this.loop = loop;
+            this.label = label;
+        }
+    }
+
+    private static final class Function {
+        private final String name;
+        private final int open;
+        private final int brace;
+        private final int close;
+        private final boolean isStatic;
+        // Outside classes and namespaces
+        private final boolean free;
+
+        private Function(String name, int open, int brace, int close, boolean isStatic, boolean free) {
+            this.name = name;
+            this.open = open;
+            this.brace = brace;
+            this.close = close;
+            this.isStatic = isStatic;
+            this.free = free;
+        }
+    }
+}
@@ -1,61 +1,667 @@
 package com.example.cppoptimizer.service.CodeTransformer;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.DataModel;
+import com.example.cppoptimizer.service.CodeTransformer.Declarations.Declaration;
+import com.example.cppoptimizer.service.Lexer.SourceRewriter;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
 
+/**
+ * Moves heap arrays of a constant number of scalars to the stack when nothing can see
+ * them once their function returns. Allocations are recognized in declarations such as
+ * {@code T *p = (T *) malloc(N * sizeof(T));}, {@code calloc(N, sizeof(T))} and
+ * {@code new T[N]}, and become {@code T p[N];}, zero-initialized for calloc and
+ * {@code new T[N]()}. The matching {@code free(p);} or {@code delete[] p;} statements go.
+ *
+ * <p>The pointer must stay within its function: every use indexes or dereferences it,
+ * tests it for null, or passes it whole to a library function that only uses it during
+ * the call, or to a function of the file that does the same with its parameter. Pointers
+ * that are returned, copied, reassigned, measured with {@code sizeof} or released the wrong
+ * way stay on the heap, as do all allocations of recursive functions and of functions with
+ * lambdas. The arrays one function takes on may not exceed the configured stack budget.
+ * Every allocation looked at is reported, with the reason when it is kept.
+ */
 public class MemoryAllocationOptimizer extends CodeTransformer {
+    public static final int DEFAULT_STACK_BUDGET = 1024;
+    // Library functions that use a pointer argument only while they run
+    private static final Set<String> BORROWING = Set.of(
+            "memset", "memcpy", "memmove", "memcmp", "memchr", "strlen", "strcpy", "strncpy", "strcat", "strncat",
+            "strcmp", "strncmp", "strchr", "strstr", "printf", "fprintf", "sprintf", "snprintf", "puts", "fputs",
+            "fgets", "fread", "fwrite", "scanf", "sscanf", "fscanf", "qsort", "atoi", "atol", "atof", "strtol",
+            "strtod");
+    private static final Set<String> ASSIGNMENTS = Set.of(
+            "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=", "++", "--");
+    private static final Set<String> NULLS = Set.of("NULL", "nullptr", "0");
+    // Rewrite value marking a release to delete
+    private static final int RELEASE = -1;
+
+    private final int stackBudget;
+    private final DataModel model;
+
+    public MemoryAllocationOptimizer() {
+        this(DEFAULT_STACK_BUDGET, DataModel.LP64);
+    }
+
+    /** {@code stackBudget} is the number of bytes each function may move to its frame. */
+    public MemoryAllocationOptimizer(int stackBudget, DataModel model) {
+        if (stackBudget < 0) {
+            throw new IllegalArgumentException("Stack budget must not be negative: " + stackBudget);
+        }
+        this.stackBudget = stackBudget;
+        this.model = model;
+    }
+
     @Override
-    public String transform(String code, CodeOptimizerService.Language lang) {
-        String[] lines = code.split("\n");
-        List<String> newLines = new ArrayList<>();
-        Set<String> convertedArrays = new HashSet<>();
-
-        Pattern mallocPattern = Pattern.compile("(\\w+)\\s*=\\s*\\(\\w+\\*\\)\\s*malloc\\s*\\(\\s*(\\d+)\\s*\\*\\s*sizeof\\s*\\(\\s*\\w+\\s*\\)\\s*\\);");
-        Pattern newPattern = Pattern.compile("(\\w+)\\s*=\\s*new\\s+\\w+\\s*\\[\\s*(\\d+)\\s*\\];");
-
-        for (String line : lines) {
-            Matcher mallocMatcher = mallocPattern.matcher(line);
-            Matcher newMatcher = newPattern.matcher(line);
-
-            if (mallocMatcher.find()) {
-                String varName = mallocMatcher.group(1);
-                int size = Integer.parseInt(mallocMatcher.group(2));
-                if (size <= 10) {
-                    newLines.add("int " + varName + "[" + size + "];");
-                    convertedArrays.add(varName);
-                } else {
-                    newLines.add(line);
-                }
-            } else if (newMatcher.find()) {
-                String varName = newMatcher.group(1);
-                int size = Integer.parseInt(newMatcher.group(2));
-                if (size <= 10) {
-                    newLines.add("int " + varName + "[" + size + "];");
-                    convertedArrays.add(varName);
-                } else {
-                    newLines.add(line);
+    public String transform(TokenStream tokens, CodeOptimizerService.Language lang) {
+        List<Function> functions = findFunctions(tokens);
+        Promotion promotion = null;
+        for (Function function : functions) {
+            for (int i = function.brace + 1; i < function.close; i++) {
+                checkpoint();
+                if (tokens.isAny(i, "malloc", "calloc", "new") && !tokens.isAny(i - 1, ".", "->", "::")) {
+                    if (promotion == null) {
+                        promotion = new Promotion(tokens, functions);
+                    }
+                    i = promotion.allocation(function, i);
                 }
-            } else if (!convertedArrays.contains(line.trim().replaceAll("delete\\s*\\[\\s*\\]\\s*(\\w+)\\s*;", "$1"))) {
-                newLines.add(line);
             }
         }
+        return promotion != null ? promotion.rewriter.toString() : tokens.getSource();
+    }
 
-        return String.join("\n", newLines);
+    // The functions a pointer is passed to are looked at as well
+    @Override
+    public boolean requiresWholeFile() {
+        return true;
+    }
+
+    // Null tests of a promoted array become constants
+    @Override
+    public Set<String> enables() {
+        return Set.of("foldConstants");
+    }
+
+    @Override
+    public boolean isApplicable(TokenStream tokens) {
+        return tokens.contains("malloc") || tokens.contains("calloc") || tokens.contains("new");
     }
 
     @Override
     public String getInsight() {
-        return "Converted heap allocations to stack where possible.";
+        return "Moved small heap arrays that never leave their function to the stack.";
     }
 
     @Override
     public String getName() {
         return "optimizeMemoryAllocation";
     }
-}
\ No newline at end of file
+
+    @Override
+    public String describe() {
+        return getName() + "(stackBytes=" + stackBudget + ", dataModel=" + model + ")";
+    }
+
+    private static List<Function> findFunctions(TokenStream tokens) {
+        List<Function> functions = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            checkpoint();
+            if (tokens.is(i, "{")) {
+                int open = StatementEditor.functionParameters(tokens, i);
+                if (open >= 0 && tokens.match(i) > i) {
+                    functions.add(new Function(tokens.text(open - 1), open, i, tokens.match(i)));
+                    i = tokens.match(i);
+                }
+            }
+        }
+        return functions;
+    }
+
+    // Bytes of one element, or -1 for types that are not plain scalars
+    private long sizeOf(String type) {
+        switch (type) {
+            case "char", "signed char", "unsigned char", "bool", "_Bool", "int8_t", "uint8_t":
+                return 1;
+            case "short", "short int", "signed short", "unsigned short", "unsigned short int", "int16_t", "uint16_t":
+                return model.getShortSize();
+            case "float", "int32_t", "uint32_t":
+                return 4;
+            case "double", "int64_t", "uint64_t":
+                return 8;
+            case "long double":
+                return model.getLongDoubleSize();
+            case "size_t", "ptrdiff_t", "intptr_t", "uintptr_t":
+                return model.getPointerSize();
+            default:
+                break;
+        }
+        String canonical = ArithmeticTypes.canonical(type);
+        if (canonical == null) {
+            return -1;
+        }
+        switch (canonical) {
+            case "int", "unsigned":
+                return model.getIntSize();
+            case "long", "unsigned long":
+                return model.getLongSize();
+            case "long long", "unsigned long long":
+                return model.getLongLongSize();
+            default:
+                return -1;
+        }
+    }
+
+    private static String normalized(String type) {
+        String canonical = ArithmeticTypes.canonical(type);
+        return canonical != null ? canonical : type;
+    }
+
+    /** The state of one run: the file's declarations, what each function has taken on and the edits made. */
+    private final class Promotion {
+        private final TokenStream tokens;
+        private final Declarations declarations;
+        private final SourceRewriter rewriter;
+        private final Map<String, Function> byName = new HashMap<>();
+        // Whether a function uses the pointer passed as a parameter only while it runs, by "name#index"
+        private final Map<String, Boolean> borrows = new HashMap<>();
+
+        private Promotion(TokenStream tokens, List<Function> functions) {
+            this.tokens = tokens;
+            this.declarations = Declarations.scan(tokens);
+            this.rewriter = new SourceRewriter(tokens);
+            Set<String> overloaded = new HashSet<>();
+            for (Function function : functions) {
+                if (byName.put(function.name, function) != null) {
+                    overloaded.add(function.name);
+                }
+            }
+            byName.keySet().removeAll(overloaded);
+        }
+
+        /** Looks at the allocation whose malloc, calloc or new is at {@code call}; returns the last token it covers. */
+        private int allocation(Function function, int call) {
+            boolean isNew = tokens.is(call, "new");
+            int at = call - 1;
+            String cast = null;
+            // (T *) malloc(...)
+            if (!isNew && tokens.is(at, ")") && tokens.is(at - 1, "*") && tokens.match(at) >= 0) {
+                cast = Declarations.typeOf(tokens, tokens.match(at) + 1, at - 2);
+                at = tokens.match(at) - 1;
+            }
+            if (!tokens.is(at, "=") || !tokens.isIdentifier(at - 1)) {
+                return call;
+            }
+            int name = at - 1;
+            String pointer = tokens.text(name);
+            Declaration declaration = declarations.resolve(pointer, name + 1);
+            int end = statementEnd(call);
+            if (declaration == null || end < 0) {
+                return call;
+            }
+            String where = pointer + " in " + function.name + " at line " + tokens.lineOf(name);
+            if (!declaration.isLocal()) {
+                return keep(where, "it is static", end);
+            }
+            if (declaration.getToken() != name) {
+                return keep(where, "it is declared apart from its allocation", end);
+            }
+            int from = tokens.statementStart(name);
+            if (hasTopLevelComma(from, end)) {
+                return keep(where, "it shares its declaration with other variables", end);
+            }
+            if (!tokens.is(name - 1, "*") || !isTypeWords(from, name - 2)) {
+                return keep(where, "it is not declared in a statement of its own", end);
+            }
+            String elementType = declaration.getElementType();
+            long elementSize = elementType != null ? sizeOf(elementType) : -1;
+            if (elementSize < 0) {
+                return keep(where, "its elements are not of a scalar type", end);
+            }
+            if (cast != null && !normalized(cast).equals(normalized(elementType))) {
+                return keep(where, "it is cast from " + cast + " *", end);
+            }
+            Allocation allocation = isNew ? parseNew(call, end, elementType) : parseMalloc(call, end, pointer);
+            if (allocation == null) {
+                return keep(where, "its size is not a constant number of " + elementType + " elements", end);
+            }
+            if (allocation.elementType != null && !normalized(allocation.elementType).equals(normalized(elementType))) {
+                return keep(where, "it holds " + elementType + " but is sized for " + allocation.elementType, end);
+            }
+            if (allocation.count == 0) {
+                return keep(where, "an array of no elements is not standard", end);
+            }
+            if (function.recursive == null) {
+                function.recursive = isRecursive(function);
+            }
+            if (function.recursive) {
+                return keep(where, function.name + " is recursive and every level would take it on", end);
+            }
+            if (function.lambda == null) {
+                function.lambda = definesLambda(function);
+            }
+            if (function.lambda) {
+                return keep(where, function.name + " defines a lambda that could outlive it", end);
+            }
+            List<int[]> rewrites = new ArrayList<>();
+            String escape = escape(declaration, isNew ? "delete[]" : "free", rewrites, new HashSet<>());
+            if (escape != null) {
+                return keep(where, escape, end);
+            }
+            if (rewrites.stream().allMatch(rewrite -> rewrite[2] == RELEASE)
+                    && rewrites.size() == declarations.uses(declaration).length) {
+                rewriter.deleteLines(from, end);
+                for (int[] rewrite : rewrites) {
+                    rewriter.deleteLines(rewrite[0], rewrite[1]);
+                }
+                note("Removed the allocation of " + where + ", which nothing uses"
+                        + (rewrites.isEmpty() ? "." : ", and its " + (isNew ? "delete[]." : "free.")));
+                return end;
+            }
+            long bytes = allocation.count * elementSize;
+            if (function.promoted + bytes > stackBudget) {
+                return keep(where, bytes + " more bytes would take " + function.name + " past its stack budget of "
+                        + stackBudget + " bytes", end);
+            }
+            function.promoted += bytes;
+            String type = Declarations.typeOf(tokens, from, name - 2);
+            rewriter.replace(from, end, type + " " + pointer + "[" + allocation.count + "]"
+                    + (allocation.zeroed ? " = {0};" : ";"));
+            boolean released = false;
+            for (int[] rewrite : rewrites) {
+                if (rewrite[2] == RELEASE) {
+                    rewriter.deleteLines(rewrite[0], rewrite[1]);
+                    released = true;
+                } else {
+                    rewriter.replace(rewrite[0], rewrite[1], String.valueOf(rewrite[2]));
+                }
+            }
+            note("Moved " + where + " to the stack as " + type + " " + pointer + "[" + allocation.count + "], "
+                    + bytes + " bytes" + (released ? ", and removed its " + (isNew ? "delete[]." : "free.") : "."));
+            return end;
+        }
+
+        private int keep(String where, String reason, int end) {
+            note("Kept " + where + " on the heap, since " + reason + ".");
+            return end;
+        }
+
+        // The ';' ending the statement at p, skipping brackets of any kind; -1 at the end of a block
+        private int statementEnd(int p) {
+            for (; p < tokens.size(); p++) {
+                if (tokens.isAny(p, "(", "[", "{") && tokens.match(p) > p) {
+                    p = tokens.match(p);
+                } else if (tokens.is(p, ";")) {
+                    return p;
+                } else if (tokens.isAny(p, "{", "}")) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        private boolean hasTopLevelComma(int from, int to) {
+            for (int p = from; p < to; p++) {
+                if (tokens.isAny(p, "(", "[", "{") && tokens.match(p) > p) {
+                    p = tokens.match(p);
+                } else if (tokens.is(p, ",")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isTypeWords(int from, int to) {
+            for (int p = from; p <= to; p++) {
+                if (!tokens.isIdentifier(p) && !tokens.is(p, "::")) {
+                    return false;
+                }
+            }
+            return from <= to;
+        }
+
+        // malloc(N * sizeof(T)), malloc(sizeof(T) * N), malloc(sizeof(T)) or calloc(N, sizeof(T))
+        private Allocation parseMalloc(int call, int end, String pointer) {
+            int open = call + 1;
+            int close = tokens.match(open);
+            if (!tokens.is(open, "(") || close != end - 1) {
+                return null;
+            }
+            boolean zeroed = tokens.is(call, "calloc");
+            int[] next = new int[1];
+            long count;
+            String type;
+            if (tokens.isDecimalInteger(open + 1) && tokens.is(open + 2, zeroed ? "," : "*")) {
+                count = literal(open + 1);
+                type = sizeofType(open + 3, pointer, next);
+            } else {
+                type = sizeofType(open + 1, pointer, next);
+                if (next[0] == close && !zeroed) {
+                    count = 1;
+                } else {
+                    count = tokens.is(next[0], zeroed ? "," : "*") ? literal(next[0] + 1) : -1;
+                    next[0] += 2;
+                }
+            }
+            if (count < 0 || next[0] != close || "".equals(type)) {
+                return null;
+            }
+            return new Allocation(count, type, zeroed);
+        }
+
+        // new T[N], new T[N]() or new T[N]{}
+        private Allocation parseNew(int call, int end, String elementType) {
+            int bracket = call + 1;
+            while (tokens.isIdentifier(bracket) || tokens.is(bracket, "::")) {
+                bracket++;
+            }
+            if (bracket == call + 1 || !tokens.is(bracket, "[") || !tokens.is(bracket + 2, "]")) {
+                return null;
+            }
+            long count = literal(bracket + 1);
+            int after = bracket + 3;
+            boolean zeroed = tokens.isAny(after, "(", "{") && tokens.match(after) == after + 1;
+            if (count < 0 || (zeroed ? after + 2 : after) != end) {
+                return null;
+            }
+            return new Allocation(count, Declarations.typeOf(tokens, call + 1, bracket - 1), zeroed);
+        }
+
+        // sizeof(T), sizeof(*p) or sizeof *p; null for the element type of p, "" when it is neither
+        private String sizeofType(int at, String pointer, int[] next) {
+            next[0] = -1;
+            if (!tokens.is(at, "sizeof")) {
+                return "";
+            }
+            if (tokens.is(at + 1, "*") && tokens.is(at + 2, pointer)) {
+                next[0] = at + 3;
+                return null;
+            }
+            int close = tokens.is(at + 1, "(") ? tokens.match(at + 1) : -1;
+            if (close < 0) {
+                return "";
+            }
+            next[0] = close + 1;
+            if (close == at + 4 && tokens.is(at + 2, "*") && tokens.is(at + 3, pointer)) {
+                return null;
+            }
+            return isTypeWords(at + 2, close - 1) ? Declarations.typeOf(tokens, at + 2, close - 1) : "";
+        }
+
+        private long literal(int p) {
+            return tokens.isDecimalInteger(p) && tokens.length(p) <= 9 ? Long.parseLong(tokens.text(p)) : -1;
+        }
+
+        /**
+         * Why the pointer of {@code declaration} could see its array outlive the scope, or null
+         * if it cannot. What has to change once it is an array is added to {@code rewrites} as
+         * {@code {from, to, value}}: releases with {@code deallocator} to be deleted, and null
+         * tests to be replaced by their value. With no deallocator, as for a parameter, any
+         * release counts as keeping the pointer.
+         */
+        private String escape(Declaration declaration, String deallocator, List<int[]> rewrites, Set<String> visiting) {
+            String name = tokens.text(declaration.getToken());
+            for (int u : declarations.uses(declaration)) {
+                checkpoint();
+                if (tokens.is(u + 1, "[") && tokens.match(u + 1) > u) {
+                    // &p[i] is a pointer into the array
+                    if (tokens.is(u - 1, "&") && !CountedLoop.endsOperand(tokens, u - 2)) {
+                        String reason = argument(u - 1, tokens.match(u + 1), name, visiting);
+                        if (reason != null) {
+                            return reason;
+                        }
+                    }
+                    continue;
+                }
+                if (tokens.isAny(u + 1, "++", "--") || tokens.isAny(u - 1, "++", "--")
+                        || ASSIGNMENTS.contains(tokens.text(u + 1)) && !dereferenced(u)) {
+                    return "it is reassigned";
+                }
+                if (tokens.is(u - 1, "sizeof") || tokens.is(u - 1, "(") && tokens.is(u - 2, "sizeof")) {
+                    return "sizeof " + name + " would measure the array instead";
+                }
+                if (dereferenced(u)) {
+                    continue;
+                }
+                int[] test = nullTest(u);
+                if (test != null) {
+                    rewrites.add(test);
+                    continue;
+                }
+                if (tokens.is(u - 1, "(") && tokens.is(u + 1, ")") && tokens.isStatementStart(u - 2)
+                        && tokens.is(u + 2, ";") && tokens.is(u - 2, "free")) {
+                    if (!"free".equals(deallocator)) {
+                        return deallocator == null ? "it is freed" : "it is released with free rather than delete[]";
+                    }
+                    rewrites.add(new int[] {u - 2, u + 2, RELEASE});
+                    continue;
+                }
+                if (tokens.is(u - 1, "delete") || tokens.is(u - 1, "]") && tokens.is(u - 3, "delete")) {
+                    int delete = tokens.is(u - 1, "delete") ? u - 1 : u - 3;
+                    if (deallocator == null) {
+                        return "it is deleted";
+                    }
+                    if (!"delete[]".equals(deallocator) || delete == u - 1) {
+                        return "it is released with " + (delete == u - 1 ? "delete" : "delete[]") + " rather than "
+                                + deallocator;
+                    }
+                    if (!tokens.isStatementStart(delete) || !tokens.is(u + 1, ";")) {
+                        return "its delete[] is not a statement of its own";
+                    }
+                    rewrites.add(new int[] {delete, u + 1, RELEASE});
+                    continue;
+                }
+                if (tokens.is(u - 1, "return")) {
+                    return "it is returned";
+                }
+                if (tokens.isAny(u - 1, "(", ",") && tokens.isAny(u + 1, ")", ",")) {
+                    String reason = argument(u, u, name, visiting);
+                    if (reason != null) {
+                        return reason;
+                    }
+                    continue;
+                }
+                return tokens.is(u - 1, "=") ? "it is copied to another pointer" : "it is used as a pointer value";
+            }
+            return null;
+        }
+
+        // *p, or *(p + i)
+        private boolean dereferenced(int u) {
+            if (tokens.is(u - 1, "*") && !CountedLoop.endsOperand(tokens, u - 2)) {
+                return true;
+            }
+            return tokens.is(u - 1, "(") && tokens.isAny(u + 1, "+", "-") && tokens.is(u - 2, "*")
+                    && !CountedLoop.endsOperand(tokens, u - 3);
+        }
+
+        // !p, p == NULL, NULL != p or if (p), which an array always passes or fails
+        private int[] nullTest(int u) {
+            if (tokens.is(u - 1, "!")) {
+                return new int[] {u - 1, u, 0};
+            }
+            if (tokens.isAny(u + 1, "==", "!=") && NULLS.contains(tokens.text(u + 2))) {
+                return new int[] {u, u + 2, tokens.is(u + 1, "!=") ? 1 : 0};
+            }
+            if (tokens.isAny(u - 1, "==", "!=") && NULLS.contains(tokens.text(u - 2))) {
+                return new int[] {u - 2, u, tokens.is(u - 1, "!=") ? 1 : 0};
+            }
+            boolean condition = tokens.is(u - 1, "(") && tokens.is(u + 1, ")") && tokens.isAny(u - 2, "if", "while");
+            return condition ? new int[] {u, u, 1} : null;
+        }
+
+        // Why passing the pointer value at from..to as an argument could keep it, or null if it cannot
+        private String argument(int from, int to, String name, Set<String> visiting) {
+            if (!tokens.isAny(from - 1, "(", ",") || !tokens.isAny(to + 1, ")", ",")) {
+                return "it is used as a pointer value";
+            }
+            int index = 0;
+            int open = from - 1;
+            while (open >= 0 && !tokens.is(open, "(")) {
+                if (tokens.isAny(open, ";", "{", "}")) {
+                    return "it is used as a pointer value";
+                }
+                if (tokens.is(open, ",")) {
+                    index++;
+                }
+                open = tokens.isAny(open, ")", "]", "}") && tokens.match(open) >= 0 ? tokens.match(open) - 1 : open - 1;
+            }
+            String callee = open > 0 && tokens.isIdentifier(open - 1) ? tokens.text(open - 1) : null;
+            if (callee == null) {
+                return "it is used as a pointer value";
+            }
+            if (callee.equals("free")) {
+                return "its free is not a statement of its own";
+            }
+            if (BORROWING.contains(callee) || borrows(callee, index, tokens.match(open), visiting)) {
+                return null;
+            }
+            return "it is passed to " + callee + ", which may keep it";
+        }
+
+        // Whether the function named callee only uses parameter index while it runs
+        private boolean borrows(String callee, int index, int close, Set<String> visiting) {
+            Function function = byName.get(callee);
+            if (function == null) {
+                return false;
+            }
+            String key = callee + "#" + index;
+            Boolean known = borrows.get(key);
+            if (known != null) {
+                return known;
+            }
+            if (!visiting.add(key)) {
+                return false;
+            }
+            int parameter = parameter(function, index);
+            boolean borrowed = false;
+            if (parameter >= 0 && arguments(close) == arguments(tokens.match(function.open))) {
+                Declaration declaration = declarations.resolve(tokens.text(parameter), parameter + 1);
+                borrowed = declaration != null && declaration.getToken() == parameter
+                        && escape(declaration, null, new ArrayList<>(), visiting) == null;
+            }
+            visiting.remove(key);
+            borrows.put(key, borrowed);
+            return borrowed;
+        }
+
+        // Token of the name of parameter index when it is declared T *name or T name[], otherwise -1
+        private int parameter(Function function, int index) {
+            int start = function.open + 1;
+            int close = tokens.match(function.open);
+            for (int p = start; p <= close; p++) {
+                if (tokens.isAny(p, "(", "[") && tokens.match(p) > p) {
+                    p = tokens.match(p);
+                } else if (tokens.isAny(p, ",", ")")) {
+                    if (index-- == 0) {
+                        int name = tokens.is(p - 1, "]") && tokens.is(p - 2, "[") ? p - 3 : p - 1;
+                        boolean pointer = name == p - 3 ? isTypeWords(start, name - 1)
+                                : tokens.is(name - 1, "*") && isTypeWords(start, name - 2);
+                        return tokens.isIdentifier(name) && pointer ? name : -1;
+                    }
+                    start = p + 1;
+                }
+            }
+            return -1;
+        }
+
+        // Arguments of the call or parameters of the definition closing at close
+        private int arguments(int close) {
+            int open = tokens.match(close);
+            if (open < 0 || open + 1 == close || open + 2 == close && tokens.is(open + 1, "void")) {
+                return 0;
+            }
+            int count = 1;
+            for (int p = open + 1; p < close; p++) {
+                if (tokens.isAny(p, "(", "[", "{") && tokens.match(p) > p) {
+                    p = tokens.match(p);
+                } else if (tokens.is(p, ",")) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        // Whether the function can reach a call to itself through the functions of the file
+        private boolean isRecursive(Function function) {
+            List<Function> pending = new ArrayList<>(callees(function));
+            Set<Function> seen = new HashSet<>(pending);
+            while (!pending.isEmpty()) {
+                checkpoint();
+                Function next = pending.remove(pending.size() - 1);
+                if (next == function) {
+                    return true;
+                }
+                for (Function callee : callees(next)) {
+                    if (seen.add(callee)) {
+                        pending.add(callee);
+                    }
+                }
+            }
+            return false;
+        }
+
+        private List<Function> callees(Function function) {
+            if (function.callees == null) {
+                function.callees = new ArrayList<>();
+                for (int p = function.brace + 1; p < function.close; p++) {
+                    checkpoint();
+                    Function callee = tokens.is(p + 1, "(") && tokens.isIdentifier(p) && !tokens.isAny(p - 1, ".", "->")
+                            ? byName.get(tokens.text(p)) : null;
+                    if (callee != null && !function.callees.contains(callee)) {
+                        function.callees.add(callee);
+                    }
+                }
+            }
+            return function.callees;
+        }
+
+        // [captures](parameters) { body } anywhere in the body
+        private boolean definesLambda(Function function) {
+            for (int p = function.brace + 1; p < function.close; p++) {
+                if (tokens.is(p, "[") && !CountedLoop.endsOperand(tokens, p - 1) && !tokens.is(p - 1, "[")
+                        && tokens.match(p) > p && tokens.isAny(tokens.match(p) + 1, "(", "{")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Allocation {
+        private final long count;
+        // What sizeof measured, or null when it measured *p
+        private final String elementType;
+        private final boolean zeroed;
+
+        private Allocation(long count, String elementType, boolean zeroed) {
+            this.count = count;
+            this.elementType = elementType;
+            this.zeroed = zeroed;
+        }
+    }
+
+    private static final class Function {
+        private final String name;
+        private final int open;
+        private final int brace;
+        private final int close;
+        private List<Function> callees;
+        private Boolean recursive;
+        private Boolean lambda;
+        // Bytes of the arrays moved into its frame so far
+        private long promoted;
+
+        private Function(String name, int open, int brace, int close) {
+            this.name = name;
+            this.open = open;
+            this.brace = brace;
+            this.close = close;
+        }
+    }
+}
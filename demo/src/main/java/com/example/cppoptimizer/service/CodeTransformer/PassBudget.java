@@ -0,0 +1,51 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.util.function.Supplier;
+
+/**
+ * Time budget of the pass running on the current thread. Passes call
+ * {@link CodeTransformer#checkpoint()} from their loops; once the budget is used up the
+ * next checkpoint throws a {@link PassTimeoutException}, which unwinds the pass so that
+ * the caller can keep its input. Passes never modify the shared token stream, so
+ * abandoning one half way leaves nothing to clean up.
+ */
+public final class PassBudget {
+    // Reading the clock costs more than a typical loop step, so it is only read every so often
+    private static final int CHECK_INTERVAL = 1024;
+    private static final ThreadLocal<PassBudget> CURRENT = new ThreadLocal<>();
+
+    private final long deadline;
+    private int countdown = CHECK_INTERVAL;
+
+    private PassBudget(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /** Runs {@code pass} with at most {@code budgetNanos} to spend; zero or less means no limit. */
+    public static String run(long budgetNanos, Supplier<String> pass) {
+        if (budgetNanos <= 0) {
+            return pass.get();
+        }
+        PassBudget outer = CURRENT.get();
+        CURRENT.set(new PassBudget(System.nanoTime() + budgetNanos));
+        try {
+            return pass.get();
+        } finally {
+            if (outer != null) {
+                CURRENT.set(outer);
+            } else {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    static void checkpoint() {
+        PassBudget budget = CURRENT.get();
+        if (budget != null && --budget.countdown <= 0) {
+            budget.countdown = CHECK_INTERVAL;
+            if (System.nanoTime() - budget.deadline > 0) {
+                throw new PassTimeoutException();
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Notes a pass makes about the individual rewrites it performs, reported as insights
+ * next to its general one. Like {@link PassBudget} they are bound to the thread running
+ * the pass; notes made outside of {@link #collect} are dropped.
+ */
+public final class PassNotes {
+    private static final ThreadLocal<List<String>> CURRENT = new ThreadLocal<>();
+
+    private PassNotes() {
+    }
+
+    /** Runs {@code pass}, adding the notes it makes to {@code into}. */
+    public static String collect(List<String> into, Supplier<String> pass) {
+        List<String> outer = CURRENT.get();
+        CURRENT.set(into);
+        try {
+            return pass.get();
+        } finally {
+            if (outer != null) {
+                CURRENT.set(outer);
+            } else {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    static void add(String note) {
+        List<String> notes = CURRENT.get();
+        if (notes != null) {
+            notes.add(note);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+/** Thrown from a pass's checkpoint once its {@link PassBudget} is used up. */
+public class PassTimeoutException extends RuntimeException {
+    public PassTimeoutException() {
+        // Caught right where the pass was started, so the stack trace would never be looked at
+        super("Pass exceeded its time budget", null, false, false);
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.example.cppoptimizer.service.Lexer.SourceRewriter;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
+
+/**
+ * Takes statements out of function bodies: whole statements, or the head and tail of an
+ * {@code if} or loop around the branch that is kept. A kept block whose braces have lines
+ * of their own is unwrapped, its lines one indentation level less deep.
+ */
+final class StatementEditor {
+    private final TokenStream tokens;
+    private final Declarations declarations;
+    private final SourceRewriter rewriter;
+    // Indentation to remove per line start, for the blocks that are unwrapped
+    private final Map<Integer, Integer> dedents = new TreeMap<>();
+
+    StatementEditor(TokenStream tokens, Declarations declarations) {
+        this.tokens = tokens;
+        this.declarations = declarations;
+        this.rewriter = new SourceRewriter(tokens);
+    }
+
+    SourceRewriter getRewriter() { return rewriter; }
+
+    /** The '(' of the parameters when the '{' at {@code brace} opens a function body, otherwise -1. */
+    static int functionParameters(TokenStream tokens, int brace) {
+        int paren = brace - 1;
+        while (tokens.isAny(paren, "const", "noexcept", "override", "final")) {
+            paren--;
+        }
+        int open = tokens.is(paren, ")") ? tokens.match(paren) : -1;
+        boolean function = open >= 1 && tokens.isIdentifier(open - 1)
+                && !tokens.isAny(open - 1, "if", "while", "for", "switch", "catch");
+        return function ? open : -1;
+    }
+
+    /** Whether every bracket opened within {@code open..close} also closes there. */
+    static boolean isBalanced(TokenStream tokens, int open, int close) {
+        for (int p = open; p <= close; p++) {
+            if (tokens.isAny(p, "(", "[", "{") && (tokens.match(p) < 0 || tokens.match(p) > close)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Last token of the statement at {@code p}, which ends at {@code limit} at the latest. */
+    static int extent(TokenStream tokens, int p, int limit) {
+        boolean header = tokens.is(p + 1, "(") && tokens.match(p + 1) < limit;
+        switch (tokens.text(p)) {
+            case "{":
+                return tokens.match(p);
+            case "if": {
+                if (!header) {
+                    break;
+                }
+                int end = extent(tokens, tokens.match(p + 1) + 1, limit);
+                return tokens.is(end + 1, "else") ? extent(tokens, end + 2, limit) : end;
+            }
+            case "for":
+            case "while":
+            case "switch":
+                return header ? extent(tokens, tokens.match(p + 1) + 1, limit) : end(tokens, p, limit);
+            case "do": {
+                int end = extent(tokens, p + 1, limit);
+                return tokens.is(end + 1, "while") && tokens.is(end + 2, "(") ? tokens.match(end + 2) + 1 : end;
+            }
+            case "try": {
+                int end = extent(tokens, p + 1, limit);
+                while (tokens.is(end + 1, "catch") && tokens.is(end + 2, "(")) {
+                    end = extent(tokens, tokens.match(end + 2) + 1, limit);
+                }
+                return end;
+            }
+            default:
+                break;
+        }
+        return end(tokens, p, limit);
+    }
+
+    /** The ';' ending the simple statement at {@code p}, or {@code limit}. */
+    static int end(TokenStream tokens, int p, int limit) {
+        for (int q = p; q <= limit; q++) {
+            if (tokens.is(q, ";")) {
+                return q;
+            }
+            if (tokens.isAny(q, "(", "[", "{")) {
+                q = tokens.match(q);
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Whether the statement {@code p..end} can be taken out in part or whole: nothing jumps
+     * into it, and nothing is left dangling once its head is gone.
+     */
+    boolean isRemovable(int p, int end) {
+        if (!tokens.isStatementStart(p) && !tokens.is(p - 1, "else") || tokens.isType(p - 1, TokenType.PREPROCESSOR)) {
+            return false;
+        }
+        for (int q = p; q <= end; q++) {
+            if (tokens.isAny(q, "case", "default") || tokens.isType(q, TokenType.PREPROCESSOR)
+                    || tokens.isIdentifier(q) && tokens.is(q + 1, ":") && tokens.isStatementStart(q)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Removes the statement {@code p..end} except {@code keptFrom..keptTo}, if any. */
+    void remove(int p, int end, int keptFrom, int keptTo) {
+        if (keptFrom >= 0 && tokens.is(keptFrom, "{") && keptTo == keptFrom + 1) {
+            keptFrom = -1;
+        }
+        if (keptFrom < 0) {
+            if (tokens.is(p - 1, "else")) {
+                rewriter.replaceRange(tokens.end(p - 2), tokens.end(end), "");
+            } else {
+                rewriter.deleteLines(p, end);
+            }
+            return;
+        }
+        if (tokens.is(keptFrom, "{") && unwrap(p, end, keptFrom, keptTo)) {
+            return;
+        }
+        rewriter.replaceRange(tokens.start(p), tokens.start(keptFrom), "");
+        rewriter.replaceRange(tokens.end(keptTo), tokens.end(end), "");
+    }
+
+    // Puts the statements of the kept block in place of the whole statement, when the
+    // block declares nothing and its braces have lines of their own
+    private boolean unwrap(int p, int end, int open, int close) {
+        int head = lineStart(p);
+        int headEnd = lineEnd(open);
+        int tail = lineStart(close);
+        int tailEnd = lineEnd(end);
+        if (!tokens.isStatementStart(p) || head < 0 || headEnd < 0 || tail < 0 || tailEnd < 0) {
+            return false;
+        }
+        for (int q = open + 1; q < close; q++) {
+            if (isDeclaredAt(q) || Declarations.isOpaqueDeclarator(tokens, q)
+                    || tokens.isType(q, TokenType.STRING) && tokens.text(q).indexOf('\n') >= 0) {
+                return false;
+            }
+            if (tokens.isAny(q, "(", "[", "{")) {
+                q = tokens.match(q);
+            }
+        }
+        rewriter.replaceRange(head, headEnd + 1, "");
+        rewriter.replaceRange(tail, Math.min(tailEnd + 1, tokens.getSource().length()), "");
+        int unit = tokens.indentationOf(open + 1).length() - tokens.indentationOf(p).length();
+        String source = tokens.getSource();
+        for (int line = headEnd + 1; unit > 0 && line < tail; line = source.indexOf('\n', line) + 1) {
+            dedents.merge(line, unit, Integer::sum);
+            if (source.indexOf('\n', line) < 0) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    private boolean isDeclaredAt(int p) {
+        Declarations.Declaration declaration = tokens.isIdentifier(p) ? declarations.resolve(tokens.text(p), p + 1) : null;
+        return declaration != null && declaration.getToken() == p;
+    }
+
+    // Offset the line of token p starts at, or -1 when something precedes p on it
+    private int lineStart(int p) {
+        String source = tokens.getSource();
+        int start = tokens.start(p);
+        while (start > 0 && (source.charAt(start - 1) == ' ' || source.charAt(start - 1) == '\t')) {
+            start--;
+        }
+        return start == 0 || source.charAt(start - 1) == '\n' ? start : -1;
+    }
+
+    // Offset of the line break after token p, or -1 when something follows p on its line
+    private int lineEnd(int p) {
+        String source = tokens.getSource();
+        int end = tokens.end(p);
+        while (end < source.length() && (source.charAt(end) == ' ' || source.charAt(end) == '\t'
+                || source.charAt(end) == '\r')) {
+            end++;
+        }
+        return end == source.length() || source.charAt(end) == '\n' ? end : -1;
+    }
+
+    /** The source with every edit made, unwrapped blocks dedented. */
+    String apply() {
+        String source = tokens.getSource();
+        for (Map.Entry<Integer, Integer> dedent : dedents.entrySet()) {
+            int line = dedent.getKey();
+            int end = line;
+            while (end < line + dedent.getValue() && end < source.length()
+                    && (source.charAt(end) == ' ' || source.charAt(end) == '\t')) {
+                end++;
+            }
+            if (end > line) {
+                rewriter.replaceRange(line, end, "");
+            }
+        }
+        return rewriter.toString();
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.CodeTransformer.Declarations.Declaration;
+import com.example.cppoptimizer.service.Lexer.SourceRewriter;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
+
+/**
+ * Replaces costly arithmetic with cheaper equivalents. Multiplications, divisions and
+ * remainders by a power of two become shifts and masks when the other operand cannot be
+ * negative, i.e. it is declared unsigned or is the counter of a loop counting up from a
+ * literal; for negative values a shift rounds differently than a division. Inside counted
+ * loops, the counter times a loop-invariant factor becomes a second counter that the loop
+ * advances by the factor, so each iteration adds instead of multiplying.
+ *
+ * <p>Types come from the declarations visible in the code being optimized; names whose
+ * declaration is not in sight are left alone.
+ */
+public class StrengthReducer extends CodeTransformer {
+    // Tokens after which a product starts a new operand, so replacing it keeps its meaning
+    private static final Set<String> LEFT_BOUNDARIES = Set.of(
+            "=", "(", "[", ",", "{", "}", ";", "?", ":", "return", "+=", "-=", "*=", "/=", "%=", "&=", "|=",
+            "^=", "<<=", ">>=", "<", ">", "<=", ">=", "==", "!=", "&&", "||", "|", "^", "<<", ">>");
+    // Binary operators that bind looser than a product, but tighter as unary operators
+    private static final Set<String> BINARY_OR_UNARY = Set.of("+", "-", "&");
+    private static final Set<String> POSTFIX = Set.of("(", "[", ".", "->", "++", "--", "::");
+    private static final Map<String, String> COMPOUND = Map.of("*=", "<<=", "/=", ">>=", "%=", "&=");
+
+    @Override
+    public String transform(TokenStream tokens, CodeOptimizerService.Language lang) {
+        Declarations declarations = Declarations.scan(tokens);
+        Set<Declaration> nonNegative = new HashSet<>();
+
+        // Counters that the body never writes count up from their literal start
+        List<CountedLoop> loops = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            checkpoint();
+            CountedLoop loop = tokens.is(i, "for") ? CountedLoop.parse(tokens, i) : null;
+            if (loop == null || loop.bodyWrites(tokens, Set.of(loop.getVar()))) {
+                continue;
+            }
+            loops.add(loop);
+            Declaration counter = declarations.resolve(loop.getVar(), loop.getVarToken() + 1);
+            if (counter != null && counter.getToken() == loop.getVarToken() && loop.literalInit(tokens) >= 0) {
+                nonNegative.add(counter);
+            }
+        }
+
+        SourceRewriter rewriter = new SourceRewriter(tokens);
+        boolean[] claimed = new boolean[tokens.size()];
+        for (CountedLoop loop : loops) {
+            reduceInductionProducts(tokens, loop, declarations, nonNegative, rewriter, claimed);
+        }
+        for (int i = 0; i < tokens.size(); i++) {
+            checkpoint();
+            if (!claimed[i] && tokens.isType(i, TokenType.PUNCTUATOR)) {
+                reducePowerOfTwo(tokens, i, declarations, nonNegative, rewriter);
+            }
+        }
+        return rewriter.toString();
+    }
+
+    // x * 8 -> x << 3, x / 16 -> x >> 4, x % 32 -> x & 31, and the compound assignments alike
+    private void reducePowerOfTwo(TokenStream tokens, int op, Declarations declarations,
+                                  Set<Declaration> nonNegative, SourceRewriter rewriter) {
+        String compound = COMPOUND.get(tokens.text(op));
+        if (compound != null) {
+            int shift = powerOfTwo(tokens, op + 1);
+            if (shift > 0 && tokens.isIdentifier(op - 1) && isLeftBoundary(tokens, op - 2)
+                    && tokens.isAny(op + 2, ";", ")", ",") && isNonNegative(tokens, declarations, nonNegative, op - 1)) {
+                String reduced = tokens.text(op - 1) + " " + compound + " " + shiftOrMask(tokens, op, shift);
+                rewriter.replace(op - 1, op + 1, reduced);
+                note(tokens, op - 1, op + 1, reduced, declarations);
+            }
+            return;
+        }
+        if (!tokens.isAny(op, "*", "/", "%")) {
+            return;
+        }
+        int operand;
+        int literal;
+        if (tokens.isIdentifier(op - 1) && powerOfTwo(tokens, op + 1) > 0) {
+            operand = op - 1;
+            literal = op + 1;
+        } else if (tokens.is(op, "*") && powerOfTwo(tokens, op - 1) > 0 && tokens.isIdentifier(op + 1)
+                && !POSTFIX.contains(tokens.text(op + 2))) {
+            operand = op + 1;
+            literal = op - 1;
+        } else {
+            return;
+        }
+        if (!isLeftBoundary(tokens, op - 2) || !isNonNegative(tokens, declarations, nonNegative, operand)) {
+            return;
+        }
+        String symbol = tokens.is(op, "*") ? " << " : tokens.is(op, "/") ? " >> " : " & ";
+        String reduced = tokens.text(operand) + symbol + shiftOrMask(tokens, op, powerOfTwo(tokens, literal));
+        // Shifts and masks bind looser than the arithmetic around them
+        boolean bare = tokens.isAny(op - 2, "=", "(", "[", ",", "return") && tokens.isAny(op + 2, ";", ")", "]", ",");
+        rewriter.replace(op - 1, op + 1, bare ? reduced : "(" + reduced + ")");
+        note(tokens, op - 1, op + 1, reduced, declarations);
+    }
+
+    // The shift count, or for a remainder the mask
+    private String shiftOrMask(TokenStream tokens, int op, int shift) {
+        return tokens.isAny(op, "%", "%=") ? String.valueOf((1L << shift) - 1) : String.valueOf(shift);
+    }
+
+    private void note(TokenStream tokens, int from, int to, String reduced, Declarations declarations) {
+        int operand = tokens.isIdentifier(from) ? from : to;
+        Declaration declaration = declarations.resolve(tokens.text(operand), operand);
+        String reason = declaration.isUnsigned() ? tokens.text(operand) + " is unsigned"
+                : "the loop counter " + tokens.text(operand) + " is never negative";
+        note("Replaced " + tokens.text(from, to) + " with " + reduced + ", since " + reason + ".");
+    }
+
+    // for (int i = 0; ...; i++) { a[i * n] }  ->  for (int i = 0, i_times_n = 0; ...; i++, i_times_n += n) { a[i_times_n] }
+    private void reduceInductionProducts(TokenStream tokens, CountedLoop loop, Declarations declarations,
+                                         Set<Declaration> nonNegative, SourceRewriter rewriter, boolean[] claimed) {
+        String var = loop.getVar();
+        String type = Declarations.typeOf(tokens, loop.getTypeFrom(), loop.getTypeTo());
+        Declaration counter = declarations.resolve(var, loop.getVarToken() + 1);
+        // Narrow counters are promoted before they are multiplied, a running sum of their type is not
+        if (type.contains("short") || counter == null || counter.getToken() != loop.getVarToken()
+                || CountedLoop.expressionNames(tokens, loop.getInitFrom(), loop.getInitTo()) == null) {
+            return;
+        }
+        Map<String, String> temps = new LinkedHashMap<>();
+        Map<String, Integer> uses = new HashMap<>();
+        int forToken = loop.getTypeFrom() - 2;
+        for (int p = loop.getOpen() + 1; p < loop.getClose(); p++) {
+            checkpoint();
+            if (!tokens.is(p, "*") || claimed[p]) {
+                continue;
+            }
+            int factor = tokens.is(p - 1, var) ? p + 1 : tokens.is(p + 1, var) ? p - 1 : -1;
+            if (factor < 0 || !isLeftBoundary(tokens, p - 2) || POSTFIX.contains(tokens.text(p + 2))
+                    || declarations.resolve(var, factor == p + 1 ? p - 1 : p + 1) != counter
+                    || !isInvariantFactor(tokens, loop, forToken, factor, type, nonNegative.contains(counter),
+                            declarations)) {
+                continue;
+            }
+            String factorText = tokens.text(factor);
+            String temp = temps.computeIfAbsent(factorText, f -> tempName(tokens, var, f, temps.values()));
+            uses.merge(factorText, 1, Integer::sum);
+            rewriter.replace(p - 1, p + 1, temp);
+            claimed[p] = true;
+        }
+        if (temps.isEmpty()) {
+            return;
+        }
+
+        long init = loop.literalInit(tokens);
+        String initText = tokens.text(loop.getInitFrom(), loop.getInitTo());
+        if (loop.getInitFrom() != loop.getInitTo()) {
+            initText = "(" + initText + ")";
+        }
+        StringBuilder inits = new StringBuilder();
+        StringBuilder steps = new StringBuilder();
+        for (Map.Entry<String, String> entry : temps.entrySet()) {
+            String factor = entry.getKey();
+            boolean literal = isLiteral(factor);
+            String start = init == 0 ? "0"
+                    : literal && init > 0 ? String.valueOf(init * Long.parseLong(factor))
+                    : initText + " * " + factor;
+            String increment = literal ? String.valueOf((long) loop.getStep() * Long.parseLong(factor))
+                    : loop.getStep() == 1 ? factor : loop.getStep() + " * " + factor;
+            inits.append(", ").append(entry.getValue()).append(" = ").append(start);
+            steps.append(", ").append(entry.getValue()).append(" += ").append(increment);
+            note("Replaced " + var + " * " + factor + " (" + uses.get(factor) + (uses.get(factor) == 1 ? " use" : " uses")
+                    + ") in the loop over " + var + " with " + entry.getValue()
+                    + ", which the loop advances by " + increment + " each iteration.");
+        }
+        rewriter.insertAfter(loop.getInitTo(), inits.toString());
+        rewriter.insertAfter(loop.getStepTo(), steps.toString());
+    }
+
+    // A small literal other than a power of two (those become shifts), or a local of the
+    // counter's type that nothing in the loop can change
+    private boolean isInvariantFactor(TokenStream tokens, CountedLoop loop, int forToken, int factor, String type,
+                                      boolean counterNonNegative, Declarations declarations) {
+        if (tokens.isDecimalInteger(factor)) {
+            long value = tokens.length(factor) <= 6 ? Long.parseLong(tokens.text(factor)) : 0;
+            return value > 1 && !(powerOfTwo(tokens, factor) > 0 && counterNonNegative);
+        }
+        if (!tokens.isIdentifier(factor) || tokens.is(factor, loop.getVar())) {
+            return false;
+        }
+        String name = tokens.text(factor);
+        Declaration declaration = declarations.resolve(name, factor);
+        if (declaration == null || declaration != declarations.resolve(name, forToken)
+                || declaration.getScopeEnd() >= tokens.size() || !declaration.getType().equals(type)
+                || loop.bodyWrites(tokens, Set.of(name))) {
+            return false;
+        }
+        // Through a pointer the factor could change anywhere
+        for (int p = declaration.getToken() + 1; p < declaration.getScopeEnd(); p++) {
+            if (tokens.is(p, name) && tokens.is(p - 1, "&") && !CountedLoop.endsOperand(tokens, p - 2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String tempName(TokenStream tokens, String var, String factor, Iterable<String> taken) {
+        String base = var + "_times_" + factor;
+        String name = base;
+        for (int n = 2; tokens.contains(name) || contains(taken, name); n++) {
+            name = base + "_" + n;
+        }
+        return name;
+    }
+
+    private static boolean contains(Iterable<String> names, String name) {
+        for (String taken : names) {
+            if (taken.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLiteral(String text) {
+        return !text.isEmpty() && Character.isDigit(text.charAt(0));
+    }
+
+    // log2 of a literal power of two between 2 and 2^30, or -1
+    private int powerOfTwo(TokenStream tokens, int p) {
+        if (!tokens.isDecimalInteger(p) || tokens.length(p) > 10) {
+            return -1;
+        }
+        long value = Long.parseLong(tokens.text(p));
+        return value >= 2 && value <= (1L << 30) && Long.bitCount(value) == 1 ? Long.numberOfTrailingZeros(value) : -1;
+    }
+
+    private boolean isLeftBoundary(TokenStream tokens, int p) {
+        if (p < 0 || tokens.isType(p, TokenType.PREPROCESSOR)) {
+            return true;
+        }
+        String text = tokens.text(p);
+        if (BINARY_OR_UNARY.contains(text)) {
+            return CountedLoop.endsOperand(tokens, p - 1);
+        }
+        return LEFT_BOUNDARIES.contains(text);
+    }
+
+    private boolean isNonNegative(TokenStream tokens, Declarations declarations, Set<Declaration> nonNegative, int p) {
+        Declaration declaration = declarations.resolve(tokens.text(p), p);
+        return declaration != null && (declaration.isUnsigned() || nonNegative.contains(declaration));
+    }
+
+    @Override
+    public boolean isApplicable(TokenStream tokens) {
+        return tokens.contains("*") || tokens.contains("/") || tokens.contains("%")
+                || tokens.contains("*=") || tokens.contains("/=") || tokens.contains("%=");
+    }
+
+    @Override
+    public String getInsight() {
+        return "Reduced operator strength: replaced multiplications, divisions and remainders by powers of two with "
+                + "shifts and masks, and loop counter multiplications with running sums.";
+    }
+
+    @Override
+    public String getName() {
+        return "reduceStrength";
+    }
+}
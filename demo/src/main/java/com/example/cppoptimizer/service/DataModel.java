@@ -0,0 +1,60 @@
+package com.example.cppoptimizer.service;
+
+/**
+ * Sizes and alignments of the C/C++ scalar types under common ABIs. The name gives the
+ * widths of int, long and pointers, e.g. LP64 (Linux/macOS x86-64 and AArch64) has 32-bit
+ * int and 64-bit long and pointers, LLP64 (64-bit Windows) keeps long at 32 bits, and
+ * ILP32 (i386 System V) has 32-bit everything and aligns 8-byte members to 4 inside structs.
+ */
+public enum DataModel {
+    //     short int long llong ptr  ldouble ldAlign  i64Align
+    ILP32(2, 4, 4, 8, 4, 12, 4, 4),
+    LP64(2, 4, 8, 8, 8, 16, 16, 8),
+    LLP64(2, 4, 4, 8, 8, 8, 8, 8);
+
+    /** Alignment of the stack pointer at a call, and so the granularity of a frame. */
+    public static final int STACK_ALIGNMENT = 16;
+
+    private final int shortSize;
+    private final int intSize;
+    private final int longSize;
+    private final int longLongSize;
+    private final int pointerSize;
+    private final int longDoubleSize;
+    private final int longDoubleAlign;
+    private final int int64Align;
+
+    DataModel(int shortSize, int intSize, int longSize, int longLongSize, int pointerSize,
+              int longDoubleSize, int longDoubleAlign, int int64Align) {
+        this.shortSize = shortSize;
+        this.intSize = intSize;
+        this.longSize = longSize;
+        this.longLongSize = longLongSize;
+        this.pointerSize = pointerSize;
+        this.longDoubleSize = longDoubleSize;
+        this.longDoubleAlign = longDoubleAlign;
+        this.int64Align = int64Align;
+    }
+
+    public int getShortSize() { return shortSize; }
+    public int getIntSize() { return intSize; }
+    public int getLongSize() { return longSize; }
+    public int getLongLongSize() { return longLongSize; }
+    public int getPointerSize() { return pointerSize; }
+    public int getLongDoubleSize() { return longDoubleSize; }
+    public int getLongDoubleAlign() { return longDoubleAlign; }
+
+    /** Alignment of a scalar of {@code size} bytes as a struct member or local. */
+    public int alignOf(int size) {
+        return size >= 8 ? Math.min(size, int64Align) : size;
+    }
+
+    /** Return address plus saved frame pointer, pushed on every call. */
+    public int callOverhead() {
+        return 2 * pointerSize;
+    }
+
+    public static long alignUp(long value, long alignment) {
+        return alignment <= 1 ? value : (value + alignment - 1) / alignment * alignment;
+    }
+}
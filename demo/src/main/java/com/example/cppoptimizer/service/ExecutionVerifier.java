@@ -0,0 +1,409 @@
+package com.example.cppoptimizer.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
+
+/**
+ * Compiles the original and the optimized code with a local gcc or clang and runs both,
+ * to confirm that the optimized program prints the same and to measure what it gained.
+ * Each verification gets a temporary directory of its own with an environment holding
+ * nothing but the PATH. Programs run under a small runner built from
+ * {@code verification/runner.c}, which limits their CPU time, address space, processes
+ * and output, puts them in their own user, PID and network namespaces where the system
+ * allows it, and reports wall time and peak RSS. None of this is isolation: programs
+ * run as the server's user and can read and write whatever it can. Runs of the two
+ * programs alternate so that drift of the machine affects both alike, and verifications
+ * take turns, as two running at once would skew each other's timings. Needs a POSIX
+ * system.
+ */
+public class ExecutionVerifier {
+    private static final Logger logger = LoggerFactory.getLogger(ExecutionVerifier.class);
+    private static final String RUNNER_SOURCE = "/verification/runner.c";
+    private static final List<String> COMPILERS = List.of("gcc", "clang", "cc");
+    // Wait beyond the runner's own limit before the runner itself is given up on
+    private static final long GRACE_MS = 5000;
+    // Differences below this are process start-up noise, whatever the tolerance
+    private static final double MIN_SLOWDOWN_MS = 1.0;
+    // Compiler diagnostics kept in a message
+    private static final int MAX_MESSAGE_LENGTH = 500;
+
+    private final OptimizerProperties.Verification config;
+    private final Semaphore turns = new Semaphore(1, true);
+    // The compiler found for each language, "" when there is none
+    private final Map<CodeOptimizerService.Language, String> compilers = new ConcurrentHashMap<>();
+    private Path runnerDir;
+    private Path runner;
+    // Whether the runner was found to work without namespaces, which is logged once
+    private volatile boolean uncontainedReported;
+
+    public ExecutionVerifier(OptimizerProperties.Verification config) {
+        this.config = config;
+    }
+
+    /** Builds and runs both versions of the code; never throws for problems of the code itself. */
+    public CodeOptimizerService.Verification verify(String original, String optimized, CodeOptimizerService.Language lang) {
+        if (File.separatorChar != '/') {
+            return unavailable("Verification needs a POSIX system.");
+        }
+        String compiler = compilers.computeIfAbsent(lang, this::findCompiler);
+        if (compiler.isEmpty()) {
+            return unavailable("No C/C++ compiler was found; set cppoptimizer.verification.compiler.");
+        }
+        try {
+            turns.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return unavailable("Interrupted while waiting for another verification.");
+        }
+        Path dir = null;
+        try {
+            Path runner = runner(compiler);
+            dir = Files.createTempDirectory("cppoptimizer-verify-");
+            return compare(dir, runner, compiler, original, optimized, lang == CodeOptimizerService.Language.CPP ? ".cpp" : ".c");
+        } catch (IOException e) {
+            logger.warn("Verification failed: {}", e.getMessage());
+            return unavailable("Verification failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return unavailable("Interrupted while verifying.");
+        } finally {
+            turns.release();
+            if (dir != null) {
+                delete(dir);
+            }
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (runnerDir != null) {
+            delete(runnerDir);
+            runnerDir = null;
+            runner = null;
+        }
+    }
+
+    private CodeOptimizerService.Verification compare(Path dir, Path runner, String compiler, String original,
+            String optimized, String extension) throws IOException, InterruptedException {
+        Build originalBuild = compile(dir, compiler, "original", extension, original);
+        if (originalBuild.error != null) {
+            return result(CodeOptimizerService.VerificationStatus.NOT_RUNNABLE, compiler,
+                    "The original code does not build: " + originalBuild.error, null, null);
+        }
+        Build optimizedBuild = compile(dir, compiler, "optimized", extension, optimized);
+        if (optimizedBuild.error != null) {
+            return result(CodeOptimizerService.VerificationStatus.REGRESSION, compiler,
+                    "The optimized code does not build: " + optimizedBuild.error, null, null);
+        }
+
+        int runs = Math.max(config.getRuns(), 1);
+        List<Run> originalRuns = new ArrayList<>();
+        List<Run> optimizedRuns = new ArrayList<>();
+        for (int r = 0; r < runs; r++) {
+            // Alternate which program goes first
+            if (r % 2 == 0) {
+                originalRuns.add(run(dir, runner, originalBuild, r));
+                optimizedRuns.add(run(dir, runner, optimizedBuild, r));
+            } else {
+                optimizedRuns.add(run(dir, runner, optimizedBuild, r));
+                originalRuns.add(run(dir, runner, originalBuild, r));
+            }
+            if (originalRuns.get(r).failure() != null || optimizedRuns.get(r).failure() != null) {
+                break;
+            }
+        }
+        CodeOptimizerService.ProgramRun before = summary(originalBuild, originalRuns);
+        CodeOptimizerService.ProgramRun after = summary(optimizedBuild, optimizedRuns);
+
+        Run firstOriginal = originalRuns.get(0);
+        String originalFailure = originalRuns.get(originalRuns.size() - 1).failure();
+        String optimizedFailure = optimizedRuns.get(optimizedRuns.size() - 1).failure();
+        if (originalFailure != null) {
+            return result(CodeOptimizerService.VerificationStatus.NOT_RUNNABLE, compiler,
+                    "The original program " + originalFailure + ".", before, after);
+        }
+        if (optimizedFailure != null) {
+            return result(CodeOptimizerService.VerificationStatus.REGRESSION, compiler,
+                    "The optimized program " + optimizedFailure + "; the original did not.", before, after);
+        }
+        for (Run run : originalRuns) {
+            if (!run.sameOutcome(firstOriginal)) {
+                return result(CodeOptimizerService.VerificationStatus.NONDETERMINISTIC, compiler,
+                        "The original program prints different output from run to run, so outputs cannot be compared.",
+                        before, after);
+            }
+        }
+        for (Run run : optimizedRuns) {
+            if (!run.sameOutcome(firstOriginal)) {
+                String differs = run.exitCode != firstOriginal.exitCode
+                        ? "exits with " + run.exitCode + " where the original exits with " + firstOriginal.exitCode
+                        : "prints different output than the original";
+                return result(CodeOptimizerService.VerificationStatus.OUTPUT_DIFFERS, compiler,
+                        "The optimized program " + differs + ".", before, after);
+            }
+        }
+        double limit = Math.max(before.getMedianMs() * (1 + config.getSlowdownTolerancePercent() / 100.0),
+                before.getMedianMs() + MIN_SLOWDOWN_MS);
+        if (after.getMedianMs() > limit) {
+            return result(CodeOptimizerService.VerificationStatus.SLOWER, compiler, String.format(
+                    "The optimized program prints the same but takes %.3f ms against %.3f ms.",
+                    after.getMedianMs(), before.getMedianMs()), before, after);
+        }
+        return result(CodeOptimizerService.VerificationStatus.VERIFIED, compiler,
+                "Both programs print the same output and exit the same way in " + originalRuns.size()
+                        + (originalRuns.size() == 1 ? " run." : " runs."), before, after);
+    }
+
+    private Build compile(Path dir, String compiler, String name, String extension, String code)
+            throws IOException, InterruptedException {
+        Path source = dir.resolve(name + extension);
+        Files.writeString(source, code, StandardCharsets.UTF_8);
+        Path executable = dir.resolve(name);
+        Path diagnostics = dir.resolve(name + ".log");
+        List<String> command = new ArrayList<>();
+        command.add(compilerFor(compiler, extension));
+        for (String flag : config.getFlags().trim().split("\\s+")) {
+            if (!flag.isEmpty()) {
+                command.add(flag);
+            }
+        }
+        command.addAll(List.of("-o", executable.toString(), source.toString(), "-lm"));
+        long start = System.nanoTime();
+        Process process = start(command, dir, diagnostics, diagnostics);
+        boolean finished = process.waitFor(config.getCompileTimeoutMs(), TimeUnit.MILLISECONDS);
+        double ms = (System.nanoTime() - start) / 1_000_000.0;
+        if (!finished) {
+            process.destroyForcibly();
+            return new Build(executable, ms, "the compiler took longer than " + config.getCompileTimeoutMs() + " ms");
+        }
+        if (process.exitValue() != 0 || !Files.isExecutable(executable)) {
+            return new Build(executable, ms, firstError(diagnostics));
+        }
+        return new Build(executable, ms, null);
+    }
+
+    private Run run(Path dir, Path runner, Build build, int index) throws IOException, InterruptedException {
+        String name = build.executable.getFileName() + "-" + index;
+        Path output = dir.resolve(name + ".out");
+        Path report = dir.resolve(name + ".report");
+        List<String> command = List.of(runner.toString(), report.toString(), String.valueOf(config.getRunTimeoutMs()),
+                String.valueOf(config.getMaxMemoryBytes()), String.valueOf(config.getMaxOutputBytes()),
+                String.valueOf(config.getMaxProcesses()), build.executable.toString());
+        Process process = start(command, dir, output, null);
+        if (!process.waitFor(config.getRunTimeoutMs() + GRACE_MS, TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+            throw new IOException("the runner did not stop " + name);
+        }
+        String[] fields = Files.exists(report) ? Files.readString(report).trim().split(" ") : new String[0];
+        if (process.exitValue() != 0 || fields.length != 6) {
+            throw new IOException("the runner failed on " + name);
+        }
+        if (fields[5].equals("0") && !uncontainedReported) {
+            uncontainedReported = true;
+            logger.warn("Verified programs run without namespaces of their own: processes they detach survive "
+                    + "the run's process group and the process limit counts all of the server user's processes");
+        }
+        return new Run(Long.parseLong(fields[0]) / 1000.0, Long.parseLong(fields[1]), Integer.parseInt(fields[2]),
+                Integer.parseInt(fields[3]), fields[4].equals("1"), Files.size(output) >= config.getMaxOutputBytes(),
+                digest(output));
+    }
+
+    private Process start(List<String> command, Path dir, Path output, Path errors) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command).directory(dir.toFile())
+                .redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")))
+                .redirectOutput(output.toFile());
+        if (errors != null) {
+            builder.redirectError(errors.toFile());
+        } else {
+            builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        }
+        Map<String, String> environment = builder.environment();
+        String path = environment.get("PATH");
+        environment.clear();
+        environment.put("PATH", path != null ? path : "/usr/local/bin:/usr/bin:/bin");
+        environment.put("TMPDIR", dir.toString());
+        environment.put("LC_ALL", "C");
+        return builder.start();
+    }
+
+    // The runner is built once, with the first compiler that works
+    private synchronized Path runner(String compiler) throws IOException, InterruptedException {
+        if (runner != null) {
+            return runner;
+        }
+        Path dir = Files.createTempDirectory("cppoptimizer-runner-");
+        try (InputStream in = ExecutionVerifier.class.getResourceAsStream(RUNNER_SOURCE)) {
+            if (in == null) {
+                throw new IOException("missing " + RUNNER_SOURCE);
+            }
+            Build build = compile(dir, compiler, "runner", ".c", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            if (build.error != null) {
+                throw new IOException("could not build the runner: " + build.error);
+            }
+            runnerDir = dir;
+            runner = build.executable;
+            return runner;
+        } finally {
+            if (runner == null) {
+                delete(dir);
+            }
+        }
+    }
+
+    private String findCompiler(CodeOptimizerService.Language lang) {
+        String extension = lang == CodeOptimizerService.Language.CPP ? ".cpp" : ".c";
+        List<String> candidates = config.getCompiler().isBlank() ? COMPILERS : List.of(config.getCompiler().trim());
+        for (String candidate : candidates) {
+            try {
+                Process process = new ProcessBuilder(compilerFor(candidate, extension), "--version")
+                        .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+                if (process.waitFor(config.getCompileTimeoutMs(), TimeUnit.MILLISECONDS) && process.exitValue() == 0) {
+                    return candidate;
+                }
+                process.destroyForcibly();
+            } catch (IOException e) {
+                // Not installed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "";
+            }
+        }
+        return "";
+    }
+
+    // The C++ driver that goes with a C compiler: g++ for gcc, clang++ for clang, c++ for cc
+    static String compilerFor(String compiler, String extension) {
+        if (!extension.equals(".cpp")) {
+            return compiler;
+        }
+        int slash = compiler.lastIndexOf('/') + 1;
+        String name = compiler.substring(slash);
+        String prefix = compiler.substring(0, slash);
+        if (name.startsWith("gcc")) {
+            return prefix + "g++" + name.substring(3);
+        }
+        if (name.startsWith("clang") && !name.startsWith("clang++")) {
+            return prefix + "clang++" + name.substring(5);
+        }
+        return name.equals("cc") ? prefix + "c++" : compiler;
+    }
+
+    private static CodeOptimizerService.ProgramRun summary(Build build, List<Run> runs) {
+        double[] times = runs.stream().mapToDouble(run -> run.wallMs).sorted().toArray();
+        double median = times.length % 2 == 1 ? times[times.length / 2]
+                : (times[times.length / 2 - 1] + times[times.length / 2]) / 2;
+        long peakRss = runs.stream().mapToLong(run -> run.peakRssKib).max().orElse(0);
+        return new CodeOptimizerService.ProgramRun(build.ms, median, times[0], peakRss, runs.get(0).exitCode);
+    }
+
+    private static CodeOptimizerService.Verification result(CodeOptimizerService.VerificationStatus status, String compiler,
+            String message, CodeOptimizerService.ProgramRun original, CodeOptimizerService.ProgramRun optimized) {
+        return new CodeOptimizerService.Verification(status, message, compiler, original, optimized);
+    }
+
+    private static CodeOptimizerService.Verification unavailable(String message) {
+        return new CodeOptimizerService.Verification(CodeOptimizerService.VerificationStatus.UNAVAILABLE, message,
+                null, null, null);
+    }
+
+    private static String firstError(Path diagnostics) throws IOException {
+        List<String> lines = Files.readAllLines(diagnostics, StandardCharsets.UTF_8);
+        String first = lines.stream().filter(line -> line.contains("error")).findFirst()
+                .orElse(lines.isEmpty() ? "the compiler failed" : lines.get(0));
+        // Paths of the temporary directory mean nothing to the user
+        first = first.replaceAll("\\S*/(original|optimized|runner)\\.(c|cpp)", "$1.$2");
+        return first.length() > MAX_MESSAGE_LENGTH ? first.substring(0, MAX_MESSAGE_LENGTH) + "..." : first;
+    }
+
+    private static byte[] digest(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, n);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void delete(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            logger.warn("Could not delete {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private static final class Build {
+        private final Path executable;
+        private final double ms;
+        // Why it did not build, or null if it did
+        private final String error;
+
+        private Build(Path executable, double ms, String error) {
+            this.executable = executable;
+            this.ms = ms;
+            this.error = error;
+        }
+    }
+
+    private static final class Run {
+        private final double wallMs;
+        private final long peakRssKib;
+        private final int exitCode;
+        private final int signal;
+        private final boolean timedOut;
+        private final boolean outputCut;
+        private final byte[] outputDigest;
+
+        private Run(double wallMs, long peakRssKib, int exitCode, int signal, boolean timedOut, boolean outputCut,
+                byte[] outputDigest) {
+            this.wallMs = wallMs;
+            this.peakRssKib = peakRssKib;
+            this.exitCode = exitCode;
+            this.signal = signal;
+            this.timedOut = timedOut;
+            this.outputCut = outputCut;
+            this.outputDigest = outputDigest;
+        }
+
+        // What went wrong, worded to follow "the program", or null if it ran to its end
+        private String failure() {
+            if (timedOut) {
+                return "did not finish within its time limit";
+            }
+            if (outputCut) {
+                return "printed more than the output limit";
+            }
+            if (signal != 0) {
+                return "was killed by signal " + signal;
+            }
+            return exitCode == 127 ? "could not be started" : null;
+        }
+
+        private boolean sameOutcome(Run other) {
+            return exitCode == other.exitCode && Arrays.equals(outputDigest, other.outputDigest);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.cppoptimizer.service;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers, per editor session, the optimized output of every region seen in the
+ * previous request. Only the latest request is kept per session, so memory stays
+ * proportional to one copy of each open buffer; least recently active sessions are
+ * dropped once {@code maxSessions} is exceeded.
+ */
+class IncrementalSessionStore {
+    private final int maxSessions;
+    private final Map<String, Session> sessions;
+
+    IncrementalSessionStore(int maxSessions) {
+        this.maxSessions = maxSessions;
+        this.sessions = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > IncrementalSessionStore.this.maxSessions;
+            }
+        };
+    }
+
+    Session session(String sessionId) {
+        synchronized (sessions) {
+            return sessions.computeIfAbsent(sessionId, id -> new Session());
+        }
+    }
+
+    int size() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    static class Session {
+        // Keyed by pipeline stage (segment and the passes run in it), then by the exact
+        // region text that entered it
+        private Map<String, Map<String, RegionOutcome>> previous = new HashMap<>();
+        private Map<String, Map<String, RegionOutcome>> current = new HashMap<>();
+
+        RegionOutcome lookup(String stage, String regionText) {
+            Map<String, RegionOutcome> outcomes = previous.get(stage);
+            return outcomes != null ? outcomes.get(regionText) : null;
+        }
+
+        void record(String stage, String regionText, RegionOutcome outcome) {
+            current.computeIfAbsent(stage, s -> new HashMap<>()).put(regionText, outcome);
+        }
+
+        // Called once per request: what was recorded becomes the baseline for the next edit
+        void commit() {
+            previous = current;
+            current = new HashMap<>();
+        }
+    }
+
+    static class RegionOutcome {
+        private final String output;
+        private final boolean[] changed;
+        private final boolean[] timedOut;
+        private final long[] passNanos;
+        private final List<List<String>> notes;
+
+        RegionOutcome(String output, boolean[] changed, boolean[] timedOut, long[] passNanos, List<List<String>> notes) {
+            this.output = output;
+            this.changed = changed;
+            this.timedOut = timedOut;
+            this.passNanos = passNanos;
+            this.notes = notes;
+        }
+
+        boolean anyTimedOut() {
+            for (boolean t : timedOut) {
+                if (t) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String getOutput() { return output; }
+        boolean[] getChanged() { return changed; }
+        boolean[] getTimedOut() { return timedOut; }
+        long[] getPassNanos() { return passNanos; }
+        List<List<String>> getNotes() { return notes; }
+    }
+}
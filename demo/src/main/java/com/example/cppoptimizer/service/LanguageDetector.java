@@ -1,5 +1,8 @@
 package com.example.cppoptimizer.service;
 
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
+
 public class LanguageDetector {
     public CodeOptimizerService.Language detectLanguage(String code) {
         if (code.contains("iostream") || code.contains("using namespace std;") || 
@@ -8,4 +11,18 @@ public class LanguageDetector {
         }
         return CodeOptimizerService.Language.C;
     }
-}
\ No newline at end of file
+
+    // Token-based variant: ignores mentions inside comments and string literals
+    public CodeOptimizerService.Language detectLanguage(TokenStream tokens) {
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.isType(i, TokenType.PREPROCESSOR) && tokens.text(i).contains("iostream")) {
+                return CodeOptimizerService.Language.CPP;
+            }
+            if (tokens.is(i, "cout") || tokens.is(i, "cin")
+                    || tokens.matchSequence(i, "using", "namespace", "std", ";") > 0) {
+                return CodeOptimizerService.Language.CPP;
+            }
+        }
+        return CodeOptimizerService.Language.C;
+    }
+}
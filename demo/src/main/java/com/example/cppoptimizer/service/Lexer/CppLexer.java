@@ -0,0 +1,247 @@
+package com.example.cppoptimizer.service.Lexer;
+
+import java.util.Arrays;
+
+/**
+ * Hand-written single-pass lexer for C and C++ sources. Whitespace and comments are
+ * not emitted as tokens; they stay in the source between token offsets so that
+ * rewrites preserve them.
+ */
+public final class CppLexer {
+    // Longest operators first so that the first match is the longest one
+    private static final String[] PUNCTUATORS = {
+        ">>=", "<<=", "...", "->*", "<=>",
+        "->", "++", "--", "<<", ">>", "<=", ">=", "==", "!=", "&&", "||",
+        "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "::", "##", ".*"
+    };
+
+    private final String source;
+    private final int length;
+    private int pos;
+
+    private byte[] types;
+    private int[] starts;
+    private int[] ends;
+    private int size;
+
+    private CppLexer(String source) {
+        this.source = source;
+        this.length = source.length();
+        // Roughly one token every three characters in typical C code; sizing for that up
+        // front avoids a grow-and-copy of all three arrays on large inputs
+        int capacity = Math.max(16, length / 3 + 16);
+        this.types = new byte[capacity];
+        this.starts = new int[capacity];
+        this.ends = new int[capacity];
+    }
+
+    public static TokenStream lex(String source) {
+        CppLexer lexer = new CppLexer(source);
+        lexer.run();
+        return new TokenStream(source, lexer.types, lexer.starts, lexer.ends, lexer.size);
+    }
+
+    private void run() {
+        boolean lineStart = true;
+        while (pos < length) {
+            char c = source.charAt(pos);
+            if (c == '\n') {
+                lineStart = true;
+                pos++;
+            } else if (Character.isWhitespace(c)) {
+                pos++;
+            } else if (c == '/' && peek(1) == '/') {
+                skipLineComment();
+            } else if (c == '/' && peek(1) == '*') {
+                skipBlockComment();
+            } else if (c == '#' && lineStart) {
+                lexPreprocessor();
+            } else {
+                lineStart = false;
+                lexToken(c);
+            }
+        }
+    }
+
+    private void lexToken(char c) {
+        int start = pos;
+        if (isIdentifierStart(c)) {
+            if (lexPrefixedLiteral()) {
+                return;
+            }
+            pos++;
+            while (pos < length && isIdentifierPart(source.charAt(pos))) {
+                pos++;
+            }
+            add(TokenType.IDENTIFIER, start);
+        } else if (isDigit(c) || (c == '.' && isDigit(peek(1)))) {
+            lexNumber();
+            add(TokenType.NUMBER, start);
+        } else if (c == '"') {
+            skipQuoted('"');
+            add(TokenType.STRING, start);
+        } else if (c == '\'') {
+            skipQuoted('\'');
+            add(TokenType.CHARACTER, start);
+        } else {
+            pos += punctuatorLength();
+            add(TokenType.PUNCTUATOR, start);
+        }
+    }
+
+    // Handles L"", u"", U"", u8"", R"()" and their character counterparts
+    private boolean lexPrefixedLiteral() {
+        int start = pos;
+        int p = pos;
+        if (source.startsWith("u8", p)) {
+            p += 2;
+        } else if (source.charAt(p) == 'L' || source.charAt(p) == 'u' || source.charAt(p) == 'U') {
+            p++;
+        }
+        boolean raw = p < length && source.charAt(p) == 'R';
+        if (raw) {
+            p++;
+        }
+        if (p >= length || p == start) {
+            return false;
+        }
+        char quote = source.charAt(p);
+        if (quote == '"' && raw) {
+            pos = p;
+            skipRawString();
+            add(TokenType.STRING, start);
+            return true;
+        }
+        if ((quote == '"' || quote == '\'') && !raw) {
+            pos = p;
+            skipQuoted(quote);
+            add(quote == '"' ? TokenType.STRING : TokenType.CHARACTER, start);
+            return true;
+        }
+        return false;
+    }
+
+    private void skipRawString() {
+        int open = source.indexOf('(', pos + 1);
+        if (open < 0) {
+            pos = length;
+            return;
+        }
+        String terminator = ")" + source.substring(pos + 1, open) + "\"";
+        int close = source.indexOf(terminator, open + 1);
+        pos = close < 0 ? length : close + terminator.length();
+    }
+
+    private void skipQuoted(char quote) {
+        pos++;
+        while (pos < length) {
+            char c = source.charAt(pos);
+            if (c == '\\') {
+                pos += 2;
+            } else if (c == quote) {
+                pos++;
+                return;
+            } else if (c == '\n') {
+                // Unterminated literal: stop at the end of the line
+                return;
+            } else {
+                pos++;
+            }
+        }
+        pos = Math.min(pos, length);
+    }
+
+    private void lexNumber() {
+        pos++;
+        while (pos < length) {
+            char c = source.charAt(pos);
+            if ((c == '+' || c == '-') && isExponent(source.charAt(pos - 1))) {
+                pos++;
+            } else if (isIdentifierPart(c) || c == '.' || (c == '\'' && isIdentifierPart(peek(1)))) {
+                pos++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private boolean isExponent(char c) {
+        return c == 'e' || c == 'E' || c == 'p' || c == 'P';
+    }
+
+    private int punctuatorLength() {
+        for (String punctuator : PUNCTUATORS) {
+            if (source.startsWith(punctuator, pos)) {
+                return punctuator.length();
+            }
+        }
+        return 1;
+    }
+
+    private void lexPreprocessor() {
+        int start = pos;
+        while (pos < length) {
+            char c = source.charAt(pos);
+            if (c == '\n') {
+                if (source.charAt(pos - 1) != '\\' && !(pos >= 2 && source.charAt(pos - 1) == '\r' && source.charAt(pos - 2) == '\\')) {
+                    break;
+                }
+            } else if (c == '/' && peek(1) == '*') {
+                skipBlockComment();
+                continue;
+            } else if (c == '/' && peek(1) == '/') {
+                break;
+            }
+            pos++;
+        }
+        int end = pos;
+        while (end > start && Character.isWhitespace(source.charAt(end - 1))) {
+            end--;
+        }
+        addRange(TokenType.PREPROCESSOR, start, end);
+    }
+
+    private void skipLineComment() {
+        int newline = source.indexOf('\n', pos);
+        pos = newline < 0 ? length : newline;
+    }
+
+    private void skipBlockComment() {
+        int close = source.indexOf("*/", pos + 2);
+        pos = close < 0 ? length : close + 2;
+    }
+
+    private char peek(int offset) {
+        int p = pos + offset;
+        return p < length ? source.charAt(p) : '\0';
+    }
+
+    private void add(TokenType type, int start) {
+        addRange(type, start, Math.min(pos, length));
+    }
+
+    private void addRange(TokenType type, int start, int end) {
+        if (size == types.length) {
+            int capacity = size + (size >> 1);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    static boolean isIdentifierStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$' || c > 0x7f;
+    }
+
+    static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || isDigit(c);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
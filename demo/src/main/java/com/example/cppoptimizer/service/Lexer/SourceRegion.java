@@ -0,0 +1,31 @@
+package com.example.cppoptimizer.service.Lexer;
+
+/**
+ * A contiguous slice of a translation unit: one top-level function definition, or a
+ * run of global declarations and directives between functions. Regions produced by
+ * {@link TranslationUnitSplitter} tile the source exactly, including whitespace and
+ * comments, so concatenating their texts reproduces the input.
+ */
+public final class SourceRegion {
+    public enum Kind { FUNCTION, GLOBAL }
+
+    private final Kind kind;
+    private final String name;
+    private final int start;
+    private final int end;
+    private final String text;
+
+    public SourceRegion(Kind kind, String name, int start, int end, String text) {
+        this.kind = kind;
+        this.name = name;
+        this.start = start;
+        this.end = end;
+        this.text = text;
+    }
+
+    public Kind getKind() { return kind; }
+    public String getName() { return name; }
+    public int getStart() { return start; }
+    public int getEnd() { return end; }
+    public String getText() { return text; }
+}
@@ -0,0 +1,110 @@
+package com.example.cppoptimizer.service.Lexer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Collects edits against a {@link TokenStream} and applies them in a single splice.
+ * Edits that overlap an earlier edit are dropped. When no edit was recorded the
+ * original source instance is returned, so callers can detect "unchanged" by identity.
+ */
+public final class SourceRewriter {
+    private final TokenStream tokens;
+    private final List<Edit> edits = new ArrayList<>();
+
+    public SourceRewriter(TokenStream tokens) {
+        this.tokens = tokens;
+    }
+
+    public TokenStream getTokens() { return tokens; }
+
+    public boolean hasEdits() {
+        return !edits.isEmpty();
+    }
+
+    /** Replaces tokens {@code from..to} (inclusive) with {@code text}. */
+    public void replace(int from, int to, String text) {
+        replaceRange(tokens.start(from), tokens.end(to), text);
+    }
+
+    public void delete(int from, int to) {
+        replace(from, to, "");
+    }
+
+    public void insertBefore(int token, String text) {
+        replaceRange(tokens.start(token), tokens.start(token), text);
+    }
+
+    public void insertAfter(int token, String text) {
+        replaceRange(tokens.end(token), tokens.end(token), text);
+    }
+
+    /**
+     * Deletes tokens {@code from..to} and, when nothing else shares their lines,
+     * the surrounding indentation and line break as well.
+     */
+    public void deleteLines(int from, int to) {
+        String source = tokens.getSource();
+        int start = tokens.start(from);
+        int end = tokens.end(to);
+        int lineStart = start;
+        while (lineStart > 0 && (source.charAt(lineStart - 1) == ' ' || source.charAt(lineStart - 1) == '\t')) {
+            lineStart--;
+        }
+        int lineEnd = end;
+        while (lineEnd < source.length() && (source.charAt(lineEnd) == ' ' || source.charAt(lineEnd) == '\t' || source.charAt(lineEnd) == '\r')) {
+            lineEnd++;
+        }
+        boolean ownsLine = (lineStart == 0 || source.charAt(lineStart - 1) == '\n')
+                && (lineEnd == source.length() || source.charAt(lineEnd) == '\n');
+        if (ownsLine) {
+            replaceRange(lineStart, Math.min(lineEnd + 1, source.length()), "");
+        } else {
+            replaceRange(start, end, "");
+        }
+    }
+
+    public void replaceRange(int start, int end, String text) {
+        // Edits that would reproduce the original text are dropped, so an unchanged
+        // source still comes back as the same instance
+        if (end - start == text.length() && tokens.getSource().startsWith(text, start)) {
+            return;
+        }
+        edits.add(new Edit(start, end, text, edits.size()));
+    }
+
+    @Override
+    public String toString() {
+        String source = tokens.getSource();
+        if (edits.isEmpty()) {
+            return source;
+        }
+        edits.sort(Comparator.comparingInt((Edit e) -> e.start).thenComparingInt(e -> e.sequence));
+        StringBuilder sb = new StringBuilder(source.length());
+        int cursor = 0;
+        for (Edit edit : edits) {
+            if (edit.start < cursor) {
+                continue;
+            }
+            sb.append(source, cursor, edit.start).append(edit.text);
+            cursor = edit.end;
+        }
+        sb.append(source, cursor, source.length());
+        return sb.toString();
+    }
+
+    private static final class Edit {
+        private final int start;
+        private final int end;
+        private final String text;
+        private final int sequence;
+
+        private Edit(int start, int end, String text, int sequence) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.example.cppoptimizer.service.Lexer;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Compact, immutable token array over a source string. Tokens are stored as parallel
+ * primitive arrays (type, start offset, end offset) and bracket pairs are resolved
+ * once up front, so passes can walk and compare tokens without allocating.
+ */
+public final class TokenStream {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final String source;
+    private final byte[] types;
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] matches;
+    private final int size;
+    private int[] lineStarts;
+
+    TokenStream(String source, byte[] types, int[] starts, int[] ends, int size) {
+        this.source = source;
+        this.types = types;
+        this.starts = starts;
+        this.ends = ends;
+        this.size = size;
+        this.matches = matchBrackets();
+    }
+
+    public String getSource() { return source; }
+    public int size() { return size; }
+
+    public TokenType type(int i) { return TYPES[types[i]]; }
+    public int start(int i) { return starts[i]; }
+    public int end(int i) { return ends[i]; }
+    public int length(int i) { return ends[i] - starts[i]; }
+
+    public String text(int i) {
+        return source.substring(starts[i], ends[i]);
+    }
+
+    /** Source text from the start of token {@code from} to the end of token {@code to}, inclusive. */
+    public String text(int from, int to) {
+        if (from > to) {
+            return "";
+        }
+        return source.substring(starts[from], ends[to]);
+    }
+
+    /** Allocation-free comparison of token {@code i} against {@code text}; false when out of range. */
+    public boolean is(int i, String text) {
+        return i >= 0 && i < size && ends[i] - starts[i] == text.length()
+                && source.startsWith(text, starts[i]);
+    }
+
+    public boolean isAny(int i, String... texts) {
+        for (String text : texts) {
+            if (is(i, text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isType(int i, TokenType type) {
+        return i >= 0 && i < size && types[i] == type.ordinal();
+    }
+
+    public boolean isIdentifier(int i) {
+        return isType(i, TokenType.IDENTIFIER);
+    }
+
+    /** True for plain decimal integer literals without suffix, e.g. {@code 42}. */
+    public boolean isDecimalInteger(int i) {
+        if (!isType(i, TokenType.NUMBER)) {
+            return false;
+        }
+        for (int p = starts[i]; p < ends[i]; p++) {
+            char c = source.charAt(p);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return ends[i] - starts[i] == 1 || source.charAt(starts[i]) != '0';
+    }
+
+    /** Index of the bracket matching the one at {@code i}, or -1 if unbalanced or not a bracket. */
+    public int match(int i) {
+        return i >= 0 && i < size ? matches[i] : -1;
+    }
+
+    /** Index of the first token equal to {@code text} in {@code [from, to)}, or -1. */
+    /** True if any token equals {@code text}; cheap enough for pass trigger checks. */
+    public boolean contains(String text) {
+        return indexOf(text, 0, size) >= 0;
+    }
+
+    public int indexOf(String text, int from, int to) {
+        for (int i = Math.max(from, 0); i < Math.min(to, size); i++) {
+            if (is(i, text)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Matches a sequence of literal token texts starting at {@code i}. The placeholder
+     * {@code "#"} matches any decimal integer and {@code "$"} any identifier.
+     * Returns the index just past the match, or -1.
+     */
+    public int matchSequence(int i, String... parts) {
+        for (String part : parts) {
+            boolean ok;
+            if (part.equals("#")) {
+                ok = isDecimalInteger(i);
+            } else if (part.equals("$")) {
+                ok = isIdentifier(i);
+            } else {
+                ok = is(i, part);
+            }
+            if (!ok) {
+                return -1;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /** True when token {@code i} begins a statement (first token, or preceded by ; { } or a directive). */
+    public boolean isStatementStart(int i) {
+        if (i == 0) {
+            return true;
+        }
+        return is(i - 1, ";") || is(i - 1, "{") || is(i - 1, "}") || isType(i - 1, TokenType.PREPROCESSOR);
+    }
+
+    /** Walks back from {@code i} to the first token of the enclosing statement. */
+    public int statementStart(int i) {
+        while (i > 0 && !isStatementStart(i)) {
+            i--;
+        }
+        return i;
+    }
+
+    /** Index of the terminating {@code ;} at bracket depth zero from {@code i}, or -1 at a block boundary. */
+    public int statementEnd(int i) {
+        while (i < size) {
+            if (is(i, ";")) {
+                return i;
+            }
+            if (is(i, "{") || is(i, "}")) {
+                return -1;
+            }
+            if (is(i, "(") || is(i, "[")) {
+                int close = matches[i];
+                if (close < 0) {
+                    return -1;
+                }
+                i = close;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Renders tokens {@code from..to} (inclusive) with identifiers substituted from
+     * {@code replacements}. Whitespace and comments between tokens are kept as-is.
+     */
+    public String render(int from, int to, Map<String, String> replacements) {
+        if (from > to) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(ends[to] - starts[from]);
+        int cursor = starts[from];
+        for (int i = from; i <= to; i++) {
+            if (types[i] != TokenType.IDENTIFIER.ordinal()) {
+                continue;
+            }
+            String replacement = replacements.get(text(i));
+            if (replacement != null && !is(i - 1, ".") && !is(i - 1, "->")) {
+                sb.append(source, cursor, starts[i]).append(replacement);
+                cursor = ends[i];
+            }
+        }
+        sb.append(source, cursor, ends[to]);
+        return sb.toString();
+    }
+
+    /**
+     * Tokens {@code from..to} (inclusive) as a stream over their own text, the same as lexing
+     * that text again but without the cost of it.
+     */
+    public TokenStream slice(int from, int to) {
+        int offset = starts[from];
+        int count = to - from + 1;
+        int[] sliceStarts = new int[count];
+        int[] sliceEnds = new int[count];
+        for (int i = 0; i < count; i++) {
+            sliceStarts[i] = starts[from + i] - offset;
+            sliceEnds[i] = ends[from + i] - offset;
+        }
+        return new TokenStream(source.substring(offset, ends[to]), Arrays.copyOfRange(types, from, to + 1),
+                sliceStarts, sliceEnds, count);
+    }
+
+    /** 1-based line number of token {@code i}. */
+    public int lineOf(int i) {
+        return lineOfOffset(starts[i]);
+    }
+
+    public int lineOfOffset(int offset) {
+        if (lineStarts == null) {
+            lineStarts = computeLineStarts();
+        }
+        int index = Arrays.binarySearch(lineStarts, offset);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /** Leading whitespace of the line containing token {@code i}. */
+    public String indentationOf(int i) {
+        int lineStart = source.lastIndexOf('\n', starts[i] - 1) + 1;
+        int p = lineStart;
+        while (p < starts[i] && (source.charAt(p) == ' ' || source.charAt(p) == '\t')) {
+            p++;
+        }
+        return source.substring(lineStart, p);
+    }
+
+    private int[] computeLineStarts() {
+        int count = 1;
+        for (int p = 0; p < source.length(); p++) {
+            if (source.charAt(p) == '\n') {
+                count++;
+            }
+        }
+        int[] result = new int[count];
+        int line = 1;
+        for (int p = 0; p < source.length(); p++) {
+            if (source.charAt(p) == '\n') {
+                result[line++] = p + 1;
+            }
+        }
+        return result;
+    }
+
+    private int[] matchBrackets() {
+        int[] result = new int[size];
+        Arrays.fill(result, -1);
+        int[] stack = new int[16];
+        int depth = 0;
+        for (int i = 0; i < size; i++) {
+            if (types[i] != TokenType.PUNCTUATOR.ordinal() || ends[i] - starts[i] != 1) {
+                continue;
+            }
+            char c = source.charAt(starts[i]);
+            if (c == '(' || c == '[' || c == '{') {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = i;
+            } else if (c == ')' || c == ']' || c == '}') {
+                char open = c == ')' ? '(' : c == ']' ? '[' : '{';
+                // Drop unbalanced openers, but never let a stray ) or ] close a block
+                while (depth > 0 && source.charAt(starts[stack[depth - 1]]) != open
+                        && (open == '{' || source.charAt(starts[stack[depth - 1]]) != '{')) {
+                    depth--;
+                }
+                if (depth > 0 && source.charAt(starts[stack[depth - 1]]) == open) {
+                    int o = stack[--depth];
+                    result[o] = i;
+                    result[i] = o;
+                }
+            }
+        }
+        return result;
+    }
+}
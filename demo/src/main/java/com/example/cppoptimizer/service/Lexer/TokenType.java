@@ -0,0 +1,10 @@
+package com.example.cppoptimizer.service.Lexer;
+
+public enum TokenType {
+    IDENTIFIER,
+    NUMBER,
+    STRING,
+    CHARACTER,
+    PUNCTUATOR,
+    PREPROCESSOR
+}
@@ -0,0 +1,119 @@
+package com.example.cppoptimizer.service.Lexer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a token stream into top-level {@link SourceRegion}s. A function region runs from
+ * the end of the previous region to the closing brace of the definition; everything
+ * between functions (declarations, types, directives) is grouped into global regions.
+ */
+public final class TranslationUnitSplitter {
+    private TranslationUnitSplitter() {
+    }
+
+    public static List<SourceRegion> split(TokenStream tokens) {
+        List<SourceRegion> regions = new ArrayList<>();
+        String source = tokens.getSource();
+        int regionStart = 0;
+        int lastGlobalEnd = -1;
+
+        int i = 0;
+        while (i < tokens.size()) {
+            if (tokens.isType(i, TokenType.PREPROCESSOR)) {
+                lastGlobalEnd = tokens.end(i);
+                i++;
+                continue;
+            }
+            int last = topLevelStatementEnd(tokens, i);
+            if (last < 0) {
+                // Unbalanced input: keep the remainder as one global region
+                break;
+            }
+            String functionName = functionName(tokens, i, last);
+            if (functionName == null) {
+                lastGlobalEnd = tokens.end(last);
+            } else {
+                if (lastGlobalEnd > regionStart) {
+                    regions.add(region(source, SourceRegion.Kind.GLOBAL, null, regionStart, lastGlobalEnd));
+                    regionStart = lastGlobalEnd;
+                }
+                regions.add(region(source, SourceRegion.Kind.FUNCTION, functionName, regionStart, tokens.end(last)));
+                regionStart = tokens.end(last);
+                lastGlobalEnd = -1;
+            }
+            i = last + 1;
+        }
+        if (regionStart < source.length() || regions.isEmpty()) {
+            regions.add(region(source, SourceRegion.Kind.GLOBAL, null, regionStart, source.length()));
+        }
+        return regions;
+    }
+
+    /**
+     * Last token of the top-level statement starting at {@code i}: the closing brace of a
+     * function body, or the terminating semicolon of a declaration (after any braces of a
+     * struct, enum or initializer). Namespace and linkage blocks end at their brace.
+     */
+    private static int topLevelStatementEnd(TokenStream tokens, int i) {
+        for (int j = i; j < tokens.size(); j++) {
+            if (tokens.is(j, ";")) {
+                return j;
+            }
+            if (tokens.is(j, "(") || tokens.is(j, "[")) {
+                j = tokens.match(j);
+                if (j < 0) {
+                    return -1;
+                }
+            } else if (tokens.is(j, "{")) {
+                int close = tokens.match(j);
+                if (close < 0) {
+                    return -1;
+                }
+                boolean declaratorFollows = tokens.is(close + 1, ";") || tokens.isIdentifier(close + 1) || tokens.is(close + 1, ",");
+                if (isFunctionBody(tokens, i, j) || tokens.is(i, "namespace") || tokens.is(i, "extern") || !declaratorFollows) {
+                    return close;
+                }
+                j = close;
+            } else if (tokens.is(j, "}")) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    // name(...) [qualifiers] { at depth zero, without an '=' that would make it an initializer
+    private static boolean isFunctionBody(TokenStream tokens, int from, int brace) {
+        int k = brace - 1;
+        while (k > from && tokens.isIdentifier(k) && tokens.isAny(k, "const", "noexcept", "override", "final", "volatile")) {
+            k--;
+        }
+        if (!tokens.is(k, ")")) {
+            // Constructor initializer lists: Foo::Foo() : a(1), b(2) {
+            int colon = tokens.indexOf(":", from, brace);
+            return colon > from && tokens.is(colon - 1, ")") && tokens.indexOf("=", from, colon) < 0;
+        }
+        int open = tokens.match(k);
+        return open > from && tokens.isIdentifier(open - 1) && tokens.indexOf("=", from, open) < 0;
+    }
+
+    private static String functionName(TokenStream tokens, int from, int last) {
+        if (!tokens.is(last, "}")) {
+            return null;
+        }
+        int brace = tokens.match(last);
+        if (brace < 0 || !isFunctionBody(tokens, from, brace)) {
+            return null;
+        }
+        for (int k = from; k < brace; k++) {
+            if (tokens.is(k, "(")) {
+                return tokens.isIdentifier(k - 1) ? tokens.text(k - 1) : null;
+            }
+        }
+        return null;
+    }
+
+    private static SourceRegion region(String source, SourceRegion.Kind kind, String name, int start, int end) {
+        return new SourceRegion(kind, name, start, end, source.substring(start, end));
+    }
+}
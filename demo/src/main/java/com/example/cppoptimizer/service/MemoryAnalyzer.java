@@ -1,37 +1,959 @@
 package com.example.cppoptimizer.service;
 
-import java.util.regex.Matcher;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
+import com.example.cppoptimizer.service.Lexer.CppLexer;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+import com.example.cppoptimizer.service.Lexer.TokenType;
+
+/**
+ * Estimates stack and heap use in one walk over the tokens. Types are sized from a
+ * {@link DataModel}, including struct padding. Each function gets a frame made of its
+ * locals, where sibling blocks share space. The reported stack is the deepest call chain
+ * through functions defined in the file. Heap bytes are attributed to the
+ * malloc/calloc/realloc/new sites they come from.
+ */
 public class MemoryAnalyzer {
+    private static final Set<String> QUALIFIERS = Set.of("const", "volatile", "register", "inline", "constexpr",
+            "mutable", "extern", "typename", "restrict", "__restrict");
+    private static final Set<String> BASE_TYPES = Set.of("char", "short", "int", "float", "double", "bool", "_Bool",
+            "void", "wchar_t", "char8_t", "char16_t", "char32_t", "auto");
+    private static final Set<String> NOT_CALLS = Set.of("if", "for", "while", "switch", "return", "sizeof", "alignof",
+            "catch", "decltype", "static_assert", "new", "delete", "throw", "typeid");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final int MAX_EXPRESSION_LENGTH = 80;
+    // Deepest frames and largest allocation sites kept in the result; the totals cover all of them
+    private static final int MAX_REPORTED = 50;
+
+    private final DataModel model;
+
+    public MemoryAnalyzer() {
+        this(DataModel.LP64);
+    }
+
+    public MemoryAnalyzer(DataModel model) {
+        this.model = model;
+    }
+
+    public DataModel getDataModel() {
+        return model;
+    }
+
     public CodeOptimizerService.MemoryUsage estimateMemoryUsage(String code, CodeOptimizerService.Language lang) {
-        long heapSize = 0;
-        long stackSize = 0;
+        return estimateMemoryUsage(CppLexer.lex(code), lang);
+    }
+
+    public CodeOptimizerService.MemoryUsage estimateMemoryUsage(TokenStream tokens, CodeOptimizerService.Language lang) {
+        return new Scan(tokens, lang).run();
+    }
+
+    /** Size and alignment of a type; size -1 means unknown (incomplete or not modelled). */
+    private static final class TypeInfo {
+        private final long size;
+        private final int align;
+
+        private TypeInfo(long size, int align) {
+            this.size = size;
+            this.align = Math.max(align, 1);
+        }
+    }
+
+    private static final TypeInfo UNKNOWN = new TypeInfo(-1, 1);
+
+    /** A parsed type specifier and the index of the first token after it. */
+    private static final class ParsedType {
+        private final TypeInfo type;
+        private final int next;
+        private final boolean isStatic;
+
+        private ParsedType(TypeInfo type, int next, boolean isStatic) {
+            this.type = type;
+            this.next = next;
+            this.isStatic = isStatic;
+        }
+    }
+
+    private interface DeclarationSink {
+        void declare(String name, long size, int align);
+    }
+
+    private static final class Function {
+        private final String name;
+        private final int line;
+        private long frame;
+        private final Set<String> callees = new LinkedHashSet<>();
+        // Filled in by the call graph walk
+        private long peak = -1;
+        private Function deepestCallee;
+        private boolean recursive;
+        private boolean onPath;
+
+        private Function(String name, int line) {
+            this.name = name;
+            this.line = line;
+        }
+    }
+
+    /** Running layout of one block scope; child blocks reuse the same space, so only the largest counts. */
+    private static final class Scope implements DeclarationSink {
+        private long offset;
+        private long largestChild;
+
+        @Override
+        public void declare(String name, long size, int align) {
+            if (size > 0) {
+                offset = DataModel.alignUp(offset, align) + size;
+            }
+        }
+
+        private long total() {
+            return offset + largestChild;
+        }
+    }
+
+    private final class Scan {
+        private final TokenStream tokens;
+        private final CodeOptimizerService.Language lang;
+        private final int size;
+        private final Map<String, TypeInfo> types = new HashMap<>();
+        private final Map<String, Function> functions = new LinkedHashMap<>();
+        private final List<CodeOptimizerService.HeapAllocation> allocations = new ArrayList<>();
+        private boolean declaredFunction;
 
-        Pattern mallocPattern = Pattern.compile("malloc\\s*\\(\\s*(\\d+)\\s*\\*\\s*sizeof\\s*\\(\\s*\\w+\\s*\\)\\s*\\)");
-        Matcher mallocMatcher = mallocPattern.matcher(code);
-        while (mallocMatcher.find()) {
-            heapSize += Long.parseLong(mallocMatcher.group(1)) * 4;
+        private Scan(TokenStream tokens, CodeOptimizerService.Language lang) {
+            this.tokens = tokens;
+            this.lang = lang;
+            this.size = tokens.size();
         }
 
-        Pattern newPattern = Pattern.compile("new\\s+\\w+\\s*\\[\\s*(\\d+)\\s*\\]");
-        Matcher newMatcher = newPattern.matcher(code);
-        while (newMatcher.find()) {
-            heapSize += Long.parseLong(newMatcher.group(1)) * 4;
+        private CodeOptimizerService.MemoryUsage run() {
+            int i = 0;
+            while (i < size) {
+                i = topLevel(i);
+            }
+            return summarize();
         }
 
-        Pattern varPattern = Pattern.compile("(int|float|double|char)\\s+\\w+(\\s*=\\s*[^;]+)?;");
-        Matcher varMatcher = varPattern.matcher(code);
-        while (varMatcher.find()) {
-            String type = varMatcher.group(1);
-            switch (type) {
-                case "int": stackSize += 4; break;
-                case "float": stackSize += 4; break;
-                case "double": stackSize += 8; break;
-                case "char": stackSize += 1; break;
+        private int topLevel(int i) {
+            if (tokens.isType(i, TokenType.PREPROCESSOR) || tokens.isAny(i, ";", "}")) {
+                return i + 1;
+            }
+            // Namespaces and linkage blocks are transparent; their closing brace is skipped above
+            if (tokens.is(i, "namespace")) {
+                int j = i + 1;
+                while (j < size && !tokens.isAny(j, "{", ";")) {
+                    j++;
+                }
+                return j + 1;
+            }
+            if (tokens.is(i, "extern") && tokens.isType(i + 1, TokenType.STRING) && tokens.is(i + 2, "{")) {
+                return i + 3;
+            }
+            if (tokens.is(i, "template")) {
+                return skipTemplateParameters(i + 1);
+            }
+            if (tokens.is(i, "typedef")) {
+                return typedef(i);
             }
+            ParsedType type = parseType(i);
+            return declarationOrFunction(i, type != null ? type.next : i, null);
         }
 
-        return new CodeOptimizerService.MemoryUsage(heapSize, stackSize);
+        /**
+         * Skips a declaration starting at {@code start} whose type specifier, if any, ends
+         * at {@code from}, analyzing the body when it is a function definition. Returns
+         * the index after it; {@link #declaredFunction} tells whether it declared a function.
+         */
+        private int declarationOrFunction(int start, int from, String owner) {
+            int j = from;
+            int paren = -1;
+            boolean initializer = false;
+            boolean memberInitializers = false;
+            declaredFunction = false;
+            while (j < size && !tokens.is(j, ";")) {
+                if (tokens.is(j, "{")) {
+                    int close = tokens.match(j);
+                    if (close < 0) {
+                        return size;
+                    }
+                    // In "Foo() : a(1), b{2} {" only the brace after a ) or } opens the body
+                    if (!initializer && paren > start && !(memberInitializers && tokens.isIdentifier(j - 1))) {
+                        declaredFunction = true;
+                        analyzeFunction(functionName(start, paren, owner), paren, j, close);
+                        return close + 1;
+                    }
+                    j = close;
+                } else if (tokens.is(j, "}")) {
+                    return j;
+                } else if (tokens.isAny(j, "(", "[")) {
+                    if (paren < 0 && tokens.is(j, "(") && !initializer) {
+                        paren = j;
+                    }
+                    if (tokens.match(j) < 0) {
+                        return size;
+                    }
+                    j = tokens.match(j);
+                } else if (tokens.is(j, "=") && paren < 0) {
+                    initializer = true;
+                } else if (tokens.is(j, ":") && paren >= 0 && j == tokens.match(paren) + 1) {
+                    memberInitializers = true;
+                }
+                j++;
+            }
+            declaredFunction = paren > start && !initializer;
+            return j + 1;
+        }
+
+        private String functionName(int start, int paren, String owner) {
+            int nameStart = paren - 1;
+            while (nameStart > start && (tokens.is(nameStart - 1, "::") || tokens.is(nameStart - 1, "~")
+                    || tokens.is(nameStart - 1, "operator") || tokens.is(nameStart, "::"))) {
+                nameStart--;
+            }
+            StringBuilder name = new StringBuilder();
+            for (int k = nameStart; k < paren; k++) {
+                name.append(tokens.text(k));
+            }
+            return owner != null && tokens.indexOf("::", nameStart, paren) < 0 ? owner + "::" + name : name.toString();
+        }
+
+        private int skipTemplateParameters(int i) {
+            if (!tokens.is(i, "<")) {
+                return i;
+            }
+            int depth = 0;
+            for (int j = i; j < size; j++) {
+                if (tokens.is(j, "<")) {
+                    depth++;
+                } else if (tokens.is(j, ">")) {
+                    depth--;
+                } else if (tokens.is(j, ">>")) {
+                    depth -= 2;
+                }
+                if (depth <= 0) {
+                    return j + 1;
+                }
+            }
+            return size;
+        }
+
+        private int typedef(int i) {
+            ParsedType type = parseType(i + 1);
+            if (type != null) {
+                int end = declarators(type.next, type.type, (name, bytes, align) ->
+                        types.put(name, bytes < 0 ? UNKNOWN : new TypeInfo(bytes, align)), false);
+                if (end >= 0) {
+                    return end + 1;
+                }
+            }
+            int end = tokens.statementEnd(i);
+            return end < 0 ? i + 1 : end + 1;
+        }
+
+        // Type specifier
+
+        /** Parses a type specifier at {@code i}, defining any struct/union/enum it contains; null if none. */
+        private ParsedType parseType(int i) {
+            boolean isStatic = false;
+            boolean signedness = false;
+            int longs = 0;
+            String base = null;
+            TypeInfo named = null;
+            int k = i;
+            while (tokens.isIdentifier(k)) {
+                String word = tokens.text(k);
+                boolean specified = base != null || named != null;
+                if (word.equals("static") || word.equals("thread_local")) {
+                    isStatic = true;
+                } else if (word.equals("signed") || word.equals("unsigned")) {
+                    signedness = true;
+                } else if (word.equals("long")) {
+                    longs++;
+                } else if (QUALIFIERS.contains(word)) {
+                    // Qualifiers may appear on either side of the type name
+                } else if (word.equals("int") && "short".equals(base)) {
+                    // short int
+                } else if (!specified && BASE_TYPES.contains(word)) {
+                    base = word;
+                } else if (!specified && longs == 0 && !signedness
+                        && (word.equals("struct") || word.equals("union") || word.equals("class") || word.equals("enum"))) {
+                    int[] next = new int[1];
+                    named = taggedType(k, next);
+                    k = next[0];
+                    continue;
+                } else if (!specified && longs == 0 && !signedness && types.containsKey(word)) {
+                    named = types.get(word);
+                } else if (!specified && longs == 0 && !signedness && fixedWidth(word) != null) {
+                    named = fixedWidth(word);
+                } else if (!specified && longs == 0 && !signedness && tokens.is(k + 1, "::") && tokens.isIdentifier(k + 2)) {
+                    // Library types such as std::string can only be sized behind a pointer
+                    k = skipQualifiedName(k);
+                    named = UNKNOWN;
+                    continue;
+                } else {
+                    break;
+                }
+                k++;
+            }
+            if (named != null) {
+                return new ParsedType(named, k, isStatic);
+            }
+            if (base == null && longs == 0 && !signedness) {
+                return null;
+            }
+            return new ParsedType(scalar(base, longs), k, isStatic);
+        }
+
+        /** Index after {@code a::b::c<...>} starting at {@code k}. */
+        private int skipQualifiedName(int k) {
+            while (tokens.isIdentifier(k) && tokens.is(k + 1, "::")) {
+                k += 2;
+            }
+            k++;
+            return tokens.is(k, "<") ? skipTemplateParameters(k) : k;
+        }
+
+        private TypeInfo scalar(String base, int longs) {
+            long bytes;
+            if (base == null || base.equals("int")) {
+                bytes = longs == 0 ? model.getIntSize() : longs == 1 ? model.getLongSize() : model.getLongLongSize();
+            } else if (base.equals("double") && longs > 0) {
+                return new TypeInfo(model.getLongDoubleSize(), model.getLongDoubleAlign());
+            } else {
+                switch (base) {
+                    case "char", "bool", "_Bool", "char8_t" -> bytes = 1;
+                    case "short", "char16_t" -> bytes = model.getShortSize();
+                    case "float", "char32_t" -> bytes = 4;
+                    case "double" -> bytes = 8;
+                    // wchar_t is UTF-16 on Windows, UTF-32 elsewhere
+                    case "wchar_t" -> bytes = model == DataModel.LLP64 ? 2 : 4;
+                    default -> {
+                        return UNKNOWN;
+                    }
+                }
+            }
+            return new TypeInfo(bytes, model.alignOf((int) bytes));
+        }
+
+        private TypeInfo fixedWidth(String name) {
+            switch (name) {
+                case "int8_t", "uint8_t":
+                    return new TypeInfo(1, 1);
+                case "int16_t", "uint16_t":
+                    return new TypeInfo(2, 2);
+                case "int32_t", "uint32_t":
+                    return new TypeInfo(4, 4);
+                case "int64_t", "uint64_t":
+                    return new TypeInfo(8, model.alignOf(8));
+                case "size_t", "ssize_t", "ptrdiff_t", "intptr_t", "uintptr_t":
+                    return new TypeInfo(model.getPointerSize(), model.getPointerSize());
+                default:
+                    return null;
+            }
+        }
+
+        /** {@code struct|union|class|enum [Name] [: bases] [{ body }]}; {@code next[0]} receives the index after it. */
+        private TypeInfo taggedType(int i, int[] next) {
+            String kind = tokens.text(i);
+            int k = i + 1;
+            if (kind.equals("enum") && tokens.isAny(k, "class", "struct")) {
+                k++;
+            }
+            String name = null;
+            if (tokens.isIdentifier(k) && !tokens.is(k, "final")) {
+                name = tokens.text(k);
+                k++;
+            }
+            if (tokens.is(k, "final")) {
+                k++;
+            }
+            // C keeps tags apart from other names; C++ makes them type names as well
+            String tag = name == null ? null : (kind.equals("class") ? "struct" : kind) + " " + name;
+            List<TypeInfo> bases = new ArrayList<>();
+            TypeInfo enumBase = null;
+            if (tokens.is(k, ":")) {
+                k++;
+                if (kind.equals("enum")) {
+                    ParsedType underlying = parseType(k);
+                    if (underlying != null) {
+                        enumBase = underlying.type;
+                        k = underlying.next;
+                    }
+                } else {
+                    while (k < size && !tokens.isAny(k, "{", ";")) {
+                        if (tokens.isIdentifier(k) && !tokens.isAny(k, "public", "protected", "private", "virtual")) {
+                            bases.add(types.getOrDefault(tokens.text(k), UNKNOWN));
+                        }
+                        k++;
+                    }
+                }
+            }
+            if (!tokens.is(k, "{") || tokens.match(k) < 0) {
+                next[0] = k;
+                if (kind.equals("enum")) {
+                    return enumBase != null ? enumBase : scalar("int", 0);
+                }
+                return tag != null ? types.getOrDefault(tag, UNKNOWN) : UNKNOWN;
+            }
+            int close = tokens.match(k);
+            next[0] = close + 1;
+            TypeInfo defined;
+            if (kind.equals("enum")) {
+                defined = enumBase != null ? enumBase : scalar("int", 0);
+            } else {
+                if (tag != null) {
+                    // Members may point at the type being defined
+                    defineTag(tag, name, UNKNOWN);
+                }
+                defined = layout(kind.equals("union"), bases, name, k, close);
+            }
+            if (tag != null) {
+                defineTag(tag, name, defined);
+            }
+            return defined;
+        }
+
+        private void defineTag(String tag, String name, TypeInfo type) {
+            types.put(tag, type);
+            if (lang == CodeOptimizerService.Language.CPP) {
+                types.put(name, type);
+            }
+        }
+
+        /** Lays out the members between {@code open} and {@code close} with natural alignment and tail padding. */
+        private TypeInfo layout(boolean union, List<TypeInfo> bases, String owner, int open, int close) {
+            long[] offset = {0};
+            long[] largest = {0};
+            int[] maxAlign = {1};
+            boolean[] unknown = {false};
+            boolean virtual = false;
+            DeclarationSink member = (name, bytes, align) -> {
+                if (bytes < 0) {
+                    unknown[0] = true;
+                    return;
+                }
+                maxAlign[0] = Math.max(maxAlign[0], align);
+                if (union) {
+                    largest[0] = Math.max(largest[0], bytes);
+                } else {
+                    offset[0] = DataModel.alignUp(offset[0], align) + bytes;
+                }
+            };
+            for (TypeInfo base : bases) {
+                member.declare(null, base.size, base.align);
+            }
+            int k = open + 1;
+            while (k < close) {
+                if (tokens.isType(k, TokenType.PREPROCESSOR) || tokens.is(k, ";")) {
+                    k++;
+                } else if (tokens.isAny(k, "public", "protected", "private") && tokens.is(k + 1, ":")) {
+                    k += 2;
+                } else if (tokens.isAny(k, "friend", "using", "typedef", "static_assert", "template")) {
+                    k = tokens.is(k, "typedef") ? typedef(k) : skipMember(k, close, owner);
+                } else {
+                    ParsedType type = parseType(k);
+                    if (type != null && !type.isStatic) {
+                        int end = declarators(type.next, type.type, member, false);
+                        if (end >= 0) {
+                            k = end + 1;
+                            continue;
+                        }
+                    }
+                    virtual |= tokens.is(k, "virtual");
+                    k = declarationOrFunction(k, type != null ? type.next : k, owner);
+                    if (!declaredFunction && type == null) {
+                        // A data member we cannot size, e.g. of a library type
+                        unknown[0] = true;
+                    }
+                }
+            }
+            if (unknown[0]) {
+                return UNKNOWN;
+            }
+            if (virtual) {
+                // Objects of polymorphic classes carry a vtable pointer
+                offset[0] = DataModel.alignUp(offset[0], model.getPointerSize()) + model.getPointerSize();
+                maxAlign[0] = Math.max(maxAlign[0], model.getPointerSize());
+            }
+            long bytes = union ? largest[0] : offset[0];
+            if (bytes == 0 && lang == CodeOptimizerService.Language.CPP) {
+                // Distinct objects need distinct addresses in C++
+                bytes = 1;
+            }
+            return new TypeInfo(DataModel.alignUp(bytes, maxAlign[0]), maxAlign[0]);
+        }
+
+        private int skipMember(int k, int close, String owner) {
+            if (tokens.is(k, "template")) {
+                k = skipTemplateParameters(k + 1);
+                return declarationOrFunction(k, k, owner);
+            }
+            int end = tokens.statementEnd(k);
+            return end < 0 || end > close ? close : end + 1;
+        }
+
+        // Declarators
+
+        /**
+         * Parses {@code *name[N] = init, ...;} from {@code k} and reports each name's size.
+         * In a function body ({@code local}) {@code name(args)} is an object, elsewhere a
+         * function declarator. Returns the index of the closing {@code ;}, or -1 if the
+         * tokens are not a declarator list.
+         */
+        private int declarators(int k, TypeInfo type, DeclarationSink sink, boolean local) {
+            List<Object[]> declared = new ArrayList<>();
+            while (k < size) {
+                int pointers = 0;
+                while (tokens.isAny(k, "*", "&", "&&", "const", "volatile", "restrict", "__restrict")) {
+                    if (!tokens.isIdentifier(k)) {
+                        pointers++;
+                    }
+                    k++;
+                }
+                String name;
+                if (tokens.is(k, "(") && tokens.is(k + 1, "*") && tokens.isIdentifier(k + 2) && tokens.is(k + 3, ")")) {
+                    // Function pointer: (*name)(params)
+                    name = tokens.text(k + 2);
+                    pointers++;
+                    k += 4;
+                    if (!tokens.is(k, "(") || tokens.match(k) < 0) {
+                        return -1;
+                    }
+                    k = tokens.match(k) + 1;
+                } else if (tokens.isIdentifier(k) && !BASE_TYPES.contains(tokens.text(k))) {
+                    name = tokens.text(k);
+                    k++;
+                } else {
+                    return -1;
+                }
+                long count = 1;
+                boolean unsized = false;
+                while (tokens.is(k, "[")) {
+                    int close = tokens.match(k);
+                    if (close < 0) {
+                        return -1;
+                    }
+                    // T name[] takes its first dimension from the initializer
+                    unsized |= close == k + 1;
+                    long dimension = close == k + 1 ? 1 : evaluate(k + 1, close);
+                    count = count < 0 || dimension < 0 ? -1 : count * dimension;
+                    k = close + 1;
+                }
+                if (tokens.is(k, ":") && tokens.isType(k + 1, TokenType.NUMBER)) {
+                    k += 2;
+                }
+                if (tokens.is(k, "(")) {
+                    if (!local || tokens.match(k) < 0) {
+                        return -1;
+                    }
+                    k = tokens.match(k) + 1;
+                }
+                if (tokens.isAny(k, "=", "{")) {
+                    int init = tokens.is(k, "=") ? k + 1 : k;
+                    k = skipInitializer(k);
+                    if (k < 0) {
+                        return -1;
+                    }
+                    if (unsized) {
+                        long length = initializerLength(init);
+                        count = count < 0 || length < 0 ? -1 : count * length;
+                        unsized = false;
+                    }
+                }
+                if (unsized) {
+                    // Flexible array member or extern declaration: no storage here
+                    count = 0;
+                }
+                long element = pointers > 0 ? model.getPointerSize() : type.size;
+                int align = pointers > 0 ? model.getPointerSize() : type.align;
+                long bytes = element < 0 || count < 0 ? -1 : element * count;
+                declared.add(new Object[] {name, bytes, align});
+                if (tokens.is(k, ",")) {
+                    k++;
+                } else if (tokens.is(k, ";")) {
+                    for (Object[] d : declared) {
+                        sink.declare((String) d[0], (Long) d[1], (Integer) d[2]);
+                    }
+                    return k;
+                } else {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        private int skipInitializer(int k) {
+            while (k < size && !tokens.isAny(k, ",", ";")) {
+                if (tokens.isAny(k, "(", "[", "{")) {
+                    if (tokens.match(k) < 0) {
+                        return -1;
+                    }
+                    k = tokens.match(k);
+                } else if (tokens.is(k, "}")) {
+                    return -1;
+                }
+                k++;
+            }
+            return k;
+        }
+
+        /** Element count of {@code {a, b, c}} or a string literal, for {@code T name[] = ...}. */
+        private long initializerLength(int k) {
+            if (tokens.isType(k, TokenType.STRING)) {
+                String literal = tokens.text(k);
+                return literal.length() - literal.indexOf('"') - 1;
+            }
+            if (!tokens.is(k, "{") || tokens.match(k) < 0) {
+                return -1;
+            }
+            int close = tokens.match(k);
+            long elements = close == k + 1 ? 0 : 1;
+            for (int j = k + 1; j < close; j++) {
+                if (tokens.isAny(j, "(", "[", "{")) {
+                    j = tokens.match(j);
+                } else if (tokens.is(j, ",") && !tokens.is(j + 1, "}")) {
+                    elements++;
+                }
+            }
+            return elements;
+        }
+
+        // Function bodies
+
+        private void analyzeFunction(String name, int paren, int open, int close) {
+            Function function = new Function(name, tokens.lineOf(paren));
+            Deque<Scope> scopes = new ArrayDeque<>();
+            scopes.push(new Scope());
+            int k = open + 1;
+            while (k < close) {
+                if (tokens.isType(k, TokenType.PREPROCESSOR)) {
+                    k++;
+                    continue;
+                }
+                if (tokens.is(k, "{")) {
+                    scopes.push(new Scope());
+                    k++;
+                    continue;
+                }
+                if (tokens.is(k, "}")) {
+                    if (scopes.size() > 1) {
+                        Scope child = scopes.pop();
+                        scopes.peek().largestChild = Math.max(scopes.peek().largestChild, child.total());
+                    }
+                    k++;
+                    continue;
+                }
+                int declaration = -1;
+                if (tokens.isStatementStart(k) || (tokens.is(k - 1, "(") && tokens.is(k - 2, "for"))) {
+                    declaration = localDeclaration(k, scopes.peek());
+                }
+                if (declaration >= 0) {
+                    // Keep scanning the declarators so initializers still count calls and allocations
+                    k = declaration;
+                    continue;
+                }
+                if (tokens.isAny(k, "malloc", "calloc", "realloc", "aligned_alloc", "new") && !isMemberAccess(k)) {
+                    recordAllocation(name, k);
+                } else if (tokens.isIdentifier(k) && tokens.is(k + 1, "(") && !isMemberAccess(k)
+                        && !NOT_CALLS.contains(tokens.text(k))) {
+                    function.callees.add(tokens.text(k));
+                }
+                k++;
+            }
+            function.frame = DataModel.alignUp(scopes.peek().total() + model.callOverhead(), DataModel.STACK_ALIGNMENT);
+            String simpleName = name.substring(name.lastIndexOf(':') + 1);
+            // Overloads are not told apart at call sites, so the largest frame stands for all of them
+            Function existing = functions.get(simpleName);
+            if (existing == null || existing.frame < function.frame) {
+                if (existing != null) {
+                    function.callees.addAll(existing.callees);
+                }
+                functions.put(simpleName, function);
+            } else {
+                existing.callees.addAll(function.callees);
+            }
+        }
+
+        /** Declares the locals of a declaration at {@code k}; returns where scanning continues, or -1. */
+        private int localDeclaration(int k, Scope scope) {
+            if (tokens.is(k, "typedef")) {
+                return typedef(k);
+            }
+            ParsedType type = parseType(k);
+            if (type == null) {
+                return -1;
+            }
+            // Static locals live with the globals, not in the frame
+            DeclarationSink sink = type.isStatic ? (name, bytes, align) -> { } : scope;
+            if (declarators(type.next, type.type, sink, true) < 0) {
+                // A bare struct/enum definition still has to be stepped over
+                return type.next > k && tokens.is(type.next, ";") ? type.next + 1 : -1;
+            }
+            return type.next;
+        }
+
+        private boolean isMemberAccess(int k) {
+            return tokens.isAny(k - 1, ".", "->");
+        }
+
+        // Heap
+
+        private void recordAllocation(String function, int k) {
+            long bytes;
+            int end;
+            if (tokens.is(k, "new")) {
+                if (tokens.is(k + 1, "(")) {
+                    // Placement new constructs in existing storage
+                    return;
+                }
+                ParsedType type = parseType(k + 1);
+                int j = type != null ? type.next : k + 1;
+                int pointers = 0;
+                while (tokens.is(j, "*")) {
+                    pointers++;
+                    j++;
+                }
+                long element = type == null ? -1 : pointers > 0 ? model.getPointerSize() : type.type.size;
+                end = type == null ? expressionEnd(k) : j - 1;
+                bytes = element;
+                if (tokens.is(j, "[") && tokens.match(j) > 0) {
+                    long count = evaluate(j + 1, tokens.match(j));
+                    bytes = element < 0 || count < 0 ? -1 : element * count;
+                    end = tokens.match(j);
+                } else if (tokens.isAny(j, "(", "{") && tokens.match(j) > 0) {
+                    end = tokens.match(j);
+                }
+            } else {
+                if (!tokens.is(k + 1, "(") || tokens.match(k + 1) < 0) {
+                    return;
+                }
+                end = tokens.match(k + 1);
+                List<int[]> args = arguments(k + 1, end);
+                String callee = tokens.text(k);
+                if (callee.equals("malloc") && args.size() == 1) {
+                    bytes = evaluate(args.get(0)[0], args.get(0)[1]);
+                } else if (callee.equals("calloc") && args.size() == 2) {
+                    long count = evaluate(args.get(0)[0], args.get(0)[1]);
+                    long element = evaluate(args.get(1)[0], args.get(1)[1]);
+                    bytes = count < 0 || element < 0 ? -1 : count * element;
+                } else if (args.size() == 2) {
+                    // realloc(ptr, size) and aligned_alloc(alignment, size)
+                    bytes = evaluate(args.get(1)[0], args.get(1)[1]);
+                } else {
+                    return;
+                }
+            }
+            String expression = WHITESPACE.matcher(tokens.text(k, end)).replaceAll(" ");
+            if (expression.length() > MAX_EXPRESSION_LENGTH) {
+                expression = expression.substring(0, MAX_EXPRESSION_LENGTH - 3) + "...";
+            }
+            allocations.add(new CodeOptimizerService.HeapAllocation(function, tokens.lineOf(k), expression, bytes));
+        }
+
+        /** Last token of the expression starting at {@code k}, stopping before , ; or an unmatched closing bracket. */
+        private int expressionEnd(int k) {
+            int j = k;
+            while (j + 1 < size && !tokens.isAny(j + 1, ",", ";", ")", "]", "}")) {
+                j++;
+                if (tokens.isAny(j, "(", "[", "{") && tokens.match(j) > 0) {
+                    j = tokens.match(j);
+                }
+            }
+            return j;
+        }
+
+        /** Argument ranges {@code [from, to)} of the call whose parentheses are {@code open..close}. */
+        private List<int[]> arguments(int open, int close) {
+            List<int[]> args = new ArrayList<>();
+            int from = open + 1;
+            for (int j = open + 1; j < close; j++) {
+                if (tokens.isAny(j, "(", "[", "{")) {
+                    j = tokens.match(j);
+                } else if (tokens.is(j, ",")) {
+                    args.add(new int[] {from, j});
+                    from = j + 1;
+                }
+            }
+            if (from < close) {
+                args.add(new int[] {from, close});
+            }
+            return args;
+        }
+
+        /** Value of a constant size expression over {@code [from, to)}: integers, sizeof(type), + - * / and parentheses; -1 if not constant. */
+        private long evaluate(int from, int to) {
+            int[] pos = {from};
+            long value = sum(pos, to);
+            return pos[0] == to ? value : -1;
+        }
+
+        private long sum(int[] pos, int to) {
+            long value = product(pos, to);
+            while (pos[0] < to && tokens.isAny(pos[0], "+", "-")) {
+                boolean plus = tokens.is(pos[0], "+");
+                pos[0]++;
+                long rhs = product(pos, to);
+                value = value < 0 || rhs < 0 ? -1 : plus ? value + rhs : value - rhs;
+            }
+            return value;
+        }
+
+        private long product(int[] pos, int to) {
+            long value = factor(pos, to);
+            while (pos[0] < to && tokens.isAny(pos[0], "*", "/")) {
+                boolean times = tokens.is(pos[0], "*");
+                pos[0]++;
+                long rhs = factor(pos, to);
+                value = value < 0 || rhs < 0 || (!times && rhs == 0) ? -1 : times ? value * rhs : value / rhs;
+            }
+            return value;
+        }
+
+        private long factor(int[] pos, int to) {
+            int k = pos[0];
+            if (k >= to) {
+                return -1;
+            }
+            if (tokens.isType(k, TokenType.NUMBER)) {
+                pos[0]++;
+                return integer(tokens.text(k));
+            }
+            if (tokens.is(k, "(") && tokens.match(k) > 0 && tokens.match(k) < to) {
+                int close = tokens.match(k);
+                pos[0] = close + 1;
+                return evaluate(k + 1, close);
+            }
+            if (tokens.is(k, "sizeof") && tokens.is(k + 1, "(") && tokens.match(k + 1) > 0) {
+                int close = tokens.match(k + 1);
+                pos[0] = close + 1;
+                ParsedType type = parseType(k + 2);
+                if (type == null) {
+                    return -1;
+                }
+                int j = type.next;
+                boolean pointer = false;
+                while (tokens.is(j, "*")) {
+                    pointer = true;
+                    j++;
+                }
+                return j != close ? -1 : pointer ? model.getPointerSize() : type.type.size;
+            }
+            // Macros, variables and everything else are not known here
+            pos[0] = to;
+            return -1;
+        }
+
+        private long integer(String literal) {
+            int length = literal.length();
+            while (length > 0 && "uUlL".indexOf(literal.charAt(length - 1)) >= 0) {
+                length--;
+            }
+            String digits = literal.substring(0, length);
+            try {
+                if (digits.startsWith("0x") || digits.startsWith("0X")) {
+                    return Long.parseLong(digits.substring(2), 16);
+                }
+                if (digits.length() > 1 && digits.startsWith("0")) {
+                    return Long.parseLong(digits.substring(1), 8);
+                }
+                return Long.parseLong(digits);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // Call graph
+
+        private CodeOptimizerService.MemoryUsage summarize() {
+            long stack = 0;
+            for (Function function : functions.values()) {
+                peak(function);
+                stack = Math.max(stack, function.peak);
+            }
+            if (functions.containsKey("main")) {
+                stack = functions.get("main").peak;
+            }
+
+            List<Function> deepest = new ArrayList<>(functions.values());
+            deepest.sort((a, b) -> Long.compare(b.peak, a.peak));
+            List<CodeOptimizerService.StackFrame> frames = new ArrayList<>();
+            for (Function function : deepest.subList(0, Math.min(deepest.size(), MAX_REPORTED))) {
+                List<String> chain = new ArrayList<>();
+                for (Function f = function; f != null && chain.size() < functions.size(); f = f.deepestCallee) {
+                    chain.add(f.name);
+                }
+                frames.add(new CodeOptimizerService.StackFrame(function.name, function.line, function.frame,
+                        function.peak, chain, function.recursive));
+            }
+
+            long heap = 0;
+            for (CodeOptimizerService.HeapAllocation allocation : allocations) {
+                heap += Math.max(allocation.getBytes(), 0);
+            }
+            List<CodeOptimizerService.HeapAllocation> largest = new ArrayList<>(allocations);
+            largest.sort((a, b) -> Long.compare(b.getBytes(), a.getBytes()));
+            largest = new ArrayList<>(largest.subList(0, Math.min(largest.size(), MAX_REPORTED)));
+            return new CodeOptimizerService.MemoryUsage(heap, stack, model.name(), frames, largest);
+        }
+
+        /**
+         * Post-order walk of the call graph from {@code root} without recursion, so long
+         * call chains cannot overflow the Java stack. A call back into a function that is
+         * still on the path is a cycle; it is counted once, since the depth is unknown.
+         */
+        private void peak(Function root) {
+            if (root.peak >= 0) {
+                return;
+            }
+            List<Function> path = new ArrayList<>();
+            Deque<Function> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Function current = stack.peek();
+                if (current.peak >= 0) {
+                    stack.pop();
+                    continue;
+                }
+                if (!current.onPath) {
+                    current.onPath = true;
+                    path.add(current);
+                    for (String name : current.callees) {
+                        Function callee = functions.get(name);
+                        if (callee == null || callee.peak >= 0) {
+                            continue;
+                        }
+                        if (callee.onPath) {
+                            for (int p = path.indexOf(callee); p < path.size(); p++) {
+                                path.get(p).recursive = true;
+                            }
+                        } else {
+                            stack.push(callee);
+                        }
+                    }
+                    continue;
+                }
+                long deepest = 0;
+                for (String name : current.callees) {
+                    Function callee = functions.get(name);
+                    if (callee != null && callee != current && callee.peak > deepest) {
+                        deepest = callee.peak;
+                        current.deepestCallee = callee;
+                    }
+                }
+                current.peak = current.frame + deepest;
+                current.onPath = false;
+                path.remove(path.size() - 1);
+                stack.pop();
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,394 @@
+package com.example.cppoptimizer.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content-addressed cache for pipeline results and per-pass intermediate outputs.
+ *
+ * <p>Keys form a hash chain: the input key is derived from the normalized code, and
+ * every pass output is named by hashing its input key with the pass name. Because the
+ * passes are deterministic, a stage key identifies its output without re-hashing the
+ * intermediate text, and pipelines that share a prefix of passes share those stages.
+ *
+ * <p>The memory tier is an LRU bounded by an estimate of the retained bytes. Final
+ * results can additionally be written to a directory so they survive restarts;
+ * intermediate stages stay in memory only.
+ */
+public class OptimizationCache {
+    private static final Logger logger = LoggerFactory.getLogger(OptimizationCache.class);
+    // Bump when the serialized form or pass semantics change so old disk entries miss.
+    // 2: analysis-based rewrites of the passes, new passes and verification results
+    private static final String FORMAT_VERSION = "2";
+    private static final String RESULT_SUFFIX = ".result";
+    // Only our own result types may be deserialized from the disk tier
+    private static final ObjectInputFilter RESULT_FILTER = ObjectInputFilter.Config.createFilter(
+            "com.example.cppoptimizer.service.*;java.util.*;java.lang.*;!*");
+
+    private final long maxBytes;
+    private final Path diskDir;
+    private final long maxDiskBytes;
+    // Bytes of the result files on disk, kept up to date as they are written and deleted
+    private final AtomicLong diskBytes = new AtomicLong();
+    private final Map<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long currentBytes;
+
+    private final AtomicLong resultHits = new AtomicLong();
+    private final AtomicLong resultMisses = new AtomicLong();
+    private final AtomicLong stageHits = new AtomicLong();
+    private final AtomicLong stageMisses = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public OptimizationCache(long maxBytes, String diskDir, long maxDiskBytes) {
+        this.maxBytes = maxBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.diskDir = initDiskDir(diskDir);
+        if (this.diskDir != null) {
+            try {
+                diskBytes.set(totalSize(resultFiles()));
+            } catch (IOException e) {
+                logger.warn("Could not size the on-disk cache tier {}: {}", diskDir, e.getMessage());
+            }
+        }
+    }
+
+    // The detected language is a pure function of the code, so the code hash already covers it
+    public static String inputKey(String normalizedCode) {
+        return inputKey(FORMAT_VERSION, normalizedCode);
+    }
+
+    // The key the cache of another format version gives the same code
+    static String inputKey(String formatVersion, String normalizedCode) {
+        return hash(formatVersion, normalizedCode);
+    }
+
+    public static String stageKey(String inputKey, String passName) {
+        return hash(inputKey, passName);
+    }
+
+    public static String resultKey(String inputKey, List<String> pipeline) {
+        return hash(inputKey, String.join(",", pipeline));
+    }
+
+    public CodeOptimizerService.OptimizationResult getResult(String key) {
+        Entry entry = get(key);
+        if (entry != null && entry.result != null) {
+            resultHits.incrementAndGet();
+            return entry.result;
+        }
+        CodeOptimizerService.OptimizationResult result = readFromDisk(key);
+        if (result != null) {
+            diskHits.incrementAndGet();
+            resultHits.incrementAndGet();
+            put(key, new Entry(result, null, false, weigh(result)));
+            return result;
+        }
+        resultMisses.incrementAndGet();
+        return null;
+    }
+
+    public void putResult(String key, CodeOptimizerService.OptimizationResult result) {
+        put(key, new Entry(result, null, false, weigh(result)));
+        writeToDisk(key, result);
+    }
+
+    /**
+     * Output of a pass for the given stage key: the new code, or {@code input} itself
+     * when the pass was recorded as a no-op. Returns null on a miss.
+     */
+    public String getStage(String key, String input) {
+        Entry entry = get(key);
+        if (entry == null || entry.result != null) {
+            stageMisses.incrementAndGet();
+            return null;
+        }
+        stageHits.incrementAndGet();
+        return entry.changed ? entry.code : input;
+    }
+
+    public void putStage(String key, String input, String output) {
+        // Passes return their input instance when they changed nothing
+        boolean changed = output != input;
+        // Unchanged stages only need the marker, not a second copy of the code
+        put(key, new Entry(null, changed ? output : null, changed, changed ? 2L * output.length() + 64 : 64));
+    }
+
+    public Stats getStats() {
+        synchronized (entries) {
+            return new Stats(resultHits.get(), resultMisses.get(), stageHits.get(), stageMisses.get(),
+                    diskHits.get(), evictions.get(), entries.size(), currentBytes);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            currentBytes = 0;
+        }
+    }
+
+    private Entry get(String key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        if (entry.weight > maxBytes) {
+            return;
+        }
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                currentBytes -= previous.weight;
+            }
+            currentBytes += entry.weight;
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && eldest.hasNext()) {
+                currentBytes -= eldest.next().getValue().weight;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    // Two bytes a char and a rough allowance for each object, the memory analyses and the
+    // verification included
+    private long weigh(CodeOptimizerService.OptimizationResult result) {
+        long bytes = 2L * result.getOptimizedCode().length() + 64L * result.getTimingEntries().size() + 256;
+        for (String insight : result.getOptimizationInsights()) {
+            bytes += weigh(insight);
+        }
+        bytes += weigh(result.getBeforeMemory()) + weigh(result.getAfterMemory());
+        CodeOptimizerService.Verification verification = result.getVerification();
+        if (verification != null) {
+            // Two program runs of a few numbers each
+            bytes += weigh(verification.getMessage()) + weigh(verification.getCompiler()) + 3 * 64;
+        }
+        return bytes;
+    }
+
+    private static long weigh(CodeOptimizerService.MemoryUsage usage) {
+        if (usage == null) {
+            return 0;
+        }
+        long bytes = 64 + weigh(usage.getDataModel());
+        if (usage.getFrames() != null) {
+            for (CodeOptimizerService.StackFrame frame : usage.getFrames()) {
+                bytes += 64 + weigh(frame.getFunction());
+                if (frame.getCallChain() != null) {
+                    for (String caller : frame.getCallChain()) {
+                        bytes += weigh(caller);
+                    }
+                }
+            }
+        }
+        if (usage.getAllocations() != null) {
+            for (CodeOptimizerService.HeapAllocation allocation : usage.getAllocations()) {
+                bytes += 64 + weigh(allocation.getFunction()) + weigh(allocation.getExpression());
+            }
+        }
+        return bytes;
+    }
+
+    private static long weigh(String text) {
+        return text != null ? 2L * text.length() + 48 : 0;
+    }
+
+    private Path initDiskDir(String dir) {
+        if (dir == null || dir.isBlank()) {
+            return null;
+        }
+        try {
+            return Files.createDirectories(Path.of(dir));
+        } catch (IOException e) {
+            logger.warn("Disabling on-disk cache tier, cannot create {}: {}", dir, e.getMessage());
+            return null;
+        }
+    }
+
+    private CodeOptimizerService.OptimizationResult readFromDisk(String key) {
+        if (diskDir == null) {
+            return null;
+        }
+        Path file = diskDir.resolve(key + RESULT_SUFFIX);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(file); ObjectInputStream ois = new ObjectInputStream(in)) {
+            ois.setObjectInputFilter(RESULT_FILTER);
+            return (CodeOptimizerService.OptimizationResult) ois.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            logger.warn("Dropping unreadable cache entry {}: {}", file, e.getMessage());
+            long size = sizeOf(file);
+            if (deleteQuietly(file)) {
+                diskBytes.addAndGet(-size);
+            }
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, CodeOptimizerService.OptimizationResult result) {
+        if (diskDir == null) {
+            return;
+        }
+        Path file = diskDir.resolve(key + RESULT_SUFFIX);
+        try {
+            Path temp = Files.createTempFile(diskDir, key, ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp); ObjectOutputStream oos = new ObjectOutputStream(out)) {
+                oos.writeObject(result);
+            }
+            long written = Files.size(temp);
+            long replaced = sizeOf(file);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (diskBytes.addAndGet(written - replaced) > maxDiskBytes) {
+                trimDisk();
+            }
+        } catch (IOException e) {
+            logger.warn("Could not persist cache entry {}: {}", key, e.getMessage());
+        }
+    }
+
+    // Oldest files go first once the directory grows past its budget. Only then is the
+    // directory listed, which also corrects the running total for files changed behind our back
+    private synchronized void trimDisk() throws IOException {
+        List<Path> files = resultFiles();
+        long total = totalSize(files);
+        if (total > maxDiskBytes) {
+            List<Path> oldestFirst = files.stream()
+                    .sorted(Comparator.comparingLong(this::lastModified))
+                    .toList();
+            for (Path file : oldestFirst) {
+                if (total <= maxDiskBytes) {
+                    break;
+                }
+                long size = sizeOf(file);
+                if (deleteQuietly(file)) {
+                    total -= size;
+                }
+            }
+        }
+        diskBytes.set(total);
+    }
+
+    private List<Path> resultFiles() throws IOException {
+        try (Stream<Path> stream = Files.list(diskDir)) {
+            return stream.filter(p -> p.getFileName().toString().endsWith(RESULT_SUFFIX)).toList();
+        }
+    }
+
+    private long totalSize(List<Path> files) {
+        long total = 0;
+        for (Path file : files) {
+            total += sizeOf(file);
+        }
+        return total;
+    }
+
+    // 0 for a file that is gone
+    private long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private boolean deleteQuietly(Path file) {
+        try {
+            return Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.debug("Could not delete {}: {}", file, e.getMessage());
+            return false;
+        }
+    }
+
+    private static String hash(String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static final class Entry {
+        private final CodeOptimizerService.OptimizationResult result;
+        private final String code;
+        private final boolean changed;
+        private final long weight;
+
+        private Entry(CodeOptimizerService.OptimizationResult result, String code, boolean changed, long weight) {
+            this.result = result;
+            this.code = code;
+            this.changed = changed;
+            this.weight = weight;
+        }
+    }
+
+    public static class Stats {
+        private final long resultHits;
+        private final long resultMisses;
+        private final long stageHits;
+        private final long stageMisses;
+        private final long diskHits;
+        private final long evictions;
+        private final int entries;
+        private final long bytes;
+
+        public Stats(long resultHits, long resultMisses, long stageHits, long stageMisses,
+                     long diskHits, long evictions, int entries, long bytes) {
+            this.resultHits = resultHits;
+            this.resultMisses = resultMisses;
+            this.stageHits = stageHits;
+            this.stageMisses = stageMisses;
+            this.diskHits = diskHits;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+
+        public long getResultHits() { return resultHits; }
+        public long getResultMisses() { return resultMisses; }
+        public long getStageHits() { return stageHits; }
+        public long getStageMisses() { return stageMisses; }
+        public long getDiskHits() { return diskHits; }
+        public long getEvictions() { return evictions; }
+        public int getEntries() { return entries; }
+        public long getBytes() { return bytes; }
+    }
+}
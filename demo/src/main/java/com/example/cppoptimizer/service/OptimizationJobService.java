@@ -0,0 +1,275 @@
+package com.example.cppoptimizer.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
+
+/**
+ * Runs optimizations as jobs on a small dedicated pool, so large inputs do not hold a
+ * servlet thread for the whole pipeline. The queue in front of the pool is bounded:
+ * once it is full, {@link #submit} fails with a {@link RejectedExecutionException} instead
+ * of letting work pile up. Finished jobs are kept for a while so clients can fetch results.
+ */
+@Service
+public class OptimizationJobService {
+    private static final Logger logger = LoggerFactory.getLogger(OptimizationJobService.class);
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this != QUEUED && this != RUNNING;
+        }
+    }
+
+    private final CodeOptimizerService codeOptimizerService;
+    private final OptimizerProperties.Jobs config;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final Counter rejected;
+
+    @Autowired
+    public OptimizationJobService(CodeOptimizerService codeOptimizerService, OptimizerProperties properties,
+                                  MeterRegistry meterRegistry) {
+        this.codeOptimizerService = codeOptimizerService;
+        this.config = properties.getJobs();
+        int workers = config.getWorkers() > 0
+                ? config.getWorkers() : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.getQueueCapacity()), r -> {
+                    Thread thread = new Thread(r, "optimizer-job-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        Gauge.builder("cppoptimizer.jobs.queued", executor, e -> e.getQueue().size())
+                .description("Jobs waiting for a worker").register(meterRegistry);
+        Gauge.builder("cppoptimizer.jobs.running", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Jobs being optimized").register(meterRegistry);
+        this.rejected = Counter.builder("cppoptimizer.jobs.rejected")
+                .description("Submissions turned away because the queue was full").register(meterRegistry);
+    }
+
+    /**
+     * Queues {@code code} for optimization with the named passes (null runs all of them).
+     * Unknown pass names fail with an {@link IllegalArgumentException} right away; a full
+     * queue fails with a {@link RejectedExecutionException}.
+     */
+    public JobStatus submit(String code, List<String> passes) {
+        purgeExpired();
+        codeOptimizerService.checkPasses(passes);
+        Job job = new Job(UUID.randomUUID().toString());
+        // Registered first so that even a job that finishes at once can be looked up
+        jobs.put(job.id, job);
+        try {
+            job.future = executor.submit(() -> run(job, code, passes));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            rejected.increment();
+            throw e;
+        }
+        return job.status();
+    }
+
+    /** Reads an upload for {@link #submit}, enforcing the per-job size limit. */
+    public String readSource(InputStream in, long size) throws IOException {
+        if (size > config.getMaxFileBytes()) {
+            throw new IllegalArgumentException("File exceeds the limit of " + config.getMaxFileBytes() + " bytes");
+        }
+        return SourceReader.read(in, size, config.getMaxFileBytes());
+    }
+
+    /** The job's current status, or null if there is no such job (or it has expired). */
+    public JobStatus status(String id) {
+        Job job = jobs.get(id);
+        return job != null ? job.status() : null;
+    }
+
+    /** Completes with the final status once the job finishes; null if there is no such job. */
+    public CompletableFuture<JobStatus> completion(String id) {
+        Job job = jobs.get(id);
+        return job != null ? job.done : null;
+    }
+
+    /**
+     * Cancels a queued or running job. A queued job gives its queue slot back at once; a
+     * running one stops at the next pass boundary. Finished jobs are left as they are.
+     * Returns null if there is no such job.
+     */
+    public JobStatus cancel(String id) {
+        Job job = jobs.get(id);
+        if (job == null) {
+            return null;
+        }
+        if (job.finish(State.CANCELLED, null, null) && job.future != null) {
+            // No interrupt: the pipeline checks the job's state between passes instead
+            job.future.cancel(false);
+            executor.remove((Runnable) job.future);
+        }
+        return job.status();
+    }
+
+    public long getMaxWaitSeconds() {
+        return config.getMaxWaitSeconds();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void run(Job job, String code, List<String> passes) {
+        if (!job.start()) {
+            return;
+        }
+        try {
+            CodeOptimizerService.OptimizationResult result = codeOptimizerService.optimize(code, passes, stage -> {
+                if (job.state == State.CANCELLED) {
+                    throw new CancellationException();
+                }
+                job.stageStarted(stage);
+            });
+            job.finish(State.SUCCEEDED, result, null);
+        } catch (CancellationException e) {
+            logger.debug("Job {} cancelled during {}", job.id, job.stage);
+        } catch (RuntimeException e) {
+            logger.warn("Job {} failed: {}", job.id, e.getMessage());
+            job.finish(State.FAILED, null, "Error optimizing code: " + e.getMessage());
+        } catch (Error e) {
+            // Such as a StackOverflowError: the job must still end, or its waiters never return
+            logger.error("Job {} failed", job.id, e);
+            job.finish(State.FAILED, null, "Error optimizing code: " + e);
+            throw e;
+        }
+    }
+
+    private void purgeExpired() {
+        long cutoff = System.nanoTime() - TimeUnit.SECONDS.toNanos(config.getRetentionSeconds());
+        jobs.values().removeIf(job -> job.state.isFinished() && job.finishedNanos - cutoff < 0);
+    }
+
+    private static final class Job {
+        private final String id;
+        private final Instant submittedAt = Instant.now();
+        private final long submittedNanos = System.nanoTime();
+        private final CompletableFuture<JobStatus> done = new CompletableFuture<>();
+        private volatile Future<?> future;
+        private volatile State state = State.QUEUED;
+        private volatile String stage;
+        private volatile long stageStartedNanos;
+        private volatile int stagesStarted;
+        private long startedNanos;
+        private long finishedNanos;
+        private CodeOptimizerService.OptimizationResult result;
+        private String error;
+
+        private Job(String id) {
+            this.id = id;
+        }
+
+        private synchronized boolean start() {
+            if (state != State.QUEUED) {
+                return false;
+            }
+            startedNanos = System.nanoTime();
+            state = State.RUNNING;
+            return true;
+        }
+
+        // Only written by the worker thread; readers just need to see a consistent pair
+        private void stageStarted(String name) {
+            stageStartedNanos = System.nanoTime();
+            stage = name;
+            stagesStarted++;
+        }
+
+        private boolean finish(State outcome, CodeOptimizerService.OptimizationResult result, String error) {
+            synchronized (this) {
+                if (state.isFinished()) {
+                    return false;
+                }
+                this.result = result;
+                this.error = error;
+                finishedNanos = System.nanoTime();
+                state = outcome;
+            }
+            done.complete(status());
+            return true;
+        }
+
+        private synchronized JobStatus status() {
+            long now = state.isFinished() ? finishedNanos : System.nanoTime();
+            double queuedMs = ((startedNanos != 0 ? startedNanos : now) - submittedNanos) / 1_000_000.0;
+            double runningMs = startedNanos != 0 ? (now - startedNanos) / 1_000_000.0 : 0;
+            boolean running = state == State.RUNNING;
+            return new JobStatus(id, state, submittedAt, queuedMs, runningMs,
+                    running ? stage : null, running && stage != null ? (now - stageStartedNanos) / 1_000_000.0 : 0,
+                    stagesStarted, result, error);
+        }
+    }
+
+    /** Snapshot of a job as returned by the job API. */
+    public static class JobStatus {
+        private final String id;
+        private final State state;
+        private final Instant submittedAt;
+        private final double queuedMs;
+        private final double runningMs;
+        private final String currentStage;
+        private final double stageElapsedMs;
+        private final int stagesStarted;
+        private final CodeOptimizerService.OptimizationResult result;
+        private final String error;
+
+        public JobStatus(String id, State state, Instant submittedAt, double queuedMs, double runningMs,
+                         String currentStage, double stageElapsedMs, int stagesStarted,
+                         CodeOptimizerService.OptimizationResult result, String error) {
+            this.id = id;
+            this.state = state;
+            this.submittedAt = submittedAt;
+            this.queuedMs = queuedMs;
+            this.runningMs = runningMs;
+            this.currentStage = currentStage;
+            this.stageElapsedMs = stageElapsedMs;
+            this.stagesStarted = stagesStarted;
+            this.result = result;
+            this.error = error;
+        }
+
+        public String getId() { return id; }
+        public State getState() { return state; }
+        public Instant getSubmittedAt() { return submittedAt; }
+        public double getQueuedMs() { return queuedMs; }
+        public double getRunningMs() { return runningMs; }
+        public String getCurrentStage() { return currentStage; }
+        public double getStageElapsedMs() { return stageElapsedMs; }
+        public int getStagesStarted() { return stagesStarted; }
+        public CodeOptimizerService.OptimizationResult getResult() { return result; }
+        public String getError() { return error; }
+    }
+}
@@ -0,0 +1,14 @@
+package com.example.cppoptimizer.service;
+
+/**
+ * Told about each stage of a pipeline run as it starts: a pass name, or
+ * {@code analyzeMemory}. Every call is also a cancellation point, so a listener may throw,
+ * typically a {@link java.util.concurrent.CancellationException}, to stop the run
+ * between passes.
+ */
+@FunctionalInterface
+public interface OptimizationProgress {
+    OptimizationProgress NONE = stage -> { };
+
+    void stageStarted(String stage);
+}
@@ -0,0 +1,91 @@
+package com.example.cppoptimizer.service;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import com.example.cppoptimizer.service.CodeTransformer.CodeTransformer;
+
+/**
+ * Micrometer meters for the pipeline. Pass meters are tagged with
+ * {@link CodeTransformer#getName()}, the same names the UI shows in its timing table,
+ * and are created once up front so recording a pass is an array lookup.
+ */
+class OptimizerMetrics {
+    enum PassOutcome {
+        CHANGED, UNCHANGED, SKIPPED, TIMEOUT;
+
+        private final String tag = name().toLowerCase();
+    }
+
+    private final Timer[] passTimers;
+    private final Counter[][] passOutcomes;
+    private final Timer computedTimer;
+    private final Timer cachedTimer;
+    private final DistributionSummary inputSize;
+
+    OptimizerMetrics(MeterRegistry registry, List<CodeTransformer> passes) {
+        passTimers = new Timer[passes.size()];
+        passOutcomes = new Counter[passes.size()][PassOutcome.values().length];
+        for (int p = 0; p < passes.size(); p++) {
+            String name = passes.get(p).getName();
+            passTimers[p] = Timer.builder("cppoptimizer.pass")
+                    .description("Time of one run of a transformation pass")
+                    .tag("pass", name)
+                    .publishPercentileHistogram()
+                    .register(registry);
+            for (PassOutcome outcome : PassOutcome.values()) {
+                passOutcomes[p][outcome.ordinal()] = Counter.builder("cppoptimizer.pass.outcomes")
+                        .description("Pass runs by whether they changed the code, were skipped by their trigger or ran out of time")
+                        .tag("pass", name)
+                        .tag("outcome", outcome.tag)
+                        .register(registry);
+            }
+        }
+        computedTimer = optimizeTimer(registry, "computed");
+        cachedTimer = optimizeTimer(registry, "cached");
+        inputSize = DistributionSummary.builder("cppoptimizer.input.size")
+                .description("Size of the code submitted for optimization")
+                .baseUnit("chars")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private static Timer optimizeTimer(MeterRegistry registry, String result) {
+        return Timer.builder("cppoptimizer.optimize")
+                .description("End-to-end time of an optimization request")
+                .tag("result", result)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    void bindCache(MeterRegistry registry, OptimizationCache cache) {
+        FunctionCounter.builder("cppoptimizer.cache.requests", cache, c -> c.getStats().getResultHits())
+                .description("Result cache lookups").tag("result", "hit").register(registry);
+        FunctionCounter.builder("cppoptimizer.cache.requests", cache, c -> c.getStats().getResultMisses())
+                .description("Result cache lookups").tag("result", "miss").register(registry);
+        FunctionCounter.builder("cppoptimizer.cache.evictions", cache, c -> c.getStats().getEvictions())
+                .description("Entries evicted from the in-memory cache").register(registry);
+        Gauge.builder("cppoptimizer.cache.size", cache, c -> c.getStats().getBytes())
+                .description("Estimated bytes held by the in-memory cache").baseUnit("bytes").register(registry);
+    }
+
+    void recordPass(int pass, long nanos, PassOutcome outcome) {
+        passTimers[pass].record(nanos, TimeUnit.NANOSECONDS);
+        passOutcomes[pass][outcome.ordinal()].increment();
+    }
+
+    void recordInput(int chars) {
+        inputSize.record(chars);
+    }
+
+    void recordOptimize(long nanos, boolean cached) {
+        (cached ? cachedTimer : computedTimer).record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.cppoptimizer.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.example.cppoptimizer.service.CodeTransformer.CodeTransformer;
+
+/**
+ * Decides which passes run, and how often. The first sweep runs every selected pass in
+ * pipeline order; a pass that changed the code marks the passes it {@link
+ * CodeTransformer#enables() enables} as pending, and later sweeps run only pending
+ * passes until none are left (a fixed point) or {@code maxIterations} sweeps have run.
+ * Passes are identified by their position in the pipeline and tracked as bit masks.
+ */
+class PassManager {
+    private final List<CodeTransformer> passes;
+    private final Map<String, Integer> indexByName = new HashMap<>();
+    private final long[] enables;
+    private final int maxIterations;
+
+    PassManager(List<CodeTransformer> passes, int maxIterations) {
+        if (passes.size() > Long.SIZE) {
+            throw new IllegalArgumentException("At most " + Long.SIZE + " passes are supported");
+        }
+        this.passes = passes;
+        this.maxIterations = Math.max(1, maxIterations);
+        for (int p = 0; p < passes.size(); p++) {
+            indexByName.put(passes.get(p).getName(), p);
+        }
+        this.enables = new long[passes.size()];
+        for (int p = 0; p < passes.size(); p++) {
+            for (String name : passes.get(p).enables()) {
+                Integer target = indexByName.get(name);
+                if (target == null) {
+                    throw new IllegalStateException(passes.get(p).getName() + " enables unknown pass " + name);
+                }
+                enables[p] |= 1L << target;
+            }
+        }
+    }
+
+    List<CodeTransformer> getPasses() { return passes; }
+    int getMaxIterations() { return maxIterations; }
+
+    long allPasses() {
+        return passes.size() == Long.SIZE ? -1L : (1L << passes.size()) - 1;
+    }
+
+    /** Mask of the named passes; null or empty selects the whole pipeline. */
+    long select(Collection<String> names) {
+        if (names == null || names.isEmpty()) {
+            return allPasses();
+        }
+        long mask = 0;
+        for (String name : names) {
+            Integer p = indexByName.get(name.trim());
+            if (p == null) {
+                throw new IllegalArgumentException("Unknown pass '" + name + "'. Available passes: " + indexByName.keySet());
+            }
+            mask |= 1L << p;
+        }
+        return mask;
+    }
+
+    /**
+     * Passes of {@code mask} in pipeline order with their settings ({@link CodeTransformer#describe()}),
+     * plus the iteration cap, for cache keys.
+     */
+    List<String> describe(long mask) {
+        List<String> names = new ArrayList<>();
+        for (int p = 0; p < passes.size(); p++) {
+            if ((mask & (1L << p)) != 0) {
+                names.add(passes.get(p).describe());
+            }
+        }
+        names.add("maxIterations=" + maxIterations);
+        return names;
+    }
+
+    Run start(long selected) {
+        return new Run(selected);
+    }
+
+    /** Scheduling state of one optimization request. */
+    class Run {
+        private final long selected;
+        private long pending;
+        private int sweeps = 1;
+
+        private Run(long selected) {
+            this.selected = selected;
+            this.pending = selected;
+        }
+
+        long getSelected() { return selected; }
+        long getPending() { return pending; }
+        int getSweeps() { return sweeps; }
+
+        boolean isPending(int p) {
+            return (pending & (1L << p)) != 0;
+        }
+
+        /** Records that pass {@code p} ran (or was skipped by its trigger) in the current sweep. */
+        void completed(int p, boolean changed) {
+            pending &= ~(1L << p);
+            if (changed) {
+                pending |= enables[p] & selected;
+            }
+        }
+
+        /** Starts another sweep if some pass still has work and the cap allows it. */
+        boolean nextSweep() {
+            if (pending == 0 || sweeps >= maxIterations) {
+                return false;
+            }
+            sweeps++;
+            return true;
+        }
+    }
+}
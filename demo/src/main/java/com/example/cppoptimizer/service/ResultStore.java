@@ -0,0 +1,289 @@
+package com.example.cppoptimizer.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
+
+/**
+ * Keeps optimized outputs on the server under a random id, so they can be downloaded
+ * by id instead of being sent back by the client. Small outputs stay in memory; large
+ * ones, and any once the memory budget is used up, are written to a spill directory
+ * from which downloads are served without copying through the JVM. A gzip copy of each
+ * file is made on its first compressed download and kept with it. Results expire a fixed
+ * time after they were stored, and are removed by the next request that stores or looks
+ * up a result.
+ */
+@Service
+public class ResultStore {
+    private static final Logger logger = LoggerFactory.getLogger(ResultStore.class);
+    private static final String DEFAULT_NAME = "optimized.cpp";
+
+    private final OptimizerProperties.Results config;
+    private final Map<String, StoredResult> results = new ConcurrentHashMap<>();
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private Path spillDir;
+
+    @Autowired
+    public ResultStore(OptimizerProperties properties) {
+        this.config = properties.getResults();
+    }
+
+    /** Stores a single file and returns the id it can be downloaded under. */
+    public String put(String name, String code) {
+        String id = reserve(1);
+        set(id, 0, name, code);
+        return id;
+    }
+
+    /** Creates a result with {@code fileCount} empty slots, filled in with {@link #set} as files finish. */
+    public String reserve(int fileCount) {
+        purgeExpired();
+        String id = UUID.randomUUID().toString();
+        long expires = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getTtlSeconds());
+        results.put(id, new StoredResult(fileCount, expires));
+        return id;
+    }
+
+    public void set(String id, int index, String name, String code) {
+        StoredResult result = results.get(id);
+        if (result == null) {
+            return;
+        }
+        StoredFile file = new StoredFile(name != null && !name.isBlank() ? name : DEFAULT_NAME,
+                store(id + "-" + index, code.getBytes(StandardCharsets.UTF_8)));
+        result.files.set(index, file);
+        // Expired while the file was being written: nobody will purge it again
+        if (results.get(id) != result) {
+            release(file);
+        }
+    }
+
+    /** The result stored under {@code id}, or null if there is none or it has expired. */
+    public StoredResult get(String id) {
+        purgeExpired();
+        StoredResult result = results.get(id);
+        if (result == null || result.isExpired(System.nanoTime())) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * The gzip-compressed content of {@code file}, compressed on the first call and kept
+     * for later downloads. Returns null if it cannot be compressed or has expired since it
+     * was looked up.
+     */
+    public Body gzipped(StoredFile file) {
+        // Releasing takes the same lock, so a released file is never compressed again
+        synchronized (file) {
+            if (file.released) {
+                return null;
+            }
+            if (file.gzip == null) {
+                try {
+                    file.gzip = compress(file.plain);
+                } catch (IOException e) {
+                    logger.warn("Could not compress {}: {}", file.plain.path, e.getMessage());
+                    return null;
+                }
+            }
+            return file.gzip;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        results.values().forEach(this::release);
+        results.clear();
+    }
+
+    private Body compress(Body plain) throws IOException {
+        if (!plain.isFile()) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) Math.min(plain.length / 4 + 64, Integer.MAX_VALUE));
+            try (OutputStream gzip = new GZIPOutputStream(buffer, 64 * 1024)) {
+                gzip.write(plain.bytes);
+            }
+            return store(null, buffer.toByteArray());
+        }
+        Path target = plain.path.resolveSibling(plain.path.getFileName() + ".gz");
+        try (InputStream in = Files.newInputStream(plain.path);
+             OutputStream gzip = new GZIPOutputStream(Files.newOutputStream(target), 64 * 1024)) {
+            in.transferTo(gzip);
+        }
+        return new Body(null, target, Files.size(target));
+    }
+
+    // In memory while it fits the budget, otherwise in the spill directory; a failed
+    // write falls back to memory rather than losing the result
+    private Body store(String key, byte[] bytes) {
+        if (bytes.length < config.getSpillBytes() && reserveMemory(bytes.length)) {
+            return new Body(bytes, null, bytes.length);
+        }
+        try {
+            Path file = Files.createTempFile(spillDir(), key != null ? key + "-" : "result-", ".out");
+            Files.write(file, bytes);
+            return new Body(null, file, bytes.length);
+        } catch (IOException e) {
+            logger.warn("Could not spill a {} byte result to disk: {}", bytes.length, e.getMessage());
+            memoryBytes.addAndGet(bytes.length);
+            return new Body(bytes, null, bytes.length);
+        }
+    }
+
+    private boolean reserveMemory(long bytes) {
+        long current;
+        do {
+            current = memoryBytes.get();
+            if (current + bytes > config.getMaxMemoryBytes()) {
+                return false;
+            }
+        } while (!memoryBytes.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    private synchronized Path spillDir() throws IOException {
+        if (spillDir == null) {
+            spillDir = config.getSpillDir().isBlank()
+                    ? Files.createTempDirectory("cppoptimizer-results")
+                    : Files.createDirectories(Path.of(config.getSpillDir()));
+        }
+        return spillDir;
+    }
+
+    // Removed before released: a set that still finds its result afterwards stored its file
+    // in time for the release to see it
+    private void purgeExpired() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, StoredResult> entry : results.entrySet()) {
+            if (entry.getValue().isExpired(now) && results.remove(entry.getKey(), entry.getValue())) {
+                release(entry.getValue());
+            }
+        }
+    }
+
+    private void release(StoredResult result) {
+        for (StoredFile file : result.getFiles()) {
+            release(file);
+        }
+    }
+
+    // Purges and a set that raced one may both release a file; only the first one frees it
+    private void release(StoredFile file) {
+        synchronized (file) {
+            if (file.released) {
+                return;
+            }
+            file.released = true;
+            release(file.plain);
+            if (file.gzip != null) {
+                release(file.gzip);
+            }
+        }
+    }
+
+    private void release(Body body) {
+        if (!body.isFile()) {
+            memoryBytes.addAndGet(-body.length);
+            return;
+        }
+        try {
+            Files.deleteIfExists(body.path);
+        } catch (IOException e) {
+            logger.debug("Could not delete {}: {}", body.path, e.getMessage());
+        }
+    }
+
+    /** The files of one optimization request; slots of files that failed stay empty. */
+    public static final class StoredResult {
+        private final AtomicReferenceArray<StoredFile> files;
+        private final long expiresNanos;
+
+        private StoredResult(int fileCount, long expiresNanos) {
+            this.files = new AtomicReferenceArray<>(fileCount);
+            this.expiresNanos = expiresNanos;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expiresNanos > 0;
+        }
+
+        public int size() {
+            return files.length();
+        }
+
+        /** The file in slot {@code index}, or null if it is out of range or still empty. */
+        public StoredFile getFile(int index) {
+            return index >= 0 && index < files.length() ? files.get(index) : null;
+        }
+
+        public List<StoredFile> getFiles() {
+            List<StoredFile> stored = new ArrayList<>();
+            for (int i = 0; i < files.length(); i++) {
+                if (files.get(i) != null) {
+                    stored.add(files.get(i));
+                }
+            }
+            return stored;
+        }
+    }
+
+    public static final class StoredFile {
+        private final String name;
+        private final Body plain;
+        private Body gzip;
+        private boolean released;
+
+        private StoredFile(String name, Body plain) {
+            this.name = name;
+            this.plain = plain;
+        }
+
+        public String getName() { return name; }
+        public Body getContent() { return plain; }
+    }
+
+    /** Stored bytes, either held in memory or in a file of the spill directory. */
+    public static final class Body {
+        private final byte[] bytes;
+        private final Path path;
+        private final long length;
+
+        private Body(byte[] bytes, Path path, long length) {
+            this.bytes = bytes;
+            this.path = path;
+            this.length = length;
+        }
+
+        public boolean isFile() { return path != null; }
+        public Path getPath() { return path; }
+        public byte[] getBytes() { return bytes; }
+        public long getLength() { return length; }
+
+        public InputStream open() throws IOException {
+            return isFile() ? Files.newInputStream(path) : new ByteArrayInputStream(bytes);
+        }
+    }
+}
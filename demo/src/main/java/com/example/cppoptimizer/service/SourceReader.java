@@ -0,0 +1,114 @@
+package com.example.cppoptimizer.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes UTF-8 source text from a stream in fixed-size chunks, normalizing CRLF and CR
+ * line endings to LF on the fly. The only buffer that grows with the input is the
+ * builder holding the result, so reading a file costs about twice its size in heap
+ * (builder plus final string) instead of a byte array, a decoded copy and one copy per
+ * {@code replaceAll}.
+ */
+public final class SourceReader {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private SourceReader() {
+    }
+
+    /**
+     * Reads {@code in} to the end. {@code sizeHint} (the byte length, or 0 if unknown)
+     * presizes the result; more than {@code maxBytes} bytes fails with an
+     * {@link IllegalArgumentException}.
+     */
+    public static String read(InputStream in, long sizeHint, long maxBytes) throws IOException {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // UTF-8 never decodes to more chars than bytes
+        StringBuilder out = new StringBuilder((int) Math.min(Math.max(sizeHint, 16), Integer.MAX_VALUE - 16));
+        byte[] chunk = new byte[CHUNK_SIZE];
+        ByteBuffer bytes = ByteBuffer.wrap(chunk);
+        CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+        boolean pendingCr = false;
+        long total = 0;
+
+        while (true) {
+            int read = in.read(chunk, bytes.position(), chunk.length - bytes.position());
+            boolean endOfInput = read < 0;
+            if (!endOfInput) {
+                total += read;
+                if (total > maxBytes) {
+                    throw new IllegalArgumentException("Source exceeds the limit of " + maxBytes + " bytes");
+                }
+                bytes.position(bytes.position() + read);
+            }
+            bytes.flip();
+            decoder.decode(bytes, chars, endOfInput);
+            if (endOfInput) {
+                decoder.flush(chars);
+            }
+            chars.flip();
+            pendingCr = appendNormalized(chars, out, pendingCr);
+            chars.clear();
+            // Keep a multi-byte sequence split across reads for the next decode
+            bytes.compact();
+            if (endOfInput) {
+                break;
+            }
+        }
+        return out.toString();
+    }
+
+    /** The number of bytes {@code text} takes in UTF-8, without encoding it. */
+    public static long utf8Length(CharSequence text) {
+        long bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Encoded as '?', as String.getBytes does
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    // Every CR becomes LF; an LF right after a CR is dropped, even across chunk boundaries
+    private static boolean appendNormalized(CharBuffer chars, StringBuilder out, boolean pendingCr) {
+        char[] array = chars.array();
+        int limit = chars.limit();
+        int runStart = 0;
+        for (int i = 0; i < limit; i++) {
+            char c = array[i];
+            if (pendingCr) {
+                pendingCr = false;
+                if (c == '\n') {
+                    runStart = i + 1;
+                    continue;
+                }
+            }
+            if (c == '\r') {
+                out.append(array, runStart, i - runStart);
+                out.append('\n');
+                pendingCr = true;
+                runStart = i + 1;
+            }
+        }
+        out.append(array, runStart, limit - runStart);
+        return pendingCr;
+    }
+}
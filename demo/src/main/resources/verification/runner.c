@@ -0,0 +1,160 @@
+/*
+ * Runs one program for ExecutionVerifier and reports how it went. The program gets
+ * its own process group, no core dumps, and limits on CPU time, address space, the
+ * processes it may start and the size of files it writes, including its redirected
+ * output; it is killed when the wall time limit passes.
+ *
+ * Where the system allows it, the runner first moves into new user, PID and network
+ * namespaces. The program then runs under a small init process, and everything it
+ * starts dies with that init, even processes that left its process group with setsid;
+ * the process limit counts this run's processes only, and there is no network but
+ * loopback. Elsewhere the process limit counts every process of the user, and only
+ * the program's process group is killed. Either way this is not a sandbox: the program
+ * runs as the server's user and can read and write whatever the server can.
+ *
+ * usage: runner REPORT TIME_LIMIT_MS MEMORY_LIMIT_BYTES OUTPUT_LIMIT_BYTES PROCESS_LIMIT PROGRAM
+ *
+ * REPORT receives one line: wall microseconds, peak RSS in KiB, exit code (-1 when
+ * the program was killed by a signal), signal number (0 if none), 1 if the wall time
+ * limit ran out, 0 otherwise, and 1 if the program ran in its own namespaces, 0 otherwise.
+ */
+#define _GNU_SOURCE
+#include <errno.h>
+#include <sched.h>
+#include <signal.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <sys/resource.h>
+#include <sys/time.h>
+#include <sys/wait.h>
+#include <time.h>
+#include <unistd.h>
+
+static volatile sig_atomic_t expired;
+static pid_t child;
+
+static void expire(int signal) {
+    (void) signal;
+    expired = 1;
+    kill(-child, SIGKILL);
+    kill(child, SIGKILL);
+}
+
+static void limit(int resource, rlim_t value) {
+    struct rlimit bound;
+    bound.rlim_cur = value;
+    bound.rlim_max = value;
+    setrlimit(resource, &bound);
+}
+
+static void run(char **argv, long time_limit_ms, rlim_t memory_limit, rlim_t output_limit, rlim_t process_limit) {
+    limit(RLIMIT_CORE, 0);
+    limit(RLIMIT_CPU, (rlim_t) (time_limit_ms / 1000 + 1));
+    limit(RLIMIT_FSIZE, output_limit);
+    limit(RLIMIT_NPROC, process_limit);
+    if (memory_limit > 0) {
+        limit(RLIMIT_AS, memory_limit);
+    }
+    execl(argv[6], argv[6], (char *) NULL);
+    _exit(127);
+}
+
+/*
+ * PID 1 of the new namespace: starts the program, reaps whatever ends up here and
+ * passes the program's wait status on through relay. Its exit takes the rest of the
+ * namespace down with it. The program is not PID 1 itself, which would ignore signals
+ * it sends itself, such as the one abort raises.
+ */
+static void init(int relay, char **argv, long time_limit_ms, rlim_t memory_limit, rlim_t output_limit,
+                 rlim_t process_limit) {
+    pid_t program = fork();
+    if (program < 0) {
+        _exit(125);
+    }
+    if (program == 0) {
+        close(relay);
+        run(argv, time_limit_ms, memory_limit, output_limit, process_limit);
+    }
+    int status;
+    pid_t done;
+    while ((done = wait(&status)) != program) {
+        if (done < 0 && errno != EINTR) {
+            _exit(125);
+        }
+    }
+    _exit(write(relay, &status, sizeof status) == (ssize_t) sizeof status ? 0 : 125);
+}
+
+int main(int argc, char **argv) {
+    if (argc != 7) {
+        return 125;
+    }
+    long time_limit_ms = atol(argv[2]);
+    rlim_t memory_limit = (rlim_t) strtoull(argv[3], NULL, 10);
+    rlim_t output_limit = (rlim_t) strtoull(argv[4], NULL, 10);
+    rlim_t process_limit = (rlim_t) strtoull(argv[5], NULL, 10);
+    FILE *report = fopen(argv[1], "w");
+    if (report == NULL) {
+        return 125;
+    }
+    int relay[2];
+    if (pipe(relay) != 0) {
+        return 125;
+    }
+#ifdef __linux__
+    int contained = unshare(CLONE_NEWUSER | CLONE_NEWPID | CLONE_NEWNET) == 0;
+#else
+    int contained = 0;
+#endif
+
+    struct timespec start, end;
+    clock_gettime(CLOCK_MONOTONIC, &start);
+    child = fork();
+    if (child < 0) {
+        return 125;
+    }
+    if (child == 0) {
+        setpgid(0, 0);
+        close(relay[0]);
+        if (contained) {
+            init(relay[1], argv, time_limit_ms, memory_limit, output_limit, process_limit);
+        }
+        close(relay[1]);
+        run(argv, time_limit_ms, memory_limit, output_limit, process_limit);
+    }
+    setpgid(child, child);
+    close(relay[1]);
+
+    struct sigaction action;
+    action.sa_handler = expire;
+    sigemptyset(&action.sa_mask);
+    action.sa_flags = 0;
+    sigaction(SIGALRM, &action, NULL);
+    struct itimerval timer = {{0, 0}, {time_limit_ms / 1000, (time_limit_ms % 1000) * 1000}};
+    setitimer(ITIMER_REAL, &timer, NULL);
+
+    // The usage of the init process includes the program and everything else it reaped
+    int status;
+    struct rusage usage;
+    while (wait4(child, &status, 0, &usage) < 0) {
+        if (errno != EINTR) {
+            return 125;
+        }
+    }
+    clock_gettime(CLOCK_MONOTONIC, &end);
+    if (contained && WIFEXITED(status)) {
+        int program;
+        if (WEXITSTATUS(status) != 0 || read(relay[0], &program, sizeof program) != (ssize_t) sizeof program) {
+            return 125;
+        }
+        status = program;
+    }
+    long long wall_us = (end.tv_sec - start.tv_sec) * 1000000LL + (end.tv_nsec - start.tv_nsec) / 1000;
+    long rss_kib = usage.ru_maxrss;
+#ifdef __APPLE__
+    rss_kib /= 1024;
+#endif
+    fprintf(report, "%lld %ld %d %d %d %d\n", wall_us, rss_kib, WIFEXITED(status) ? WEXITSTATUS(status) : -1,
+            WIFSIGNALED(status) ? WTERMSIG(status) : 0, (int) expired, contained);
+    return fclose(report) == 0 ? 0 : 125;
+}
@@ -0,0 +1,111 @@
+package com.example.cppoptimizer.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockMultipartHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
+import com.example.cppoptimizer.service.BatchOptimizerService;
+import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.ResultStore;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class BatchOptimizerControllerTest {
+	@TempDir
+	Path spillDir;
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Test
+	void streamsOneJsonLinePerFile() throws Exception {
+		String body = post(new OptimizerProperties(), source("a.c", "int main() { return 2 + 3; }"), source("b.c", "int bad;"))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType("application/x-ndjson"))
+				.andReturn().getResponse().getContentAsString(StandardCharsets.UTF_8);
+
+		// Every line is a complete JSON object, the last one ended like the others
+		assertEquals('\n', body.charAt(body.length() - 1));
+		List<JsonNode> lines = new ArrayList<>();
+		for (String line : body.split("\n")) {
+			lines.add(objectMapper.readTree(line));
+		}
+		lines.sort(Comparator.comparingInt(line -> line.get("index").asInt()));
+		assertEquals(2, lines.size());
+		assertEquals("int main() { return 5; }", lines.get(0).at("/result/optimizedCode").asText());
+		assertEquals("b.c", lines.get(1).get("file").asText());
+		assertEquals("Error optimizing code: cannot optimize", lines.get(1).get("error").asText());
+		assertEquals(lines.get(0).get("resultId"), lines.get(1).get("resultId"));
+	}
+
+	@Test
+	void rejectsBatchesOverTheLimits() throws Exception {
+		OptimizerProperties properties = new OptimizerProperties();
+		properties.getBatch().setMaxTotalBytes(40);
+		// 14 chars and 24 bytes each
+		String code = "// éééééééééé\n";
+
+		post(properties, source("a.c", code), source("b.c", code))
+				.andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.error").value("Error reading the batch: Batch exceeds the limit of 40 bytes"));
+
+		properties.getBatch().setMaxFileBytes(16);
+		post(properties, source("big.c", "int big_enough_to_fail;"))
+				.andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.error").value("Error reading the batch: big.c exceeds the per-file limit of 16 bytes"));
+	}
+
+	// Bodies, errors included, are streamed, so the response comes from the async dispatch
+	private ResultActions post(OptimizerProperties properties, MockMultipartFile... files) throws Exception {
+		MockMvc mvc = mvc(properties);
+		MockMultipartHttpServletRequestBuilder upload = multipart("/optimizeBatch");
+		for (MockMultipartFile file : files) {
+			upload.file(file);
+		}
+		MvcResult started = mvc.perform(upload).andExpect(request().asyncStarted()).andReturn();
+		return mvc.perform(asyncDispatch(started));
+	}
+
+	private MockMvc mvc(OptimizerProperties properties) {
+		// Fails every file that mentions "bad"
+		CodeOptimizerService optimizer = new CodeOptimizerService() {
+			@Override
+			public OptimizationResult optimize(String code) {
+				if (code.contains("bad")) {
+					throw new IllegalStateException("cannot optimize");
+				}
+				return super.optimize(code);
+			}
+		};
+		properties.getResults().setSpillDir(spillDir.toString());
+		BatchOptimizerController controller = new BatchOptimizerController();
+		ReflectionTestUtils.setField(controller, "batchOptimizerService",
+				new BatchOptimizerService(optimizer, new ResultStore(properties), properties));
+		ReflectionTestUtils.setField(controller, "objectMapper", objectMapper);
+		return MockMvcBuilders.standaloneSetup(controller).build();
+	}
+
+	private static MockMultipartFile source(String name, String code) {
+		return new MockMultipartFile("files", name, "text/plain", code.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,115 @@
+package com.example.cppoptimizer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
+
+class BatchOptimizerServiceTest {
+	@TempDir
+	Path spillDir;
+
+	@Test
+	void readsOnlySourcesFromArchives() throws IOException {
+		BatchOptimizerService batch = service(new OptimizerProperties(), new CodeOptimizerService());
+
+		List<BatchOptimizerService.SourceFile> files = batch.readArchive(zip(
+				"src/a.c", "int a;", "README.md", "# notes", "src/", "", "include/b.hpp", "int b;"));
+
+		assertEquals(2, files.size());
+		assertEquals("src/a.c", files.get(0).getName());
+		assertEquals("int b;", files.get(1).getCode());
+	}
+
+	@Test
+	void limitsTheEntriesOfArchives() {
+		OptimizerProperties properties = new OptimizerProperties();
+		properties.getBatch().setMaxFiles(2);
+		BatchOptimizerService batch = service(properties, new CodeOptimizerService());
+
+		IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+				() -> batch.readArchive(zip("a.c", "int a;", "b.c", "int b;", "c.c", "int c;")));
+		assertEquals("Batch exceeds the limit of 2 files", e.getMessage());
+	}
+
+	@Test
+	void limitsFilesByTheBytesReadNotTheirHeaders() {
+		OptimizerProperties properties = new OptimizerProperties();
+		properties.getBatch().setMaxFileBytes(16);
+		BatchOptimizerService batch = service(properties, new CodeOptimizerService());
+
+		// Deflated entries leave their size to the data after them, so the reader has to count
+		IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+				() -> batch.readArchive(zip("big.c", "int big_enough_to_fail;")));
+		assertEquals("big.c exceeds the per-file limit of 16 bytes", e.getMessage());
+	}
+
+	@Test
+	void limitsTheTotalInUtf8Bytes() {
+		OptimizerProperties properties = new OptimizerProperties();
+		properties.getBatch().setMaxTotalBytes(40);
+		BatchOptimizerService batch = service(properties, new CodeOptimizerService());
+		// 14 chars and 24 bytes each
+		String code = "// éééééééééé\n";
+
+		assertThrows(IllegalArgumentException.class, () -> batch.readArchive(zip("a.c", code, "b.c", code)));
+		assertEquals(24, new BatchOptimizerService.SourceFile("a.c", code).getBytes());
+	}
+
+	@Test
+	void reportsFilesThatFailAndKeepsTheRest() throws InterruptedException {
+		CodeOptimizerService failing = new CodeOptimizerService() {
+			@Override
+			public OptimizationResult optimize(String code) {
+				if (code.contains("bad")) {
+					throw new IllegalStateException("cannot optimize");
+				}
+				return super.optimize(code);
+			}
+		};
+		BatchOptimizerService batch = service(new OptimizerProperties(), failing);
+		List<BatchOptimizerService.FileResult> results = new ArrayList<>();
+
+		batch.optimizeAll(List.of(new BatchOptimizerService.SourceFile("good.c", "int main() { return 2 + 3; }"),
+				new BatchOptimizerService.SourceFile("bad.c", "int bad;")), results::add);
+
+		results.sort(Comparator.comparingInt(BatchOptimizerService.FileResult::getIndex));
+		assertEquals("int main() { return 5; }", results.get(0).getResult().getOptimizedCode());
+		assertNull(results.get(0).getError());
+		assertNull(results.get(1).getResult());
+		assertEquals("Error optimizing code: cannot optimize", results.get(1).getError());
+	}
+
+	private BatchOptimizerService service(OptimizerProperties properties, CodeOptimizerService optimizer) {
+		properties.getResults().setSpillDir(spillDir.toString());
+		return new BatchOptimizerService(optimizer, new ResultStore(properties), properties);
+	}
+
+	// Name and content pairs; a name ending in '/' is a directory
+	private static ByteArrayInputStream zip(String... entries) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+			for (int i = 0; i < entries.length; i += 2) {
+				zip.putNextEntry(new ZipEntry(entries[i]));
+				zip.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+				zip.closeEntry();
+			}
+		}
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+}
@@ -0,0 +1,76 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.service.Lexer.CppLexer;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+
+class CallSiteIndexTest {
+
+	@Test
+	void findsEveryCallOfOverloadsUnderOneName() {
+		TokenStream tokens = CppLexer.lex("int f(int x) { return x; }\n"
+				+ "double f(double x) { return x; }\n"
+				+ "int main() { return f(1) + (int) f(2.0) + g(3); }\n");
+		CallSiteIndex index = CallSiteIndex.build(tokens, List.of("f", "g"));
+
+		int f = index.idOf(tokens, tokens.indexOf("f", 0, tokens.size()));
+		assertEquals("f", index.name(f));
+		// Both definitions and both calls, in source order
+		int[] sites = index.callSites(f);
+		assertEquals(4, sites.length);
+		for (int k = 1; k < sites.length; k++) {
+			assertTrue(sites[k - 1] < sites[k]);
+		}
+		assertEquals(4, index.referenceCount(f));
+		assertEquals(5, index.callSites().length);
+	}
+
+	@Test
+	void countsFunctionPointersAsReferencesButNotCalls() {
+		TokenStream tokens = CppLexer.lex("int f(int x) { return x; }\n"
+				+ "int main() {\n"
+				+ "    int (*p)(int) = f;\n"
+				+ "    int (*q)(int) = &f;\n"
+				+ "    return p(1) + q(2);\n"
+				+ "}\n");
+		CallSiteIndex index = CallSiteIndex.build(tokens, List.of("f"));
+
+		assertArrayEquals(new int[] {tokens.indexOf("f", 0, tokens.size())}, index.callSites(0));
+		assertEquals(3, index.referenceCount(0));
+	}
+
+	@Test
+	void ignoresNamesInDirectivesStringsAndComments() {
+		TokenStream tokens = CppLexer.lex("#define CALL(x) f(x)\n"
+				+ "int f(int x) { return x; }\n"
+				+ "int main() {\n"
+				+ "    puts(\"f(1)\"); // f(2)\n"
+				+ "    return CALL(3);\n"
+				+ "}\n");
+		CallSiteIndex index = CallSiteIndex.build(tokens, List.of("f", "CALL"));
+
+		assertEquals(1, index.callSites(0).length);
+		assertEquals(1, index.referenceCount(0));
+		// The macro is found where it is used, not where it is defined
+		assertEquals(1, index.referenceCount(1));
+	}
+
+	@Test
+	void tellsApartNamesWithTheSameHash() {
+		// "Aa" and "BB" have the same String.hashCode
+		TokenStream tokens = CppLexer.lex("void Aa() {}\nvoid BB() {}\nint main() { Aa(); BB(); BB(); Ab(); }\n");
+		CallSiteIndex index = CallSiteIndex.build(tokens, List.of("Aa", "BB"));
+
+		assertEquals(2, index.callSites(0).length);
+		assertEquals(3, index.callSites(1).length);
+		assertEquals(-1, index.idOf(tokens, tokens.indexOf("Ab", 0, tokens.size())));
+		assertEquals(-1, index.idOf(tokens, tokens.indexOf("main", 0, tokens.size())));
+	}
+}
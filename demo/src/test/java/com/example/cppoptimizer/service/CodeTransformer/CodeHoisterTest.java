@@ -0,0 +1,49 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+
+class CodeHoisterTest {
+
+	@Test
+	void hoistsExpressionsOutOfTheOutermostLoopTheyAreInvariantIn() {
+		String code = "void f(double *out, int n, int m, double k, double w) {\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        for (int j = 0; j < m; j++) {\n"
+				+ "            out[i * m + j] = out[i * m + j] * (k * w + 1.0);\n"
+				+ "        }\n"
+				+ "    }\n"
+				+ "}\n";
+
+		assertEquals("void f(double *out, int n, int m, double k, double w) {\n"
+				+ "    const double hoisted_2 = k * w + 1.0;\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        const int hoisted_1 = i * m;\n"
+				+ "        for (int j = 0; j < m; j++) {\n"
+				+ "            out[hoisted_1 + j] = out[hoisted_1 + j] * hoisted_2;\n"
+				+ "        }\n"
+				+ "    }\n"
+				+ "}\n", new CodeHoister().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void leavesVariablesThatTheLoopOrAPointerCanChange() {
+		String code = "int f(int n, int a, int b, int c) {\n"
+				+ "    int s = 0;\n"
+				+ "    int *p = &b;\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        s += a * b + c * a;\n"
+				+ "        *p += 1;\n"
+				+ "        c++;\n"
+				+ "    }\n"
+				+ "    return s;\n"
+				+ "}\n";
+
+		String optimized = new CodeHoister().transform(code, CodeOptimizerService.Language.C);
+
+		assertEquals(code, optimized);
+	}
+}
@@ -0,0 +1,82 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+
+class CommonSubexpressionEliminatorTest {
+
+	@Test
+	void reusesValuesOnlyWhereTheirComputationDominates() {
+		String code = "int f(int a, int b, int c) {\n"
+				+ "    int p = a * b;\n"
+				+ "    int s = c + b * a;\n"
+				+ "    if (c > 0) {\n"
+				+ "        s += (a + c) * 2;\n"
+				+ "    }\n"
+				+ "    int t = s - (a + c) * 2;\n"
+				+ "    return t + (a + c) * 2 + p;\n"
+				+ "}\n";
+
+		assertEquals("int f(int a, int b, int c) {\n"
+				+ "    int p = a * b;\n"
+				+ "    int s = c + p;\n"
+				+ "    if (c > 0) {\n"
+				+ "        s += (a + c) * 2;\n"
+				+ "    }\n"
+				+ "    const int temp_1 = (a + c) * 2;\n"
+				+ "    int t = s - temp_1;\n"
+				+ "    return t + temp_1 + p;\n"
+				+ "}\n", new CommonSubexpressionEliminator().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void declaresNothingCaseLabelsCouldJumpPast() {
+		String code = "int f(int k, int a, int b) {\n"
+				+ "    int x = 0, y = 0;\n"
+				+ "    switch (k) {\n"
+				+ "    case 1:\n"
+				+ "        x = a * b + 1;\n"
+				+ "        y = a * b + 2;\n"
+				+ "        break;\n"
+				+ "    default: {\n"
+				+ "        x = a * b + 3;\n"
+				+ "        y = a * b + 4;\n"
+				+ "    }\n"
+				+ "    }\n"
+				+ "    return x + y;\n"
+				+ "}\n";
+
+		assertEquals("int f(int k, int a, int b) {\n"
+				+ "    int x = 0, y = 0;\n"
+				+ "    switch (k) {\n"
+				+ "    case 1:\n"
+				+ "        x = a * b + 1;\n"
+				+ "        y = a * b + 2;\n"
+				+ "        break;\n"
+				+ "    default: {\n"
+				+ "        const int temp_1 = a * b;\n"
+				+ "        x = temp_1 + 3;\n"
+				+ "        y = temp_1 + 4;\n"
+				+ "    }\n"
+				+ "    }\n"
+				+ "    return x + y;\n"
+				+ "}\n", new CommonSubexpressionEliminator().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void recomputesValuesAfterTheirOperandsOrMemoryChange() {
+		String code = "int g(int *v, int a, int b, int n) {\n"
+				+ "    int s = v[n] * (a + b);\n"
+				+ "    a++;\n"
+				+ "    v[0] = s;\n"
+				+ "    return s + v[n] * (a + b);\n"
+				+ "}\n";
+
+		String optimized = new CommonSubexpressionEliminator().transform(code, CodeOptimizerService.Language.C);
+
+		assertEquals(code, optimized);
+	}
+}
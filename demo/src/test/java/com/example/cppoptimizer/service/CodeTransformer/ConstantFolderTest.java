@@ -0,0 +1,46 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+
+class ConstantFolderTest {
+
+	@Test
+	void propagatesKnownValuesAndDropsDeadBranches() {
+		String code = "int f(int n) {\n"
+				+ "    int k = 3;\n"
+				+ "    unsigned u = 0u - 1u;\n"
+				+ "    if (k > 2) {\n"
+				+ "        n += k * 4;\n"
+				+ "    } else {\n"
+				+ "        n = 0;\n"
+				+ "    }\n"
+				+ "    return n + u / 2 + 7 / 2;\n"
+				+ "}\n";
+
+		assertEquals("int f(int n) {\n"
+				+ "    int k = 3;\n"
+				+ "    unsigned u = 4294967295u;\n"
+				+ "    n += 12;\n"
+				+ "    return n + 2147483647u + 3;\n"
+				+ "}\n", new ConstantFolder().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void leavesUndefinedAndAliasedArithmeticAlone() {
+		String code = "int g(int *out) {\n"
+				+ "    int big = 2147483647 + 1;\n"
+				+ "    int d = 1 / 0;\n"
+				+ "    int a = 5;\n"
+				+ "    int *p = &a;\n"
+				+ "    *p = 6;\n"
+				+ "    *out = a * 2;\n"
+				+ "    return big + d;\n"
+				+ "}\n";
+
+		assertEquals(code, new ConstantFolder().transform(code, CodeOptimizerService.Language.C));
+	}
+}
@@ -0,0 +1,51 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+
+class DeadCodeEliminatorTest {
+
+	@Test
+	void removesDeadStoresUnreachableCodeAndUnusedStatics() {
+		String code = "static int twice(int a) {\n    return a * 2;\n}\n\n"
+				+ "int f(int n) {\n"
+				+ "    int unused = n * 4;\n"
+				+ "    int x = 0;\n"
+				+ "    x = n + 1;\n"
+				+ "    if (0) {\n"
+				+ "        x = 7;\n"
+				+ "    }\n"
+				+ "    return x;\n"
+				+ "    n++;\n"
+				+ "}\n";
+
+		assertEquals("\nint f(int n) {\n"
+				+ "    int x;\n"
+				+ "    x = n + 1;\n"
+				+ "    return x;\n"
+				+ "}\n", new DeadCodeEliminator().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void keepsStoresThatALaterIterationOrAnEffectNeeds() {
+		String code = "int g(int n) {\n"
+				+ "    int logged = printf(\"%d\\n\", n);\n"
+				+ "    int last = 0;\n"
+				+ "    int sum = 0;\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        sum += last;\n"
+				+ "        last = i;\n"
+				+ "        if (i == 2) {\n"
+				+ "            continue;\n"
+				+ "        }\n"
+				+ "        last = i * 2;\n"
+				+ "    }\n"
+				+ "    return sum;\n"
+				+ "}\n";
+
+		assertEquals(code, new DeadCodeEliminator().transform(code, CodeOptimizerService.Language.C));
+	}
+}
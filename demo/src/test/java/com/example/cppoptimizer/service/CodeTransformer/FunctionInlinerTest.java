@@ -0,0 +1,71 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+
+class FunctionInlinerTest {
+
+	@Test
+	void inlinesBottomUpAndRemovesDefinitionsNothingCalls() {
+		String code = "static int square(int x) {\n    return x * x;\n}\n\n"
+				+ "static int sumSquares(int a, int b) {\n    return square(a) + square(b);\n}\n\n"
+				+ "static void report(int v) {\n    printf(\"%d\\n\", v);\n}\n\n"
+				+ "int f(int n) {\n"
+				+ "    int s = sumSquares(n, 2) * 3;\n"
+				+ "    report(s);\n"
+				+ "    return s;\n"
+				+ "}\n";
+
+		assertEquals("int f(int n) {\n"
+				+ "    int s = (n * n + 2 * 2) * 3;\n"
+				+ "    {\n"
+				+ "        int report_v = s;\n"
+				+ "        printf(\"%d\\n\", report_v);\n"
+				+ "    }\n"
+				+ "    return s;\n"
+				+ "}\n", new FunctionInliner().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void removesOnlyDefinitionsOtherFilesCannotCall() {
+		String code = "int twice(int x) {\n    return x * 2;\n}\n\n"
+				+ "static int half(int x) {\n    return x / 2;\n}\n\n"
+				+ "namespace {\nint third(int x) {\n    return x / 3;\n}\n}\n\n"
+				+ "int run(int v) {\n    return twice(v) + half(v) + third(v);\n}\n";
+
+		assertEquals("int twice(int x) {\n    return x * 2;\n}\n\n"
+				+ "namespace {\n}\n\n"
+				+ "int run(int v) {\n    return v * 2 + v / 2 + v / 3;\n}\n",
+				new FunctionInliner().transform(code, CodeOptimizerService.Language.CPP));
+	}
+
+	@Test
+	void leavesRecursiveFunctionsAloneAndInlinesLargeBodiesOnlyInLoops() {
+		String code = "int fact(int n) {\n    return n <= 1 ? 1 : n * fact(n - 1);\n}\n\n"
+				+ "int mix(int a, int b) {\n"
+				+ "    int r = a * 31 + b;\n"
+				+ "    r = r ^ (r >> 7);\n"
+				+ "    return r * 17 + a;\n"
+				+ "}\n\n"
+				+ "int g(int k) {\n    return fact(k) + mix(k, 1);\n}\n\n"
+				+ "int h(int n) {\n"
+				+ "    int s = 0;\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        s += mix(i, 3);\n"
+				+ "    }\n"
+				+ "    return s;\n"
+				+ "}\n";
+
+		String inlined = code.replace("        s += mix(i, 3);\n", "        {\n"
+				+ "            int r = i * 31 + 3;\n"
+				+ "            r = r ^ (r >> 7);\n"
+				+ "            s += r * 17 + i;\n"
+				+ "        }\n");
+		assertEquals(inlined, new FunctionInliner().transform(code, CodeOptimizerService.Language.C));
+		// Without a growth budget only calls whose copy is no larger than the call are inlined
+		assertEquals(code, new FunctionInliner(0).transform(code, CodeOptimizerService.Language.C));
+	}
+}
@@ -0,0 +1,103 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.Lexer.CppLexer;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+
+class LoopNestOptimizerTest {
+
+	@Test
+	void interchangesLoopsSoTheInnerOneWalksAlongRows() {
+		String code = "double a[64][64], b[64][64], c[64][64];\n"
+				+ "void multiply(void) {\n"
+				+ "    for (int i = 0; i < 64; i++) {\n"
+				+ "        for (int j = 0; j < 64; j++) {\n"
+				+ "            for (int k = 0; k < 64; k++) {\n"
+				+ "                c[i][j] += a[i][k] * b[k][j];\n"
+				+ "            }\n"
+				+ "        }\n"
+				+ "    }\n"
+				+ "}\n";
+
+		assertEquals("double a[64][64], b[64][64], c[64][64];\n"
+				+ "void multiply(void) {\n"
+				+ "    for (int i = 0; i < 64; i++) {\n"
+				+ "        for (int k = 0; k < 64; k++) {\n"
+				+ "            for (int j = 0; j < 64; j++) {\n"
+				+ "                c[i][j] += a[i][k] * b[k][j];\n"
+				+ "            }\n"
+				+ "        }\n"
+				+ "    }\n"
+				+ "}\n", new LoopNestOptimizer().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void fusesAdjacentLoopsOverTheSameArrays() {
+		String code = "void scale(int n) {\n"
+				+ "    double a[100], b[100];\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        a[i] = i * 0.5;\n"
+				+ "    }\n"
+				+ "    for (int k = 0; k < n; k++) {\n"
+				+ "        b[k] = a[k] * 2;\n"
+				+ "    }\n"
+				+ "}\n";
+
+		assertEquals("void scale(int n) {\n"
+				+ "    double a[100], b[100];\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        a[i] = i * 0.5;\n"
+				+ "        b[i] = a[i] * 2;\n"
+				+ "    }\n"
+				+ "}\n", new LoopNestOptimizer().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void tilesNestsThatCrossRowsEitherWay() {
+		String code = "void transpose(int n, double a[n][n]) {\n"
+				+ "    double s[512][512];\n"
+				+ "    for (int i = 0; i < 512; i++) {\n"
+				+ "        for (int j = 0; j < 512; j++) {\n"
+				+ "            s[j][i] = a[i][j];\n"
+				+ "        }\n"
+				+ "    }\n"
+				+ "}\n";
+
+		assertEquals("void transpose(int n, double a[n][n]) {\n"
+				+ "    double s[512][512];\n"
+				+ "    for (int i_block = 0; i_block < 512; i_block += 16) {\n"
+				+ "        for (int j_block = 0; j_block < 512; j_block += 16) {\n"
+				+ "            for (int i = i_block; i < i_block + 16 && i < 512; i++) {\n"
+				+ "                for (int j = j_block; j < j_block + 16 && j < 512; j++) {\n"
+				+ "                    s[j][i] = a[i][j];\n"
+				+ "                }\n"
+				+ "            }\n"
+				+ "        }\n"
+				+ "    }\n"
+				+ "}\n", new LoopNestOptimizer(16).transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void leavesNestsWhoseIterationsDependOnEachOtherAlone() {
+		TokenStream tokens = CppLexer.lex("double a[64][64], b[64][64];\n"
+				+ "void f(double *p) {\n"
+				+ "    for (int j = 1; j < 64; j++) {\n"
+				+ "        for (int i = 1; i < 64; i++) {\n"
+				+ "            a[i][j] = a[i - 1][j] + a[i][j - 1];\n"
+				+ "        }\n"
+				+ "    }\n"
+				+ "    for (int j = 0; j < 64; j++) {\n"
+				+ "        for (int i = 0; i < 64; i++) {\n"
+				+ "            p[i] = b[i][j];\n"
+				+ "        }\n"
+				+ "    }\n"
+				+ "}\n");
+
+		assertSame(tokens.getSource(), new LoopNestOptimizer().transform(tokens, CodeOptimizerService.Language.C));
+	}
+}
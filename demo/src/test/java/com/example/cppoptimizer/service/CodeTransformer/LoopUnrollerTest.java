@@ -0,0 +1,68 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.Lexer.CppLexer;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+
+class LoopUnrollerTest {
+
+	@Test
+	void unrollsByTheFactorWithARemainderLoop() {
+		String code = "void f(int *a, int n) {\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        a[i] = a[i] * i;\n"
+				+ "    }\n"
+				+ "}\n";
+
+		assertEquals("void f(int *a, int n) {\n"
+				+ "    {\n"
+				+ "        int i = 0;\n"
+				+ "        for (; i + 1 < n; i += 2) {\n"
+				+ "            a[i] = a[i] * i;\n"
+				+ "            a[i + 1] = a[i + 1] * (i + 1);\n"
+				+ "        }\n"
+				+ "        for (; i < n; i++) {\n"
+				+ "            a[i] = a[i] * i;\n"
+				+ "        }\n"
+				+ "    }\n"
+				+ "}\n", new LoopUnroller(2).transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void leavesLoopsWithUnknownEffectsAlone() {
+		TokenStream tokens = CppLexer.lex("void f(int *a, int n) {\n"
+				+ "    for (int i = 0; i < n; i++) { a[i] = next(); }\n"
+				+ "    for (int i = 0; i < n; i++) { if (a[i] < 0) break; }\n"
+				+ "    for (int i = 0; i < n; i++) { a[i] = n--; }\n"
+				+ "}\n");
+
+		assertSame(tokens.getSource(), new LoopUnroller().transform(tokens, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void unrollsSmallLoopsIntoScopedCopies() {
+		String code = "void f(int *a) {\n"
+				+ "    for (int i = 0; i < 2; i++) { int t = a[i]; a[i] = t * t; }\n"
+				+ "}\n";
+
+		assertEquals("void f(int *a) {\n"
+				+ "    { int t = a[0]; a[0] = t * t; }\n"
+				+ "    { int t = a[1]; a[1] = t * t; }\n"
+				+ "}\n", new LoopUnroller().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void leavesSmallLoopsThatJumpAlone() {
+		TokenStream tokens = CppLexer.lex("void f(int *a) {\n"
+				+ "    for (int i = 0; i < 3; i++) { if (i == 1) continue; a[i] = 0; }\n"
+				+ "    for (int i = 0; i < 3; i++) { if (a[i] < 0) break; a[i]++; }\n"
+				+ "}\n");
+
+		assertSame(tokens.getSource(), new LoopUnroller().transform(tokens, CodeOptimizerService.Language.C));
+	}
+}
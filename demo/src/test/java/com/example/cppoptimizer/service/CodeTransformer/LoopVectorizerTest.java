@@ -0,0 +1,146 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.Lexer.CppLexer;
+import com.example.cppoptimizer.service.Lexer.TokenStream;
+
+class LoopVectorizerTest {
+
+	@Test
+	void marksSeparateArraysRestrictAndSplitsIntegerSums() {
+		String code = "static void axpy(double *y, const double *x, int n) {\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        y[i] = 2.0 * x[i] + y[i];\n"
+				+ "    }\n"
+				+ "}\n"
+				+ "static long total(const int *v, int n) {\n"
+				+ "    long s = 0;\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        s += v[i];\n"
+				+ "    }\n"
+				+ "    return s;\n"
+				+ "}\n"
+				+ "int main(void) {\n"
+				+ "    double x[8], y[8];\n"
+				+ "    int v[8];\n"
+				+ "    axpy(y, x, 8);\n"
+				+ "    return (int) total(v, 8);\n"
+				+ "}\n";
+
+		assertEquals("static void axpy(double *restrict y, const double *restrict x, int n) {\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        y[i] = 2.0 * x[i] + y[i];\n"
+				+ "    }\n"
+				+ "}\n"
+				+ "static long total(const int *v, int n) {\n"
+				+ "    long s = 0;\n"
+				+ "    {\n"
+				+ "        long s_0 = 0, s_1 = 0, s_2 = 0;\n"
+				+ "        int i = 0;\n"
+				+ "        for (; i + 3 < n; i += 4) {\n"
+				+ "            s += v[i];\n"
+				+ "            s_0 += v[i + 1];\n"
+				+ "            s_1 += v[i + 2];\n"
+				+ "            s_2 += v[i + 3];\n"
+				+ "        }\n"
+				+ "        for (; i < n; i++) {\n"
+				+ "            s += v[i];\n"
+				+ "        }\n"
+				+ "        s += s_0 + s_1 + s_2;\n"
+				+ "    }\n"
+				+ "    return s;\n"
+				+ "}\n"
+				+ "int main(void) {\n"
+				+ "    double x[8], y[8];\n"
+				+ "    int v[8];\n"
+				+ "    axpy(y, x, 8);\n"
+				+ "    return (int) total(v, 8);\n"
+				+ "}\n", new LoopVectorizer().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void onlyAddsAPragmaToFloatingPointSums() {
+		String code = "double dot(const double *a, const double *b, int n) {\n"
+				+ "    double d = 0.0;\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        d += a[i] * b[i];\n"
+				+ "    }\n"
+				+ "    return d;\n"
+				+ "}\n";
+
+		assertEquals("double dot(const double *a, const double *b, int n) {\n"
+				+ "    double d = 0.0;\n"
+				+ "    #pragma omp simd reduction(+:d)\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        d += a[i] * b[i];\n"
+				+ "    }\n"
+				+ "    return d;\n"
+				+ "}\n", new LoopVectorizer().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void leavesDependentAndPossiblyOverlappingLoopsAlone() {
+		TokenStream tokens = CppLexer.lex("void shift(int *a, int n) {\n"
+				+ "    for (int i = 0; i + 1 < n; i++) { a[i] = a[i + 1]; }\n"
+				+ "}\n"
+				+ "void copy(int *dst, const int *src, int n) {\n"
+				+ "    for (int i = 0; i < n; i++) { dst[i] = src[i]; }\n"
+				+ "}\n"
+				+ "void run(int *v, int n) {\n"
+				+ "    copy(v, v + 1, n - 1);\n"
+				+ "}\n");
+
+		assertSame(tokens.getSource(), new LoopVectorizer().transform(tokens, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void handlesCountersDeclaredBeforeTheLoopAndBodiesWithoutBraces() {
+		String code = "static void add(int *a, const int *b, const int *c, int n) {\n"
+				+ "    int i;\n"
+				+ "    for (i = 0; i < n; i++) a[i] = b[i] + c[i];\n"
+				+ "}\n"
+				+ "static int total(const int *v, int n) {\n"
+				+ "    int i, s = 0;\n"
+				+ "    for (i = 0; i < n; i++) s += v[i];\n"
+				+ "    return s + i;\n"
+				+ "}\n"
+				+ "int main(void) {\n"
+				+ "    int a[8], b[8], c[8];\n"
+				+ "    add(a, b, c, 8);\n"
+				+ "    return total(a, 8);\n"
+				+ "}\n";
+
+		assertEquals("static void add(int *restrict a, const int *restrict b, const int *restrict c, int n) {\n"
+				+ "    int i;\n"
+				+ "    for (i = 0; i < n; i++) a[i] = b[i] + c[i];\n"
+				+ "}\n"
+				+ "static int total(const int *v, int n) {\n"
+				+ "    int i, s = 0;\n"
+				+ "    {\n"
+				+ "        int s_0 = 0, s_1 = 0, s_2 = 0;\n"
+				+ "        i = 0;\n"
+				+ "        for (; i + 3 < n; i += 4) {\n"
+				+ "            s += v[i];\n"
+				+ "            s_0 += v[i + 1];\n"
+				+ "            s_1 += v[i + 2];\n"
+				+ "            s_2 += v[i + 3];\n"
+				+ "        }\n"
+				+ "        for (; i < n; i++) {\n"
+				+ "            s += v[i];\n"
+				+ "        }\n"
+				+ "        s += s_0 + s_1 + s_2;\n"
+				+ "    }\n"
+				+ "    return s + i;\n"
+				+ "}\n"
+				+ "int main(void) {\n"
+				+ "    int a[8], b[8], c[8];\n"
+				+ "    add(a, b, c, 8);\n"
+				+ "    return total(a, 8);\n"
+				+ "}\n", new LoopVectorizer().transform(code, CodeOptimizerService.Language.C));
+	}
+}
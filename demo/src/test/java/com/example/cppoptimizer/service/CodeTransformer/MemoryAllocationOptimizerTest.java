@@ -0,0 +1,65 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+import com.example.cppoptimizer.service.DataModel;
+
+class MemoryAllocationOptimizerTest {
+
+	@Test
+	void movesArraysThatStayInTheirFunctionAndDropsTheirFrees() {
+		String code = "static int *kept;\n\n"
+				+ "static int sum(const int *v, int n) {\n    int s = 0;\n    for (int i = 0; i < n; i++) {\n        s += v[i];\n    }\n    return s;\n}\n\n"
+				+ "static void keep(int *v) {\n    kept = v;\n}\n\n"
+				+ "int f(int n) {\n"
+				+ "    double *d = (double *) calloc(4, sizeof(double));\n"
+				+ "    int *a = malloc(sizeof(int) * 8);\n"
+				+ "    int *b = malloc(2 * sizeof(int));\n"
+				+ "    long *c = malloc(4 * sizeof(int));\n"
+				+ "    if (a == NULL) {\n        return -1;\n    }\n"
+				+ "    *d = n;\n"
+				+ "    a[0] = n;\n"
+				+ "    keep(b);\n"
+				+ "    c[0] = sum(a, 8);\n"
+				+ "    free(a);\n"
+				+ "    free(d);\n"
+				+ "    return (int) c[0];\n"
+				+ "}\n";
+
+		String moved = code
+				.replace("    double *d = (double *) calloc(4, sizeof(double));\n", "    double d[4] = {0};\n")
+				.replace("    int *a = malloc(sizeof(int) * 8);\n", "    int a[8];\n")
+				.replace("if (a == NULL)", "if (0)")
+				.replace("    free(a);\n    free(d);\n", "");
+		assertEquals(moved, new MemoryAllocationOptimizer().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void keepsReturnedMismatchedAndOverBudgetArraysOnTheHeap() {
+		String code = "int *make() {\n    int *r = new int[4];\n    return r;\n}\n\n"
+				+ "int g() {\n"
+				+ "    int *v = new int[16]();\n"
+				+ "    short *w = new short[16];\n"
+				+ "    int *one = new int[2];\n"
+				+ "    int *unused = new int[2];\n"
+				+ "    v[0] = w[0] = one[0] = 1;\n"
+				+ "    int s = v[0] + w[0] + one[0];\n"
+				+ "    delete[] v;\n"
+				+ "    delete[] w;\n"
+				+ "    delete one;\n"
+				+ "    delete[] unused;\n"
+				+ "    return s;\n"
+				+ "}\n";
+
+		// 64 bytes of ints fit a budget of 80, the 32 bytes of shorts after them do not
+		String moved = code
+				.replace("    int *v = new int[16]();\n", "    int v[16] = {0};\n")
+				.replace("    int *unused = new int[2];\n", "")
+				.replace("    delete[] v;\n", "")
+				.replace("    delete[] unused;\n", "");
+		assertEquals(moved, new MemoryAllocationOptimizer(80, DataModel.LP64).transform(code, CodeOptimizerService.Language.CPP));
+	}
+}
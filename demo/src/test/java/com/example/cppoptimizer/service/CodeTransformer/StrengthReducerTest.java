@@ -0,0 +1,40 @@
+package com.example.cppoptimizer.service.CodeTransformer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.service.CodeOptimizerService;
+
+class StrengthReducerTest {
+
+	@Test
+	void shiftsOnlyOperandsThatCannotBeNegative() {
+		String code = "unsigned f(unsigned x, int y) {\n"
+				+ "    unsigned h = x * 8 + y / 4;\n"
+				+ "    h %= 32;\n"
+				+ "    return h / 16 + y * 2;\n"
+				+ "}\n";
+
+		assertEquals("unsigned f(unsigned x, int y) {\n"
+				+ "    unsigned h = (x << 3) + y / 4;\n"
+				+ "    h &= 31;\n"
+				+ "    return (h >> 4) + y * 2;\n"
+				+ "}\n", new StrengthReducer().transform(code, CodeOptimizerService.Language.C));
+	}
+
+	@Test
+	void replacesCounterProductsWithRunningSums() {
+		String code = "void f(int *a, int n, int stride) {\n"
+				+ "    for (int i = 0; i < n; i++) {\n"
+				+ "        a[i * stride] = a[i * 4] + i * 3;\n"
+				+ "    }\n"
+				+ "}\n";
+
+		assertEquals("void f(int *a, int n, int stride) {\n"
+				+ "    for (int i = 0, i_times_stride = 0, i_times_3 = 0; i < n; i++, i_times_stride += stride, i_times_3 += 3) {\n"
+				+ "        a[i_times_stride] = a[i << 2] + i_times_3;\n"
+				+ "    }\n"
+				+ "}\n", new StrengthReducer().transform(code, CodeOptimizerService.Language.C));
+	}
+}
@@ -0,0 +1,82 @@
+package com.example.cppoptimizer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
+
+class ExecutionVerifierTest {
+
+	private static final String PROGRAM = "#include <stdio.h>\n\n"
+			+ "int main(void) {\n"
+			+ "    int s = 0;\n"
+			+ "    for (int i = 0; i < 10; i++) {\n"
+			+ "        s += i * i;\n"
+			+ "    }\n"
+			+ "    printf(\"%d\\n\", s);\n"
+			+ "    return 0;\n"
+			+ "}\n";
+
+	private ExecutionVerifier verifier;
+
+	@BeforeEach
+	void requireGcc() {
+		Assumptions.assumeTrue(gccInstalled(), "gcc is not installed");
+		OptimizerProperties.Verification config = new OptimizerProperties.Verification();
+		config.setCompiler("gcc");
+		config.setRuns(3);
+		// Timings of programs this small are noise
+		config.setSlowdownTolerancePercent(100_000);
+		verifier = new ExecutionVerifier(config);
+	}
+
+	@AfterEach
+	void shutdown() {
+		if (verifier != null) {
+			verifier.shutdown();
+		}
+	}
+
+	@Test
+	void verifiesProgramsThatBehaveTheSame() {
+		String optimized = PROGRAM.replace("s += i * i;", "s += i * i + 0;");
+		CodeOptimizerService.Verification verification = verifier.verify(PROGRAM, optimized, CodeOptimizerService.Language.C);
+
+		assertEquals(CodeOptimizerService.VerificationStatus.VERIFIED, verification.getStatus(), verification.getMessage());
+		assertNotNull(verification.getOriginal());
+		assertEquals(0, verification.getOptimized().getExitCode());
+		assertTrue(verification.getOriginal().getPeakRssKib() > 0);
+		assertTrue(verification.getSpeedup() > 0);
+	}
+
+	@Test
+	void reportsChangedOutputAndCodeThatNoLongerBuilds() {
+		String changed = PROGRAM.replace("i < 10", "i < 11");
+		assertEquals(CodeOptimizerService.VerificationStatus.OUTPUT_DIFFERS,
+				verifier.verify(PROGRAM, changed, CodeOptimizerService.Language.C).getStatus());
+
+		String broken = PROGRAM.replace("int s = 0;", "");
+		assertEquals(CodeOptimizerService.VerificationStatus.REGRESSION,
+				verifier.verify(PROGRAM, broken, CodeOptimizerService.Language.C).getStatus());
+		assertEquals(CodeOptimizerService.VerificationStatus.NOT_RUNNABLE,
+				verifier.verify(broken, PROGRAM, CodeOptimizerService.Language.C).getStatus());
+	}
+
+	private static boolean gccInstalled() {
+		try {
+			Process process = new ProcessBuilder("gcc", "--version").redirectErrorStream(true)
+					.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+			return process.waitFor(10, TimeUnit.SECONDS) && process.exitValue() == 0;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+}
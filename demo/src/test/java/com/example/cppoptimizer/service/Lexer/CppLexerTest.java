@@ -0,0 +1,43 @@
+package com.example.cppoptimizer.service.Lexer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class CppLexerTest {
+
+	@Test
+	void skipsCommentsAndKeepsLiteralsWhole() {
+		TokenStream tokens = CppLexer.lex("#include <stdio.h>\nint a = 2 + 3; // 4 + 5\nchar *s = \"1 + 1\"; /* x */");
+
+		assertEquals(TokenType.PREPROCESSOR, tokens.type(0));
+		assertTrue(tokens.is(1, "int"));
+		assertEquals(TokenType.STRING, tokens.type(tokens.size() - 2));
+		assertEquals("\"1 + 1\"", tokens.text(tokens.size() - 2));
+		assertEquals(-1, tokens.indexOf("4", 0, tokens.size()));
+	}
+
+	@Test
+	void resolvesBracketPairsAndLongestOperators() {
+		TokenStream tokens = CppLexer.lex("if (a[i] >>= 2) { b->c++; }");
+
+		assertEquals(tokens.indexOf(")", 0, tokens.size()), tokens.match(1));
+		assertEquals(tokens.size() - 1, tokens.match(tokens.indexOf("{", 0, tokens.size())));
+		assertTrue(tokens.indexOf(">>=", 0, tokens.size()) > 0);
+		assertTrue(tokens.indexOf("->", 0, tokens.size()) > 0);
+	}
+
+	@Test
+	void rewriterReturnsSourceWhenUntouchedAndSplicesEdits() {
+		TokenStream tokens = CppLexer.lex("int x = 1;\n    int y = 2;\nreturn x;");
+		SourceRewriter untouched = new SourceRewriter(tokens);
+		assertSame(tokens.getSource(), untouched.toString());
+
+		SourceRewriter rewriter = new SourceRewriter(tokens);
+		rewriter.deleteLines(5, 9);
+		rewriter.replace(3, 3, "42");
+		assertEquals("int x = 42;\nreturn x;", rewriter.toString());
+	}
+}
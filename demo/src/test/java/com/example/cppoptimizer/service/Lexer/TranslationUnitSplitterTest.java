@@ -0,0 +1,26 @@
+package com.example.cppoptimizer.service.Lexer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TranslationUnitSplitterTest {
+
+	@Test
+	void splitsFunctionsFromGlobalsAndTilesTheSource() {
+		String code = "#include <stdio.h>\nstruct P { int x; } origin;\nint g = 1;\n\n"
+				+ "int twice(int v) { return 2 * v; }\n"
+				+ "namespace util { int helper(); }\n"
+				+ "int main() {\n    return twice(g);\n}\n";
+		List<SourceRegion> regions = TranslationUnitSplitter.split(CppLexer.lex(code));
+
+		assertEquals(List.of(SourceRegion.Kind.GLOBAL, SourceRegion.Kind.FUNCTION, SourceRegion.Kind.GLOBAL,
+				SourceRegion.Kind.FUNCTION, SourceRegion.Kind.GLOBAL),
+				regions.stream().map(SourceRegion::getKind).toList());
+		assertEquals("twice", regions.get(1).getName());
+		assertEquals("main", regions.get(3).getName());
+		assertEquals(code, String.join("", regions.stream().map(SourceRegion::getText).toList()));
+	}
+}
@@ -0,0 +1,60 @@
+package com.example.cppoptimizer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class MemoryAnalyzerTest {
+	private static final String CODE = "#include <stdlib.h>\n"
+			+ "typedef struct { char c; double d; int i; } Mixed;\n"
+			+ "int leaf(int x) {\n    char buf[100];\n    buf[0] = x;\n    return buf[0];\n}\n"
+			+ "int mid(int x) {\n    { double d; }\n    { char big[64]; }\n    return leaf(x);\n}\n"
+			+ "int fact(int n) {\n    return n <= 1 ? 1 : n * fact(n - 1);\n}\n"
+			+ "int main(void) {\n    Mixed m;\n    Mixed *many = malloc(sizeof(Mixed) * 3);\n"
+			+ "    long *n = calloc(4, sizeof(long));\n    void *unknown = malloc(count);\n"
+			+ "    return mid(1) + fact(3);\n}\n";
+
+	@Test
+	void stackIsTheDeepestCallChainFromMain() {
+		CodeOptimizerService.MemoryUsage usage = analyze(DataModel.LP64);
+
+		// main: Mixed (24) + three pointers, plus return address and frame pointer, rounded to 16
+		CodeOptimizerService.StackFrame main = frame(usage, "main");
+		assertEquals(64, main.getFrameSize());
+		// mid's sibling blocks share space, so only the 64-byte array counts
+		assertEquals(80, frame(usage, "mid").getFrameSize());
+		assertEquals(List.of("main", "mid", "leaf"), main.getCallChain());
+		assertEquals(64 + 80 + 128, usage.getStackSize());
+		assertTrue(frame(usage, "fact").isRecursive());
+	}
+
+	@Test
+	void heapIsAttributedToAllocationSites() {
+		CodeOptimizerService.MemoryUsage usage = analyze(DataModel.LP64);
+
+		assertEquals(List.of(72L, 32L, -1L), usage.getAllocations().stream()
+				.map(CodeOptimizerService.HeapAllocation::getBytes).toList());
+		assertEquals("malloc(sizeof(Mixed) * 3)", usage.getAllocations().get(0).getExpression());
+		assertEquals(104, usage.getHeapSize());
+	}
+
+	@Test
+	void sizesFollowTheDataModel() {
+		// ILP32 aligns double to 4 inside structs and has 4-byte long and pointers
+		CodeOptimizerService.MemoryUsage usage = analyze(DataModel.ILP32);
+
+		assertEquals(48 + 16, usage.getHeapSize());
+		assertEquals("ILP32", usage.getDataModel());
+	}
+
+	private static CodeOptimizerService.MemoryUsage analyze(DataModel model) {
+		return new MemoryAnalyzer(model).estimateMemoryUsage(CODE, CodeOptimizerService.Language.C);
+	}
+
+	private static CodeOptimizerService.StackFrame frame(CodeOptimizerService.MemoryUsage usage, String function) {
+		return usage.getFrames().stream().filter(f -> f.getFunction().equals(function)).findFirst().orElseThrow();
+	}
+}
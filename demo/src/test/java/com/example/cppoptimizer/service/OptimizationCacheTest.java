@@ -0,0 +1,129 @@
+package com.example.cppoptimizer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OptimizationCacheTest {
+	@TempDir
+	Path diskDir;
+
+	@Test
+	void evictsTheLeastRecentlyUsedEntriesByWeight() {
+		// A changed stage of 100 chars weighs 2 * 100 + 64 bytes
+		OptimizationCache cache = new OptimizationCache(600, null, 0);
+		cache.putStage("a", "in", "a".repeat(100));
+		cache.putStage("b", "in", "b".repeat(100));
+		cache.getStage("a", "in");
+		cache.putStage("c", "in", "c".repeat(100));
+
+		assertNull(cache.getStage("b", "in"));
+		assertEquals("a".repeat(100), cache.getStage("a", "in"));
+		assertEquals("c".repeat(100), cache.getStage("c", "in"));
+		OptimizationCache.Stats stats = cache.getStats();
+		assertEquals(1, stats.getEvictions());
+		assertEquals(2, stats.getEntries());
+		assertEquals(2 * 264, stats.getBytes());
+	}
+
+	@Test
+	void countsResultAndStageHitsAndMissesApart() {
+		OptimizationCache cache = new OptimizationCache(1 << 20, null, 0);
+		cache.putResult("r", result("int x;"));
+		cache.putStage("s", "in", "out");
+
+		assertEquals("int x;", cache.getResult("r").getOptimizedCode());
+		assertNull(cache.getResult("missing"));
+		// A stage key never finds a result, nor a result key a stage
+		assertNull(cache.getResult("s"));
+		assertEquals("out", cache.getStage("s", "in"));
+		assertNull(cache.getStage("r", "in"));
+		OptimizationCache.Stats stats = cache.getStats();
+		assertEquals(1, stats.getResultHits());
+		assertEquals(2, stats.getResultMisses());
+		assertEquals(1, stats.getStageHits());
+		assertEquals(1, stats.getStageMisses());
+	}
+
+	@Test
+	void recordsUnchangedStagesAsAMarker() {
+		OptimizationCache cache = new OptimizationCache(1 << 20, null, 0);
+		String input = "int x;";
+		cache.putStage("s", input, input);
+
+		String later = new String(input);
+		assertSame(later, cache.getStage("s", later));
+		assertEquals(64, cache.getStats().getBytes());
+	}
+
+	@Test
+	void servesResultsFromDiskAfterARestart() {
+		String key = OptimizationCache.resultKey(OptimizationCache.inputKey("int x;"), List.of("foldConstants"));
+		new OptimizationCache(1 << 20, diskDir.toString(), 1 << 20).putResult(key, result("int y;"));
+
+		OptimizationCache restarted = new OptimizationCache(1 << 20, diskDir.toString(), 1 << 20);
+		assertEquals("int y;", restarted.getResult(key).getOptimizedCode());
+		assertEquals(1, restarted.getStats().getDiskHits());
+		// Read back into memory, so the next hit does not go to disk
+		restarted.getResult(key);
+		assertEquals(1, restarted.getStats().getDiskHits());
+	}
+
+	@Test
+	void dropsTheOldestFilesPastTheDiskBudget() throws IOException {
+		new OptimizationCache(1 << 20, diskDir.toString(), 1 << 20).putResult("old", result("int x;"));
+		Path old = diskDir.resolve("old.result");
+		Files.setLastModifiedTime(old, FileTime.fromMillis(0));
+		long size = Files.size(old);
+
+		// Starts out counting the file already there
+		OptimizationCache cache = new OptimizationCache(1 << 20, diskDir.toString(), size + size / 2);
+		cache.putResult("new", result("int y;"));
+
+		assertFalse(Files.exists(old));
+		assertTrue(Files.exists(diskDir.resolve("new.result")));
+	}
+
+	@Test
+	void missesResultsOfAnotherFormatVersion() {
+		List<String> pipeline = List.of("foldConstants");
+		String old = OptimizationCache.resultKey(OptimizationCache.inputKey("1", "int x;"), pipeline);
+		new OptimizationCache(1 << 20, diskDir.toString(), 1 << 20).putResult(old, result("int y;"));
+
+		OptimizationCache restarted = new OptimizationCache(1 << 20, diskDir.toString(), 1 << 20);
+		assertNull(restarted.getResult(OptimizationCache.resultKey(OptimizationCache.inputKey("int x;"), pipeline)));
+	}
+
+	@Test
+	void dropsDiskEntriesOfForeignClasses() throws IOException {
+		Path file = diskDir.resolve("foreign.result");
+		try (OutputStream out = Files.newOutputStream(file); ObjectOutputStream oos = new ObjectOutputStream(out)) {
+			oos.writeObject(new File("/etc/passwd"));
+		}
+
+		OptimizationCache cache = new OptimizationCache(1 << 20, diskDir.toString(), 1 << 20);
+		assertNull(cache.getResult("foreign"));
+		assertFalse(Files.exists(file));
+		assertEquals(1, cache.getStats().getResultMisses());
+	}
+
+	private static CodeOptimizerService.OptimizationResult result(String code) {
+		return new CodeOptimizerService.OptimizationResult(code, new CodeOptimizerService.MemoryUsage(0, 0),
+				new CodeOptimizerService.MemoryUsage(0, 0), new ArrayList<>(), new ArrayList<>());
+	}
+}
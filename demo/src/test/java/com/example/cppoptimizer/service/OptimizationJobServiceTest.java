@@ -0,0 +1,82 @@
+package com.example.cppoptimizer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class OptimizationJobServiceTest {
+
+	@Test
+	void queuesUpToCapacityAndReportsTheResult() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		// Holds the single worker inside its first stage until released
+		CodeOptimizerService blocking = new CodeOptimizerService() {
+			@Override
+			public OptimizationResult optimize(String code, Collection<String> passes, OptimizationProgress progress) {
+				return super.optimize(code, passes, stage -> {
+					progress.stageStarted(stage);
+					await(release);
+				});
+			}
+		};
+		OptimizerProperties properties = new OptimizerProperties();
+		properties.getJobs().setWorkers(1);
+		properties.getJobs().setQueueCapacity(1);
+		OptimizationJobService jobs = new OptimizationJobService(blocking, properties, new SimpleMeterRegistry());
+		try {
+			OptimizationJobService.JobStatus running = jobs.submit("int main() { return 2 + 3; }", null);
+			OptimizationJobService.JobStatus queued = jobs.submit("int main() { return 1; }", null);
+			assertThrows(RejectedExecutionException.class, () -> jobs.submit("int x;", null));
+
+			assertEquals(OptimizationJobService.State.CANCELLED, jobs.cancel(queued.getId()).getState());
+			// The cancelled job gave its queue slot back
+			jobs.cancel(jobs.submit("int y;", null).getId());
+			release.countDown();
+
+			OptimizationJobService.JobStatus done = jobs.completion(running.getId()).get(10, TimeUnit.SECONDS);
+			assertEquals(OptimizationJobService.State.SUCCEEDED, done.getState());
+			assertEquals("int main() { return 5; }", done.getResult().getOptimizedCode());
+		} finally {
+			jobs.shutdown();
+		}
+	}
+
+	@Test
+	void failsJobsWhoseOptimizerThrowsAnError() throws Exception {
+		CodeOptimizerService overflowing = new CodeOptimizerService() {
+			@Override
+			public OptimizationResult optimize(String code, Collection<String> passes, OptimizationProgress progress) {
+				throw new StackOverflowError();
+			}
+		};
+		OptimizationJobService jobs = new OptimizationJobService(overflowing, new OptimizerProperties(),
+				new SimpleMeterRegistry());
+		try {
+			OptimizationJobService.JobStatus job = jobs.submit("int x;", null);
+
+			OptimizationJobService.JobStatus done = jobs.completion(job.getId()).get(10, TimeUnit.SECONDS);
+			assertEquals(OptimizationJobService.State.FAILED, done.getState());
+			assertEquals("Error optimizing code: java.lang.StackOverflowError", done.getError());
+		} finally {
+			jobs.shutdown();
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.example.cppoptimizer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class OptimizerMetricsTest {
+
+	@Test
+	void timesPassesAndRequestsAndTracksTheCache() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		CodeOptimizerService service = new CodeOptimizerService(new OptimizerProperties(), registry);
+		try {
+			service.optimize("int main() { return 2 + 3; }");
+			service.optimize("int main() { return 2 + 3; }");
+		} finally {
+			service.shutdown();
+		}
+
+		assertTrue(registry.get("cppoptimizer.pass").tag("pass", "foldConstants").timer().count() >= 1);
+		assertTrue(registry.get("cppoptimizer.pass.outcomes").tag("pass", "foldConstants").tag("outcome", "changed")
+				.counter().count() >= 1);
+		// Every pass has its meters from the start, run or not
+		assertEquals(0, registry.get("cppoptimizer.pass.outcomes").tag("pass", "vectorizeLoops").tag("outcome", "timeout")
+				.counter().count());
+		assertEquals(1, registry.get("cppoptimizer.optimize").tag("result", "computed").timer().count());
+		assertEquals(1, registry.get("cppoptimizer.optimize").tag("result", "cached").timer().count());
+		assertEquals(2, registry.get("cppoptimizer.input.size").summary().count());
+
+		assertEquals(1, registry.get("cppoptimizer.cache.requests").tag("result", "hit").functionCounter().count());
+		assertEquals(1, registry.get("cppoptimizer.cache.requests").tag("result", "miss").functionCounter().count());
+		assertEquals(0, registry.get("cppoptimizer.cache.evictions").functionCounter().count());
+		assertTrue(registry.get("cppoptimizer.cache.size").gauge().value() > 0);
+	}
+
+	@Test
+	void countsQueuedRunningAndRejectedJobs() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CodeOptimizerService blocking = new CodeOptimizerService() {
+			@Override
+			public OptimizationResult optimize(String code, Collection<String> passes, OptimizationProgress progress) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.optimize(code, passes, progress);
+			}
+		};
+		OptimizerProperties properties = new OptimizerProperties();
+		properties.getJobs().setWorkers(1);
+		properties.getJobs().setQueueCapacity(1);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		OptimizationJobService jobs = new OptimizationJobService(blocking, properties, registry);
+		try {
+			OptimizationJobService.JobStatus running = jobs.submit("int a;", null);
+			jobs.submit("int b;", null);
+			assertThrows(RejectedExecutionException.class, () -> jobs.submit("int c;", null));
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+
+			assertEquals(1, registry.get("cppoptimizer.jobs.running").gauge().value());
+			assertEquals(1, registry.get("cppoptimizer.jobs.queued").gauge().value());
+			assertEquals(1, registry.get("cppoptimizer.jobs.rejected").counter().count());
+			release.countDown();
+			jobs.completion(running.getId()).get(10, TimeUnit.SECONDS);
+		} finally {
+			jobs.shutdown();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.example.cppoptimizer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
+
+class PassManagerTest {
+	private static final String CODE = "int add1(int y) {\n    return y + 1;\n}\n\n"
+			+ "int main() {\n    int a[4];\n    int x = add1(2 + 3);\n"
+			+ "    for (int j = 0; j < 2 + 1; j++) {\n        a[j] = j + 1;\n    }\n"
+			+ "    return x + a[0];\n}\n";
+
+	@Test
+	void refoldsWhatUnrollingAndInliningExpose() {
+		CodeOptimizerService service = new CodeOptimizerService(uncached(4));
+		String optimized = service.optimize(CODE).getOptimizedCode();
+
+		assertTrue(optimized.contains("return 6 + a[0];"), optimized);
+		assertTrue(optimized.contains("a[0] = 1;") && optimized.contains("a[2] = 3;"), optimized);
+	}
+
+	@Test
+	void stopsAtTheIterationCap() {
+		CodeOptimizerService service = new CodeOptimizerService(uncached(1));
+		String optimized = service.optimize(CODE).getOptimizedCode();
+
+		assertTrue(optimized.contains("a[0] = 0 + 1;"), optimized);
+	}
+
+	@Test
+	void runsOnlySelectedPasses() {
+		CodeOptimizerService service = new CodeOptimizerService(uncached(4));
+		CodeOptimizerService.OptimizationResult result = service.optimize(CODE, List.of("foldConstants"));
+
+		assertTrue(result.getOptimizedCode().contains("add1(5)"));
+		assertFalse(result.getOptimizedCode().contains("a[0] = "));
+		assertEquals(List.of("foldConstants", "Total"),
+				result.getTimingEntries().stream().map(CodeOptimizerService.TimingEntry::getStep).toList());
+		assertThrows(IllegalArgumentException.class, () -> service.optimize(CODE, List.of("noSuchPass")));
+	}
+
+	@Test
+	void keepsTheInputOfAPassThatRunsOutOfTime() {
+		OptimizerProperties properties = uncached(4);
+		properties.getPasses().setTimeBudgetMs(1);
+		CodeOptimizerService service = new CodeOptimizerService(properties);
+		// Far more tokens than folding gets through in a millisecond
+		String code = "int f() {\n    int a = 1 + 2;\n    return a;\n}\n".repeat(50_000);
+		CodeOptimizerService.OptimizationResult result = service.optimize(code, List.of("foldConstants"));
+
+		assertEquals(code, result.getOptimizedCode());
+		assertTrue(result.getTimingEntries().get(0).isTimedOut());
+		assertTrue(result.getOptimizationInsights().get(0).startsWith("foldConstants ran past its time budget"));
+	}
+
+	@Test
+	void doesNotServeResultsBuiltWithOtherSettings(@TempDir Path cacheDir) {
+		String code = "void f(int *a, int n) {\n    for (int i = 0; i < n; i++) {\n        a[i] = a[i] * i;\n    }\n}\n";
+		List<String> optimized = new ArrayList<>();
+		for (int factor : new int[] {2, 8}) {
+			// A restart with another setting finds the first run's result on disk
+			OptimizerProperties properties = new OptimizerProperties();
+			properties.getCache().setDiskDir(cacheDir.toString());
+			properties.getPasses().setUnrollFactor(factor);
+			CodeOptimizerService service = new CodeOptimizerService(properties);
+			optimized.add(service.optimize(code, List.of("unrollLoops")).getOptimizedCode());
+			service.shutdown();
+		}
+
+		assertTrue(optimized.get(0).contains("i += 2"), optimized.get(0));
+		assertTrue(optimized.get(1).contains("i += 8"), optimized.get(1));
+	}
+
+	@Test
+	void optimizesRegionsRunInParallelLikeTheWholeFile() {
+		String code = "unsigned ug;\n"
+				+ "int scale(void) {\n    unsigned r = ug * 4;\n    return (int) r;\n}\n"
+				+ "double gd[16];\n"
+				+ "double sum(int a, int b) {\n    double x = gd[a * b] + 1;\n    double y = gd[a * b] + 2;\n    return x + y;\n}\n";
+		OptimizerProperties sequentialProperties = uncached(4);
+		sequentialProperties.getParallel().setEnabled(false);
+		CodeOptimizerService sequential = new CodeOptimizerService(sequentialProperties);
+		OptimizerProperties parallelProperties = uncached(4);
+		parallelProperties.getParallel().setParallelism(2);
+		parallelProperties.getParallel().setMinChars(0);
+		CodeOptimizerService parallel = new CodeOptimizerService(parallelProperties);
+
+		CodeOptimizerService.OptimizationResult whole = sequential.optimize(code);
+		CodeOptimizerService.OptimizationResult byRegion = parallel.optimize(code);
+		CodeOptimizerService.OptimizationResult incremental = parallel.optimizeIncremental("session", code);
+		parallel.shutdown();
+
+		assertTrue(whole.getOptimizedCode().contains("ug << 2"), whole.getOptimizedCode());
+		assertEquals(whole.getOptimizedCode(), byRegion.getOptimizedCode());
+		assertEquals(whole.getOptimizationInsights(), byRegion.getOptimizationInsights());
+		assertEquals(whole.getOptimizedCode(), incremental.getOptimizedCode());
+	}
+
+	private static OptimizerProperties uncached(int maxIterations) {
+		OptimizerProperties properties = new OptimizerProperties();
+		properties.getCache().setEnabled(false);
+		properties.getPasses().setMaxIterations(maxIterations);
+		return properties;
+	}
+}
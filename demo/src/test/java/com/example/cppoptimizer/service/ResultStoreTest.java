@@ -0,0 +1,77 @@
+package com.example.cppoptimizer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.example.cppoptimizer.config.OptimizerProperties;
+
+class ResultStoreTest {
+	@TempDir
+	Path spillDir;
+
+	@Test
+	void spillsLargeOutputsAndKeepsSmallOnesInMemory() throws IOException {
+		ResultStore store = new ResultStore(properties(1800));
+		String big = "int x = 1;\n".repeat(200);
+		String id = store.reserve(2);
+		store.set(id, 0, "src/small.c", "int y;");
+		store.set(id, 1, "src/big.c", big);
+
+		ResultStore.StoredResult result = store.get(id);
+		assertFalse(result.getFile(0).getContent().isFile());
+		ResultStore.Body spilled = result.getFile(1).getContent();
+		assertTrue(spilled.isFile());
+		assertEquals(big, Files.readString(spilled.getPath()));
+
+		ResultStore.Body gzipped = store.gzipped(result.getFile(1));
+		assertTrue(gzipped.getLength() < spilled.getLength());
+		try (InputStream in = new GZIPInputStream(gzipped.open())) {
+			assertEquals(big, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+
+		store.shutdown();
+		assertFalse(Files.exists(spilled.getPath()));
+		assertFalse(Files.exists(gzipped.getPath()));
+	}
+
+	@Test
+	void expiredResultsAreGone() throws IOException {
+		ResultStore store = new ResultStore(properties(0));
+		String id = store.put("a.c", "int a = 1;\n".repeat(200));
+
+		assertNull(store.get(id));
+		try (Stream<Path> files = Files.list(spillDir)) {
+			assertEquals(0, files.count());
+		}
+	}
+
+	@Test
+	void doesNotCompressReleasedFiles() throws IOException {
+		ResultStore store = new ResultStore(properties(1800));
+		ResultStore.StoredFile file = store.get(store.put("a.c", "int a;")).getFile(0);
+		store.shutdown();
+
+		assertNull(store.gzipped(file));
+	}
+
+	private OptimizerProperties properties(long ttlSeconds) {
+		OptimizerProperties properties = new OptimizerProperties();
+		properties.getResults().setTtlSeconds(ttlSeconds);
+		properties.getResults().setSpillBytes(1024);
+		properties.getResults().setSpillDir(spillDir.toString());
+		return properties;
+	}
+}
@@ -0,0 +1,38 @@
+package com.example.cppoptimizer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class SourceReaderTest {
+
+	@Test
+	void normalizesLineEndingsAcrossChunkBoundaries() throws IOException {
+		// Pad so that a CRLF pair and a multi-byte character straddle the 64K read chunks
+		String padding = "x".repeat(64 * 1024 - 1);
+		String code = padding + "\r\nint a;\r" + "é".repeat(40 * 1024) + "\r\r\nend\r";
+		byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+
+		String read = SourceReader.read(new ByteArrayInputStream(bytes), bytes.length, Long.MAX_VALUE);
+
+		assertEquals(code.replace("\r\n", "\n").replace('\r', '\n'), read);
+	}
+
+	@Test
+	void rejectsInputOverTheLimit() {
+		byte[] bytes = "int main() { return 0; }".getBytes(StandardCharsets.UTF_8);
+		assertThrows(IllegalArgumentException.class,
+				() -> SourceReader.read(new ByteArrayInputStream(bytes), 0, 10));
+	}
+
+	@Test
+	void measuresTextInUtf8Bytes() {
+		String text = "a é € \uD83D\uDE00 \uD800";
+		assertEquals(text.getBytes(StandardCharsets.UTF_8).length, SourceReader.utf8Length(text));
+	}
+}